@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.AcceptAllAuthenticator;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.persistence.MemorySessionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of a QoS0 PUBLISH to the subscribers of the topic, from the routing to the session loops up to the
+ * encoding of the PUBLISH for every subscriber.
+ *
+ * The subscribers are connections over embedded channels, whose outbound sink discards the encoded messages,
+ * so the network isn't part of the measure.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+
+    private static final String TOPIC = "building/floor-3/room-12/temperature";
+
+    @Param({"1", "100", "1000"})
+    public int fanOut;
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"1", "4"})
+    public int sessionLoops;
+
+    private ScheduledExecutorService scheduler;
+    private PostOffice postOffice;
+    private ByteBuf payload;
+
+    /**
+     * Release every message written on the channel, as if it was flushed on the network.
+     * */
+    private static final class DiscardingSink extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws ExecutionException, InterruptedException {
+        scheduler = Executors.newScheduledThreadPool(1);
+        final CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        final BrokerInterceptor noObservers = new BrokerInterceptor(Collections.emptyList());
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(noObservers, 1024, sessionLoops);
+        final MemorySessionsRepository sessionsRepository = new MemorySessionsRepository();
+        final SessionRegistry sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository,
+            new MemoryQueueRepository(), permitAll, scheduler, loopsGroup);
+        postOffice = new PostOffice(subscriptions, new MemoryRetainedRepository(), sessionRegistry,
+            sessionsRepository, noObservers, permitAll, loopsGroup);
+
+        final BrokerConfiguration config = new BrokerConfiguration(true, false, false,
+            BrokerConstants.NO_BUFFER_FLUSH);
+        for (int i = 0; i < fanOut; i++) {
+            final String clientId = "subscriber-" + i;
+            final EmbeddedChannel channel = new EmbeddedChannel(new DiscardingSink(), MqttEncoder.INSTANCE);
+            final MQTTConnection connection = new MQTTConnection(channel, config, new AcceptAllAuthenticator(),
+                sessionRegistry, postOffice);
+            connection.processConnect(MqttMessageBuilders.connect().clientId(clientId).build())
+                .completableFuture().get();
+            final MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+                .addSubscription(MqttQoS.AT_MOST_ONCE, TOPIC)
+                .messageId(1)
+                .build();
+            postOffice.subscribeClientToTopics(subscribe, clientId, null, connection);
+        }
+
+        final byte[] content = new byte[payloadSize];
+        Arrays.fill(content, (byte) 'a');
+        payload = Unpooled.wrappedBuffer(content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        postOffice.terminate();
+        scheduler.shutdown();
+        payload.release();
+    }
+
+    @Benchmark
+    public void publish2Subscribers() throws ExecutionException, InterruptedException {
+        final MqttPublishMessage publish = MqttMessageBuilders.publish()
+            .topicName(TOPIC)
+            .retained(false)
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .payload(payload.retainedDuplicate())
+            .build();
+        final RoutingResults results = postOffice.internalPublish(publish);
+        publish.payload().release();
+        results.completableFuture().get();
+    }
+}
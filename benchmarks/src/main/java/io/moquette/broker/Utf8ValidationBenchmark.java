@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of PUBLISH payloads flagged with PAYLOAD_FORMAT_INDICATOR, the in place validator against the
+ * previous implementation that copied the payload and decoded it with a new CharsetDecoder.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Utf8ValidationBenchmark {
+
+    @Param({"64", "1024", "65536"})
+    public int payloadSize;
+
+    @Param({"ascii", "multibyte"})
+    public String content;
+
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final String unit = "ascii".equals(content) ? "{\"temperature\": 22.5, \"unit\": \"celsius\"}" :
+            "{\"temperatura\": 22.5, \"unità\": \"°C\", \"città\": \"東京\"}";
+        final StringBuilder sb = new StringBuilder(payloadSize);
+        while (sb.length() < payloadSize) {
+            sb.append(unit);
+        }
+        final byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+        payload.writeBytes(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        payload.release();
+    }
+
+    @Benchmark
+    public boolean copyAndDecode() {
+        byte[] rawPayload = Utils.readBytesAndRewind(payload);
+        try {
+            StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(rawPayload));
+            return true;
+        } catch (CharacterCodingException ex) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public boolean validateInPlace() {
+        return Utf8Validator.isValid(payload);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.security;
+
+import io.moquette.broker.subscriptions.Topic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorization check done on every PUBLISH when an ACL file is configured. The rules are global, pattern
+ * (with the <code>%c</code> and <code>%u</code> substitutions) and per user ones, the checked topic is granted
+ * only by the last user rule, so all the rules are evaluated.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthorizationsCollectorBenchmark {
+
+    private static final String USER = "user-1";
+    private static final String CLIENT = "client-1";
+
+    @Param({"2", "5", "10"})
+    public int topicDepth;
+
+    @Param({"10", "100"})
+    public int rules;
+
+    private AuthorizationsCollector authorizations;
+    private Topic grantedTopic;
+    private Topic deniedTopic;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ParseException {
+        final StringBuilder acl = new StringBuilder();
+        for (int i = 0; i < rules; i++) {
+            acl.append("topic read ").append(topicName("global" + i)).append('\n');
+        }
+        for (int i = 0; i < rules; i++) {
+            acl.append("pattern write ").append(topicName("%c/pattern" + i)).append('\n');
+        }
+        acl.append("user ").append(USER).append('\n');
+        for (int i = 0; i < rules; i++) {
+            acl.append("topic write ").append(topicName("user" + i)).append('\n');
+        }
+        authorizations = ACLFileParser.parse(new StringReader(acl.toString()));
+        grantedTopic = new Topic(topicName("user" + (rules - 1)));
+        deniedTopic = new Topic(topicName("unknown"));
+        grantedTopic.getTokens();
+        deniedTopic.getTokens();
+    }
+
+    private String topicName(String root) {
+        final StringBuilder sb = new StringBuilder(root);
+        for (int level = 1; level < topicDepth; level++) {
+            sb.append("/level").append(level);
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public boolean canWriteGranted() {
+        return authorizations.canWrite(grantedTopic, USER, CLIENT);
+    }
+
+    @Benchmark
+    public boolean canWriteDenied() {
+        return authorizations.canWrite(deniedTopic, USER, CLIENT);
+    }
+}
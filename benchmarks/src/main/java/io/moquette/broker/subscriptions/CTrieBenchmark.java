@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.broker.subscriptions.CTrie.SubscriptionRequest;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insertion of subscriptions and matching of published topics in the subscriptions tree.
+ *
+ * The tree is shared by all the benchmark threads, run with <code>-t N</code> to measure the contention
+ * between concurrent matches and insertions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CTrieBenchmark {
+
+    // number of distinct tokens on each level of the topics
+    private static final int FAN_OUT_PER_LEVEL = 10;
+
+    @Param({"2", "5", "10"})
+    public int topicDepth;
+
+    @Param({"10000", "100000"})
+    public int subscriptions;
+
+    private CTrie populatedTree;
+    private List<SubscriptionRequest> requests;
+    private List<Topic> publishTopics;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int size) {
+            next = (next + 1) % size;
+            return next;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class InsertionTree {
+        CTrie tree;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // start every iteration with an empty tree, else after the first pass only updates are measured
+            tree = new CTrie();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        requests = new ArrayList<>(subscriptions);
+        populatedTree = new CTrie();
+        for (int i = 0; i < subscriptions; i++) {
+            final Topic filter = new Topic(randomFilter(random));
+            final SubscriptionRequest request = SubscriptionRequest.buildNonShared("client-" + i, filter,
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE));
+            requests.add(request);
+            populatedTree.addToTree(request);
+        }
+
+        publishTopics = new ArrayList<>(1024);
+        for (int i = 0; i < 1024; i++) {
+            final Topic topic = new Topic(randomTopic(random));
+            // parse before the measurement, to not count the tokenization in the match
+            topic.getTokens();
+            publishTopics.add(topic);
+        }
+    }
+
+    private String randomTopic(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < topicDepth; level++) {
+            if (level > 0) {
+                sb.append('/');
+            }
+            sb.append("level").append(level).append('-').append(random.nextInt(FAN_OUT_PER_LEVEL));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One filter out of ten contains a single level wildcard and one out of a hundred ends with a multi level
+     * wildcard, the others are exact topics.
+     * */
+    private String randomFilter(Random random) {
+        final int wildcardLevel = random.nextInt(10) == 0 ? random.nextInt(topicDepth) : -1;
+        final boolean multiLevel = random.nextInt(100) == 0;
+        final StringBuilder sb = new StringBuilder();
+        for (int level = 0; level < topicDepth; level++) {
+            if (level > 0) {
+                sb.append('/');
+            }
+            if (multiLevel && level == topicDepth - 1) {
+                sb.append('#');
+            } else if (level == wildcardLevel) {
+                sb.append('+');
+            } else {
+                sb.append("level").append(level).append('-').append(random.nextInt(FAN_OUT_PER_LEVEL));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public boolean addToTree(InsertionTree insertion, Cursor cursor) {
+        return insertion.tree.addToTree(requests.get(cursor.next(requests.size())));
+    }
+
+    @Benchmark
+    public List<Subscription> recursiveMatch(Cursor cursor) {
+        return populatedTree.recursiveMatch(publishTopics.get(cursor.next(publishTopics.size())));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the topic names and matching of a topic against a topic filter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TopicBenchmark {
+
+    @Param({"2", "5", "10"})
+    public int topicDepth;
+
+    private String topicName;
+    private Topic topic;
+    private Topic exactFilter;
+    private Topic wildcardFilter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final StringBuilder name = new StringBuilder();
+        final StringBuilder wildcard = new StringBuilder();
+        for (int level = 0; level < topicDepth; level++) {
+            if (level > 0) {
+                name.append('/');
+                wildcard.append('/');
+            }
+            name.append("level").append(level);
+            // single level wildcard on the odd levels, to not stop the match on the first token
+            wildcard.append(level % 2 == 1 ? "+" : "level" + level);
+        }
+        topicName = name.toString();
+        topic = new Topic(topicName);
+        exactFilter = new Topic(topicName);
+        wildcardFilter = new Topic(wildcard.toString());
+        topic.getTokens();
+        exactFilter.getTokens();
+        wildcardFilter.getTokens();
+    }
+
+    @Benchmark
+    public List<Token> parse() {
+        return new Topic(topicName).getTokens();
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return new Topic(topicName).isValid();
+    }
+
+    @Benchmark
+    public boolean matchExact() {
+        return topic.match(exactFilter);
+    }
+
+    @Benchmark
+    public boolean matchWildcard() {
+        return topic.match(wildcardFilter);
+    }
+}
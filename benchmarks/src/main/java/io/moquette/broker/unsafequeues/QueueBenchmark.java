@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import io.moquette.BrokerConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Enqueue and dequeue of messages in the memory mapped segmented queues.
+ *
+ * A queue is not thread safe, as in the broker where each queue is accessed only by the session loop of its
+ * session, every benchmark thread works on its own queue of a shared pool. Run with <code>-t N</code> to
+ * measure the contention on the segments allocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+    private static final int BURST_SIZE = 100;
+
+    @Param({"128", "1024", "16384"})
+    public int payloadSize;
+
+    private Path dataPath;
+    private QueuePool queuePool;
+
+    @State(Scope.Thread)
+    public static class ThreadQueue {
+        Queue queue;
+        ByteBuffer payload;
+
+        @Setup(Level.Trial)
+        public void setUp(QueueBenchmark benchmark) throws QueueException {
+            final byte[] content = new byte[benchmark.payloadSize];
+            Arrays.fill(content, (byte) 'a');
+            payload = ByteBuffer.wrap(content);
+            // the queue creation is not thread safe
+            synchronized (benchmark) {
+                queue = benchmark.queuePool.getOrCreate(UUID.randomUUID().toString());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("moquette-queue-benchmark");
+        queuePool = QueuePool.loadQueues(dataPath, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, QueueException {
+        queuePool.close();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * A subscriber that keeps the pace of the publisher, the queue contains at most one message.
+     * */
+    @Benchmark
+    public Optional<ByteBuffer> enqueueDequeue(ThreadQueue state) throws QueueException {
+        state.queue.enqueue(state.payload.duplicate());
+        return state.queue.dequeue();
+    }
+
+    /**
+     * A subscriber that falls behind and then drains, the queue grows over more segments.
+     * */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void enqueueBurstThenDrain(ThreadQueue state, Blackhole blackhole) throws QueueException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            state.queue.enqueue(state.payload.duplicate());
+        }
+        for (int i = 0; i < BURST_SIZE; i++) {
+            blackhole.consume(state.queue.dequeue());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.WriteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization round trips of the messages stored in the session queues, for the segmented queues and for the
+ * H2 queues.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerDesBenchmark {
+
+    @Param({"128", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean withProperties;
+
+    private final SegmentedPersistentQueueSerDes segmentedSerDes = new SegmentedPersistentQueueSerDes();
+    private final EnqueuedMessageValueType h2ValueType = new EnqueuedMessageValueType();
+    private SessionRegistry.PublishedMessage message;
+    private WriteBuffer writeBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final byte[] content = new byte[payloadSize];
+        Arrays.fill(content, (byte) 'a');
+        final ByteBuf payload = Unpooled.wrappedBuffer(content);
+        final Topic topic = new Topic("building/floor-3/room-12/temperature");
+        final Instant expiry = Instant.now().plus(1, ChronoUnit.HOURS);
+        if (withProperties) {
+            // the H2 value type doesn't write the user properties, so they aren't used
+            message = new SessionRegistry.PublishedMessage(topic, MqttQoS.AT_LEAST_ONCE, payload, false, expiry,
+                new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PAYLOAD_FORMAT_INDICATOR.value(), 1),
+                new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), 3600),
+                new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain"));
+        } else {
+            message = new SessionRegistry.PublishedMessage(topic, MqttQoS.AT_LEAST_ONCE, payload, false, expiry);
+        }
+        writeBuffer = new WriteBuffer(payloadSize + 256);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        message.release();
+    }
+
+    @Benchmark
+    public ByteBuffer segmentedToBytes() {
+        // the serializer releases the payload of the serialized message
+        message.retain();
+        return segmentedSerDes.toBytes(message);
+    }
+
+    @Benchmark
+    public SessionRegistry.EnqueuedMessage segmentedRoundTrip() {
+        message.retain();
+        final ByteBuffer serialized = segmentedSerDes.toBytes(message);
+        final SessionRegistry.EnqueuedMessage read = segmentedSerDes.fromBytes(serialized);
+        read.release();
+        return read;
+    }
+
+    @Benchmark
+    public SessionRegistry.EnqueuedMessage h2RoundTrip() {
+        writeBuffer.clear();
+        h2ValueType.write(writeBuffer, message);
+        final ByteBuffer serialized = writeBuffer.getBuffer();
+        serialized.flip();
+        final SessionRegistry.EnqueuedMessage read = h2ValueType.read(serialized);
+        read.release();
+        return read;
+    }
+}
@@ -42,7 +42,27 @@ public final class BrokerConstants {
     public static final int DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE = 64 * MB;
     public static final String SEGMENTED_QUEUE_SEGMENT_SIZE = "queue_segment_size";
     public static final int DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE = 4 * MB;
+    public static final String SEGMENTED_QUEUE_CHECKPOINT_INTERVAL = "queue_checkpoint_interval";
+    public static final int DEFAULT_SEGMENTED_QUEUE_CHECKPOINT_INTERVAL = 10;
+    public static final String SEGMENTED_QUEUE_DURABILITY = "queue_durability";
+    public static final String DEFAULT_SEGMENTED_QUEUE_DURABILITY = "none";
+    public static final String SEGMENTED_QUEUE_FLUSH_INTERVAL = "queue_flush_interval";
+    public static final int DEFAULT_SEGMENTED_QUEUE_FLUSH_INTERVAL = 1000;
+    public static final String SEGMENTED_QUEUE_TOPIC_DICTIONARY_SIZE = "queue_topic_dictionary_size";
+    public static final int DEFAULT_SEGMENTED_QUEUE_TOPIC_DICTIONARY_SIZE = 0;
+    public static final String SEGMENTED_QUEUE_MAX_MAPPED_BYTES = "queue_max_mapped_bytes";
+    public static final long DEFAULT_SEGMENTED_QUEUE_MAX_MAPPED_BYTES = 16L * DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE;
+    public static final String SEGMENTED_QUEUE_COMPACTION_INTERVAL = "queue_compaction_interval";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_INTERVAL = 60;
+    public static final String SEGMENTED_QUEUE_COMPACTION_MAX_SEGMENTS = "queue_compaction_max_segments";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_MAX_SEGMENTS = 4;
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
+    public static final String H2_CACHE_SIZE = "h2_cache_size";
+    public static final int DEFAULT_H2_CACHE_SIZE = 0;
+    public static final String H2_COMPRESSION = "h2_compression";
+    public static final String DEFAULT_H2_COMPRESSION = "none";
+    public static final String H2_AUTO_COMMIT_BUFFER_SIZE = "h2_auto_commit_buffer_size";
+    public static final int DEFAULT_H2_AUTO_COMMIT_BUFFER_SIZE = 0;
     @Deprecated
     public static final String PASSWORD_FILE_PROPERTY_NAME = IConfig.PASSWORD_FILE_PROPERTY_NAME;
     @Deprecated // use IConfig.PORT_PROPERTY_NAME
@@ -99,6 +119,15 @@ public final class BrokerConstants {
     public static final String NETTY_SO_KEEPALIVE_PROPERTY_NAME = "netty.so_keepalive";
     public static final String NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME = "netty.channel_timeout.seconds";
     public static final String NETTY_NATIVE_PROPERTY_NAME = "netty.native";
+    public static final String NETTY_BOSS_THREADS_PROPERTY_NAME = "netty.boss_threads";
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty.worker_threads";
+    public static final String NETTY_SO_SNDBUF_PROPERTY_NAME = "netty.so_sndbuf";
+    public static final String NETTY_SO_RCVBUF_PROPERTY_NAME = "netty.so_rcvbuf";
+    public static final String NETTY_WRITE_BUFFER_LOW_WATERMARK_PROPERTY_NAME = "netty.write_buffer_low_watermark";
+    public static final String NETTY_WRITE_BUFFER_HIGH_WATERMARK_PROPERTY_NAME = "netty.write_buffer_high_watermark";
+    public static final String NETTY_EPOLL_EDGE_TRIGGERED_PROPERTY_NAME = "netty.epoll.edge_triggered";
+    public static final String NETTY_EPOLL_TCP_FASTOPEN_PROPERTY_NAME = "netty.epoll.tcp_fastopen";
+    public static final String NETTY_EPOLL_REUSEPORT_ACCEPTORS_PROPERTY_NAME = "netty.epoll.reuseport_acceptors";
     @Deprecated
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = IConfig.NETTY_MAX_BYTES_PROPERTY_NAME;
     @Deprecated
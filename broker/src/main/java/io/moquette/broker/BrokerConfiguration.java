@@ -27,6 +27,7 @@ class BrokerConfiguration {
     private final boolean allowZeroByteClientId;
     private final boolean reauthorizeSubscriptionsOnConnect;
     private final int bufferFlushMillis;
+    private final boolean publishReadBatching;
     // integer max value means that the property is unset
     private int receiveMaximum;
 
@@ -67,6 +68,7 @@ class BrokerConfiguration {
         }
 
         receiveMaximum = props.intProp(IConfig.RECEIVE_MAXIMUM, Integer.MAX_VALUE);
+        publishReadBatching = props.boolProp(IConfig.PUBLISH_READ_BATCHING, false);
     }
 
     // test method
@@ -86,12 +88,21 @@ class BrokerConfiguration {
     // test method
     public BrokerConfiguration(boolean allowAnonymous, boolean peerCertificateAsUsername, boolean allowZeroByteClientId,
                                boolean reauthorizeSubscriptionsOnConnect, int bufferFlushMillis, int receiveMaximum) {
+        this(allowAnonymous, peerCertificateAsUsername, allowZeroByteClientId, reauthorizeSubscriptionsOnConnect,
+            bufferFlushMillis, receiveMaximum, false);
+    }
+
+    // test method
+    public BrokerConfiguration(boolean allowAnonymous, boolean peerCertificateAsUsername, boolean allowZeroByteClientId,
+                               boolean reauthorizeSubscriptionsOnConnect, int bufferFlushMillis, int receiveMaximum,
+                               boolean publishReadBatching) {
         this.allowAnonymous = allowAnonymous;
         this.peerCertificateAsUsername = peerCertificateAsUsername;
         this.allowZeroByteClientId = allowZeroByteClientId;
         this.reauthorizeSubscriptionsOnConnect = reauthorizeSubscriptionsOnConnect;
         this.bufferFlushMillis = bufferFlushMillis;
         this.receiveMaximum = receiveMaximum;
+        this.publishReadBatching = publishReadBatching;
     }
 
     public boolean isAllowAnonymous() {
@@ -117,4 +128,8 @@ class BrokerConfiguration {
     public int receiveMaximum() {
         return receiveMaximum;
     }
+
+    public boolean isPublishReadBatching() {
+        return publishReadBatching;
+    }
 }
@@ -1,6 +1,7 @@
 package io.moquette.broker;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface IQueueRepository {
 
@@ -10,5 +11,16 @@ public interface IQueueRepository {
 
     SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId);
 
+    /**
+     * @return true if the QoS1 publishes have to be acknowledged only after a {@link #commit()} of the
+     * messages enqueued to the subscribers.
+     * */
+    boolean isGroupCommit();
+
+    /**
+     * @return a future completed when the messages enqueued before this call are on disk.
+     * */
+    CompletableFuture<Void> commit();
+
     void close();
 }
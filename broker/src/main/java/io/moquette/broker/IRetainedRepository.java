@@ -19,7 +19,10 @@ import io.moquette.broker.subscriptions.Topic;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 public interface IRetainedRepository {
 
@@ -32,15 +35,47 @@ public interface IRetainedRepository {
     boolean isEmpty();
 
     /**
-     * Return the list of messages retained on a specified topic.
+     * Match the topics of the retained messages against a topic filter, as the iteration goes, without looking up
+     * the messages, that are then read one at a time with {@link #retainedOn(Topic)}.
+     *
+     * @param topicFilter the topic filter of a subscription.
+     * @return the unordered topics holding a retained message when matched, that could be cleaned in the meantime.
+     * */
+    Iterator<Topic> retainedTopicsMatching(String topicFilter);
+
+    /**
+     * @param topic the topic of a retained message.
+     * @return the message retained on the topic, retained for the caller, that has to release it, or null if there
+     * isn't any.
+     * */
+    RetainedMessage retainedOn(Topic topic);
+
+    /**
+     * Return the list of messages retained on a specified topic. All the matching messages are read at once, so
+     * the subscriptions go through {@link #retainedTopicsMatching(String)} instead.
      *
      * @param topic the topic containing the retained messages.
-     * @return the unordered collection of retained messages on the topic.
+     * @return the unordered collection of retained messages on the topic, each one retained for the caller, that
+     * has to release it.
      * */
-    Collection<RetainedMessage> retainedOnTopic(String topic);
+    default Collection<RetainedMessage> retainedOnTopic(String topic) {
+        final List<RetainedMessage> matchingMessages = new ArrayList<>();
+        final Iterator<Topic> matchingTopics = retainedTopicsMatching(topic);
+        while (matchingTopics.hasNext()) {
+            final RetainedMessage message = retainedOn(matchingTopics.next());
+            if (message != null) {
+                matchingMessages.add(message);
+            }
+        }
+        return matchingMessages;
+    }
 
     /**
-     * @return collection of RetainedMessage with a message expiry time configured.
+     * Clean the messages expired at the given instant, scanning the expirations from the earliest.
+     *
+     * @param now the instant the expirations are compared to.
+     * @param max the max number of expirations to scan.
+     * @return the number of expirations scanned, less than max when there aren't others expired.
      * */
-    Collection<RetainedMessage> listExpirable();
+    int cleanExpired(Instant now, int max);
 }
@@ -1,5 +1,7 @@
 package io.moquette.broker;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -33,6 +35,17 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
         return queue.poll();
     }
 
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeue(int max) {
+        checkDequeuePreconditions();
+        final List<SessionRegistry.EnqueuedMessage> messages = new ArrayList<>();
+        SessionRegistry.EnqueuedMessage message;
+        while (messages.size() < max && (message = queue.poll()) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
     @Override
     public boolean isEmpty() {
         checkIsEmptyPreconditions();
@@ -16,6 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
+import io.moquette.broker.metrics.MQTTMessageLogger;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.PemUtils;
 import io.moquette.broker.subscriptions.Topic;
@@ -41,6 +42,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -73,6 +75,14 @@ final class MQTTConnection {
     private Session bindedSession;
     private int protocolVersion;
     private Quota receivedQuota;
+    // false when the pipeline has no MQTT encoder, as in tests with embedded channels
+    private final boolean encodesMqttMessages;
+    private final boolean logsMqttMessages;
+    // QoS0 publishes of the current read burst, accessed only by the Netty thread of the channel
+    private List<PostOffice.BurstPublish> publishesBurst = new ArrayList<>();
+    private CompletableFuture<String> burstCompletion;
+    // last of the PUBACKs waiting for the commit of the session queues, accessed only by the session loop
+    private CompletableFuture<Void> lastCommittedPubAck = CompletableFuture.completedFuture(null);
 
     MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                    SessionRegistry sessionRegistry, PostOffice postOffice) {
@@ -83,11 +93,17 @@ final class MQTTConnection {
         this.postOffice = postOffice;
         this.connected = false;
         this.protocolVersion = UNDEFINED_VERSION;
+        this.encodesMqttMessages = channel.pipeline().get(MqttEncoder.class) != null;
+        this.logsMqttMessages = channel.pipeline().get(MQTTMessageLogger.class) != null;
     }
 
     void handleMessage(MqttMessage msg) {
         MqttMessageType messageType = msg.fixedHeader().messageType();
         LOG.debug("Received MQTT message, type: {}", messageType);
+        if (!publishesBurst.isEmpty() && !isQos0Publish(msg)) {
+            // preserve the ordering with the publishes already gathered
+            flushPublishesBurst();
+        }
         switch (messageType) {
             case CONNECT:
                 processConnect((MqttConnectMessage) msg);
@@ -128,6 +144,11 @@ final class MQTTConnection {
         }
     }
 
+    private static boolean isQos0Publish(MqttMessage msg) {
+        return msg.fixedHeader().messageType() == MqttMessageType.PUBLISH
+            && msg.fixedHeader().qosLevel() == AT_MOST_ONCE;
+    }
+
     private void processPubComp(MqttMessage msg) {
         final int messageID = ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
         final String clientID = bindedSession.getClientID();
@@ -506,6 +527,7 @@ final class MQTTConnection {
         if (clientID == null || clientID.isEmpty()) {
             return;
         }
+        flushPublishesBurst();
         // this must not be done on the netty thread
         LOG.debug("Notifying connection lost event");
         postOffice.routeCommand(clientID, "CONN LOST", () -> {
@@ -659,14 +681,18 @@ final class MQTTConnection {
         // retain else msg is cleaned by the NewNettyMQTTHandler and is not available
         // in execution by SessionEventLoop
         msg.retain();
+        postOffice.throttleIfOverloaded(clientId, this);
         switch (qos) {
             case AT_MOST_ONCE:
+                if (brokerConfig.isPublishReadBatching()) {
+                    return appendToPublishesBurst(clientId, topic, msg, expiry);
+                }
                 return postOffice.routeCommand(clientId, "PUB QoS0", () -> {
                     checkMatchSessionLoop(clientId);
                     if (!isBoundToSession()) {
                         return null;
                     }
-                    postOffice.receivedPublishQos0(this, username, clientId, msg, expiry);
+                    postOffice.receivedPublishQos0(topic, this, username, clientId, msg, expiry);
                     return null;
                 }).ifFailed(msg::release);
             case AT_LEAST_ONCE:
@@ -683,7 +709,7 @@ final class MQTTConnection {
                     if (!isBoundToSession())
                         return null;
                     receivedQuota.decrement();
-                    postOffice.receivedPublishQos1(this, username, messageID, msg, expiry)
+                    postOffice.receivedPublishQos1(topic, this, username, messageID, msg, expiry)
                         .completableFuture().thenRun(() -> {
                             receivedQuota.increment();
                         });
@@ -712,7 +738,7 @@ final class MQTTConnection {
                     return firstStepResult;
                 }
                 firstStepResult.completableFuture().thenRun(() ->
-                    postOffice.receivedPublishQos2(this, msg, username, expiry).completableFuture()
+                    postOffice.receivedPublishQos2(topic, this, msg, username, expiry).completableFuture()
                 );
                 return firstStepResult;
             }
@@ -784,7 +810,62 @@ final class MQTTConnection {
         sendIfWritableElseDrop(publishMsg);
     }
 
+    /**
+     * Send the publishes drained from the session queue, flushing the channel once after the last one.
+     * */
+    void sendPublishes(List<MqttPublishMessage> publishes) {
+        for (MqttPublishMessage publishMsg : publishes) {
+            LOG.debug("Sending PUBLISH({}) message. MessageId={}, topic={} to {}",
+                publishMsg.fixedHeader().qosLevel(), publishMsg.variableHeader().packetId(),
+                publishMsg.variableHeader().topicName(), getClientId());
+            sendIfWritableElseDrop(publishMsg, false);
+        }
+        if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            channel.flush();
+        }
+    }
+
+    /**
+     * Send a publish fanned-out to many subscribers, when the channel encodes MQTT messages it writes directly the
+     * bytes shared with the other subscribers, instead of a MqttPublishMessage to be encoded. The message is still
+     * written as a MqttPublishMessage while the message logger logs the PUBLISH messages.
+     * */
+    void sendPublish(SessionRegistry.PublishedMessage publishRequest, int packetId,
+                     MqttProperties.MqttProperty[] mqttProperties) {
+        final SharedPublishEncoding sharedEncoding = publishRequest.sharedEncoding();
+        // properties rewritten for this send, as the updated expiry, can't be shared
+        if (sharedEncoding == null || mqttProperties != publishRequest.getMqttProperties() || !encodesMqttMessages ||
+            logsPublishes()) {
+            sendPublish(createPublishMessage(publishRequest.getTopic().toString(), publishRequest.getPublishingQos(),
+                publishRequest.getPayload(), packetId, publishRequest.retained, false, mqttProperties));
+            return;
+        }
+        if (!channel.isWritable()) {
+            LOG.debug("Dropping message PUBLISH from the wire, topic: {}", publishRequest.getTopic());
+            return;
+        }
+        final ByteBuf encoded = sharedEncoding.encode(publishRequest.getPublishingQos(), publishRequest.retained,
+            mqttProperties, packetId, isProtocolVersion5(), channel.alloc());
+        if (encoded == null) {
+            sendPublish(createPublishMessage(publishRequest.getTopic().toString(), publishRequest.getPublishingQos(),
+                publishRequest.getPayload(), packetId, publishRequest.retained, false, mqttProperties));
+            return;
+        }
+        LOG.debug("Sending pre-encoded PUBLISH({}) message. MessageId={}, topic={} to {}",
+            publishRequest.getPublishingQos(), packetId, publishRequest.getTopic(), getClientId());
+        writeOnChannel(encoded);
+    }
+
+    // the message logger sees only the MqttMessage, not the pre-encoded bytes
+    private boolean logsPublishes() {
+        return logsMqttMessages && MQTTMessageLogger.logsPublishes();
+    }
+
     void sendIfWritableElseDrop(MqttMessage msg) {
+        sendIfWritableElseDrop(msg, true);
+    }
+
+    private void sendIfWritableElseDrop(MqttMessage msg, boolean flush) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("OUT {}", msg.fixedHeader().messageType());
         }
@@ -796,19 +877,29 @@ final class MQTTConnection {
             if (msg instanceof ByteBufHolder) {
                 retainedDup = ((ByteBufHolder) msg).retainedDuplicate();
             }
-
-            ChannelFuture channelFuture;
-            if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
-                channelFuture = channel.writeAndFlush(retainedDup);
-            } else {
-                channelFuture = channel.write(retainedDup);
-            }
-            channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+            writeOnChannel(retainedDup, flush);
         } else {
             LOG.debug("Dropping message {} from the wire, msg: {}", msg.fixedHeader().messageType(), msg);
         }
     }
 
+    private void writeOnChannel(Object msg) {
+        writeOnChannel(msg, true);
+    }
+
+    /**
+     * @param flush false to leave the flush to the caller, also when the flush is immediate.
+     * */
+    private void writeOnChannel(Object msg, boolean flush) {
+        ChannelFuture channelFuture;
+        if (flush && brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            channelFuture = channel.writeAndFlush(msg);
+        } else {
+            channelFuture = channel.write(msg);
+        }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+    }
+
     public void writabilityChanged() {
         if (channel.isWritable()) {
             LOG.debug("Channel is again writable");
@@ -827,6 +918,23 @@ final class MQTTConnection {
         sendIfWritableElseDrop(pubAckMessage);
     }
 
+    /**
+     * Send the PUBACK once the commit is completed, keeping the order of the publishes. If the commit fails the
+     * PUBACK isn't sent, so that the client publishes again.
+     * */
+    void sendPubAckAfter(CompletableFuture<Void> commit, int messageID) {
+        lastCommittedPubAck = commit
+            .handle((unused, failure) -> failure)
+            .thenCombine(lastCommittedPubAck, (failure, unused) -> {
+                if (failure == null) {
+                    sendPubAck(messageID);
+                } else {
+                    LOG.warn("Commit of enqueued messages failed, not acknowledging messageID: {}", messageID, failure);
+                }
+                return null;
+            });
+    }
+
     void sendPubAck(int messageID, MqttReasonCodes.PubAck reasonCode) {
         LOG.trace("sendPubAck for messageID: {}, reason code: {}", messageID, reasonCode);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBACK, false, AT_MOST_ONCE,
@@ -893,14 +1001,71 @@ final class MQTTConnection {
         return (InetSocketAddress) channel.remoteAddress();
     }
 
+    /**
+     * Gather the QoS0 publish, its fan-out is done when the read burst completes.
+     * */
+    private PostOffice.RouteResult appendToPublishesBurst(String clientId, Topic topic, MqttPublishMessage msg,
+                                                          Instant expiry) {
+        if (burstCompletion == null) {
+            burstCompletion = new CompletableFuture<>();
+        }
+        publishesBurst.add(new PostOffice.BurstPublish(topic, msg, expiry));
+        return PostOffice.RouteResult.success(clientId, burstCompletion);
+    }
+
+    /**
+     * Route all the QoS0 publishes gathered in the read burst with a single command to the publisher's session loop,
+     * the futures returned for the publishes of the burst complete once the fan-out is done.
+     * */
+    private void flushPublishesBurst() {
+        if (publishesBurst.isEmpty()) {
+            return;
+        }
+        final List<PostOffice.BurstPublish> burst = publishesBurst;
+        final CompletableFuture<String> completion = burstCompletion;
+        publishesBurst = new ArrayList<>();
+        burstCompletion = null;
+
+        final String clientId = getClientId();
+        final String username = NettyUtils.userName(channel);
+        postOffice.routeCommand(clientId, "PUB QoS0 burst", () -> {
+            checkMatchSessionLoop(clientId);
+            if (!isBoundToSession()) {
+                burst.forEach(PostOffice.BurstPublish::release);
+                completion.complete(clientId);
+                return null;
+            }
+            postOffice.receivedPublishesQos0(this, username, clientId, burst)
+                .thenRun(() -> completion.complete(clientId));
+            return null;
+        }).ifFailed(() -> {
+            burst.forEach(PostOffice.BurstPublish::release);
+            completion.completeExceptionally(new Error("Failed to route the publishes burst of " + clientId));
+        });
+    }
+
     public void readCompleted() {
         LOG.debug("readCompleted client CId: {}", getClientId());
+        flushPublishesBurst();
         if (getClientId() != null) {
             // TODO drain all messages in target's session in-flight message queue
             queueDrainQueueCommand();
         }
     }
 
+    /**
+     * Schedule the session to continue sending the retained messages, after the commands already queued on its
+     * session loop.
+     *
+     * @return false if the session loop can't accept more commands.
+     * */
+    boolean resumeRetainedLater() {
+        return postOffice.routeCommandLater(getClientId(), "resumeRetained", () -> {
+            bindedSession.resumeRetained();
+            return null;
+        }).isSuccess();
+    }
+
     private void queueDrainQueueCommand() {
         postOffice.routeCommand(getClientId(), "flushQueues", () -> {
             bindedSession.flushAllQueuedMessages();
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class MemoryQueueRepository implements IQueueRepository {
 
@@ -30,6 +31,16 @@ public class MemoryQueueRepository implements IQueueRepository {
         return queue;
     }
 
+    @Override
+    public boolean isGroupCommit() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     public void close() {
         queues.clear();
@@ -16,44 +16,69 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.TopicTrie;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
-* In memory retained messages store
+* In memory retained messages store.
+*
+* The payloads are copied in pooled direct buffers, out of the heap, up to the configured amount of bytes, the ones
+* over it are kept in heap arrays. A message replaced or cleaned releases its payload, that stays valid for the
+* readers that retained it.
 * */
 final class MemoryRetainedRepository implements IRetainedRepository {
 
     private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Topic, RetainedMessage> storageExpire = new ConcurrentHashMap<>();
+    // topics of the messages with expiry, ordered by expiry time. An entry can be stale, when the message was
+    // replaced or cleaned, and is dropped by the scan of the expired ones
+    private final ConcurrentSkipListSet<Expiry> expiryIndex = new ConcurrentSkipListSet<>();
+    // topics of the map, a topic is added after the message and removed before it
+    private final TopicTrie topics = new TopicTrie();
+    private final long maxDirectBytes;
+    private final AtomicLong directBytes = new AtomicLong();
+
+    MemoryRetainedRepository() {
+        this(0);
+    }
+
+    /**
+     * @param maxDirectBytes the bytes of payloads kept out of the heap, 0 to keep all of them in the heap.
+     * */
+    MemoryRetainedRepository(long maxDirectBytes) {
+        this.maxDirectBytes = maxDirectBytes;
+    }
 
     @Override
     public void cleanRetained(Topic topic) {
-        storage.remove(topic);
-        storageExpire.remove(topic);
+        topics.remove(topic);
+        drop(storage.remove(topic));
     }
 
     @Override
     public void retain(Topic topic, MqttPublishMessage msg) {
-        byte[] rawPayload = payloadToByteArray(msg);
-        final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg));
-        storage.put(topic, toStore);
+        final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), copyPayload(msg), extractPropertiesArray(msg));
+        drop(storage.put(topic, toStore));
+        topics.add(topic);
     }
 
     @Override
     public void retain(Topic topic, MqttPublishMessage msg, Instant expiryTime) {
-        byte[] rawPayload = payloadToByteArray(msg);
-        final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg), expiryTime);
-        storageExpire.put(topic, toStore);
+        final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), copyPayload(msg), extractPropertiesArray(msg), expiryTime);
+        // indexed before the message is stored, so that the message is never left without its expiry
+        expiryIndex.add(new Expiry(expiryTime, topic));
+        drop(storage.put(topic, toStore));
+        topics.add(topic);
     }
 
     private static MqttProperties.MqttProperty[] extractPropertiesArray(MqttPublishMessage msg) {
@@ -61,40 +86,103 @@ final class MemoryRetainedRepository implements IRetainedRepository {
         return properties.listAll().toArray(new MqttProperties.MqttProperty[0]);
     }
 
-    private static byte[] payloadToByteArray(MqttPublishMessage msg) {
+    private ByteBuf copyPayload(MqttPublishMessage msg) {
         final ByteBuf payload = msg.content();
-        byte[] rawPayload = new byte[payload.readableBytes()];
-        payload.getBytes(0, rawPayload);
-        return rawPayload;
+        final int size = payload.readableBytes();
+        if (!reserveDirectBytes(size)) {
+            // a plain array, that doesn't pin the chunks and the thread caches of the pool
+            final byte[] rawPayload = new byte[size];
+            payload.getBytes(0, rawPayload);
+            return Unpooled.wrappedBuffer(rawPayload);
+        }
+        final ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+        copy.writeBytes(payload, 0, size);
+        return copy;
+    }
+
+    private boolean reserveDirectBytes(int size) {
+        long used;
+        do {
+            used = directBytes.get();
+            if (used + size > maxDirectBytes) {
+                return false;
+            }
+        } while (!directBytes.compareAndSet(used, used + size));
+        return true;
+    }
+
+    private void drop(RetainedMessage message) {
+        if (message == null) {
+            return;
+        }
+        if (message.isPayloadDirect()) {
+            directBytes.addAndGet(-message.payloadSize());
+        }
+        message.release();
+    }
+
+    long directBytes() {
+        return directBytes.get();
     }
 
     @Override
     public boolean isEmpty() {
-        return storage.isEmpty() && storageExpire.isEmpty();
+        return storage.isEmpty();
     }
 
     @Override
-    public Collection<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        matchingMessages.addAll(findMatching(searchTopic, storage));
-        matchingMessages.addAll(findMatching(searchTopic, storageExpire));
-        return matchingMessages;
+    public Iterator<Topic> retainedTopicsMatching(String topicFilter) {
+        return topics.matching(new Topic(topicFilter));
     }
 
     @Override
-    public Collection<RetainedMessage> listExpirable() {
-        return storageExpire.values();
+    public RetainedMessage retainedOn(Topic topic) {
+        // retained while the entry is locked, so that a concurrent replace can't release it before; the message
+        // could also be cleaned after its topic is matched
+        return storage.computeIfPresent(topic, (k, v) -> v.retain());
     }
 
-    private List<RetainedMessage> findMatching(Topic searchTopic, ConcurrentMap<Topic, RetainedMessage> map) {
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : map.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+    @Override
+    public int cleanExpired(Instant now, int max) {
+        int processed = 0;
+        final Iterator<Expiry> earliest = expiryIndex.iterator();
+        while (processed < max && earliest.hasNext()) {
+            final Expiry expiry = earliest.next();
+            if (expiry.expiryTime.isAfter(now)) {
+                break;
+            }
+            processed++;
+            final RetainedMessage message = storage.get(expiry.topic);
+            if (message != null && expiry.expiryTime.equals(message.getExpiryTime())) {
+                topics.remove(expiry.topic);
+                // removed only if not replaced in the meantime
+                if (storage.remove(expiry.topic, message)) {
+                    drop(message);
+                } else if (storage.containsKey(expiry.topic)) {
+                    topics.add(expiry.topic);
+                }
+            }
+            earliest.remove();
+        }
+        return processed;
+    }
+
+    private static final class Expiry implements Comparable<Expiry> {
+        private final Instant expiryTime;
+        private final Topic topic;
+
+        Expiry(Instant expiryTime, Topic topic) {
+            this.expiryTime = expiryTime;
+            this.topic = topic;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            final int byExpiry = expiryTime.compareTo(other.expiryTime);
+            if (byExpiry != 0) {
+                return byExpiry;
             }
+            return topic.toString().compareTo(other.topic.toString());
         }
-        return matchingMessages;
     }
 }
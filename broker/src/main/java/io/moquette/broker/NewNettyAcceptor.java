@@ -23,7 +23,9 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.kqueue.KQueue;
 import io.netty.channel.kqueue.KQueueEventLoopGroup;
@@ -141,6 +143,19 @@ class NewNettyAcceptor {
     private boolean nettySoKeepalive;
     private int nettyChannelTimeoutSeconds;
     private int maxBytesInMessage;
+    // 0 leaves the size chosen by the OS
+    private int nettySoSndbuf;
+    private int nettySoRcvbuf;
+    // null leaves the Netty default
+    private WriteBufferWaterMark writeBufferWaterMark;
+
+    // the options below are used only with the epoll transport
+    private boolean epollTransport;
+    private boolean epollEdgeTriggered;
+    // the length of the queue of the TCP fast open requests, 0 to disable it
+    private int epollTcpFastOpen;
+    // the number of listeners bound to every port, sharing it with SO_REUSEPORT
+    private int reusePortAcceptors;
 
     private Class<? extends ServerSocketChannel> channelClass;
 
@@ -155,23 +170,39 @@ class NewNettyAcceptor {
         maxBytesInMessage = props.intProp(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
                 BrokerConstants.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE);
 
+        nettySoSndbuf = props.intProp(BrokerConstants.NETTY_SO_SNDBUF_PROPERTY_NAME, 0);
+        nettySoRcvbuf = props.intProp(BrokerConstants.NETTY_SO_RCVBUF_PROPERTY_NAME, 0);
+        writeBufferWaterMark = createWriteBufferWaterMark(props);
+
+        // 0 threads means the Netty default, twice the number of cores
+        final int bossThreads = props.intProp(BrokerConstants.NETTY_BOSS_THREADS_PROPERTY_NAME, 0);
+        final int workerThreads = props.intProp(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, 0);
         boolean nativeTransport = props.boolProp(BrokerConstants.NETTY_NATIVE_PROPERTY_NAME, false);
         if (nativeTransport && classAvaliable(EPOLL_TRANSPORT) && Epoll.isAvailable()) {
             LOG.info("Netty is using Epoll");
-            bossGroup = new EpollEventLoopGroup();
-            workerGroup = new EpollEventLoopGroup();
+            bossGroup = new EpollEventLoopGroup(bossThreads);
+            workerGroup = new EpollEventLoopGroup(workerThreads);
             channelClass = EpollServerSocketChannel.class;
+            epollTransport = true;
         } else if (nativeTransport && classAvaliable(KQUEUE_TRANSPORT) && KQueue.isAvailable()) {
             LOG.info("Netty is using KQueue");
-            bossGroup = new KQueueEventLoopGroup();
-            workerGroup = new KQueueEventLoopGroup();
+            bossGroup = new KQueueEventLoopGroup(bossThreads);
+            workerGroup = new KQueueEventLoopGroup(workerThreads);
             channelClass = KQueueServerSocketChannel.class;
         } else {
             LOG.info("Netty is using NIO");
-            bossGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
+            bossGroup = new NioEventLoopGroup(bossThreads);
+            workerGroup = new NioEventLoopGroup(workerThreads);
             channelClass = NioServerSocketChannel.class;
         }
+        epollEdgeTriggered = props.boolProp(BrokerConstants.NETTY_EPOLL_EDGE_TRIGGERED_PROPERTY_NAME, true);
+        epollTcpFastOpen = props.intProp(BrokerConstants.NETTY_EPOLL_TCP_FASTOPEN_PROPERTY_NAME, 0);
+        reusePortAcceptors = props.intProp(BrokerConstants.NETTY_EPOLL_REUSEPORT_ACCEPTORS_PROPERTY_NAME, 1);
+        if (reusePortAcceptors > 1 && !epollTransport) {
+            LOG.warn("Property {} requires the epoll native transport, binding a single listener per port",
+                BrokerConstants.NETTY_EPOLL_REUSEPORT_ACCEPTORS_PROPERTY_NAME);
+            reusePortAcceptors = 1;
+        }
 
         final boolean useFineMetrics = props.boolProp(METRICS_ENABLE_PROPERTY_NAME, false);
         if (useFineMetrics) {
@@ -203,6 +234,28 @@ class NewNettyAcceptor {
         }
     }
 
+    static WriteBufferWaterMark createWriteBufferWaterMark(IConfig props) {
+        final int low = props.intProp(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATERMARK_PROPERTY_NAME, 0);
+        final int high = props.intProp(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATERMARK_PROPERTY_NAME, 0);
+        if (low <= 0 && high <= 0) {
+            return null;
+        }
+        if (low <= 0) {
+            // the low one keeps the Netty default, unless it's over the configured high
+            return new WriteBufferWaterMark(Math.min(WriteBufferWaterMark.DEFAULT.low(), high), high);
+        }
+        if (high <= 0) {
+            // the high one keeps the Netty default, unless it's under the configured low
+            return new WriteBufferWaterMark(low, Math.max(WriteBufferWaterMark.DEFAULT.high(), low));
+        }
+        if (low > high) {
+            throw new IllegalArgumentException("Property " + BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATERMARK_PROPERTY_NAME
+                + " (" + low + ") can't be greater than " + BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATERMARK_PROPERTY_NAME
+                + " (" + high + ")");
+        }
+        return new WriteBufferWaterMark(low, high);
+    }
+
     private boolean classAvaliable(String clazz) {
         try {
             Class.forName(clazz, false, getClass().getClassLoader());
@@ -233,6 +286,28 @@ class NewNettyAcceptor {
                 .option(ChannelOption.SO_REUSEADDR, nettySoReuseaddr)
                 .childOption(ChannelOption.TCP_NODELAY, nettyTcpNodelay)
                 .childOption(ChannelOption.SO_KEEPALIVE, nettySoKeepalive);
+        if (nettySoSndbuf > 0) {
+            b.childOption(ChannelOption.SO_SNDBUF, nettySoSndbuf);
+        }
+        if (nettySoRcvbuf > 0) {
+            // set also on the listener, because a receive window over 64KB has to be negotiated at the handshake
+            b.option(ChannelOption.SO_RCVBUF, nettySoRcvbuf)
+                .childOption(ChannelOption.SO_RCVBUF, nettySoRcvbuf);
+        }
+        if (writeBufferWaterMark != null) {
+            b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+        }
+        if (epollTransport) {
+            final EpollMode epollMode = epollEdgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+            b.option(EpollChannelOption.EPOLL_MODE, epollMode)
+                .childOption(EpollChannelOption.EPOLL_MODE, epollMode);
+            if (epollTcpFastOpen > 0) {
+                b.option(ChannelOption.TCP_FASTOPEN, epollTcpFastOpen);
+            }
+            if (reusePortAcceptors > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        }
         try {
             LOG.debug("Binding integration. host={}, port={}", host, port);
             // Bind and start to accept incoming connections.
@@ -241,6 +316,16 @@ class NewNettyAcceptor {
             f.sync()
                 .addListener(new LocalPortReaderFutureListener(protocol))
                 .addListener(FIRE_EXCEPTION_ON_FAILURE);
+            if (reusePortAcceptors > 1) {
+                // the other listeners share the port of the first one, also when it's chosen by the OS. The kernel
+                // spreads the incoming connections among them, each one accepting on its own boss event loop
+                final int boundPort = ((InetSocketAddress) f.channel().localAddress()).getPort();
+                for (int i = 1; i < reusePortAcceptors; i++) {
+                    b.bind(host, boundPort).sync().addListener(FIRE_EXCEPTION_ON_FAILURE);
+                }
+                LOG.info("Server bound {} listeners to host={}, port={}, protocol={}", reusePortAcceptors, host,
+                    boundPort, protocol);
+            }
         } catch (Exception ex) {
             if (ex instanceof BindException) {
                LOG.error("Cannot bind to port: " + port, ex);
@@ -15,7 +15,6 @@
  */
 package io.moquette.broker;
 
-import io.moquette.broker.scheduler.Expirable;
 import io.moquette.broker.scheduler.ScheduledExpirationService;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.ShareName;
@@ -43,9 +42,6 @@ import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.StandardCharsets;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
@@ -54,6 +50,10 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -193,10 +193,40 @@ class PostOffice {
         }
     }
 
+    /**
+     * A QoS0 PUBLISH received in a read burst of a connection, to be fanned-out together with the others
+     * of the same burst.
+     * */
+    static final class BurstPublish {
+        private final Topic topic;
+        private final MqttPublishMessage msg;
+        private final Instant messageExpiry;
+        private int targetLoops;
+        private int failedLoops;
+
+        BurstPublish(Topic topic, MqttPublishMessage msg, Instant messageExpiry) {
+            this.topic = topic;
+            this.msg = msg;
+            this.messageExpiry = messageExpiry;
+        }
+
+        void release() {
+            ReferenceCountUtil.release(msg);
+        }
+
+        private boolean isAllFailed() {
+            return targetLoops > 0 && failedLoops == targetLoops;
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(PostOffice.class);
 
     private static final Set<String> NO_FILTER = new HashSet<>();
 
+    static final Duration RETAINED_EXPIRY_CHECK_INTERVAL = Duration.ofSeconds(1);
+    // max expired retained messages cleaned by a single scan of the repository
+    static final int RETAINED_EXPIRY_BATCH_SIZE = 1000;
+
     private final Authorizator authorizator;
     private final ISubscriptionsDirectory subscriptions;
     private final IRetainedRepository retainedRepository;
@@ -207,24 +237,10 @@ class PostOffice {
     private final SessionEventLoopGroup sessionLoops;
     private final Clock clock;
     private final ScheduledExpirationService<ISessionsRepository.Will> willExpirationService;
-    private final ScheduledExpirationService<ExpirableTopic> retainedMessagesExpirationService;
+    private final ScheduledExecutorService retainedExpirationExecutor;
     private final MqttQoS maxServerGrantedQos;
-
-    static class ExpirableTopic implements Expirable {
-
-        private final Topic topic;
-        private Instant expireAt;
-
-        public ExpirableTopic(Topic topic, Instant expireAt) {
-            this.topic = topic;
-            this.expireAt = expireAt;
-        }
-
-        @Override
-        public Optional<Instant> expireAt() {
-            return Optional.of(expireAt);
-        }
-    }
+    // max retained messages sent to a new subscription, 0 for no limit
+    private final int maxRetainedPerSubscribe;
 
     /**
      * Used only in tests
@@ -247,6 +263,15 @@ class PostOffice {
                SessionRegistry sessionRegistry, ISessionsRepository sessionRepository, BrokerInterceptor interceptor,
                Authorizator authorizator,
                SessionEventLoopGroup sessionLoops, Clock clock, MqttQoS maxServerGrantedQos) {
+        this(subscriptions, retainedRepository, sessionRegistry, sessionRepository, interceptor, authorizator,
+            sessionLoops, clock, maxServerGrantedQos, 0);
+    }
+
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, ISessionsRepository sessionRepository, BrokerInterceptor interceptor,
+               Authorizator authorizator,
+               SessionEventLoopGroup sessionLoops, Clock clock, MqttQoS maxServerGrantedQos,
+               int maxRetainedPerSubscribe) {
         this.authorizator = authorizator;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
@@ -256,25 +281,30 @@ class PostOffice {
         this.sessionLoops = sessionLoops;
         this.clock = clock;
         this.maxServerGrantedQos = maxServerGrantedQos;
+        this.maxRetainedPerSubscribe = maxRetainedPerSubscribe;
 
         this.willExpirationService = new ScheduledExpirationService<>(clock, this::publishWill);
         recreateWillExpires(sessionRepository);
 
-        this.retainedMessagesExpirationService = new ScheduledExpirationService<>(clock, this::cleanRetainedExpired);
-        recreateRetainedExpires(retainedRepository);
-    }
-
-    private void cleanRetainedExpired(ExpirableTopic expirable) {
-        retainedRepository.cleanRetained(expirable.topic);
-    }
-
-    private void recreateRetainedExpires(IRetainedRepository retainedRepository) {
-        retainedRepository.listExpirable().forEach(this::trackRetainedForExpiry);
+        // the repository keeps the retained messages ordered by expiry, so nothing is loaded at start and every
+        // check scans only the expired ones
+        this.retainedExpirationExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.retainedExpirationExecutor.scheduleWithFixedDelay(this::cleanRetainedExpired,
+            RETAINED_EXPIRY_CHECK_INTERVAL.getSeconds(), RETAINED_EXPIRY_CHECK_INTERVAL.getSeconds(),
+            TimeUnit.SECONDS);
     }
 
-    private void trackRetainedForExpiry(RetainedMessage m) {
-        ExpirableTopic expirable = new ExpirableTopic(m.getTopic(), m.getExpiryTime());
-        retainedMessagesExpirationService.track(m.getTopic().toString(), expirable);
+    private void cleanRetainedExpired() {
+        try {
+            final Instant now = clock.instant();
+            int cleaned;
+            do {
+                cleaned = retainedRepository.cleanExpired(now, RETAINED_EXPIRY_BATCH_SIZE);
+            } while (cleaned == RETAINED_EXPIRY_BATCH_SIZE);
+        } catch (Throwable th) {
+            // an exception would stop the next executions
+            LOG.error("Error cleaning the expired retained messages", th);
+        }
     }
 
     private void recreateWillExpires(ISessionsRepository sessionRepository) {
@@ -316,7 +346,7 @@ class PostOffice {
             .payload(Unpooled.copiedBuffer(will.payload))
             .build();
 
-        publish2Subscribers(WILL_PUBLISHER, messageExpiryInstant, willPublishMessage);
+        publish2Subscribers(WILL_PUBLISHER, null, new Topic(will.topic), messageExpiryInstant, willPublishMessage);
     }
 
     private static Instant willMessageExpiry(ISessionsRepository.Will will) {
@@ -523,27 +553,30 @@ class PostOffice {
         Session targetSession = this.sessionRegistry.retrieve(clientID);
         for (Subscription subscription : newSubscriptions) {
             final String topicFilter = subscription.getTopicFilter().toString();
-            final Collection<RetainedMessage> retainedMsgs = retainedRepository.retainedOnTopic(topicFilter);
+            final Iterator<Topic> matchingTopics = retainedRepository.retainedTopicsMatching(topicFilter);
 
-            if (retainedMsgs.isEmpty()) {
+            if (!matchingTopics.hasNext()) {
                 LOG.debug("No retained messages matching topic filter {}", topicFilter);
                 continue;
             }
 
-            for (RetainedMessage retainedMsg : retainedMsgs) {
-                MqttProperties.MqttProperty[] properties = prepareSubscriptionProperties(subscription, Arrays.asList(retainedMsg.getMqttProperties()));
-                final MqttQoS retainedQos = retainedMsg.qosLevel();
-                MqttQoS qos = lowerQosToTheSubscriptionDesired(subscription, retainedQos);
-
-                final ByteBuf payloadBuf = Unpooled.wrappedBuffer(retainedMsg.getPayload());
-                properties = appendMessageExpiry(properties, retainedMsg);
-                targetSession.sendRetainedPublishOnSessionAtQos(retainedMsg.getTopic(), qos, payloadBuf, properties);
-                // We made the buffer, we must release it.
-                payloadBuf.release();
-            }
+            // the session looks up and sends them a chunk at a time, as the inflight window and the channel allow
+            targetSession.sendRetained(new RetainedCursor(matchingTopics, retainedRepository::retainedOn,
+                maxRetainedPerSubscribe,
+                retainedMsg -> retainedPublish(subscription, retainedMsg)));
         }
     }
 
+    private SessionRegistry.PublishedMessage retainedPublish(Subscription subscription, RetainedMessage retainedMsg) {
+        MqttProperties.MqttProperty[] properties = prepareSubscriptionProperties(subscription, Arrays.asList(retainedMsg.getMqttProperties()));
+        final MqttQoS qos = lowerQosToTheSubscriptionDesired(subscription, retainedMsg.qosLevel());
+
+        // shares the stored bytes, without copying them
+        final ByteBuf payloadBuf = retainedMsg.payloadView();
+        properties = appendMessageExpiry(properties, retainedMsg);
+        return new SessionRegistry.PublishedMessage(retainedMsg.getTopic(), qos, payloadBuf, true, Instant.MAX, properties);
+    }
+
     private MqttProperties.MqttProperty[] appendMessageExpiry(MqttProperties.MqttProperty[] properties,
                                                               RetainedMessage retainedMsg) {
         if (retainedMsg.getExpiryTime() == null) {
@@ -619,6 +652,14 @@ class PostOffice {
     CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, String username, String clientID, MqttPublishMessage msg,
                                                 Instant messageExpiry) {
         final Topic topic = new Topic(msg.variableHeader().topicName());
+        return receivedPublishQos0(topic, connection, username, clientID, msg, messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic name of the msg, to avoid to tokenize it once more.
+     * */
+    CompletableFuture<Void> receivedPublishQos0(Topic topic, MQTTConnection connection, String username, String clientID,
+                                                MqttPublishMessage msg, Instant messageExpiry) {
         if (!authorizator.canWrite(topic, username, clientID)) {
             LOG.error("client is not authorized to publish on topic: {}", topic);
             ReferenceCountUtil.release(msg);
@@ -636,7 +677,7 @@ class PostOffice {
             }
         }
 
-        final RoutingResults publishResult = publish2Subscribers(clientID, messageExpiry, msg);
+        final RoutingResults publishResult = publish2Subscribers(clientID, connection, topic, messageExpiry, msg);
         if (publishResult.isAllFailed()) {
             LOG.info("No one publish was successfully enqueued to session loops");
             ReferenceCountUtil.release(msg);
@@ -654,11 +695,144 @@ class PostOffice {
         });
     }
 
+    /**
+     * Fan-out the QoS0 publishes received in the same read burst, routing to each target session loop a
+     * single command that delivers all the messages it has subscribers for.
+     *
+     * @return future completed when all the session loops processed the burst.
+     * */
+    CompletableFuture<Void> receivedPublishesQos0(MQTTConnection connection, String username, String clientID,
+                               List<BurstPublish> publishes) {
+        final List<BurstPublish> accepted = new ArrayList<>(publishes.size());
+        final List<BatchingPublishesCollector> collectors = new ArrayList<>(publishes.size());
+        for (int i = 0; i < publishes.size(); i++) {
+            final BurstPublish publish = publishes.get(i);
+            if (!authorizator.canWrite(publish.topic, username, clientID)) {
+                LOG.error("client is not authorized to publish on topic: {}", publish.topic);
+                publish.release();
+                continue;
+            }
+            if (isPayloadFormatToValidate(publish.msg) && !validatePayloadAsUTF8(publish.msg)) {
+                LOG.warn("Received not valid UTF-8 payload when payload format indicator was enabled (QoS0)");
+                for (int j = i; j < publishes.size(); j++) {
+                    publishes.get(j).release();
+                }
+                connection.brokerDisconnect(MqttReasonCodes.Disconnect.PAYLOAD_FORMAT_INVALID);
+                connection.disconnectSession();
+                connection.dropConnection();
+                break;
+            }
+            final BatchingPublishesCollector collector = new BatchingPublishesCollector(sessionLoops);
+            for (Subscription sub : subscriptions.matchQosSharpening(publish.topic)) {
+                if (sub.option().isNoLocal() && clientID.equals(sub.getClientId())) {
+                    // if noLocal do not publish to the publisher
+                    continue;
+                }
+                collector.add(sub);
+            }
+            publish.targetLoops = collector.countBatches();
+            if (publish.targetLoops > 0) {
+                publish.msg.retain(publish.targetLoops);
+            }
+            // a publish without subscribers is kept, to be completed as the others, cleaning the retained
+            // message and notifying the interceptor
+            accepted.add(publish);
+            collectors.add(collector);
+        }
+        if (accepted.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final int eventLoops = sessionLoops.getEventLoopCount();
+        int commandsCount = 0;
+        for (int loopId = 0; loopId < eventLoops; loopId++) {
+            for (BatchingPublishesCollector collector : collectors) {
+                if (collector.subscriptions[loopId] != null) {
+                    commandsCount++;
+                    break;
+                }
+            }
+        }
+        final AtomicInteger pendingCommands = new AtomicInteger(commandsCount);
+        final CompletableFuture<String> burstCompletion = new CompletableFuture<>();
+        final CompletableFuture<Void> result = burstCompletion.thenRun(
+            () -> completeBurstPublishes(username, clientID, accepted));
+        if (commandsCount == 0) {
+            burstCompletion.complete(clientID);
+            return result;
+        }
+
+        for (int loopId = 0; loopId < eventLoops; loopId++) {
+            routeBurstToLoop(loopId, accepted, collectors, pendingCommands, burstCompletion, connection);
+        }
+        return result;
+    }
+
+    private void routeBurstToLoop(int loopId, List<BurstPublish> publishes, List<BatchingPublishesCollector> collectors,
+                                  AtomicInteger pendingCommands, CompletableFuture<String> burstCompletion,
+                                  MQTTConnection connection) {
+        final List<BurstPublish> loopPublishes = new ArrayList<>();
+        final List<List<Subscription>> loopSubscriptions = new ArrayList<>();
+        for (int i = 0; i < publishes.size(); i++) {
+            final List<Subscription> subscriptionsBatch = collectors.get(i).subscriptions[loopId];
+            if (subscriptionsBatch != null) {
+                loopPublishes.add(publishes.get(i));
+                loopSubscriptions.add(subscriptionsBatch);
+            }
+        }
+        if (loopPublishes.isEmpty()) {
+            return;
+        }
+        final String targetClientId = loopSubscriptions.get(0).get(0).getClientId();
+        final SessionCommand burstCommand = new SessionCommand.Joined(targetClientId, () -> {
+            for (int i = 0; i < loopPublishes.size(); i++) {
+                final BurstPublish publish = loopPublishes.get(i);
+                publishToSession(publish.topic, loopSubscriptions.get(i), AT_MOST_ONCE, publish.msg.fixedHeader().isRetain(),
+                    publish.messageExpiry, publish.msg);
+                publish.release();
+            }
+            return null;
+        }, pendingCommands, burstCompletion);
+        final RouteResult result = sessionLoops.routeCommand(targetClientId, "batched PUB burst", burstCommand);
+        if (result.isSuccess()) {
+            sessionLoops.throttleIfOverloaded(loopId, connection.channel);
+        } else {
+            for (BurstPublish publish : loopPublishes) {
+                publish.failedLoops++;
+                publish.release();
+            }
+            burstCommand.complete();
+        }
+    }
+
+    private void completeBurstPublishes(String username, String clientID, List<BurstPublish> publishes) {
+        for (BurstPublish publish : publishes) {
+            if (publish.isAllFailed()) {
+                LOG.info("No one publish was successfully enqueued to session loops");
+                publish.release();
+                continue;
+            }
+            if (publish.msg.fixedHeader().isRetain()) {
+                // QoS == 0 && retain => clean old retained
+                retainedRepository.cleanRetained(publish.topic);
+            }
+            interceptor.notifyTopicPublished(publish.msg, clientID, username);
+            publish.release();
+        }
+    }
+
     RoutingResults receivedPublishQos1(MQTTConnection connection, String username, int messageID,
                                        MqttPublishMessage msg, Instant messageExpiry) {
-        // verify if topic can be written
         final Topic topic = new Topic(msg.variableHeader().topicName());
-        topic.getTokens();
+        return receivedPublishQos1(topic, connection, username, messageID, msg, messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic name of the msg, to avoid to tokenize it once more.
+     * */
+    RoutingResults receivedPublishQos1(Topic topic, MQTTConnection connection, String username, int messageID,
+                                       MqttPublishMessage msg, Instant messageExpiry) {
+        // verify if topic can be written
         if (!topic.isValid()) {
             LOG.warn("Invalid topic format, force close the connection");
             connection.dropConnection();
@@ -697,16 +871,22 @@ class PostOffice {
         final RoutingResults routes;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            routes = publish2Subscribers(clientId, failedClients, messageExpiry, msg);
+            routes = publish2Subscribers(clientId, connection, topic, failedClients, messageExpiry, msg);
         } else {
-            routes = publish2Subscribers(clientId, messageExpiry, msg);
+            routes = publish2Subscribers(clientId, connection, topic, messageExpiry, msg);
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("subscriber routes: {}", routes);
         }
         if (routes.isAllSuccess()) {
             // QoS1 message was enqueued successfully to every event loop
-            connection.sendPubAck(messageID);
+            if (sessionRegistry.isQueuesGroupCommit()) {
+                // acknowledged only once the subscribers enqueued it and it's on disk
+                connection.sendPubAckAfter(routes.completableFuture()
+                    .thenCompose(unused -> sessionRegistry.commitQueues()), messageID);
+            } else {
+                connection.sendPubAck(messageID);
+            }
             manageRetain(topic, msg);
             interceptor.notifyTopicPublished(msg, clientId, username);
         } else {
@@ -722,25 +902,13 @@ class PostOffice {
     }
 
     private static boolean validatePayloadAsUTF8(MqttPublishMessage msg) {
-        byte[] rawPayload = Utils.readBytesAndRewind(msg.payload());
-
-        boolean isValid = true;
-        try {
-            // Decoder instance is stateful  so shouldn't be invoked concurrently, hence one instance per call.
-            // Possible optimization is to use one instance per thread.
-            StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(rawPayload));
-        } catch (CharacterCodingException ex) {
-            isValid = false;
-        }
-        return isValid;
+        return Utf8Validator.isValid(msg.payload());
     }
 
     private void manageRetain(Topic topic, MqttPublishMessage msg) {
         if (isRetained(msg)) {
             if (!msg.payload().isReadable()) {
                 retainedRepository.cleanRetained(topic);
-                // clean also the tracker
-                retainedMessagesExpirationService.untrack(topic.toString());
             } else {
                 // before wasn't stored
                 MqttProperties publishProperties = msg.variableHeader().properties();
@@ -749,8 +917,6 @@ class PostOffice {
                         MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL));
                     Instant expiryTime = Instant.now().plus(messageExpiry);
                     retainedRepository.retain(topic, msg, expiryTime);
-                    // track the topic to be wiped
-                    retainedMessagesExpirationService.track(topic.toString(), new ExpirableTopic(topic, expiryTime));
                 } else {
                     retainedRepository.retain(topic, msg);
                 }
@@ -767,16 +933,17 @@ class PostOffice {
         return mqttProperty.value();
     }
 
-    private RoutingResults publish2Subscribers(String publisherClientId,
+    private RoutingResults publish2Subscribers(String publisherClientId, MQTTConnection publisher, Topic topic,
                                                Instant messageExpiry,
                                                MqttPublishMessage msg) {
-        return publish2Subscribers(publisherClientId, NO_FILTER, messageExpiry, msg);
+        return publish2Subscribers(publisherClientId, publisher, topic, NO_FILTER, messageExpiry, msg);
     }
 
     private class BatchingPublishesCollector {
         final List<Subscription>[] subscriptions;
         private final int eventLoops;
         private final SessionEventLoopGroup loopGroup;
+        private final CompletableFuture<String> batchesCompletion = new CompletableFuture<>();
 
         BatchingPublishesCollector(SessionEventLoopGroup loopGroup) {
             eventLoops = loopGroup.getEventLoopCount();
@@ -796,8 +963,13 @@ class PostOffice {
             return loopGroup.targetQueueOrdinal(clientId);
         }
 
+        /**
+         * Route a command for each session loop with subscribers, all the commands share the same future, completed
+         * by the last one executed.
+         * */
         List<RouteResult> routeBatchedPublishes(Consumer<List<Subscription>> action) {
             List<RouteResult> publishResults = new ArrayList<>(this.eventLoops);
+            final AtomicInteger pendingBatches = new AtomicInteger(countBatches());
 
             for (List<Subscription> subscriptionsBatch : subscriptions) {
                 if (subscriptionsBatch == null) {
@@ -811,14 +983,32 @@ class PostOffice {
                     final int loopId = subscriberEventLoop(clientId);
                     LOG.trace("Routing PUBLISH to eventLoop {}  for subscriptions [{}]", loopId, subscriptionsDetails);
                 }
-                publishResults.add(routeCommand(clientId, "batched PUB", () -> {
+                final SessionCommand batchCommand = new SessionCommand.Joined(clientId, () -> {
                     action.accept(subscriptionsBatch);
                     return null;
-                }));
+                }, pendingBatches, batchesCompletion);
+                final RouteResult result = loopGroup.routeCommand(clientId, "batched PUB", batchCommand);
+                if (!result.isSuccess()) {
+                    // never executed, account it as done to not block the completion of the others
+                    batchCommand.complete();
+                }
+                publishResults.add(result);
             }
             return publishResults;
         }
 
+        CompletableFuture<String> batchesCompletion() {
+            return batchesCompletion;
+        }
+
+        void throttleIfOverloaded(MQTTConnection publisher) {
+            for (int loopId = 0; loopId < eventLoops; loopId++) {
+                if (subscriptions[loopId] != null) {
+                    loopGroup.throttleIfOverloaded(loopId, publisher.channel);
+                }
+            }
+        }
+
         Collection<String> subscriberIdsByEventLoop(String clientId) {
             final int targetQueueId = subscriberEventLoop(clientId);
             return subscriptions[targetQueueId].stream().map(Subscription::getClientId).collect(Collectors.toList());
@@ -836,11 +1026,14 @@ class PostOffice {
         }
     }
 
-    private RoutingResults publish2Subscribers(String publisherClientId,
+    /**
+     * @param publisher the connection that published the message, null if not published by a client. When
+     *                  any of the target session loops is overloaded, it stops reading from the connection.
+     * */
+    private RoutingResults publish2Subscribers(String publisherClientId, MQTTConnection publisher, Topic topic,
                                                Set<String> filterTargetClients, Instant messageExpiry,
                                                MqttPublishMessage msg) {
         final boolean retainPublish = msg.fixedHeader().isRetain();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
         final MqttQoS publishingQos = msg.fixedHeader().qosLevel();
         List<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
         if (topicMatchingSubscriptions.isEmpty()) {
@@ -879,10 +1072,10 @@ class PostOffice {
             msg.release();
         });
 
-        final CompletableFuture[] publishFutures = publishResults.stream()
-            .filter(RouteResult::isSuccess)
-            .map(RouteResult::completableFuture).toArray(CompletableFuture[]::new);
-        final CompletableFuture<Void> publishes = CompletableFuture.allOf(publishFutures);
+        final CompletableFuture<Void> publishes = collector.batchesCompletion().thenApply(unused -> null);
+        if (publisher != null) {
+            collector.throttleIfOverloaded(publisher);
+        }
 
         final List<String> failedRoutings = new ArrayList<>();
         final List<String> successedRoutings = new ArrayList<>();
@@ -901,18 +1094,36 @@ class PostOffice {
     private void publishToSession(Topic topic, Collection<Subscription> subscriptions,
                                   MqttQoS publishingQos, boolean retainPublish, Instant messageExpiry, MqttPublishMessage msg) {
         ByteBuf duplicatedPayload = msg.payload().duplicate();
-        for (Subscription sub : subscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            boolean retained = false;
-            if (sub.option().isRetainAsPublished()) {
-                retained = retainPublish;
+        Collection<? extends MqttProperties.MqttProperty> existingProperties = msg.variableHeader().properties().listAll();
+        // the subscribers without a subscription identifier share the same properties and so the same encoding
+        MqttProperties.MqttProperty[] commonProperties = null;
+        final SharedPublishEncoding sharedEncoding = new SharedPublishEncoding(topic, duplicatedPayload);
+        try {
+            for (Subscription sub : subscriptions) {
+                MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+                boolean retained = false;
+                if (sub.option().isRetainAsPublished()) {
+                    retained = retainPublish;
+                }
+                final MqttProperties.MqttProperty[] properties;
+                if (sub.hasSubscriptionIdentifier()) {
+                    properties = prepareSubscriptionProperties(sub, existingProperties);
+                } else {
+                    if (commonProperties == null) {
+                        commonProperties = prepareSubscriptionProperties(sub, existingProperties);
+                    }
+                    properties = commonProperties;
+                }
+                publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, properties, sharedEncoding);
             }
-            publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, msg);
+        } finally {
+            sharedEncoding.release();
         }
     }
 
     private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos, boolean retained,
-                                  Instant messageExpiry, MqttPublishMessage msg) {
+                                  Instant messageExpiry, MqttProperties.MqttProperty[] properties,
+                                  SharedPublishEncoding sharedEncoding) {
         Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
 
         boolean isSessionPresent = targetSession != null;
@@ -920,10 +1131,8 @@ class PostOffice {
             LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
                       sub.getClientId(), sub.getTopicFilter(), qos);
 
-            Collection<? extends MqttProperties.MqttProperty> existingProperties = msg.variableHeader().properties().listAll();
-            final MqttProperties.MqttProperty[] properties = prepareSubscriptionProperties(sub, existingProperties);
             final SessionRegistry.PublishedMessage publishedMessage =
-                new SessionRegistry.PublishedMessage(topic, qos, payload, retained, messageExpiry, properties);
+                new SessionRegistry.PublishedMessage(topic, qos, payload, retained, messageExpiry, sharedEncoding, properties);
             targetSession.sendPublishOnSessionAtQos(publishedMessage);
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
@@ -964,8 +1173,16 @@ class PostOffice {
      */
     RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username,
                                        Instant messageExpiry) {
-        LOG.trace("Processing PUB QoS2 message on connection: {}", connection);
         final Topic topic = new Topic(msg.variableHeader().topicName());
+        return receivedPublishQos2(topic, connection, msg, username, messageExpiry);
+    }
+
+    /**
+     * @param topic the already parsed topic name of the msg, to avoid to tokenize it once more.
+     * */
+    RoutingResults receivedPublishQos2(Topic topic, MQTTConnection connection, MqttPublishMessage msg, String username,
+                                       Instant messageExpiry) {
+        LOG.trace("Processing PUB QoS2 message on connection: {}", connection);
 
         final String clientId = connection.getClientId();
         if (!authorizator.canWrite(topic, username, clientId)) {
@@ -989,9 +1206,9 @@ class PostOffice {
         final RoutingResults publishRoutings;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            publishRoutings = publish2Subscribers(clientId, failedClients, messageExpiry, msg);
+            publishRoutings = publish2Subscribers(clientId, connection, topic, failedClients, messageExpiry, msg);
         } else {
-            publishRoutings = publish2Subscribers(clientId, messageExpiry, msg);
+            publishRoutings = publish2Subscribers(clientId, connection, topic, messageExpiry, msg);
         }
         if (publishRoutings.isAllSuccess()) {
             // QoS2 PUB message was enqueued successfully to every event loop
@@ -1033,7 +1250,7 @@ class PostOffice {
         final ByteBuf payload = msg.payload();
         LOG.info("Sending internal PUBLISH message Topic={}, qos={}", topic, qos);
 
-        final RoutingResults publishResult = publish2Subscribers(INTERNAL_PUBLISHER, Instant.MAX, msg);
+        final RoutingResults publishResult = publish2Subscribers(INTERNAL_PUBLISHER, null, topic, Instant.MAX, msg);
         LOG.trace("after routed publishes: {}", publishResult);
 
         if (!isRetained(msg)) {
@@ -1075,17 +1292,7 @@ class PostOffice {
         MqttProperties.StringProperty contentTypeProperty = (MqttProperties.StringProperty) msg.variableHeader().properties()
             .getProperty(MqttPropertyType.CONTENT_TYPE.value());
 
-        byte[] rawPayload = contentTypeProperty.value().getBytes();
-
-        boolean isValid = true;
-        try {
-            // Decoder instance is stateful  so shouldn't be invoked concurrently, hence one instance per call.
-            // Possible optimization is to use one instance per thread.
-            StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(rawPayload));
-        } catch (CharacterCodingException ex) {
-            isValid = false;
-        }
-        return isValid;
+        return Utf8Validator.isValid(contentTypeProperty.value());
     }
 
     /**
@@ -1115,9 +1322,23 @@ class PostOffice {
         return sessionLoops.routeCommand(clientId, actionDescription, action);
     }
 
+    /**
+     * Queue the command on the owning SessionEventLoop, yielding it when called from the loop itself.
+     * */
+    RouteResult routeCommandLater(String clientId, String actionDescription, Callable<Void> action) {
+        return sessionLoops.routeCommandLater(clientId, actionDescription, action);
+    }
+
+    /**
+     * Stop reading from the publisher's channel if the session loop of the client is overloaded.
+     */
+    void throttleIfOverloaded(String clientId, MQTTConnection publisher) {
+        sessionLoops.throttleIfOverloaded(clientId, publisher.channel);
+    }
+
     public void terminate() {
         willExpirationService.shutdown();
-        retainedMessagesExpirationService.shutdown();
+        retainedExpirationExecutor.shutdownNow();
         sessionLoops.terminate();
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.SessionRegistry.PublishedMessage;
+import io.moquette.broker.subscriptions.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * Position in the retained messages matching a new subscription, that the session sends a chunk at a time.
+ *
+ * The matching topics are walked as the cursor moves, and the message of a topic is looked up and turned into the
+ * publish for the subscription only when it's reached, so the messages not yet sent aren't read, and the ones
+ * beyond the max aren't even matched. Used only by the session loop of the subscriber.
+ * */
+final class RetainedCursor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetainedCursor.class);
+
+    private final Iterator<Topic> matching;
+    private final Function<Topic, RetainedMessage> lookup;
+    private final Function<RetainedMessage, PublishedMessage> toPublish;
+    private final int maxMessages;
+    private int remaining;
+    private PublishedMessage next;
+
+    /**
+     * @param matching the topics matching the subscription.
+     * @param lookup the message retained on a topic, retained for the cursor, null if cleaned in the meantime.
+     * @param maxMessages the number of messages after which the cursor ends, 0 for no limit.
+     * */
+    RetainedCursor(Iterator<Topic> matching, Function<Topic, RetainedMessage> lookup, int maxMessages,
+                   Function<RetainedMessage, PublishedMessage> toPublish) {
+        this.matching = matching;
+        this.lookup = lookup;
+        this.toPublish = toPublish;
+        this.maxMessages = maxMessages;
+        this.remaining = maxMessages > 0 ? maxMessages : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the next publish to send, without moving over it, null if the cursor is at the end.
+     * */
+    PublishedMessage peek() {
+        while (next == null && remaining > 0 && matching.hasNext()) {
+            final Topic topic = matching.next();
+            final RetainedMessage retained = lookup.apply(topic);
+            if (retained == null) {
+                continue;
+            }
+            try {
+                next = toPublish.apply(retained);
+            } finally {
+                retained.release();
+            }
+            remaining--;
+            if (remaining == 0 && matching.hasNext()) {
+                LOG.info("Sent the max of {} retained messages to a new subscription, skipping the others, from " +
+                    "topic {}", maxMessages, matching.next());
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Move over the next publish, its payload has to be released by the caller.
+     * */
+    PublishedMessage poll() {
+        final PublishedMessage polled = peek();
+        next = null;
+        return polled;
+    }
+
+    /**
+     * Release the publish already prepared, the messages not yet reached hold nothing.
+     * */
+    void close() {
+        if (next != null) {
+            next.release();
+            next = null;
+        }
+        remaining = 0;
+    }
+}
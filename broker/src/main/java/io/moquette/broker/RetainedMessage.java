@@ -1,6 +1,9 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
@@ -11,19 +14,32 @@ public class RetainedMessage /*implements Serializable*/{
 
     private final Topic topic;
     private final MqttQoS qos;
-    private final byte[] payload;
+    // a heap buffer wrapping the bytes, or a direct buffer owned by the repository
+    private final ByteBuf payload;
     private final MqttProperties.MqttProperty[] properties;
     private Instant expiryTime;
 
     public RetainedMessage(Topic topic, MqttQoS qos, byte[] payload, MqttProperties.MqttProperty[] properties) {
+        this(topic, qos, Unpooled.wrappedBuffer(payload), properties);
+    }
+
+    public RetainedMessage(Topic topic, MqttQoS qos, byte[] rawPayload, MqttProperties.MqttProperty[] properties, Instant expiryTime) {
+        this(topic, qos, rawPayload, properties);
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * @param payload the buffer holding the payload, the message takes its reference.
+     * */
+    RetainedMessage(Topic topic, MqttQoS qos, ByteBuf payload, MqttProperties.MqttProperty[] properties) {
         this.topic = topic;
         this.qos = qos;
         this.payload = payload;
         this.properties = properties;
     }
 
-    public RetainedMessage(Topic topic, MqttQoS qos, byte[] rawPayload, MqttProperties.MqttProperty[] properties, Instant expiryTime) {
-        this(topic, qos, rawPayload, properties);
+    RetainedMessage(Topic topic, MqttQoS qos, ByteBuf payload, MqttProperties.MqttProperty[] properties, Instant expiryTime) {
+        this(topic, qos, payload, properties);
         this.expiryTime = expiryTime;
     }
 
@@ -35,8 +51,39 @@ public class RetainedMessage /*implements Serializable*/{
         return qos;
     }
 
+    /**
+     * @return the bytes of the payload, copied only if it isn't stored in a heap array.
+     * */
     public byte[] getPayload() {
-        return payload;
+        return ByteBufUtil.getBytes(payload, payload.readerIndex(), payload.readableBytes(), false);
+    }
+
+    /**
+     * @return a view of the payload sharing its bytes, with its own reference count to be released by the caller.
+     * Releasing the view more than due can't free the stored payload, that stays valid for the next deliveries.
+     * */
+    public ByteBuf payloadView() {
+        return Unpooled.compositeBuffer(1).addComponent(true, payload.retainedDuplicate());
+    }
+
+    int payloadSize() {
+        return payload.readableBytes();
+    }
+
+    boolean isPayloadDirect() {
+        return payload.isDirect();
+    }
+
+    /**
+     * Add a reference to the payload, to keep it valid after the repository drops the message.
+     * */
+    public RetainedMessage retain() {
+        payload.retain();
+        return this;
+    }
+
+    public void release() {
+        payload.release();
     }
 
     public Instant getExpiryTime() {
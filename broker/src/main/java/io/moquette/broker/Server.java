@@ -29,6 +29,7 @@ import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.security.ResourceAuthenticator;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
@@ -82,6 +83,7 @@ public class Server {
     private BrokerInterceptor interceptor;
     private H2Builder h2Builder;
     private SessionRegistry sessions;
+    private SessionEventLoopGroup sessionLoops;
     private boolean standalone = false;
 
     public static void main(String[] args) throws IOException {
@@ -228,8 +230,12 @@ public class Server {
 
             LOG.debug("Configuring persistent subscriptions store and queues, path: {}", dataPath);
             final int autosaveInterval = Integer.parseInt(config.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
-            h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock).initStore();
-            queueRepository = initQueuesRepository(config, dataPath, h2Builder);
+            h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock)
+                .cacheSize(config.intProp(BrokerConstants.H2_CACHE_SIZE, BrokerConstants.DEFAULT_H2_CACHE_SIZE))
+                .compression(H2Builder.Compression.parse(config.getProperty(BrokerConstants.H2_COMPRESSION, BrokerConstants.DEFAULT_H2_COMPRESSION)))
+                .autoCommitBufferSize(config.intProp(BrokerConstants.H2_AUTO_COMMIT_BUFFER_SIZE, BrokerConstants.DEFAULT_H2_AUTO_COMMIT_BUFFER_SIZE))
+                .initStore();
+            queueRepository = initQueuesRepository(config, dataPath, h2Builder, scheduler);
             LOG.trace("Configuring H2 subscriptions repository");
             subscriptionsRepository = h2Builder.subscriptionsRepository();
             retainedRepository = h2Builder.retainedRepository();
@@ -238,11 +244,13 @@ public class Server {
             LOG.trace("Configuring in-memory subscriptions store");
             subscriptionsRepository = new MemorySubscriptionsRepository();
             queueRepository = new MemoryQueueRepository();
-            retainedRepository = new MemoryRetainedRepository();
+            final long retainedMaxDirectBytes = Long.parseLong(config.getProperty(IConfig.RETAINED_MAX_DIRECT_BYTES, "0"));
+            retainedRepository = new MemoryRetainedRepository(retainedMaxDirectBytes);
             sessionsRepository = new MemorySessionsRepository();
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final int matchCacheSize = config.intProp(IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE, 0);
+        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory(matchCacheSize);
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
 
@@ -254,13 +262,19 @@ public class Server {
         }
 
         final int sessionQueueSize = config.intProp(IConfig.SESSION_QUEUE_SIZE, 1024);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize);
+        final int sessionLoops = config.intProp(IConfig.SESSION_LOOPS, Runtime.getRuntime().availableProcessors());
+        final int highWatermark = config.intProp(IConfig.SESSION_QUEUE_HIGH_WATERMARK, 0);
+        final int lowWatermark = config.intProp(IConfig.SESSION_QUEUE_LOW_WATERMARK, highWatermark / 2);
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, sessionLoops,
+            highWatermark, lowWatermark);
+        this.sessionLoops = loopsGroup;
         sessions = new SessionRegistry(subscriptions, sessionsRepository, queueRepository, authorizator, scheduler,
             clock, globalSessionExpiry, loopsGroup);
 
         final MqttQoS serverGrantedQoS = parseMaxGrantedQoS(config);
+        final int maxRetainedPerSubscribe = config.intProp(IConfig.RETAINED_MAX_PER_SUBSCRIBE, 0);
         dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, sessionsRepository, interceptor,
-            authorizator, loopsGroup, clock, serverGrantedQoS);
+            authorizator, loopsGroup, clock, serverGrantedQoS, maxRetainedPerSubscribe);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
                                                                             dispatcher);
@@ -304,7 +318,8 @@ public class Server {
         }
     }
 
-    private static IQueueRepository initQueuesRepository(IConfig config, Path dataPath, H2Builder h2Builder) throws IOException {
+    private static IQueueRepository initQueuesRepository(IConfig config, Path dataPath, H2Builder h2Builder,
+                                                         ScheduledExecutorService scheduler) throws IOException {
         final IQueueRepository queueRepository;
         final String queueType = config.getProperty(IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME);
         if ("h2".equalsIgnoreCase(queueType)) {
@@ -314,8 +329,19 @@ public class Server {
             LOG.info("Configuring segmented queue store to {}", dataPath);
             final int pageSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_PAGE_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE);
             final int segmentSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SEGMENT_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+            final int checkpointInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_CHECKPOINT_INTERVAL, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_CHECKPOINT_INTERVAL);
+            final QueueDurability durability = QueueDurability.parse(config.getProperty(BrokerConstants.SEGMENTED_QUEUE_DURABILITY, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_DURABILITY));
+            final int flushInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_FLUSH_INTERVAL, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FLUSH_INTERVAL);
+            final int topicDictionarySize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_TOPIC_DICTIONARY_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_TOPIC_DICTIONARY_SIZE);
+            final long maxMappedBytes = Long.parseLong(config.getProperty(BrokerConstants.SEGMENTED_QUEUE_MAX_MAPPED_BYTES,
+                String.valueOf(BrokerConstants.DEFAULT_SEGMENTED_QUEUE_MAX_MAPPED_BYTES)));
+            final int compactionInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_INTERVAL, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_INTERVAL);
+            final int compactionMaxSegments = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_MAX_SEGMENTS, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_MAX_SEGMENTS);
+            LOG.info("Segmented queue durability is {}", durability);
             try {
-                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize);
+                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize, durability, flushInterval,
+                    scheduler, checkpointInterval, topicDictionarySize, maxMappedBytes, compactionInterval,
+                    compactionMaxSegments);
             } catch (QueueException e) {
                 throw new IOException("Problem in configuring persistent queue on path " + dataPath, e);
             }
@@ -622,6 +648,22 @@ public class Server {
         LOG.info("Moquette integration has been stopped.");
     }
 
+    /**
+     * @return the number of commands waiting in the queue of each session loop, or null if the broker is
+     * not started.
+     */
+    public int[] sessionLoopsQueueDepths() {
+        if (!initialized) {
+            LOG.error("Moquette is not started, session loops queue depth not available");
+            return null;
+        }
+        final int[] depths = new int[sessionLoops.getEventLoopCount()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = sessionLoops.queueDepth(i);
+        }
+        return depths;
+    }
+
     public int getPort() {
         return acceptor.getPort();
     }
@@ -28,7 +28,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
-import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Delayed;
@@ -43,6 +42,8 @@ class Session {
     // By specification session expiry value of 0xEFFFFFFF (UINT_MAX) (seconds) means
     // session that doesn't expire, it's ~68 years.
     static final int INFINITE_EXPIRY = Integer.MAX_VALUE;
+    // retained messages sent before yielding the session loop to the other sessions
+    static final int RETAINED_CHUNK_SIZE = 100;
     private final boolean resendInflightOnTimeout;
 
     static class InFlightPacket implements Delayed {
@@ -88,6 +89,12 @@ class Session {
     private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
     private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
     private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    // retained messages of the new subscriptions still to send, they go before the queued messages
+    private final Deque<RetainedCursor> retainedCursors = new ArrayDeque<>();
+    private boolean retainedResumeScheduled;
+    // QoS0 publishes received while retained messages are pending, sent after them so that they don't overtake
+    // the retained message of their topic
+    private final Deque<PublishedMessage> qos0BehindRetained = new ArrayDeque<>();
     private ISessionsRepository.SessionData data;
 
     Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue) {
@@ -235,17 +242,34 @@ class Session {
 //                m_interceptor.notifyMessageAcknowledged(interceptAckMsg);
     }
 
-    public void sendRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload,
-                                                  MqttProperties.MqttProperty... mqttProperties) {
-        final PublishedMessage publishedMessage = new PublishedMessage(topic, qos, payload, true, Instant.MAX, mqttProperties);
-        sendPublishOnSessionAtQos(publishedMessage);
+    /**
+     * Start sending the retained messages of a new subscription. They are sent as the inflight window and the
+     * channel accept them, a chunk at a time, and before any message published after the subscription.
+     * */
+    void sendRetained(RetainedCursor cursor) {
+        retainedCursors.add(cursor);
+        drainQueueToConnection();
+    }
+
+    /**
+     * Continue sending the retained messages, after the session loop was yielded to the other sessions.
+     * */
+    void resumeRetained() {
+        retainedResumeScheduled = false;
+        drainQueueToConnection();
     }
 
     void sendPublishOnSessionAtQos(PublishedMessage publishRequest) {
         switch (publishRequest.getPublishingQos()) {
             case AT_MOST_ONCE:
-                if (connected()) {
+                if (!connected()) {
+                    break;
+                }
+                if (retainedCursors.isEmpty()) {
                     sendPublishQos0(publishRequest);
+                } else {
+                    publishRequest.retain();
+                    qos0BehindRetained.add(publishRequest);
                 }
                 break;
             case AT_LEAST_ONCE:
@@ -266,10 +290,7 @@ class Session {
         }
 
         MqttProperties.MqttProperty[] mqttProperties = publishRequest.updatePublicationExpiryIfPresentOrAdd();
-        MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(publishRequest.getTopic().toString(),
-            publishRequest.getPublishingQos(), publishRequest.getPayload(), 0,
-            publishRequest.retained, false, mqttProperties);
-        mqttConnection.sendPublish(publishMsg);
+        mqttConnection.sendPublish(publishRequest, 0, mqttProperties);
     }
 
     private void sendPublishQos1(PublishedMessage publishRequest) {
@@ -301,27 +322,7 @@ class Session {
         publishRequest.retain();
 
         if (canSkipQueue(localMqttConnectionRef)) {
-            inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
-
-            LOG.debug("Adding into inflight for session {} at QoS {}", getClientID(), publishRequest.getPublishingQos());
-
-            EnqueuedMessage old = inflightWindow.put(packetId, publishRequest);
-            // If there already was something, release it.
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
-            }
-            if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
-            }
-
-            MqttProperties.MqttProperty[] mqttProperties = publishRequest.updatePublicationExpiryIfPresentOrAdd();
-            MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(
-                publishRequest.topic.toString(), publishRequest.getPublishingQos(),
-                publishRequest.payload, packetId, publishRequest.retained, false, mqttProperties);
-            localMqttConnectionRef.sendPublish(publishMsg);
-
+            sendInFlight(localMqttConnectionRef, publishRequest);
             drainQueueToConnection();
         } else {
             sessionQueue.enqueue(publishRequest);
@@ -329,8 +330,30 @@ class Session {
         }
     }
 
+    // the payload of the request has to be already retained, the inflight window keeps it
+    private void sendInFlight(MQTTConnection localMqttConnectionRef, PublishedMessage publishRequest) {
+        inflightSlots.decrementAndGet();
+        int packetId = localMqttConnectionRef.nextPacketId();
+
+        LOG.debug("Adding into inflight for session {} at QoS {}", getClientID(), publishRequest.getPublishingQos());
+
+        EnqueuedMessage old = inflightWindow.put(packetId, publishRequest);
+        // If there already was something, release it.
+        if (old != null) {
+            old.release();
+            inflightSlots.incrementAndGet();
+        }
+        if (resendInflightOnTimeout) {
+            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+        }
+
+        MqttProperties.MqttProperty[] mqttProperties = publishRequest.updatePublicationExpiryIfPresentOrAdd();
+        localMqttConnectionRef.sendPublish(publishRequest, packetId, mqttProperties);
+    }
+
     private boolean canSkipQueue(MQTTConnection localMqttConnectionRef) {
         return localMqttConnectionRef != null &&
+            retainedCursors.isEmpty() &&
             sessionQueue.isEmpty() &&
             inflightSlots.get() > 0 &&
             connected() &&
@@ -422,46 +445,107 @@ class Session {
     }
 
     private void drainQueueToConnection() {
-        // consume the queue
+        if (!drainRetained()) {
+            return;
+        }
+        // consume the queue, filling the free slots of the inflight window with a batch flushed once
         while (connected() && !sessionQueue.isEmpty() && inflightHasSlotsAndConnectionIsUp()) {
-            final SessionRegistry.EnqueuedMessage msg = sessionQueue.dequeue();
-            if (msg == null) {
+            final List<EnqueuedMessage> batch = sessionQueue.dequeue(inflightSlots.get());
+            if (batch.isEmpty()) {
                 // Our message was already fetched by another Thread.
                 return;
             }
-            final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
-            if (msgPub.isExpired()) {
-                LOG.debug("Drop an expired message contained in the queue");
-                return;
-            }
+            final List<MqttPublishMessage> publishes = new ArrayList<>(batch.size());
+            for (EnqueuedMessage msg : batch) {
+                final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
+                if (msgPub.isExpired()) {
+                    LOG.debug("Drop an expired message contained in the queue");
+                    msg.release();
+                    continue;
+                }
 
-            inflightSlots.decrementAndGet();
-            int sendPacketId = mqttConnection.nextPacketId();
+                inflightSlots.decrementAndGet();
+                int sendPacketId = mqttConnection.nextPacketId();
 
-            // Putting it in a map, but the retain is cancelled out by the below release.
-            EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
-            }
-            if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
-            }
+                // Putting it in a map, but the retain is cancelled out by the below release.
+                EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
+                if (old != null) {
+                    old.release();
+                    inflightSlots.incrementAndGet();
+                }
+                if (resendInflightOnTimeout) {
+                    inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
+                }
 
-            MqttProperties.MqttProperty[] mqttProperties = msgPub.updatePublicationExpiryIfPresentOrAdd();
+                MqttProperties.MqttProperty[] mqttProperties = msgPub.updatePublicationExpiryIfPresentOrAdd();
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
-                msgPub.topic.toString(),
-                msgPub.publishingQos,
-                msgPub.payload,
-                sendPacketId,
-                mqttProperties);
-            mqttConnection.sendPublish(publishMsg);
+                publishes.add(MQTTConnection.createNotRetainedPublishMessage(
+                    msgPub.topic.toString(),
+                    msgPub.publishingQos,
+                    msgPub.payload,
+                    sendPacketId,
+                    mqttProperties));
+            }
+            mqttConnection.sendPublishes(publishes);
 
             // we fetched msg from a map, but the release is cancelled out by the above retain
         }
     }
 
+    /**
+     * Send the retained messages of the new subscriptions while the inflight window has slots and the channel is
+     * writable. After a chunk the session loop is yielded, scheduling the rest as a new command. Once all are sent,
+     * the QoS0 publishes held behind them follow.
+     *
+     * @return true if all the retained messages are sent.
+     * */
+    private boolean drainRetained() {
+        int sent = 0;
+        while (!retainedCursors.isEmpty()) {
+            if (!connected() || !mqttConnection.channel.isWritable()) {
+                // resumed when the channel is writable again or at reconnection
+                return false;
+            }
+            final RetainedCursor cursor = retainedCursors.peekFirst();
+            final PublishedMessage retained = cursor.peek();
+            if (retained == null) {
+                retainedCursors.pollFirst();
+                continue;
+            }
+            final boolean atMostOnce = retained.getPublishingQos() == MqttQoS.AT_MOST_ONCE;
+            if (!atMostOnce && inflightSlots.get() <= 0) {
+                // resumed by the acknowledgments
+                return false;
+            }
+            if (sent == RETAINED_CHUNK_SIZE) {
+                if (retainedResumeScheduled || mqttConnection.resumeRetainedLater()) {
+                    retainedResumeScheduled = true;
+                    return false;
+                }
+                // the session loop is full, go on in this command
+                sent = 0;
+            }
+            cursor.poll();
+            if (atMostOnce) {
+                sendPublishQos0(retained);
+            } else {
+                retained.retain();
+                sendInFlight(mqttConnection, retained);
+            }
+            // the cursor created the payload, the inflight window retained it
+            retained.release();
+            sent++;
+        }
+        while (!qos0BehindRetained.isEmpty()) {
+            final PublishedMessage held = qos0BehindRetained.poll();
+            if (connected()) {
+                sendPublishQos0(held);
+            }
+            held.release();
+        }
+        return true;
+    }
+
     public void writabilityChanged() {
         drainQueueToConnection();
     }
@@ -502,6 +586,14 @@ class Session {
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
+        for (RetainedCursor cursor : retainedCursors) {
+            cursor.close();
+        }
+        retainedCursors.clear();
+        for (PublishedMessage held : qos0BehindRetained) {
+            held.release();
+        }
+        qos0BehindRetained.clear();
         inflightTimeouts.clear();
         for (EnqueuedMessage msg : inflightWindow.values()) {
             msg.release();
@@ -2,17 +2,22 @@ package io.moquette.broker;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
-final class SessionCommand {
+class SessionCommand {
 
     private final String sessionId;
     private final Callable<Void> action;
     private final CompletableFuture<String> task;
 
     public  SessionCommand(String sessionId, Callable<Void> action) {
+        this(sessionId, action, new CompletableFuture<>());
+    }
+
+    private SessionCommand(String sessionId, Callable<Void> action, CompletableFuture<String> task) {
         this.sessionId = sessionId;
         this.action = action;
-        this.task = new CompletableFuture<>();
+        this.task = task;
     }
 
     public String getSessionId() {
@@ -30,4 +35,27 @@ final class SessionCommand {
     public CompletableFuture<String> completableFuture() {
         return task;
     }
+
+    /**
+     * Command that is part of a group of commands, routed to different session loops, which share the same
+     * future, completed when the last command of the group completes. Used to fan-out a publish without
+     * allocating a future for each session loop.
+     * */
+    static final class Joined extends SessionCommand {
+
+        private final AtomicInteger pendingCommands;
+
+        Joined(String sessionId, Callable<Void> action, AtomicInteger pendingCommands,
+               CompletableFuture<String> groupFuture) {
+            super(sessionId, action, groupFuture);
+            this.pendingCommands = pendingCommands;
+        }
+
+        @Override
+        public void complete() {
+            if (pendingCommands.decrementAndGet() == 0) {
+                super.complete();
+            }
+        }
+    }
 }
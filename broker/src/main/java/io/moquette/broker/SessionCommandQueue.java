@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of commands, with many producers (the Netty IO threads and the other
+ * session loops) and a single consumer, the SessionEventLoop that owns it.
+ *
+ * Producers claim a slot with a CAS on the tail and then publish the command in the slot. The
+ * consumer waits for new commands spinning for a while, then yielding and finally parking itself,
+ * the producers unpark it only when it's parked.
+ *
+ * Optionally the queue tracks an overloaded state: it's entered when the pending commands reach the high
+ * watermark and left, notifying a listener, once the consumer drains them down to the low watermark.
+ * */
+final class SessionCommandQueue {
+
+    private static final int SPIN_TRIES = 64;
+    private static final int YIELD_TRIES = 16;
+
+    private final AtomicReferenceArray<SessionCommand> buffer;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+    private volatile Thread consumer;
+    private volatile boolean consumerParked;
+    // 0 disables the tracking of overloaded state
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final Runnable drainedListener;
+    private volatile boolean overloaded;
+
+    /**
+     * @param requestedCapacity max number of pending commands, rounded up to the next power of two.
+     * */
+    SessionCommandQueue(int requestedCapacity) {
+        this(requestedCapacity, 0, 0, null);
+    }
+
+    /**
+     * @param requestedCapacity max number of pending commands, rounded up to the next power of two.
+     * @param highWatermark number of pending commands that makes the queue overloaded.
+     * @param lowWatermark number of pending commands under which an overloaded queue is considered drained.
+     * @param drainedListener invoked when the queue leaves the overloaded state.
+     * */
+    SessionCommandQueue(int requestedCapacity, int highWatermark, int lowWatermark, Runnable drainedListener) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive, was: " + requestedCapacity);
+        }
+        if (highWatermark > 0 && (lowWatermark < 0 || lowWatermark >= highWatermark)) {
+            throw new IllegalArgumentException("Low watermark must be in [0.." + highWatermark + "), was: " + lowWatermark);
+        }
+        final int capacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.drainedListener = drainedListener;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return false if the queue is full.
+     * */
+    boolean offer(SessionCommand command) {
+        final int capacity = mask + 1;
+        long currentTail;
+        do {
+            currentTail = tail.get();
+            if (currentTail - head.get() >= capacity) {
+                return false;
+            }
+        } while (!tail.compareAndSet(currentTail, currentTail + 1));
+        buffer.lazySet((int) currentTail & mask, command);
+
+        if (highWatermark > 0 && !overloaded && currentTail + 1 - head.get() >= highWatermark) {
+            overloaded = true;
+            // the consumer could have drained the queue before seeing the flag
+            checkDrained();
+        }
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * To be invoked only by the consumer thread.
+     *
+     * @return the next command or null if the queue is empty.
+     * */
+    SessionCommand poll() {
+        final long currentHead = head.get();
+        final int idx = (int) currentHead & mask;
+        SessionCommand command = buffer.get(idx);
+        if (command == null) {
+            if (currentHead == tail.get()) {
+                return null;
+            }
+            // a producer claimed the slot but still has to store the command
+            do {
+                command = buffer.get(idx);
+            } while (command == null);
+        }
+        buffer.lazySet(idx, null);
+        if (highWatermark > 0) {
+            // volatile write, pairs with the check of producers that set the overloaded flag
+            head.set(currentHead + 1);
+            if (overloaded) {
+                checkDrained();
+            }
+        } else {
+            head.lazySet(currentHead + 1);
+        }
+        return command;
+    }
+
+    private void checkDrained() {
+        if (size() <= lowWatermark && overloaded) {
+            overloaded = false;
+            drainedListener.run();
+        }
+    }
+
+    /**
+     * @return true if the pending commands reached the high watermark and not yet drained to the low one.
+     * */
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * To be invoked only by the consumer thread, wait until a command is available.
+     * */
+    SessionCommand take() throws InterruptedException {
+        if (consumer == null) {
+            consumer = Thread.currentThread();
+        }
+        int idleRounds = 0;
+        while (true) {
+            final SessionCommand command = poll();
+            if (command != null) {
+                return command;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (idleRounds < SPIN_TRIES) {
+                idleRounds++;
+            } else if (idleRounds < SPIN_TRIES + YIELD_TRIES) {
+                idleRounds++;
+                Thread.yield();
+            } else {
+                consumerParked = true;
+                // check again after publishing the parked flag, else a command offered in the meantime would be lost
+                if (isEmpty()) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * @return the number of pending commands, it's a snapshot when accessed by producers.
+     * */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
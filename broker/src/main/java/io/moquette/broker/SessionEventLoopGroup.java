@@ -2,29 +2,66 @@ package io.moquette.broker;
 
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.interception.messages.InterceptExceptionMessage;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.FutureTask;
 
 class SessionEventLoopGroup {
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoopGroup.class);
 
     private final SessionEventLoop[] sessionExecutors;
-    private final BlockingQueue<FutureTask<String>>[] sessionQueues;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    private final SessionCommandQueue[] sessionQueues;
+    // channels that stopped reading because were publishing to an overloaded session loop
+    private final Set<Channel>[] throttledChannels;
+    // number of session loops holding each throttled channel, that resumes reading only once none holds it
+    private final ConcurrentMap<Channel, Integer> throttlingLoops = new ConcurrentHashMap<>();
+    private final int eventLoops;
     private final ConcurrentMap<String, Throwable> loopThrownExceptions = new ConcurrentHashMap<>();
 
     SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize) {
-        this.sessionQueues = new BlockingQueue[eventLoops];
+        this(interceptor, sessionQueueSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param eventLoops number of session loop threads.
+     * */
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int eventLoops) {
+        this(interceptor, sessionQueueSize, eventLoops, 0, 0);
+    }
+
+    /**
+     * @param highWatermark number of pending commands in a session loop queue over which the channels publishing
+     *                      to it stop reading, 0 disables the backpressure.
+     * @param lowWatermark number of pending commands under which the throttled channels resume reading.
+     * @throws IllegalArgumentException if the watermarks don't respect lowWatermark < highWatermark <= sessionQueueSize.
+     * */
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int eventLoops,
+                          int highWatermark, int lowWatermark) {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("Number of session loops must be positive, was: " + eventLoops);
+        }
+        if (highWatermark < 0 || highWatermark > sessionQueueSize) {
+            throw new IllegalArgumentException("Session queue high watermark must be in [0.." + sessionQueueSize
+                + "], was: " + highWatermark);
+        }
+        if (highWatermark > 0 && (lowWatermark < 0 || lowWatermark >= highWatermark)) {
+            throw new IllegalArgumentException("Session queue low watermark must be in [0.." + highWatermark
+                + "), was: " + lowWatermark);
+        }
+        this.eventLoops = eventLoops;
+        this.sessionQueues = new SessionCommandQueue[eventLoops];
+        this.throttledChannels = new Set[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            this.sessionQueues[i] = new ArrayBlockingQueue<>(sessionQueueSize);
+            final int loopId = i;
+            this.throttledChannels[i] = ConcurrentHashMap.newKeySet();
+            this.sessionQueues[i] = new SessionCommandQueue(sessionQueueSize, highWatermark, lowWatermark,
+                () -> resumeThrottledChannels(loopId));
         }
         this.sessionExecutors = new SessionEventLoop[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
@@ -60,8 +97,13 @@ class SessionEventLoopGroup {
      * Route the command to the owning SessionEventLoop
      */
     public PostOffice.RouteResult routeCommand(String clientId, String actionDescription, Callable<Void> action) {
-        SessionCommand cmd = new SessionCommand(clientId, action);
+        return routeCommand(clientId, actionDescription, new SessionCommand(clientId, action));
+    }
 
+    /**
+     * Route an already created command to the SessionEventLoop owning the clientId.
+     */
+    PostOffice.RouteResult routeCommand(String clientId, String actionDescription, SessionCommand cmd) {
         if (clientId == null) {
             LOG.warn("Routing collision for action [{}]", actionDescription);
             return PostOffice.RouteResult.failed(null, "Seems awaiting new route feature completion, skipping.");
@@ -69,16 +111,11 @@ class SessionEventLoopGroup {
 
         final int targetQueueId = targetQueueOrdinal(cmd.getSessionId());
         LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
-        });
         if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
-            SessionEventLoop.executeTask(task);
+            SessionEventLoop.executeCommand(cmd);
             return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
         }
-        if (this.sessionQueues[targetQueueId].offer(task)) {
+        if (this.sessionQueues[targetQueueId].offer(cmd)) {
             return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
         } else {
             LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
@@ -86,6 +123,90 @@ class SessionEventLoopGroup {
         }
     }
 
+    /**
+     * Queue the command on the SessionEventLoop owning the clientId, also when called from that loop, so that the
+     * commands already queued run before it.
+     */
+    PostOffice.RouteResult routeCommandLater(String clientId, String actionDescription, Callable<Void> action) {
+        final SessionCommand cmd = new SessionCommand(clientId, action);
+        final int targetQueueId = targetQueueOrdinal(clientId);
+        LOG.debug("Queueing cmd [{}] for session [{}] to event processor {}", actionDescription, clientId, targetQueueId);
+        if (this.sessionQueues[targetQueueId].offer(cmd)) {
+            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+        } else {
+            LOG.warn("Session command queue {} is full queueing action {}", targetQueueId, actionDescription);
+            return PostOffice.RouteResult.failed(clientId);
+        }
+    }
+
+    /**
+     * If the session loop is overloaded, stop reading from the channel that is publishing to it, until
+     * the loop drains its commands queue under the low watermark. A channel publishing to several overloaded
+     * loops is held by each of them, and resumes reading once all of them are drained.
+     * */
+    void throttleIfOverloaded(int loopId, Channel publisher) {
+        final SessionCommandQueue queue = sessionQueues[loopId];
+        if (!queue.isOverloaded() || throttledChannels[loopId].contains(publisher)) {
+            return;
+        }
+        // counted before it's tracked by the loop, so that the drain of the loop always finds it counted
+        hold(publisher);
+        if (!throttledChannels[loopId].add(publisher)) {
+            // already held by this loop
+            release(publisher);
+            return;
+        }
+        LOG.debug("Session loop {} is overloaded, stop reading from {}", loopId, publisher);
+        if (!queue.isOverloaded()) {
+            // drained in the meantime, could have missed the channel
+            resumeThrottledChannels(loopId);
+        }
+    }
+
+    void throttleIfOverloaded(String targetClientId, Channel publisher) {
+        throttleIfOverloaded(targetQueueOrdinal(targetClientId), publisher);
+    }
+
+    private void resumeThrottledChannels(int loopId) {
+        final Set<Channel> throttled = throttledChannels[loopId];
+        for (Channel channel : throttled) {
+            // removed only by one of the concurrent drains
+            if (throttled.remove(channel)) {
+                LOG.debug("Session loop {} drained, release {}", loopId, channel);
+                release(channel);
+            }
+        }
+    }
+
+    // the read state is changed with the count locked, so that a concurrent hold and release apply it in order
+    private void hold(Channel channel) {
+        throttlingLoops.compute(channel, (ch, loops) -> {
+            if (loops == null) {
+                ch.config().setAutoRead(false);
+                return 1;
+            }
+            return loops + 1;
+        });
+    }
+
+    private void release(Channel channel) {
+        throttlingLoops.compute(channel, (ch, loops) -> {
+            if (loops == null || loops == 1) {
+                LOG.debug("No session loop holds {}, resume reading", ch);
+                ch.config().setAutoRead(true);
+                return null;
+            }
+            return loops - 1;
+        });
+    }
+
+    /**
+     * @return the number of commands waiting to be executed by the session loop.
+     * */
+    int queueDepth(int loopId) {
+        return sessionQueues[loopId].size();
+    }
+
     public void terminate() {
         for (SessionEventLoop processor : sessionExecutors) {
             processor.interrupt();
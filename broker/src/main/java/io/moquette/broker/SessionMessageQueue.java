@@ -1,5 +1,7 @@
 package io.moquette.broker;
 
+import java.util.List;
+
 /**
  * Queue definition used by the Session class.
  * Due to the fact that Session's code is executed in a single thread, because the
@@ -14,6 +16,13 @@ public interface SessionMessageQueue<T> {
      * */
     T dequeue();
 
+    /**
+     * Dequeue up to max messages, updating the tail of the queue once for all of them.
+     *
+     * @return the dequeued messages, empty if queue is empty.
+     * */
+    List<T> dequeue(int max);
+
     boolean isEmpty();
 
     /**
@@ -33,6 +33,7 @@ import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
@@ -72,9 +73,18 @@ public class SessionRegistry {
         final boolean retained;
         final Instant messageExpiry;
         final MqttProperties.MqttProperty[] mqttProperties;
+        // optional, set when the message is fanned-out to many subscribers
+        private final SharedPublishEncoding sharedEncoding;
 
         public PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
                                 Instant messageExpiry, MqttProperties.MqttProperty... mqttProperties) {
+            this(topic, publishingQos, payload, retained, messageExpiry, null, mqttProperties);
+        }
+
+        PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
+                         Instant messageExpiry, SharedPublishEncoding sharedEncoding,
+                         MqttProperties.MqttProperty... mqttProperties) {
+            this.sharedEncoding = sharedEncoding;
             this.topic = topic;
             this.publishingQos = publishingQos;
             this.payload = payload;
@@ -109,6 +119,24 @@ public class SessionRegistry {
             return mqttProperties;
         }
 
+        SharedPublishEncoding sharedEncoding() {
+            return sharedEncoding;
+        }
+
+        /**
+         * @return true if the message is a copy of a PUBLISH fanned-out to many subscribers.
+         * */
+        public boolean isFannedOut() {
+            return sharedEncoding != null;
+        }
+
+        /**
+         * @return true if both messages are copies, for different subscribers, of the same fanned-out PUBLISH.
+         * */
+        public boolean sameFanOut(PublishedMessage other) {
+            return sharedEncoding != null && sharedEncoding == other.sharedEncoding;
+        }
+
         public boolean isExpired() {
             return messageExpiry != Instant.MAX && Instant.now().isAfter(messageExpiry);
         }
@@ -124,10 +152,11 @@ public class SessionRegistry {
             final int indexOfExpiry = findPublicationExpiryProperty(mqttProperties);
             MqttProperties.IntegerProperty updatedProperty = new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), (int) remainingSeconds);
 
-            // update existing property
+            // update existing property on a copy, the array is shared with the other subscribers of the message
             if (indexOfExpiry != -1) {
-                mqttProperties[indexOfExpiry] = updatedProperty;
-                return mqttProperties;
+                MqttProperties.MqttProperty[] newProperties = mqttProperties.clone();
+                newProperties[indexOfExpiry] = updatedProperty;
+                return newProperties;
             }
 
             // insert a new property
@@ -550,6 +579,17 @@ public class SessionRegistry {
         return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort()));
     }
 
+    boolean isQueuesGroupCommit() {
+        return queueRepository.isGroupCommit();
+    }
+
+    /**
+     * @return a future completed when the messages enqueued in the sessions queues before this call are on disk.
+     * */
+    CompletableFuture<Void> commitQueues() {
+        return queueRepository.commit();
+    }
+
     /**
      * Close all resources related to session management
      */
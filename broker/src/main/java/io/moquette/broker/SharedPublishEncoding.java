@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of a PUBLISH fanned-out to many subscribers, the fixed header, topic and properties are encoded
+ * once for each distinct combination of QoS, retain flag, properties and protocol level, and then shared by all
+ * the subscribers. Each subscriber writes a composite buffer made of slices of the shared header, its own packet
+ * id and the shared payload, so that the MqttEncoder doesn't encode and copy the message again.
+ *
+ * The properties are compared by identity, the subscribers that receive the same properties array share the
+ * encoding.
+ *
+ * It's used by a single session loop during the fan-out of a message and has to be released once done, the
+ * buffers already written keep their own references. The shared parts are allocated from the allocator of the
+ * channel of the first subscriber that needs them.
+ * */
+final class SharedPublishEncoding {
+
+    // bounds the encodings kept for a message, over it the subscribers fall back to the MqttEncoder
+    private static final int MAX_VARIANTS = 8;
+
+    private static final class Variant {
+        private final MqttQoS qos;
+        private final boolean retained;
+        private final boolean mqtt5;
+        private final MqttProperties.MqttProperty[] properties;
+        // fixed header, remaining length and topic name
+        private final ByteBuf prefix;
+        // properties length and properties, empty for MQTT 3
+        private final ByteBuf suffix;
+
+        Variant(MqttQoS qos, boolean retained, boolean mqtt5, MqttProperties.MqttProperty[] properties,
+                ByteBuf prefix, ByteBuf suffix) {
+            this.qos = qos;
+            this.retained = retained;
+            this.mqtt5 = mqtt5;
+            this.properties = properties;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        boolean matches(MqttQoS qos, boolean retained, boolean mqtt5, MqttProperties.MqttProperty[] properties) {
+            return this.qos == qos && this.retained == retained && this.mqtt5 == mqtt5
+                && this.properties == properties;
+        }
+
+        void release() {
+            prefix.release();
+            suffix.release();
+        }
+    }
+
+    private final String topicName;
+    private final ByteBuf payload;
+    private final List<Variant> variants = new ArrayList<>(2);
+    private boolean released;
+
+    SharedPublishEncoding(Topic topic, ByteBuf payload) {
+        this.topicName = topic.toString();
+        this.payload = payload;
+    }
+
+    /**
+     * @return the complete PUBLISH packet, or null if it can't be encoded from the shared parts, in which case the
+     * caller has to send it as a MqttPublishMessage.
+     * */
+    ByteBuf encode(MqttQoS qos, boolean retained, MqttProperties.MqttProperty[] properties, int packetId,
+                   boolean mqtt5, ByteBufAllocator alloc) {
+        if (released) {
+            return null;
+        }
+        final Variant variant = variantFor(qos, retained, mqtt5, properties, alloc);
+        if (variant == null) {
+            return null;
+        }
+        final CompositeByteBuf packet = alloc.compositeDirectBuffer(4);
+        packet.addComponent(true, variant.prefix.retainedSlice());
+        if (qos != MqttQoS.AT_MOST_ONCE) {
+            packet.addComponent(true, alloc.buffer(2).writeShort(packetId));
+        }
+        if (variant.suffix.isReadable()) {
+            packet.addComponent(true, variant.suffix.retainedSlice());
+        }
+        packet.addComponent(true, payload.retainedDuplicate());
+        return packet;
+    }
+
+    private Variant variantFor(MqttQoS qos, boolean retained, boolean mqtt5,
+                               MqttProperties.MqttProperty[] properties, ByteBufAllocator alloc) {
+        for (Variant variant : variants) {
+            if (variant.matches(qos, retained, mqtt5, properties)) {
+                return variant;
+            }
+        }
+        if (variants.size() >= MAX_VARIANTS) {
+            return null;
+        }
+        final ByteBuf suffix;
+        if (mqtt5) {
+            suffix = encodeProperties(properties, alloc);
+            if (suffix == null) {
+                return null;
+            }
+        } else {
+            suffix = Unpooled.EMPTY_BUFFER;
+        }
+
+        final int topicNameBytes = ByteBufUtil.utf8Bytes(topicName);
+        final int remainingLength = 2 + topicNameBytes + (qos != MqttQoS.AT_MOST_ONCE ? 2 : 0)
+            + suffix.readableBytes() + payload.readableBytes();
+        final ByteBuf prefix = alloc.directBuffer(1 + 4 + 2 + topicNameBytes);
+        prefix.writeByte(fixedHeaderByte1(qos, retained));
+        writeVariableLengthInt(prefix, remainingLength);
+        prefix.writeShort(topicNameBytes);
+        ByteBufUtil.reserveAndWriteUtf8(prefix, topicName, topicNameBytes);
+
+        final Variant variant = new Variant(qos, retained, mqtt5, properties, prefix, suffix);
+        variants.add(variant);
+        return variant;
+    }
+
+    private static int fixedHeaderByte1(MqttQoS qos, boolean retained) {
+        int ret = MqttMessageType.PUBLISH.value() << 4;
+        ret |= qos.value() << 1;
+        if (retained) {
+            ret |= 0x01;
+        }
+        return ret;
+    }
+
+    /**
+     * Encode the properties a PUBLISH can carry, prefixed by their length.
+     *
+     * @return null if any property is not expected in a PUBLISH.
+     * */
+    private static ByteBuf encodeProperties(MqttProperties.MqttProperty[] properties, ByteBufAllocator alloc) {
+        final ByteBuf propertiesBuf = alloc.heapBuffer();
+        for (MqttProperties.MqttProperty property : properties) {
+            if (!encodeProperty(propertiesBuf, property)) {
+                propertiesBuf.release();
+                return null;
+            }
+        }
+        final ByteBuf encoded = alloc.directBuffer(4 + propertiesBuf.readableBytes());
+        writeVariableLengthInt(encoded, propertiesBuf.readableBytes());
+        encoded.writeBytes(propertiesBuf);
+        propertiesBuf.release();
+        return encoded;
+    }
+
+    private static boolean encodeProperty(ByteBuf buf, MqttProperties.MqttProperty property) {
+        final int propertyId = property.propertyId();
+        switch (MqttProperties.MqttPropertyType.valueOf(propertyId)) {
+            case PAYLOAD_FORMAT_INDICATOR:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeByte(((MqttProperties.IntegerProperty) property).value());
+                return true;
+            case TOPIC_ALIAS:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeShort(((MqttProperties.IntegerProperty) property).value());
+                return true;
+            case PUBLICATION_EXPIRY_INTERVAL:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeInt(((MqttProperties.IntegerProperty) property).value());
+                return true;
+            case SUBSCRIPTION_IDENTIFIER:
+                writeVariableLengthInt(buf, propertyId);
+                writeVariableLengthInt(buf, ((MqttProperties.IntegerProperty) property).value());
+                return true;
+            case CONTENT_TYPE:
+            case RESPONSE_TOPIC:
+                writeVariableLengthInt(buf, propertyId);
+                writeUTF8String(buf, ((MqttProperties.StringProperty) property).value());
+                return true;
+            case CORRELATION_DATA:
+                writeVariableLengthInt(buf, propertyId);
+                final byte[] data = ((MqttProperties.BinaryProperty) property).value();
+                buf.writeShort(data.length);
+                buf.writeBytes(data);
+                return true;
+            case USER_PROPERTY:
+                if (property instanceof MqttProperties.UserProperty) {
+                    writeUserProperty(buf, ((MqttProperties.UserProperty) property).value());
+                    return true;
+                }
+                for (MqttProperties.StringPair pair : ((MqttProperties.UserProperties) property).value()) {
+                    writeUserProperty(buf, pair);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void writeUserProperty(ByteBuf buf, MqttProperties.StringPair pair) {
+        writeVariableLengthInt(buf, MqttProperties.MqttPropertyType.USER_PROPERTY.value());
+        writeUTF8String(buf, pair.key);
+        writeUTF8String(buf, pair.value);
+    }
+
+    private static void writeUTF8String(ByteBuf buf, String s) {
+        final int utf8Bytes = ByteBufUtil.utf8Bytes(s);
+        buf.writeShort(utf8Bytes);
+        ByteBufUtil.reserveAndWriteUtf8(buf, s, utf8Bytes);
+    }
+
+    private static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (Variant variant : variants) {
+            variant.release();
+        }
+        variants.clear();
+    }
+}
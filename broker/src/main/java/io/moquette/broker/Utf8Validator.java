@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Validation of UTF-8 content as defined by RFC 3629, it rejects the overlong forms, the encoded surrogates
+ * and the code points over U+10FFFF, as the JDK UTF-8 decoder does.
+ *
+ * The bytes are checked in place, without copies and without allocating a decoder, runs of ASCII characters
+ * are skipped eight bytes at a time.
+ */
+public final class Utf8Validator {
+
+    private static final long ASCII_MASK = 0x8080808080808080L;
+
+    /**
+     * Validate the readable bytes of the buffer, reader and writer indexes are not modified.
+     *
+     * @param buffer the content to validate.
+     * @return true if the readable bytes are well formed UTF-8.
+     */
+    public static boolean isValid(ByteBuf buffer) {
+        final int end = buffer.writerIndex();
+        int index = buffer.readerIndex();
+        while (index < end) {
+            if (end - index >= 8 && (buffer.getLong(index) & ASCII_MASK) == 0) {
+                index += 8;
+                continue;
+            }
+            final int b0 = buffer.getByte(index) & 0xFF;
+            if (b0 < 0x80) {
+                index++;
+            } else if (b0 < 0xC2) {
+                // continuation byte without a leading one, or overlong 2 bytes form
+                return false;
+            } else if (b0 < 0xE0) {
+                if (end - index < 2 || !isContinuation(buffer.getByte(index + 1))) {
+                    return false;
+                }
+                index += 2;
+            } else if (b0 < 0xF0) {
+                if (end - index < 3) {
+                    return false;
+                }
+                final int b1 = buffer.getByte(index + 1) & 0xFF;
+                if (b0 == 0xE0 && b1 < 0xA0) {
+                    // overlong
+                    return false;
+                }
+                if (b0 == 0xED && b1 > 0x9F) {
+                    // UTF-16 surrogates
+                    return false;
+                }
+                if (!isContinuation((byte) b1) || !isContinuation(buffer.getByte(index + 2))) {
+                    return false;
+                }
+                index += 3;
+            } else if (b0 < 0xF5) {
+                if (end - index < 4) {
+                    return false;
+                }
+                final int b1 = buffer.getByte(index + 1) & 0xFF;
+                if (b0 == 0xF0 && b1 < 0x90) {
+                    // overlong
+                    return false;
+                }
+                if (b0 == 0xF4 && b1 > 0x8F) {
+                    // over U+10FFFF
+                    return false;
+                }
+                if (!isContinuation((byte) b1) || !isContinuation(buffer.getByte(index + 2))
+                    || !isContinuation(buffer.getByte(index + 3))) {
+                    return false;
+                }
+                index += 4;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Validate a string decoded from the wire, it can be encoded in UTF-8 only if every surrogate is part of a
+     * well formed pair.
+     *
+     * @param s the content to validate.
+     * @return true if the string is well formed UTF-16, and so can be represented as UTF-8.
+     */
+    public static boolean isValid(CharSequence s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (!Character.isSurrogate(c)) {
+                continue;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private Utf8Validator() {
+    }
+}
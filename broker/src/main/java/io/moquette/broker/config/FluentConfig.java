@@ -19,6 +19,7 @@ import static io.moquette.broker.config.IConfig.DEFAULT_NETTY_MAX_BYTES_IN_MESSA
 import static io.moquette.broker.config.IConfig.ENABLE_TELEMETRY_NAME;
 import static io.moquette.broker.config.IConfig.PEER_CERTIFICATE_AS_USERNAME;
 import static io.moquette.broker.config.IConfig.PORT_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.PUBLISH_READ_BATCHING;
 import static io.moquette.broker.config.IConfig.JKS_PATH_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.KEY_MANAGER_PASSWORD_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.KEY_STORE_PASSWORD_PROPERTY_NAME;
@@ -30,7 +31,13 @@ import static io.moquette.broker.config.IConfig.PERSISTENT_CLIENT_EXPIRATION_PRO
 import static io.moquette.broker.config.IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.RECEIVE_MAXIMUM;
 import static io.moquette.broker.config.IConfig.HOST_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.SESSION_LOOPS;
+import static io.moquette.broker.config.IConfig.SESSION_QUEUE_HIGH_WATERMARK;
+import static io.moquette.broker.config.IConfig.SESSION_QUEUE_LOW_WATERMARK;
 import static io.moquette.broker.config.IConfig.SESSION_QUEUE_SIZE;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE;
+import static io.moquette.broker.config.IConfig.RETAINED_MAX_PER_SUBSCRIBE;
+import static io.moquette.broker.config.IConfig.RETAINED_MAX_DIRECT_BYTES;
 import static io.moquette.broker.config.IConfig.SSL_PORT_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.SSL_PROVIDER;
 import static io.moquette.broker.config.IConfig.WEB_SOCKET_PORT_PROPERTY_NAME;
@@ -194,6 +201,37 @@ public class FluentConfig {
         return this;
     }
 
+    public FluentConfig sessionLoops(int value) {
+        configAccumulator.put(SESSION_LOOPS, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig sessionQueueWatermarks(int high, int low) {
+        configAccumulator.put(SESSION_QUEUE_HIGH_WATERMARK, Integer.valueOf(high).toString());
+        configAccumulator.put(SESSION_QUEUE_LOW_WATERMARK, Integer.valueOf(low).toString());
+        return this;
+    }
+
+    public FluentConfig enablePublishReadBatching() {
+        configAccumulator.put(PUBLISH_READ_BATCHING, "true");
+        return this;
+    }
+
+    public FluentConfig subscriptionsMatchCacheSize(int value) {
+        configAccumulator.put(SUBSCRIPTIONS_MATCH_CACHE_SIZE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig retainedMaxPerSubscribe(int value) {
+        configAccumulator.put(RETAINED_MAX_PER_SUBSCRIBE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig retainedMaxDirectBytes(long value) {
+        configAccumulator.put(RETAINED_MAX_DIRECT_BYTES, Long.valueOf(value).toString());
+        return this;
+    }
+
     public FluentConfig disableTelemetry() {
         configAccumulator.put(ENABLE_TELEMETRY_NAME, "false");
         return this;
@@ -50,6 +50,13 @@ public abstract class IConfig {
     public static final String ACL_FILE_PROPERTY_NAME = "acl_file";
     public static final String PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME = "persistent_client_expiration";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
+    public static final String SESSION_LOOPS = "session_loops";
+    public static final String SESSION_QUEUE_HIGH_WATERMARK = "session_queue_high_watermark";
+    public static final String SESSION_QUEUE_LOW_WATERMARK = "session_queue_low_watermark";
+    public static final String PUBLISH_READ_BATCHING = "publish_read_batching";
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions_match_cache_size";
+    public static final String RETAINED_MAX_PER_SUBSCRIBE = "retained_max_per_subscribe";
+    public static final String RETAINED_MAX_DIRECT_BYTES = "retained_max_direct_bytes";
     public static final String ENABLE_TELEMETRY_NAME = "telemetry_enabled";
     public static final String RECEIVE_MAXIMUM = "receive_maximum";
     /**
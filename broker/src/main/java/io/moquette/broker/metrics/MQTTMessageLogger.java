@@ -40,6 +40,13 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(MQTTMessageLogger.class);
 
+    /**
+     * @return true if the PUBLISH messages are logged, then the channel must write them as MqttMessage to be seen.
+     * */
+    public static boolean logsPublishes() {
+        return LOG.isDebugEnabled();
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) throws Exception {
         updateFishtags(ctx);
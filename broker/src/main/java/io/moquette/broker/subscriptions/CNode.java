@@ -22,42 +22,44 @@ import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Random;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 class CNode implements Comparable<CNode> {
 
     public static final Random SECURE_RANDOM = new SecureRandom();
     private final Token token;
-    private final List<INode> children;
-    // Sorted list of subscriptions. The sort is necessary for fast access, instead of linear scan.
-    private List<Subscription> subscriptions;
+    // shared with the copies of this node until one of them adds or removes a child
+    private ChildrenIndex children;
+    private boolean childrenShared;
+    // Persistent set of subscriptions keyed by clientId, copies of this node share it.
+    private SubscriptionSet subscriptions;
     // the list of SharedSubscription is sorted. The sort is necessary for fast access, instead of linear scan.
+    // The lists are shared between copies of the node, so they are never mutated in place but replaced.
     private Map<ShareName, List<SharedSubscription>> sharedSubscriptions;
 
     CNode(Token token) {
-        this.children = new ArrayList<>();
-        this.subscriptions = new ArrayList<>();
+        this.children = new ChildrenIndex();
+        this.subscriptions = SubscriptionSet.EMPTY;
         this.sharedSubscriptions = new HashMap<>();
         this.token = token;
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, List<Subscription> subscriptions, Map<ShareName,
+    private CNode(Token token, ChildrenIndex children, SubscriptionSet subscriptions, Map<ShareName,
                   List<SharedSubscription>> sharedSubscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
-        this.subscriptions = new ArrayList<>(subscriptions);
+        this.subscriptions = subscriptions;
         this.sharedSubscriptions = new HashMap<>(sharedSubscriptions);
-        this.children = new ArrayList<>(children);
+        this.children = children;
+        this.childrenShared = true;
     }
 
     public Token getToken() {
@@ -65,20 +67,18 @@ class CNode implements Comparable<CNode> {
     }
 
     List<INode> allChildren() {
-        return new ArrayList<>(this.children);
+        return children.toList();
     }
 
-    Optional<INode> childOf(Token token) {
-        int idx = findIndexForToken(token);
-        if (idx < 0) {
-            return Optional.empty();
-        }
-        return Optional.of(children.get(idx));
+    boolean hasChildren() {
+        return !children.isEmpty();
     }
 
-    private int findIndexForToken(Token token) {
-        final INode tempTokenNode = new INode(new CNode(token));
-        return Collections.binarySearch(children, tempTokenNode, (INode node, INode tokenHolder) -> node.mainNode().token.compareTo(tokenHolder.mainNode().token));
+    /**
+     * @return the child node for the token or null if not present.
+     * */
+    INode childOf(Token token) {
+        return children.get(token);
     }
 
     @Override
@@ -91,35 +91,56 @@ class CNode implements Comparable<CNode> {
     }
 
     public void add(INode newINode) {
-        int idx = findIndexForToken(newINode.mainNode().token);
-        if (idx < 0) {
-            children.add(-1 - idx, newINode);
-        } else {
-            children.add(idx, newINode);
-        }
+        ownedChildren().put(newINode.mainNode().token, newINode);
     }
 
     public INode remove(INode node) {
-        int idx = findIndexForToken(node.mainNode().token);
-        return this.children.remove(idx);
+        return ownedChildren().remove(node.mainNode().token);
+    }
+
+    private ChildrenIndex ownedChildren() {
+        if (childrenShared) {
+            children = children.copy();
+            childrenShared = false;
+        }
+        return children;
     }
 
     private List<Subscription> sharedSubscriptions() {
         List<Subscription> selectedSubscriptions = new ArrayList<>(sharedSubscriptions.size());
         // for each sharedSubscription related to a ShareName, select one subscription
-        for (Map.Entry<ShareName, List<SharedSubscription>> subsForName : sharedSubscriptions.entrySet()) {
-            List<SharedSubscription> list = subsForName.getValue();
-            final String shareName = subsForName.getKey().getShareName();
-            // select a subscription randomly
-            int randIdx = SECURE_RANDOM.nextInt(list.size());
-            SharedSubscription sub = list.get(randIdx);
-            selectedSubscriptions.add(sub.createSubscription());
+        for (List<SharedSubscription> list : sharedSubscriptions.values()) {
+            selectedSubscriptions.add(selectOne(list));
         }
         return selectedSubscriptions;
     }
 
+    /**
+     * Select randomly one subscription of the group of a share name.
+     * */
+    static Subscription selectOne(List<SharedSubscription> sharedGroup) {
+        int randIdx = SECURE_RANDOM.nextInt(sharedGroup.size());
+        return sharedGroup.get(randIdx).createSubscription();
+    }
+
+    /**
+     * Add the groups of shared subscriptions, one for each share name. The lists are never modified
+     * once published in a node, so they can be retained by the caller.
+     * */
+    void addSharedGroupsTo(Collection<List<SharedSubscription>> target) {
+        target.addAll(sharedSubscriptions.values());
+    }
+
+    void addSubscriptionsTo(Collection<Subscription> target) {
+        subscriptions.addTo(target);
+    }
+
     List<Subscription> subscriptions() {
-        return subscriptions;
+        return subscriptions.toList();
+    }
+
+    int subscriptionsCount() {
+        return subscriptions.size();
     }
 
     // Mutating operation
@@ -127,7 +148,7 @@ class CNode implements Comparable<CNode> {
         if (request.isShared()) {
             final ShareName shareName = request.getSharedName();
             final SharedSubscription newSubscription = request.sharedSubscription();
-            List<SharedSubscription> subscriptions = sharedSubscriptions.getOrDefault(shareName, new ArrayList<>());
+            List<SharedSubscription> subscriptions = new ArrayList<>(sharedSubscriptions.getOrDefault(shareName, Collections.emptyList()));
             // if a shared subscription already exists for same clientId and share name, overwrite, because
             // the client could desire to update it.
             int idx = Collections.binarySearch(subscriptions, newSubscription);
@@ -141,16 +162,9 @@ class CNode implements Comparable<CNode> {
             final Subscription newSubscription = request.subscription();
 
             // if already contains one with same topic and same client, keep that with higher QoS
-            int idx = Collections.binarySearch(subscriptions, newSubscription);
-            if (idx >= 0) {
-                // Subscription already exists
-                final Subscription existing = subscriptions.get(idx);
-                if (needsToUpdateExistingSubscription(newSubscription, existing)) {
-                    subscriptions.set(idx, newSubscription);
-                }
-            } else {
-                // insert into the expected index so that the sorting is maintained
-                this.subscriptions.add(-1 - idx, newSubscription);
+            final Subscription existing = subscriptions.get(newSubscription.clientId);
+            if (existing == null || needsToUpdateExistingSubscription(newSubscription, existing)) {
+                subscriptions = subscriptions.put(newSubscription);
             }
         }
         return this;
@@ -177,12 +191,7 @@ class CNode implements Comparable<CNode> {
      *   AND at least one subscription is actually present for that clientId
      * */
     boolean containsOnly(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (!sub.clientId.equals(clientId)) {
-                return false;
-            }
-        }
-        return !this.subscriptions.isEmpty();
+        return subscriptions.size() == 1 && subscriptions.contains(clientId);
     }
 
     public boolean contains(String clientId) {
@@ -207,12 +216,7 @@ class CNode implements Comparable<CNode> {
 
     //TODO this is equivalent to negate(containsOnly(clientId))
     private boolean containsSubscriptionsForClient(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                return true;
-            }
-        }
-        return false;
+        return subscriptions.contains(clientId);
     }
 
     void removeSubscriptionsFor(UnsubscribeRequest request) {
@@ -220,10 +224,9 @@ class CNode implements Comparable<CNode> {
 
         if (request.isShared()) {
             List<SharedSubscription> subscriptionsForName = this.sharedSubscriptions.get(request.getSharedName());
-            List<SharedSubscription> toRemove = subscriptionsForName.stream()
-                .filter(sub -> sub.clientId().equals(clientId))
+            subscriptionsForName = subscriptionsForName.stream()
+                .filter(sub -> !sub.clientId().equals(clientId))
                 .collect(Collectors.toList());
-            subscriptionsForName.removeAll(toRemove);
 
             if (subscriptionsForName.isEmpty()) {
                 this.sharedSubscriptions.remove(request.getSharedName());
@@ -231,15 +234,7 @@ class CNode implements Comparable<CNode> {
                 this.sharedSubscriptions.replace(request.getSharedName(), subscriptionsForName);
             }
         } else {
-            // collect Subscription instances to remove
-            Set<Subscription> toRemove = new HashSet<>();
-            for (Subscription sub : this.subscriptions) {
-                if (sub.clientId.equals(clientId)) {
-                    toRemove.add(sub);
-                }
-            }
-            // effectively remove the instances
-            this.subscriptions.removeAll(toRemove);
+            this.subscriptions = this.subscriptions.remove(clientId);
         }
     }
 
@@ -251,7 +246,7 @@ class CNode implements Comparable<CNode> {
     public List<Subscription> sharedAndNonSharedSubscriptions() {
         List<Subscription> shared = sharedSubscriptions();
         List<Subscription> returnedSubscriptions = new ArrayList<>(subscriptions.size() + shared.size());
-        returnedSubscriptions.addAll(subscriptions);
+        subscriptions.addTo(returnedSubscriptions);
         returnedSubscriptions.addAll(shared);
         return returnedSubscriptions;
     }
@@ -3,10 +3,10 @@ package io.moquette.broker.subscriptions;
 import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 public class CTrie {
@@ -184,17 +184,16 @@ public class CTrie {
 
     Optional<CNode> lookup(Topic topic) {
         INode inode = this.root;
-        Token token = topic.headToken();
-        while (!topic.isEmpty()) {
-            Optional<INode> child = inode.mainNode().childOf(token);
-            if (!child.isPresent()) {
+        int level = 0;
+        while (level < topic.size()) {
+            INode child = inode.mainNode().childOf(topic.tokenAt(level));
+            if (child == null) {
                 break;
             }
-            topic = topic.exceptHeadToken();
-            inode = child.get();
-            token = topic.headToken();
+            level++;
+            inode = child;
         }
-        if (inode == null || !topic.isEmpty()) {
+        if (inode == null || level < topic.size()) {
             return Optional.empty();
         }
         return Optional.of(inode.mainNode());
@@ -204,12 +203,17 @@ public class CTrie {
         MATCH, GODEEP, STOP
     }
 
+    /**
+     * The root node doesn't consume any token of the topic, so a node at depth d (d > 0) is matched
+     * against the token at level d - 1 of the topic, while its children are matched against level d.
+     * */
     private NavigationAction evaluate(Topic topicName, CNode cnode, int depth) {
         // depth 0 is the root node of all the topics, so for topic filter
         // monitor/sensor we have <root> -> monitor -> sensor
         final boolean isFirstLevel = depth == 1;
+        final int level = depth == 0 ? 0 : depth - 1;
         if (Token.MULTI.equals(cnode.getToken())) {
-            Token token = topicName.headToken();
+            Token token = topicName.tokenAt(level);
             if (token != null && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 // if reserved token is the first of the topicName
@@ -217,10 +221,10 @@ public class CTrie {
             }
             return NavigationAction.MATCH;
         }
-        if (topicName.isEmpty()) {
+        if (level >= topicName.size()) {
             return NavigationAction.STOP;
         }
-        final Token token = topicName.headToken();
+        final Token token = topicName.tokenAt(level);
         if (Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken())) {
             if (Token.SINGLE.equals(cnode.getToken()) && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
@@ -232,43 +236,52 @@ public class CTrie {
     }
 
     public List<Subscription> recursiveMatch(Topic topicName) {
-        return recursiveMatch(topicName, this.root, 0);
+        final List<Subscription> subscriptions = new ArrayList<>();
+        recursiveMatch(topicName, cnode -> subscriptions.addAll(cnode.sharedAndNonSharedSubscriptions()));
+        return subscriptions;
     }
 
-    private List<Subscription> recursiveMatch(Topic topicName, INode inode, int depth) {
+    /**
+     * Visit all the nodes that contain subscriptions matching the topic name.
+     * */
+    void recursiveMatch(Topic topicName, Consumer<CNode> matchedNodeVisitor) {
+        recursiveMatch(topicName, this.root, 0, matchedNodeVisitor);
+    }
+
+    private void recursiveMatch(Topic topicName, INode inode, int depth, Consumer<CNode> matchedNodeVisitor) {
         CNode cnode = inode.mainNode();
         if (cnode instanceof TNode) {
-            return Collections.emptyList();
+            return;
         }
         NavigationAction action = evaluate(topicName, cnode, depth);
         if (action == NavigationAction.MATCH) {
-            return cnode.sharedAndNonSharedSubscriptions();
+            matchedNodeVisitor.accept(cnode);
+            return;
         }
         if (action == NavigationAction.STOP) {
-            return Collections.emptyList();
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topicName : topicName.exceptHeadToken();
-        List<Subscription> subscriptions = new ArrayList<>();
+        // level of the topic the children has to match
+        final int remainingLevel = depth;
 
         // We should only consider the maximum three children children of
         // type #, + or exact match
-        Optional<INode> subInode = cnode.childOf(Token.MULTI);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        INode subInode = cnode.childOf(Token.MULTI);
+        if (subInode != null) {
+            recursiveMatch(topicName, subInode, depth + 1, matchedNodeVisitor);
         }
         subInode = cnode.childOf(Token.SINGLE);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        if (subInode != null) {
+            recursiveMatch(topicName, subInode, depth + 1, matchedNodeVisitor);
         }
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.sharedAndNonSharedSubscriptions());
+        if (remainingLevel >= topicName.size()) {
+            matchedNodeVisitor.accept(cnode);
         } else {
-            subInode = cnode.childOf(remainingTopic.headToken());
-            if (subInode.isPresent()) {
-                subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+            subInode = cnode.childOf(topicName.tokenAt(remainingLevel));
+            if (subInode != null) {
+                recursiveMatch(topicName, subInode, depth + 1, matchedNodeVisitor);
             }
         }
-        return subscriptions;
     }
 
     /**
@@ -277,25 +290,24 @@ public class CTrie {
     public boolean addToTree(SubscriptionRequest request) {
         Action res;
         do {
-            res = insert(request.getTopicFilter(), this.root, request);
+            res = insert(request.getTopicFilter(), 0, this.root, request);
         } while (res == Action.REPEAT);
         return res == Action.OK_NEW;
     }
 
-    private Action insert(Topic topic, final INode inode, SubscriptionRequest request) {
-        final Token token = topic.headToken();
+    private Action insert(Topic topic, int level, final INode inode, SubscriptionRequest request) {
         final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return insert(remainingTopic, nextInode.get(), request);
+        final boolean topicConsumed = level >= topic.size();
+        if (!topicConsumed) {
+            INode nextInode = cnode.childOf(topic.tokenAt(level));
+            if (nextInode != null) {
+                return insert(topic, level + 1, nextInode, request);
             }
         }
-        if (topic.isEmpty()) {
+        if (topicConsumed) {
             return insertSubscription(inode, cnode, request);
         } else {
-            return createNodeAndInsertSubscription(topic, inode, cnode, request);
+            return createNodeAndInsertSubscription(topic, level, inode, cnode, request);
         }
     }
 
@@ -310,8 +322,9 @@ public class CTrie {
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
-    private Action createNodeAndInsertSubscription(Topic topic, INode inode, CNode cnode, SubscriptionRequest request) {
-        final INode newInode = createPathRec(topic, request);
+    private Action createNodeAndInsertSubscription(Topic topic, int level, INode inode, CNode cnode,
+                                                   SubscriptionRequest request) {
+        final INode newInode = createPathRec(topic, level, request);
         final CNode updatedCnode;
         if (cnode instanceof TNode) {
             updatedCnode = new CNode(cnode.getToken());
@@ -323,15 +336,14 @@ public class CTrie {
         return inode.compareAndSet(cnode, updatedCnode) ? Action.OK_NEW : Action.REPEAT;
     }
 
-    private INode createPathRec(Topic topic, SubscriptionRequest request) {
-        Topic remainingTopic = topic.exceptHeadToken();
-        if (!remainingTopic.isEmpty()) {
-            INode inode = createPathRec(remainingTopic, request);
-            CNode cnode = new CNode(topic.headToken());
+    private INode createPathRec(Topic topic, int level, SubscriptionRequest request) {
+        if (level + 1 < topic.size()) {
+            INode inode = createPathRec(topic, level + 1, request);
+            CNode cnode = new CNode(topic.tokenAt(level));
             cnode.add(inode);
             return new INode(cnode);
         } else {
-            return createLeafNodes(topic.headToken(), request);
+            return createLeafNodes(topic.tokenAt(level), request);
         }
     }
 
@@ -345,31 +357,30 @@ public class CTrie {
     public void removeFromTree(UnsubscribeRequest request) {
         Action res;
         do {
-            res = remove(request.getClientId(), request.getTopicFilter(), this.root, NO_PARENT, request);
+            res = remove(request.getClientId(), request.getTopicFilter(), 0, this.root, NO_PARENT, request);
         } while (res == Action.REPEAT);
     }
 
-    private Action remove(String clientId, Topic topic, INode inode, INode iParent, UnsubscribeRequest request) {
-        Token token = topic.headToken();
+    private Action remove(String clientId, Topic topic, int level, INode inode, INode iParent, UnsubscribeRequest request) {
         final CNode cnode = inode.mainNode();
-        if (!topic.isEmpty()) {
-            Optional<INode> nextInode = cnode.childOf(token);
-            if (nextInode.isPresent()) {
-                Topic remainingTopic = topic.exceptHeadToken();
-                return remove(clientId, remainingTopic, nextInode.get(), inode, request);
+        final boolean topicConsumed = level >= topic.size();
+        if (!topicConsumed) {
+            INode nextInode = cnode.childOf(topic.tokenAt(level));
+            if (nextInode != null) {
+                return remove(clientId, topic, level + 1, nextInode, inode, request);
             }
         }
         if (cnode instanceof TNode) {
             return cleanTomb(inode, iParent);
         }
-        if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
+        if (cnode.containsOnly(clientId) && topicConsumed && !cnode.hasChildren()) {
             // last client to leave this node, AND there are no downstream children, remove via TNode tomb
             if (inode == this.root) {
                 return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
             }
             TNode tnode = new TNode(cnode.getToken());
             return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
-        } else if (cnode.contains(clientId) && topic.isEmpty()) {
+        } else if (cnode.contains(clientId) && topicConsumed) {
             CNode updatedCnode = cnode.copy();
             updatedCnode.removeSubscriptionsFor(request);
             return inode.compareAndSet(cnode, updatedCnode) ? Action.OK : Action.REPEAT;
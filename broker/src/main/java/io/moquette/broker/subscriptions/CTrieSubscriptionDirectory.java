@@ -40,10 +40,28 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private final ConcurrentMap<String, List<SharedSubscription>> clientSharedSubscriptions = new ConcurrentHashMap<>();
 
+    // null when the cache of match results is disabled
+    private final MatchResultCache matchCache;
+
+    public CTrieSubscriptionDirectory() {
+        this(0);
+    }
+
+    /**
+     * @param matchCacheSize max number of topic names for which the matching subscriptions are cached,
+     *                       0 disables the cache.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this.matchCache = matchCacheSize > 0 ? new MatchResultCache(matchCacheSize) : null;
+    }
+
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
         ctrie = new CTrie();
+        if (matchCache != null) {
+            matchCache.clear();
+        }
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -84,13 +102,30 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     @Override
     public List<Subscription> matchQosSharpening(Topic topicName) {
-        final List<Subscription> subscriptions = matchWithoutQosSharpening(topicName);
+        if (matchCache == null) {
+            final List<Subscription> subscriptions = matchWithoutQosSharpening(topicName);
 
-        // for each session select the subscription with higher QoS
-        return selectSubscriptionsWithHigherQoSForEachSession(subscriptions);
+            // for each session select the subscription with higher QoS
+            return selectSubscriptionsWithHigherQoSForEachSession(subscriptions);
+        }
+        final String topic = topicName.toString();
+        MatchResultCache.Entry cached = matchCache.get(topic);
+        if (cached == null) {
+            final long generation = matchCache.generation();
+            final List<Subscription> subscriptions = new ArrayList<>();
+            final List<List<SharedSubscription>> sharedGroups = new ArrayList<>();
+            ctrie.recursiveMatch(topicName, cnode -> {
+                cnode.addSubscriptionsTo(subscriptions);
+                cnode.addSharedGroupsTo(sharedGroups);
+            });
+            cached = new MatchResultCache.Entry(topicName, selectSubscriptionsWithHigherQoSForEachSession(subscriptions),
+                sharedGroups);
+            matchCache.put(topic, cached, generation);
+        }
+        return cached.resolve();
     }
 
-    private static List<Subscription> selectSubscriptionsWithHigherQoSForEachSession(List<Subscription> subscriptions) {
+    static List<Subscription> selectSubscriptionsWithHigherQoSForEachSession(List<Subscription> subscriptions) {
         // for each session select the subscription with higher QoS
         Map<String, Subscription> subsGroupedByClient = new HashMap<>();
         for (Subscription sub : subscriptions) {
@@ -120,6 +155,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private boolean addNonSharedSubscriptionRequest(SubscriptionRequest subRequest) {
         boolean notExistingSubscription = ctrie.addToTree(subRequest);
+        invalidateMatches(subRequest.getTopicFilter());
         subscriptionsRepository.addNewSubscription(subRequest.subscription());
         return notExistingSubscription;
     }
@@ -132,6 +168,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private void addSharedSubscriptionRequest(SubscriptionRequest shareSubRequest) {
         ctrie.addToTree(shareSubRequest);
+        invalidateMatches(shareSubRequest.getTopicFilter());
 
         if (shareSubRequest.hasSubscriptionIdentifier()) {
             subscriptionsRepository.addNewSharedSubscription(shareSubRequest.getClientId(), shareSubRequest.getSharedName(),
@@ -162,6 +199,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     public void removeSubscription(Topic topic, String clientID) {
         UnsubscribeRequest request = UnsubscribeRequest.buildNonShared(clientID, topic);
         ctrie.removeFromTree(request);
+        invalidateMatches(topic);
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
@@ -169,6 +207,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     public void removeSharedSubscription(ShareName name, Topic topicFilter, String clientId) {
         UnsubscribeRequest request = UnsubscribeRequest.buildShared(name, topicFilter, clientId);
         ctrie.removeFromTree(request);
+        invalidateMatches(topicFilter);
 
         subscriptionsRepository.removeSharedSubscription(clientId, name, topicFilter);
 
@@ -180,6 +219,30 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
         }
     }
 
+    private void invalidateMatches(Topic topicFilter) {
+        if (matchCache != null) {
+            matchCache.invalidate(topicFilter);
+        }
+    }
+
+    /**
+     * @return number of lookups served by the cache of match results, 0 if the cache is disabled.
+     * */
+    public long matchCacheHits() {
+        return matchCache == null ? 0 : matchCache.hits();
+    }
+
+    /**
+     * @return number of lookups that walked the tree because not cached, 0 if the cache is disabled.
+     * */
+    public long matchCacheMisses() {
+        return matchCache == null ? 0 : matchCache.misses();
+    }
+
+    MatchResultCache matchCache() {
+        return matchCache;
+    }
+
     @Override
     public int size() {
         return ctrie.size();
@@ -198,6 +261,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             for (SharedSubscription subscription : sessionSharedSubscriptions) {
                 UnsubscribeRequest request = UnsubscribeRequest.buildShared(subscription.getShareName(), subscription.topicFilter(), clientId);
                 ctrie.removeFromTree(request);
+                invalidateMatches(subscription.topicFilter());
             }
         }
 
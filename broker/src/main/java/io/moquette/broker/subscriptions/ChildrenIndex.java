@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Children of a CNode indexed by their token, the layout adapts to the fan-out of the node.
+ * Few children are kept in an inline array scanned linearly, once it overflows the children are
+ * moved in an open addressing hash table with linear probing.
+ * Lookups never allocate. Like the CNode that owns it, an instance is mutated only before it's
+ * published, every update of the children works on a copy.
+ * */
+final class ChildrenIndex {
+
+    static final int INLINE_CAPACITY = 8;
+    private static final int INITIAL_HASHED_CAPACITY = 32;
+
+    private Token[] tokens;
+    private INode[] nodes;
+    private int size;
+    private boolean hashed;
+
+    ChildrenIndex() {
+        this.tokens = new Token[INLINE_CAPACITY];
+        this.nodes = new INode[INLINE_CAPACITY];
+    }
+
+    private ChildrenIndex(ChildrenIndex other) {
+        this.tokens = other.tokens.clone();
+        this.nodes = other.nodes.clone();
+        this.size = other.size;
+        this.hashed = other.hashed;
+    }
+
+    ChildrenIndex copy() {
+        return new ChildrenIndex(this);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the child with the given token or null if not present.
+     * */
+    INode get(Token token) {
+        if (!hashed) {
+            for (int i = 0; i < size; i++) {
+                if (tokens[i].equals(token)) {
+                    return nodes[i];
+                }
+            }
+            return null;
+        }
+        final int mask = tokens.length - 1;
+        for (int idx = slotFor(token, mask); tokens[idx] != null; idx = (idx + 1) & mask) {
+            if (tokens[idx].equals(token)) {
+                return nodes[idx];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Insert the child, replacing any other child with the same token.
+     * */
+    void put(Token token, INode node) {
+        if (!hashed) {
+            for (int i = 0; i < size; i++) {
+                if (tokens[i].equals(token)) {
+                    nodes[i] = node;
+                    return;
+                }
+            }
+            if (size < INLINE_CAPACITY) {
+                tokens[size] = token;
+                nodes[size] = node;
+                size++;
+                return;
+            }
+            rehash(INITIAL_HASHED_CAPACITY);
+        } else if ((size + 1) * 4 > tokens.length * 3) {
+            // keep load factor under 0.75, probing sequences remain short
+            rehash(tokens.length * 2);
+        }
+        if (hashedPut(token, node)) {
+            size++;
+        }
+    }
+
+    /**
+     * @return true if a new slot was used, false if an existing child was replaced.
+     * */
+    private boolean hashedPut(Token token, INode node) {
+        final int mask = tokens.length - 1;
+        int idx = slotFor(token, mask);
+        while (tokens[idx] != null) {
+            if (tokens[idx].equals(token)) {
+                nodes[idx] = node;
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+        tokens[idx] = token;
+        nodes[idx] = node;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        final Token[] oldTokens = tokens;
+        final INode[] oldNodes = nodes;
+        final boolean wasHashed = hashed;
+        final int oldSize = size;
+        tokens = new Token[capacity];
+        nodes = new INode[capacity];
+        hashed = true;
+        if (wasHashed) {
+            for (int i = 0; i < oldTokens.length; i++) {
+                if (oldTokens[i] != null) {
+                    hashedPut(oldTokens[i], oldNodes[i]);
+                }
+            }
+        } else {
+            for (int i = 0; i < oldSize; i++) {
+                hashedPut(oldTokens[i], oldNodes[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the removed child or null if no child has the token.
+     * */
+    INode remove(Token token) {
+        if (!hashed) {
+            for (int i = 0; i < size; i++) {
+                if (tokens[i].equals(token)) {
+                    final INode removed = nodes[i];
+                    final int moved = size - i - 1;
+                    System.arraycopy(tokens, i + 1, tokens, i, moved);
+                    System.arraycopy(nodes, i + 1, nodes, i, moved);
+                    size--;
+                    tokens[size] = null;
+                    nodes[size] = null;
+                    return removed;
+                }
+            }
+            return null;
+        }
+        final int mask = tokens.length - 1;
+        int idx = slotFor(token, mask);
+        while (tokens[idx] != null && !tokens[idx].equals(token)) {
+            idx = (idx + 1) & mask;
+        }
+        if (tokens[idx] == null) {
+            return null;
+        }
+        final INode removed = nodes[idx];
+        size--;
+        // backward shift the entries of the same probing sequence, so that no tombstones are needed
+        int hole = idx;
+        int next = (hole + 1) & mask;
+        while (tokens[next] != null) {
+            final int home = slotFor(tokens[next], mask);
+            // move the entry if its home slot is not cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                tokens[hole] = tokens[next];
+                nodes[hole] = nodes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tokens[hole] = null;
+        nodes[hole] = null;
+        return removed;
+    }
+
+    List<INode> toList() {
+        final List<INode> res = new ArrayList<>(size);
+        if (!hashed) {
+            for (int i = 0; i < size; i++) {
+                res.add(nodes[i]);
+            }
+        } else {
+            for (INode node : nodes) {
+                if (node != null) {
+                    res.add(node);
+                }
+            }
+        }
+        return res;
+    }
+
+    private static int slotFor(Token token, int mask) {
+        final int h = token.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
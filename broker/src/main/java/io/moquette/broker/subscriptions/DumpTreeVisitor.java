@@ -17,6 +17,8 @@ package io.moquette.broker.subscriptions;
 
 import io.netty.util.internal.StringUtil;
 
+import java.util.List;
+
 class DumpTreeVisitor implements CTrie.IVisitor<String> {
 
     String s = "";
@@ -31,18 +33,19 @@ class DumpTreeVisitor implements CTrie.IVisitor<String> {
         if (node instanceof TNode) {
             return "TNode";
         }
-        if (node.subscriptions().isEmpty()) {
+        final List<Subscription> subscriptions = node.subscriptions();
+        if (subscriptions.isEmpty()) {
             return StringUtil.EMPTY_STRING;
         }
         StringBuilder subScriptionsStr = new StringBuilder(" ~~[");
         int counter = 0;
-        for (Subscription couple : node.subscriptions()) {
+        for (Subscription couple : subscriptions) {
             subScriptionsStr
                 .append("{filter=").append(couple.topicFilter).append(", ")
                 .append("option=").append(couple.option()).append(", ")
                 .append("client='").append(couple.clientId).append("'}");
             counter++;
-            if (counter < node.subscriptions().size()) {
+            if (counter < subscriptions.size()) {
                 subScriptionsStr.append(";");
             }
         }
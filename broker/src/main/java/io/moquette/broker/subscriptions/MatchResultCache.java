@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the subscriptions matching a published topic name.
+ * The entries are split in stripes, each one an access ordered LinkedHashMap guarded by its own lock.
+ *
+ * The cached entry keeps the non shared subscriptions already QoS sharpened, and the groups of
+ * shared subscriptions, so that a fresh random pick is done on every lookup.
+ *
+ * Every change of the subscriptions tree has to be notified with {@link #invalidate(Topic)} after the
+ * tree is updated, it bumps the generation, so that an entry computed concurrently with the change
+ * is never stored, and then drops the entries that the topic filter matches.
+ * */
+final class MatchResultCache {
+
+    private static final int MAX_STRIPES = 16;
+
+    static final class Entry {
+        private final Topic topic;
+        private final Subscription[] subscriptions;
+        private final List<List<SharedSubscription>> sharedGroups;
+
+        Entry(Topic topic, List<Subscription> sharpenedSubscriptions, List<List<SharedSubscription>> sharedGroups) {
+            this.topic = topic;
+            this.subscriptions = sharpenedSubscriptions.toArray(new Subscription[0]);
+            this.sharedGroups = sharedGroups.isEmpty() ? Collections.emptyList() : new ArrayList<>(sharedGroups);
+        }
+
+        /**
+         * @return a new list with the matching subscriptions, selecting one subscriber for each shared group.
+         * */
+        List<Subscription> resolve() {
+            if (sharedGroups.isEmpty()) {
+                return new ArrayList<>(Arrays.asList(subscriptions));
+            }
+            final List<Subscription> selected = new ArrayList<>(subscriptions.length + sharedGroups.size());
+            selected.addAll(Arrays.asList(subscriptions));
+            for (List<SharedSubscription> group : sharedGroups) {
+                selected.add(CNode.selectOne(group));
+            }
+            return CTrieSubscriptionDirectory.selectSubscriptionsWithHigherQoSForEachSession(selected);
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<String, Entry> {
+
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Stripe(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    MatchResultCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was: " + maxEntries);
+        }
+        final int stripesCount = Math.min(MAX_STRIPES, maxEntries);
+        final int stripeCapacity = (maxEntries + stripesCount - 1) / stripesCount;
+        this.stripes = new Stripe[stripesCount];
+        for (int i = 0; i < stripesCount; i++) {
+            stripes[i] = new Stripe(stripeCapacity, evictions);
+        }
+    }
+
+    private Stripe stripeFor(String topic) {
+        final int h = topic.hashCode();
+        return stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(String, Entry, long)} once the match is computed.
+     * */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cached entry or null if not present.
+     * */
+    Entry get(String topic) {
+        final Stripe stripe = stripeFor(topic);
+        final Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(topic);
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Store the entry only if the subscriptions tree hasn't changed since the match was started.
+     * */
+    void put(String topic, Entry entry, long startGeneration) {
+        final Stripe stripe = stripeFor(topic);
+        synchronized (stripe) {
+            if (generation.get() == startGeneration) {
+                stripe.put(topic, entry);
+            }
+        }
+    }
+
+    /**
+     * Drop all the entries the topic filter could match, to be invoked after every subscribe or unsubscribe.
+     * A filter without wildcards matches only the topic with same name, while a wildcard filter needs a
+     * scan of the cached topics.
+     * */
+    void invalidate(Topic topicFilter) {
+        generation.incrementAndGet();
+        if (!topicFilter.containsWildcards()) {
+            final String topic = topicFilter.toString();
+            final Stripe stripe = stripeFor(topic);
+            synchronized (stripe) {
+                if (stripe.remove(topic) != null) {
+                    invalidations.increment();
+                }
+            }
+            return;
+        }
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                final Iterator<Entry> it = stripe.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().topic.match(topicFilter)) {
+                        it.remove();
+                        invalidations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long invalidations() {
+        return invalidations.sum();
+    }
+}
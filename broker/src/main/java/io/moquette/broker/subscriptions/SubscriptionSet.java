@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Persistent (immutable) set of non shared subscriptions of a CNode, keyed by client id.
+ * It's an hash array mapped trie, so every update returns a new version which shares all the
+ * untouched branches with the previous one. Copying a CNode is then O(1) and adding or removing
+ * a client is O(log32 N), while readers traverse it without any lock.
+ * */
+final class SubscriptionSet {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // after this shift the hash has no more bits to distinguish the keys
+    private static final int MAX_SHIFT = 30;
+
+    static final SubscriptionSet EMPTY = new SubscriptionSet(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private SubscriptionSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Subscription get(String clientId) {
+        return root.find(clientId, hash(clientId), 0);
+    }
+
+    boolean contains(String clientId) {
+        return get(clientId) != null;
+    }
+
+    /**
+     * @return a new set containing the subscription, replacing the one of the same client if present.
+     * */
+    SubscriptionSet put(Subscription subscription) {
+        final int[] sizeChange = new int[1];
+        final Node newRoot = root.put(subscription, hash(subscription.clientId), 0, sizeChange);
+        return new SubscriptionSet(newRoot, size + sizeChange[0]);
+    }
+
+    /**
+     * @return a new set without the subscription of the client, or this if not present.
+     * */
+    SubscriptionSet remove(String clientId) {
+        if (!contains(clientId)) {
+            return this;
+        }
+        final Node newRoot = root.remove(clientId, hash(clientId), 0);
+        return new SubscriptionSet(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+    }
+
+    void forEach(Consumer<Subscription> action) {
+        root.forEach(action);
+    }
+
+    void addTo(Collection<Subscription> target) {
+        root.forEach(target::add);
+    }
+
+    List<Subscription> toList() {
+        final List<Subscription> res = new ArrayList<>(size);
+        addTo(res);
+        return res;
+    }
+
+    private static int hash(String clientId) {
+        final int h = clientId.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private abstract static class Node {
+
+        abstract Subscription find(String clientId, int hash, int shift);
+
+        abstract Node put(Subscription subscription, int hash, int shift, int[] sizeChange);
+
+        /**
+         * @return the updated node or null if it remains empty.
+         * */
+        abstract Node remove(String clientId, int hash, int shift);
+
+        abstract void forEach(Consumer<Subscription> action);
+    }
+
+    /**
+     * Node with up to 32 slots, each one contains a Subscription or a child Node. Only the
+     * used slots are allocated, the bitmap tracks which one is used.
+     * */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Subscription find(String clientId, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).find(clientId, hash, shift + BITS);
+            }
+            final Subscription sub = (Subscription) slot;
+            return sub.clientId.equals(clientId) ? sub : null;
+        }
+
+        @Override
+        Node put(Subscription subscription, int hash, int shift, int[] sizeChange) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                final Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = subscription;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                sizeChange[0] = 1;
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            final Object slot = slots[idx];
+            final Object updated;
+            if (slot instanceof Node) {
+                updated = ((Node) slot).put(subscription, hash, shift + BITS, sizeChange);
+            } else {
+                final Subscription existing = (Subscription) slot;
+                if (existing.clientId.equals(subscription.clientId)) {
+                    updated = subscription;
+                } else {
+                    sizeChange[0] = 1;
+                    updated = merge(existing, hash(existing.clientId), subscription, hash, shift + BITS);
+                }
+            }
+            final Object[] newSlots = slots.clone();
+            newSlots[idx] = updated;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        private static Node merge(Subscription first, int firstHash, Subscription second, int secondHash, int shift) {
+            if (shift > MAX_SHIFT) {
+                return new CollisionNode(new Subscription[] {first, second});
+            }
+            final int firstBit = bit(firstHash, shift);
+            final int secondBit = bit(secondHash, shift);
+            if (firstBit == secondBit) {
+                final Node child = merge(first, firstHash, second, secondHash, shift + BITS);
+                return new BitmapNode(firstBit, new Object[] {child});
+            }
+            // slots are ordered by bit position
+            final Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0 ?
+                new Object[] {first, second} : new Object[] {second, first};
+            return new BitmapNode(firstBit | secondBit, slots);
+        }
+
+        @Override
+        Node remove(String clientId, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            final Object slot = slots[idx];
+            if (slot instanceof Node) {
+                final Node updated = ((Node) slot).remove(clientId, hash, shift + BITS);
+                if (updated != null) {
+                    final Object[] newSlots = slots.clone();
+                    newSlots[idx] = collapse(updated);
+                    return new BitmapNode(bitmap, newSlots);
+                }
+            }
+            // remove the slot
+            if (slots.length == 1) {
+                return null;
+            }
+            final Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        /**
+         * A child node left with just one subscription is replaced by the subscription itself.
+         * */
+        private static Object collapse(Node node) {
+            if (node instanceof BitmapNode) {
+                final BitmapNode bitmapNode = (BitmapNode) node;
+                if (bitmapNode.slots.length == 1 && bitmapNode.slots[0] instanceof Subscription) {
+                    return bitmapNode.slots[0];
+                }
+            } else {
+                final CollisionNode collisionNode = (CollisionNode) node;
+                if (collisionNode.subscriptions.length == 1) {
+                    return collisionNode.subscriptions[0];
+                }
+            }
+            return node;
+        }
+
+        @Override
+        void forEach(Consumer<Subscription> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Node) {
+                    ((Node) slot).forEach(action);
+                } else {
+                    action.accept((Subscription) slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaf node for client ids with the same hash.
+     * */
+    private static final class CollisionNode extends Node {
+
+        private final Subscription[] subscriptions;
+
+        CollisionNode(Subscription[] subscriptions) {
+            this.subscriptions = subscriptions;
+        }
+
+        private int indexOf(String clientId) {
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i].clientId.equals(clientId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Subscription find(String clientId, int hash, int shift) {
+            final int idx = indexOf(clientId);
+            return idx < 0 ? null : subscriptions[idx];
+        }
+
+        @Override
+        Node put(Subscription subscription, int hash, int shift, int[] sizeChange) {
+            final int idx = indexOf(subscription.clientId);
+            final Subscription[] updated;
+            if (idx < 0) {
+                updated = new Subscription[subscriptions.length + 1];
+                System.arraycopy(subscriptions, 0, updated, 0, subscriptions.length);
+                updated[subscriptions.length] = subscription;
+                sizeChange[0] = 1;
+            } else {
+                updated = subscriptions.clone();
+                updated[idx] = subscription;
+            }
+            return new CollisionNode(updated);
+        }
+
+        @Override
+        Node remove(String clientId, int hash, int shift) {
+            final int idx = indexOf(clientId);
+            if (subscriptions.length == 1) {
+                return null;
+            }
+            final Subscription[] updated = new Subscription[subscriptions.length - 1];
+            System.arraycopy(subscriptions, 0, updated, 0, idx);
+            System.arraycopy(subscriptions, idx + 1, updated, idx, subscriptions.length - idx - 1);
+            return new CollisionNode(updated);
+        }
+
+        @Override
+        void forEach(Consumer<Subscription> action) {
+            for (Subscription sub : subscriptions) {
+                action.accept(sub);
+            }
+        }
+    }
+}
@@ -15,8 +15,6 @@
  */
 package io.moquette.broker.subscriptions;
 
-import java.util.Optional;
-
 class TNode extends CNode {
 
     public TNode(Token token) {
@@ -24,7 +22,7 @@ class TNode extends CNode {
     }
 
     @Override
-    Optional<INode> childOf(Token token) {
+    INode childOf(Token token) {
         throw new IllegalStateException("Can't be invoked on TNode");
     }
 
@@ -16,26 +16,35 @@
 
 package io.moquette.broker.subscriptions;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Immutable topic name or topic filter. The string is split into tokens only once, on first access,
+ * sub topics created by {@link #exceptHeadToken()} share the same token array moving only the offset.
+ * */
 public class Topic implements Serializable, Comparable<Topic> {
 
     private static final Logger LOG = LoggerFactory.getLogger(Topic.class);
 
     private static final long serialVersionUID = 2438799283749822L;
 
-    private final String topic;
+    // null for sub topics, it's lazily rebuilt from the tokens when requested
+    private String topic;
 
-    private transient List<Token> tokens;
+    private transient Token[] tokens;
+
+    // index of the first token of this topic inside the tokens array
+    private transient int offset;
 
     private transient boolean valid;
 
@@ -54,14 +63,25 @@ public class Topic implements Serializable, Comparable<Topic> {
     }
 
     Topic(List<Token> tokens) {
+        this(tokens.toArray(new Token[0]), 0);
+    }
+
+    private Topic(Token[] tokens, int offset) {
         this.tokens = tokens;
-        List<String> strTokens = tokens.stream().map(Token::toString).collect(Collectors.toList());
-        this.topic = String.join("/", strTokens);
+        this.offset = offset;
         this.valid = true;
     }
 
     public List<Token> getTokens() {
-        if (tokens == null) {
+        final Token[] parsed = tokenArray();
+        if (parsed == null) {
+            return null;
+        }
+        return Collections.unmodifiableList(Arrays.asList(parsed).subList(offset, parsed.length));
+    }
+
+    private Token[] tokenArray() {
+        if (tokens == null && topic != null) {
             try {
                 tokens = parseTopic(topic);
                 valid = true;
@@ -70,94 +90,124 @@ public class Topic implements Serializable, Comparable<Topic> {
                 LOG.error("Error parsing the topic: {}, message: {}", topic, e.getMessage());
             }
         }
-
         return tokens;
     }
 
-    private List<Token> parseTopic(String topic) throws ParseException {
-        if (topic.length() == 0) {
+    /**
+     * @return the number of levels of this topic, 0 if it's empty or not valid.
+     * */
+    int size() {
+        final Token[] parsed = tokenArray();
+        return parsed == null ? 0 : parsed.length - offset;
+    }
+
+    /**
+     * Access the token at the index level without allocating any intermediate sub topic.
+     *
+     * @param index the level of the token, starting from 0.
+     * @return the token at the requested level or null if the topic hasn't such level.
+     * */
+    Token tokenAt(int index) {
+        if (index < 0 || index >= size()) {
+            return null;
+        }
+        return tokens[offset + index];
+    }
+
+    private static Token[] parseTopic(String topic) throws ParseException {
+        final int length = topic.length();
+        if (length == 0) {
             throw new ParseException("Bad format of topic, topic MUST be at least 1 character [MQTT-4.7.3-1] and " +
                                      "this was empty", 0);
         }
-        List<Token> res = new ArrayList<>();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
+        int levels = 1;
+        for (int i = 0; i < length; i++) {
+            if (topic.charAt(i) == '/') {
+                levels++;
+            }
         }
 
-        if (topic.endsWith("/")) {
-            // Add a fictious space
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
+        final Token[] res = new Token[levels];
+        int start = 0;
+        for (int i = 0; i < levels; i++) {
+            int end = topic.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            res[i] = parseToken(topic, start, end, i, i == levels - 1);
+            start = end + 1;
         }
+        return res;
+    }
 
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-                // if (i != 0) {
-                // throw new ParseException("Bad format of topic, expetec topic name between
-                // separators", i);
-                // }
-                res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
-                // check that multi is the last symbol
-                if (i != splitted.length - 1) {
-                    throw new ParseException(
+    private static Token parseToken(String topic, int start, int end, int level, boolean last) throws ParseException {
+        if (start == end) {
+            return Token.EMPTY;
+        }
+        if (end - start == 1) {
+            switch (topic.charAt(start)) {
+                case '#':
+                    // check that multi is the last symbol
+                    if (!last) {
+                        throw new ParseException(
                             "Bad format of topic, the multi symbol (#) has to be the last one after a separator",
-                            i);
-                }
-                res.add(Token.MULTI);
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
-                res.add(Token.SINGLE);
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else {
-                res.add(new Token(s));
+                            level);
+                    }
+                    return Token.MULTI;
+                case '+':
+                    return Token.SINGLE;
+                default:
+                    break;
             }
         }
-
-        return res;
+        for (int i = start; i < end; i++) {
+            final char c = topic.charAt(i);
+            if (c == '#' || c == '+') {
+                throw new ParseException("Bad format of topic, invalid subtopic name: " + topic.substring(start, end),
+                                         level);
+            }
+        }
+        return new Token(topic.substring(start, end));
     }
 
     public Token headToken() {
-        final List<Token> tokens = getTokens();
-        if (tokens.isEmpty()) {
-            //TODO UGLY use Optional
-            return null;
-        }
-        return tokens.get(0);
+        //TODO UGLY use Optional
+        return tokenAt(0);
     }
 
     public boolean isEmpty() {
-        final List<Token> tokens = getTokens();
-        return tokens == null || tokens.isEmpty();
+        return size() == 0;
     }
 
     /**
-     * @return a new Topic corresponding to this less than the head token
+     * @return a new Topic corresponding to this less than the head token, sharing the parsed tokens.
      * */
     public Topic exceptHeadToken() {
-        List<Token> tokens = getTokens();
-        if (tokens.isEmpty()) {
+        final Token[] parsed = tokenArray();
+        if (parsed == null || isEmpty()) {
             return new Topic(Collections.emptyList());
         }
-        List<Token> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        return new Topic(parsed, offset + 1);
     }
 
     public boolean isValid() {
-        if (tokens == null)
-            getTokens();
-
+        tokenArray();
         return valid;
     }
 
+    /**
+     * @return true if any level of this topic filter is a single or multi level wildcard.
+     * */
+    boolean containsWildcards() {
+        for (int i = 0; i < size(); i++) {
+            final Token token = tokenAt(i);
+            if (Token.MULTI.equals(token) || Token.SINGLE.equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Verify if the 2 topics matching respecting the rules of MQTT Appendix A
      *
@@ -165,18 +215,17 @@ public class Topic implements Serializable, Comparable<Topic> {
      *            the topic filter of the subscription
      * @return true if the two topics match.
      */
-    // TODO reimplement with iterators or with queues
     public boolean match(Topic subscriptionTopic) {
-        List<Token> msgTokens = getTokens();
-        List<Token> subscriptionTokens = subscriptionTopic.getTokens();
+        final int msgSize = size();
+        final int subscriptionSize = subscriptionTopic.size();
         int i = 0;
-        for (; i < subscriptionTokens.size(); i++) {
-            Token subToken = subscriptionTokens.get(i);
+        for (; i < subscriptionSize; i++) {
+            Token subToken = subscriptionTopic.tokenAt(i);
             if (!Token.MULTI.equals(subToken) && !Token.SINGLE.equals(subToken)) {
-                if (i >= msgTokens.size()) {
+                if (i >= msgSize) {
                     return false;
                 }
-                Token msgToken = msgTokens.get(i);
+                Token msgToken = tokenAt(i);
                 if (!msgToken.equals(subToken)) {
                     return false;
                 }
@@ -189,14 +238,30 @@ public class Topic implements Serializable, Comparable<Topic> {
 //                }
             }
         }
-        return i == msgTokens.size();
+        return i == msgSize;
     }
 
     @Override
     public String toString() {
+        if (topic == null) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = offset; i < tokens.length; i++) {
+                if (i > offset) {
+                    sb.append('/');
+                }
+                sb.append(tokens[i].name);
+            }
+            topic = sb.toString();
+        }
         return topic;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // sub topics have to materialize the string form before being serialized
+        toString();
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -207,16 +272,16 @@ public class Topic implements Serializable, Comparable<Topic> {
         }
         Topic other = (Topic) obj;
 
-        return Objects.equals(this.topic, other.topic);
+        return Objects.equals(this.toString(), other.toString());
     }
 
     @Override
     public int hashCode() {
-        return topic.hashCode();
+        return toString().hashCode();
     }
 
     @Override
     public int compareTo(Topic o) {
-        return topic.compareTo(o.topic);
+        return toString().compareTo(o.toString());
     }
 }
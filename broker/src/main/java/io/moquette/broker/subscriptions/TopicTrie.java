@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent set of topic names, kept as a tree of their tokens, so that the names matching a topic filter are
+ * found walking only the branches the filter can match, instead of matching every name.
+ *
+ * The lookups don't lock. A change locks only the nodes it modifies: every node is changed holding its lock, and
+ * a node left without names is detached from its parent, so that an add never attaches to a detached node.
+ * */
+public final class TopicTrie {
+
+    private static final class Node {
+        final ConcurrentMap<Token, Node> children = new ConcurrentHashMap<>();
+        // the name ending in this node, null if this is only an intermediate level
+        volatile Topic topic;
+        // guarded by the lock of this
+        boolean detached;
+    }
+
+    private final Node root = new Node();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param topic a topic name, without wildcards.
+     * @return false if the topic was already present.
+     * */
+    public boolean add(Topic topic) {
+        while (true) {
+            Node node = root;
+            final int levels = topic.size();
+            for (int i = 0; i < levels && node != null; i++) {
+                node = childOrCreate(node, topic.tokenAt(i));
+            }
+            if (node == null) {
+                // reached a detached node, retry
+                continue;
+            }
+            synchronized (node) {
+                if (node.detached) {
+                    continue;
+                }
+                if (node.topic != null) {
+                    return false;
+                }
+                node.topic = topic;
+            }
+            size.incrementAndGet();
+            return true;
+        }
+    }
+
+    // null if the parent was detached
+    private static Node childOrCreate(Node parent, Token token) {
+        final Node child = parent.children.get(token);
+        if (child != null) {
+            return child;
+        }
+        synchronized (parent) {
+            if (parent.detached) {
+                return null;
+            }
+            return parent.children.computeIfAbsent(token, k -> new Node());
+        }
+    }
+
+    /**
+     * @return false if the topic wasn't present.
+     * */
+    public boolean remove(Topic topic) {
+        final int levels = topic.size();
+        final Node[] path = new Node[levels + 1];
+        path[0] = root;
+        for (int i = 0; i < levels; i++) {
+            path[i + 1] = path[i].children.get(topic.tokenAt(i));
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+        final Node node = path[levels];
+        synchronized (node) {
+            if (node.detached || node.topic == null) {
+                return false;
+            }
+            node.topic = null;
+        }
+        size.decrementAndGet();
+
+        // detach the levels left empty, from the leaf up
+        for (int i = levels; i > 0; i--) {
+            final Node level = path[i];
+            synchronized (level) {
+                if (level.detached || level.topic != null || !level.children.isEmpty()) {
+                    return true;
+                }
+                level.detached = true;
+                path[i - 1].children.remove(topic.tokenAt(i - 1), level);
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(Topic topic) {
+        Node node = root;
+        for (int i = 0; i < topic.size() && node != null; i++) {
+            node = node.children.get(topic.tokenAt(i));
+        }
+        return node != null && node.topic != null;
+    }
+
+    /**
+     * @return the topic names matching the filter, with the same rules of {@link Topic#match(Topic)}.
+     * */
+    public List<Topic> match(Topic filter) {
+        final List<Topic> matching = new ArrayList<>();
+        matching(filter).forEachRemaining(matching::add);
+        return matching;
+    }
+
+    /**
+     * Lazy version of {@link #match(Topic)}: the tree is walked only as far as the iteration goes, so a caller that
+     * stops after the first names doesn't visit all the branches the filter matches.
+     * */
+    public Iterator<Topic> matching(Topic filter) {
+        return new MatchIterator(root, filter);
+    }
+
+    private static final class MatchIterator implements Iterator<Topic> {
+
+        private static final class Visit {
+            final Node node;
+            // level of the filter the node is matched against
+            final int level;
+
+            Visit(Node node, int level) {
+                this.node = node;
+                this.level = level;
+            }
+        }
+
+        private final Topic filter;
+        private final Deque<Visit> toVisit = new ArrayDeque<>();
+        private Topic next;
+
+        MatchIterator(Node root, Topic filter) {
+            this.filter = filter;
+            toVisit.push(new Visit(root, 0));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !toVisit.isEmpty()) {
+                next = visit(toVisit.pop());
+            }
+            return next != null;
+        }
+
+        @Override
+        public Topic next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Topic matched = next;
+            next = null;
+            return matched;
+        }
+
+        // schedules the children the filter can match, returns the topic of the node if it matches
+        private Topic visit(Visit visit) {
+            final Node node = visit.node;
+            if (visit.level == filter.size()) {
+                return node.topic;
+            }
+            final Token token = filter.tokenAt(visit.level);
+            if (Token.MULTI.equals(token)) {
+                // matches also the parent level, "a/#" matches "a", and all the levels below it
+                for (Node child : node.children.values()) {
+                    toVisit.push(new Visit(child, visit.level));
+                }
+                return node.topic;
+            }
+            if (Token.SINGLE.equals(token)) {
+                for (Node child : node.children.values()) {
+                    toVisit.push(new Visit(child, visit.level + 1));
+                }
+            } else {
+                final Node child = node.children.get(token);
+                if (child != null) {
+                    toVisit.push(new Visit(child, visit.level + 1));
+                }
+            }
+            return null;
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,198 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mappings of the page files shared by the allocator and the queues, so that every page is mapped once.
+ *
+ * Every segment opened on a page holds a reference to it, and the page stays mapped while it's referenced. The
+ * pages no more referenced are kept in least recently used order, and dropped when the mapped bytes exceed the
+ * maximum, or at the next trim if they aren't acquired again in the meantime. The referenced pages are never
+ * dropped, so the maximum can be exceeded when many pages are in use.
+ *
+ * A dropped page isn't explicitly unmapped, its mapping is released by the garbage collector once no segment
+ * points to it, so a segment used after its release, as a message view still read, remains valid.
+ * */
+final class PageCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageCache.class);
+
+    private static final class MappedPage {
+        final MappedByteBuffer buffer;
+        int references;
+        // acquired since the last trim
+        boolean touched = true;
+
+        MappedPage(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path pagesFolder;
+    private final int pageSize;
+    private final long maxMappedBytes;
+    // in access order, the least recently used first
+    private final LinkedHashMap<Integer, MappedPage> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxMappedBytes the mapped bytes over which the pages not referenced are dropped.
+     * */
+    PageCache(Path pagesFolder, int pageSize, long maxMappedBytes) {
+        this.pagesFolder = pagesFolder;
+        this.pageSize = pageSize;
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * Map the page, creating its file if it doesn't exist, or reuse the existing mapping, adding a reference to it.
+     * */
+    synchronized MappedByteBuffer acquire(int pageId) throws QueueException {
+        return acquire(pageId, true);
+    }
+
+    /**
+     * As {@link #acquire(int)}, for a page that must already exist.
+     *
+     * @throws QueueException if the file of the page doesn't exist.
+     * */
+    synchronized MappedByteBuffer acquireExisting(int pageId) throws QueueException {
+        return acquire(pageId, false);
+    }
+
+    // to be called holding the lock of this
+    private MappedByteBuffer acquire(int pageId, boolean create) throws QueueException {
+        MappedPage page = pages.get(pageId);
+        final boolean mapped = page == null;
+        if (mapped) {
+            page = new MappedPage(map(pageId, create));
+            pages.put(pageId, page);
+        }
+        page.references++;
+        page.touched = true;
+        if (mapped) {
+            evictOverLimit();
+        }
+        return page.buffer;
+    }
+
+    /**
+     * Remove a reference acquired on the page.
+     * */
+    synchronized void release(int pageId) {
+        final MappedPage page = pages.get(pageId);
+        if (page == null || page.references == 0) {
+            LOG.warn("Released page {} that isn't referenced", pageId);
+            return;
+        }
+        page.references--;
+        if (page.references == 0) {
+            evictOverLimit();
+        }
+    }
+
+    /**
+     * Drop the pages not referenced and not acquired since the previous trim.
+     * */
+    synchronized void trim() {
+        final Iterator<Map.Entry<Integer, MappedPage>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, MappedPage> entry = it.next();
+            final MappedPage page = entry.getValue();
+            if (page.references == 0 && !page.touched) {
+                LOG.debug("Dropping idle page {}", entry.getKey());
+                it.remove();
+            } else {
+                page.touched = false;
+            }
+        }
+    }
+
+    synchronized int references(int pageId) {
+        final MappedPage page = pages.get(pageId);
+        return page != null ? page.references : 0;
+    }
+
+    /**
+     * Drop the page and delete its file, the page must not be referenced.
+     * */
+    synchronized void delete(int pageId) throws QueueException {
+        final MappedPage page = pages.get(pageId);
+        if (page != null && page.references > 0) {
+            throw new IllegalStateException("Can't delete the page " + pageId + " still referenced");
+        }
+        pages.remove(pageId);
+        final Path pageFile = pageFile(pageId);
+        try {
+            Files.deleteIfExists(pageFile);
+        } catch (IOException ex) {
+            throw new QueueException("Can't delete the page file " + pageFile, ex);
+        }
+        LOG.info("Deleted page file {}", pageFile);
+    }
+
+    synchronized int mappedPages() {
+        return pages.size();
+    }
+
+    synchronized void close() {
+        pages.clear();
+    }
+
+    // to be called holding the lock of this
+    private void evictOverLimit() {
+        final Iterator<Map.Entry<Integer, MappedPage>> it = pages.entrySet().iterator();
+        while ((long) pages.size() * pageSize > maxMappedBytes && it.hasNext()) {
+            final Map.Entry<Integer, MappedPage> entry = it.next();
+            if (entry.getValue().references == 0) {
+                LOG.debug("Dropping least recently used page {}", entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    private Path pageFile(int pageId) {
+        return pagesFolder.resolve(String.format("%d.page", pageId));
+    }
+
+    private MappedByteBuffer map(int pageId, boolean create) throws QueueException {
+        final Path pageFile = pageFile(pageId);
+        LOG.debug("Mapping page {} from file {}", pageId, pageFile);
+        boolean createNew = false;
+        if (!Files.exists(pageFile)) {
+            if (!create) {
+                throw new QueueException("Can't find file for page file" + pageFile);
+            }
+            try {
+                pageFile.toFile().createNewFile();
+                createNew = true;
+            } catch (IOException ex) {
+                throw new QueueException("Reached an IO error creating the page file " + pageFile, ex);
+            }
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mappedPage = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
+            // DBG
+            if (createNew && QueuePool.queueDebug) {
+                for (int i = 0; i < pageSize; i++) {
+                    mappedPage.put(i, (byte) 'C');
+                }
+            }
+            // DBG
+            return mappedPage;
+        } catch (IOException e) {
+            throw new QueueException("Can't open page file " + pageFile, e);
+        }
+    }
+}
@@ -1,14 +1,6 @@
 package io.moquette.broker.unsafequeues;
 
-import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,83 +16,36 @@ class PagedFilesAllocator implements SegmentAllocator {
 
     interface AllocationListener {
 
-        void segmentedCreated(String name, Segment segment);
+        void segmentedCreated(String name, Segment segment) throws QueueException;
     }
 
-    private final Path pagesFolder;
+    private final PageCache pageCache;
     private final int pageSize;
     private final int segmentSize;
     private int lastSegmentAllocated;
     private int lastPage;
+    // referenced till the allocation moves to the next page
     private MappedByteBuffer currentPage;
-    private FileChannel currentPageFile;
 
-    private final Map<Integer, WeakReference<MappedByteBuffer>> pageCache = new HashMap<>();
-
-    PagedFilesAllocator(Path pagesFolder, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated) throws QueueException {
+    PagedFilesAllocator(PageCache pageCache, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated) throws QueueException {
         if (pageSize % segmentSize != 0) {
             throw new IllegalArgumentException("The pageSize must be an exact multiple of the segmentSize");
         }
-        this.pagesFolder = pagesFolder;
+        this.pageCache = pageCache;
         this.pageSize = pageSize;
         this.segmentSize = segmentSize;
         this.lastPage = lastPage;
         this.lastSegmentAllocated = lastSegmentAllocated;
-        this.currentPage = openOrRetrievePageFile(this.lastPage);
-    }
-
-    private MappedByteBuffer openOrRetrievePageFile(int pageId) throws QueueException {
-        MappedByteBuffer pageBuffer = null;
-        WeakReference<MappedByteBuffer> pageBufferRef = pageCache.get(pageId);
-        if (pageBufferRef != null) {
-            pageBuffer = pageBufferRef.get();
-        }
-        if (pageBuffer == null) {
-            pageBuffer = openRWPageFile(pageId);
-            pageBufferRef = new WeakReference<>(pageBuffer);
-            WeakReference<MappedByteBuffer> old = pageCache.put(pageId, pageBufferRef);
-            //Sanity check, should not happen...
-            if (old != null && old.get() != null) {
-                LOG.warn("Page file {} opened even though it already is open!", pageId);
-            }
-        }
-        return pageBuffer;
-    }
-
-    private MappedByteBuffer openRWPageFile(int pageId) throws QueueException {
-        final Path pageFile = pagesFolder.resolve(String.format("%d.page", pageId));
-        LOG.debug("Opening page {} from file {}", pageId, pageFile);
-        boolean createNew = false;
-        if (!Files.exists(pageFile)) {
-            try {
-                pageFile.toFile().createNewFile();
-                createNew = true;
-            } catch (IOException ex) {
-                throw new QueueException("Reached an IO error during the bootstrapping of empty 'checkpoint.properties'", ex);
-            }
-        }
-
-        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            this.currentPageFile = fileChannel;
-            final MappedByteBuffer mappedPage = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
-            // DBG
-            if (createNew && QueuePool.queueDebug) {
-                for (int i = 0; i < pageSize; i++) {
-                    mappedPage.put(i, (byte) 'C');
-                }
-            }
-            // DBG
-            return mappedPage;
-        } catch (IOException e) {
-            throw new QueueException("Can't open page file " + pageFile, e);
-        }
+        this.currentPage = pageCache.acquire(this.lastPage);
     }
 
     @Override
     public Segment nextFreeSegment() throws QueueException {
         if (currentPageIsExhausted()) {
+            final MappedByteBuffer nextPage = pageCache.acquire(lastPage + 1);
+            pageCache.release(lastPage);
             lastPage++;
-            currentPage = openOrRetrievePageFile(lastPage);
+            currentPage = nextPage;
             lastSegmentAllocated = 0;
         }
 
@@ -108,26 +53,40 @@ class PagedFilesAllocator implements SegmentAllocator {
         final int endOffset = ((lastSegmentAllocated + 1) * segmentSize) - 1;
 
         lastSegmentAllocated += 1;
+        // the reference of the segment
+        pageCache.acquire(lastPage);
         return new Segment(currentPage, new SegmentPointer(lastPage, beginOffset), new SegmentPointer(lastPage, endOffset));
     }
 
     @Override
     public Segment reopenSegment(int pageId, int beginOffset) throws QueueException {
-        final MappedByteBuffer page = openOrRetrievePageFile(pageId);
+        final MappedByteBuffer page = pageCache.acquire(pageId);
         final SegmentPointer begin = new SegmentPointer(pageId, beginOffset);
         final SegmentPointer end = new SegmentPointer(pageId, beginOffset + segmentSize - 1);
         return new Segment(page, begin, end);
     }
 
     @Override
-    public void close() throws QueueException {
-        if (currentPageFile != null) {
-            try {
-                currentPageFile.close();
-            } catch (IOException ex) {
-                throw new QueueException("Problem closing current page file", ex);
-            }
+    public int lastPage() {
+        return lastPage;
+    }
+
+    @Override
+    public void releaseLastPage() throws QueueException {
+        if (lastPage == 0) {
+            throw new IllegalStateException("The first page can't be released");
         }
+        // the previous page was exhausted before moving to the last one
+        final MappedByteBuffer previousPage = pageCache.acquireExisting(lastPage - 1);
+        pageCache.release(lastPage);
+        lastPage--;
+        currentPage = previousPage;
+        lastSegmentAllocated = pageSize / segmentSize;
+    }
+
+    @Override
+    public void close() {
+        pageCache.release(lastPage);
     }
 
     @Override
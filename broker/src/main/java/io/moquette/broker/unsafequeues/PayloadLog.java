@@ -0,0 +1,330 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append only log of the records shared by many queues, so that a message fanned-out to many sessions is written
+ * once and every queue stores only a reference to it.
+ *
+ * The log is split in files, each one counts the references to its records and is deleted when all of them are
+ * released. Only the last file receives new records and new references, so the count of the older ones can only
+ * decrease. The deletion happens after a checkpoint of the queues, so that the messages delivered again after a
+ * crash don't reference a deleted file.
+ *
+ * The counts are kept in memory and saved at the close of the queues. After a crash they are rebuilt with
+ * {@link #referenced(long)} from the references found in the queues, and no file is deleted till
+ * {@link #referencesRecovered()} is called.
+ *
+ * A reference is the id of the file in the high 32 bits and the offset of the record in the low 32 bits.
+ * */
+public final class PayloadLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadLog.class);
+
+    private static final Pattern LOG_FILE = Pattern.compile("payloads-(\\d+)\\.log");
+    private static final int LENGTH_HEADER_SIZE = 4;
+
+    private static final class LogFile {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicInteger references = new AtomicInteger();
+        // guarded by the log lock
+        long size;
+        volatile boolean unforced;
+
+        LogFile(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private final Path dataPath;
+    private final int fileSize;
+    private final ConcurrentMap<Integer, LogFile> files = new ConcurrentHashMap<>();
+    // guarded by this, created at the first append
+    private LogFile active;
+    private int nextFileId;
+    private volatile boolean referencesRecovered;
+
+    private PayloadLog(Path dataPath, int fileSize) {
+        this.dataPath = dataPath;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Open the log files present in the folder, the new records are appended to a new file.
+     *
+     * @param fileSize the size after which a new file is started.
+     * */
+    static PayloadLog open(Path dataPath, int fileSize) throws QueueException {
+        final PayloadLog log = new PayloadLog(dataPath, fileSize);
+        try (DirectoryStream<Path> logFiles = Files.newDirectoryStream(dataPath, "payloads-*.log")) {
+            for (Path logFile : logFiles) {
+                final Matcher matcher = LOG_FILE.matcher(logFile.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                final int id = Integer.parseInt(matcher.group(1));
+                final FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ);
+                log.files.put(id, new LogFile(id, logFile, channel, channel.size()));
+                log.nextFileId = Math.max(log.nextFileId, id + 1);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Can't open the payload log files in " + dataPath, ex);
+        }
+        LOG.debug("Opened {} payload log files", log.files.size());
+        return log;
+    }
+
+    /**
+     * Append a record with one reference.
+     *
+     * @return the reference to the record.
+     * */
+    public synchronized long append(ByteBuffer record) throws QueueException {
+        final int recordSize = LENGTH_HEADER_SIZE + record.remaining();
+        if (active == null || (active.size > 0 && active.size + recordSize > fileSize)) {
+            startNewFile();
+        }
+        final long reference = reference(active.id, active.size);
+        final ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE)
+            .putInt(record.remaining())
+            .flip();
+        try {
+            long position = active.size;
+            while (length.hasRemaining()) {
+                position += active.channel.write(length, position);
+            }
+            while (record.hasRemaining()) {
+                position += active.channel.write(record, position);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Can't append to the payload log " + active.path, ex);
+        }
+        active.size += recordSize;
+        active.references.incrementAndGet();
+        active.unforced = true;
+        return reference;
+    }
+
+    private void startNewFile() throws QueueException {
+        final int id = nextFileId++;
+        final Path path = dataPath.resolve(String.format("payloads-%d.log", id));
+        try {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            active = new LogFile(id, path, channel, 0);
+        } catch (IOException ex) {
+            throw new QueueException("Can't create the payload log file " + path, ex);
+        }
+        files.put(id, active);
+        LOG.debug("Started payload log file {}", path);
+    }
+
+    /**
+     * Add a reference to a record, only if it's in the file that is receiving the appends.
+     *
+     * @return false if the record can't be referenced anymore and has to be appended again.
+     * */
+    public synchronized boolean retain(long reference) {
+        if (active == null || active.id != fileId(reference)) {
+            return false;
+        }
+        active.references.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Count a reference found in a queue, during the load.
+     * */
+    public void referenced(long reference) {
+        final LogFile file = files.get(fileId(reference));
+        if (file == null) {
+            LOG.warn("Queue references the missing payload log file {}", fileId(reference));
+            return;
+        }
+        file.references.incrementAndGet();
+    }
+
+    /**
+     * Set the counts saved at the close of the queues.
+     *
+     * @return false if a file has no saved count, so the references have to be counted in the queues.
+     * */
+    boolean restoreReferences(Map<Integer, Integer> savedReferences) {
+        for (Integer fileId : files.keySet()) {
+            if (!savedReferences.containsKey(fileId)) {
+                LOG.info("Payload log file {} has no saved references, counting them in the queues", fileId);
+                return false;
+            }
+        }
+        for (LogFile file : files.values()) {
+            file.references.set(savedReferences.get(file.id));
+        }
+        return true;
+    }
+
+    /**
+     * @return the count of references of every file, null if they aren't recovered yet.
+     * */
+    Map<Integer, Integer> references() {
+        if (!referencesRecovered) {
+            return null;
+        }
+        final Map<Integer, Integer> references = new TreeMap<>();
+        for (LogFile file : files.values()) {
+            references.put(file.id, file.references.get());
+        }
+        return references;
+    }
+
+    /**
+     * Notify that all the references in the queues have been counted, so the files without references
+     * can be deleted.
+     * */
+    public void referencesRecovered() {
+        referencesRecovered = true;
+    }
+
+    public void release(long reference) {
+        final LogFile file = files.get(fileId(reference));
+        if (file == null) {
+            LOG.warn("Released a reference to the missing payload log file {}", fileId(reference));
+            return;
+        }
+        file.references.decrementAndGet();
+    }
+
+    /**
+     * @throws QueueException if the record can't be read, also when its file was already deleted.
+     * */
+    public ByteBuffer read(long reference) throws QueueException {
+        final LogFile file = files.get(fileId(reference));
+        if (file == null) {
+            throw new QueueException("Payload log file " + fileId(reference) + " not found");
+        }
+        final long position = offset(reference);
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(LENGTH_HEADER_SIZE);
+            readFully(file.channel, length, position);
+            final int recordSize = length.getInt(0);
+            if (recordSize <= 0 || position + LENGTH_HEADER_SIZE + recordSize > file.channel.size()) {
+                throw new QueueException("Invalid record of size " + recordSize + " at " + position + " in " + file.path);
+            }
+            final ByteBuffer record = ByteBuffer.allocate(recordSize);
+            readFully(file.channel, record, position + LENGTH_HEADER_SIZE);
+            record.flip();
+            return record;
+        } catch (IOException ex) {
+            throw new QueueException("Can't read the payload log file " + file.path, ex);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            final int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * @return the files that aren't receiving appends and have no references.
+     * */
+    Set<Integer> unreferencedFiles() {
+        final Set<Integer> unreferenced = new HashSet<>();
+        if (!referencesRecovered) {
+            return unreferenced;
+        }
+        final LogFile current;
+        synchronized (this) {
+            current = active;
+        }
+        for (LogFile file : files.values()) {
+            if (file != current && file.references.get() <= 0) {
+                unreferenced.add(file.id);
+            }
+        }
+        return unreferenced;
+    }
+
+    void delete(Collection<Integer> fileIds) {
+        for (Integer fileId : fileIds) {
+            final LogFile file = files.remove(fileId);
+            if (file == null) {
+                continue;
+            }
+            try {
+                file.channel.close();
+                Files.deleteIfExists(file.path);
+                LOG.debug("Deleted unreferenced payload log file {}", file.path);
+            } catch (IOException ex) {
+                LOG.warn("Can't delete the payload log file {}", file.path, ex);
+            }
+        }
+    }
+
+    /**
+     * Force to disk the files written since the previous force.
+     * */
+    void force() throws QueueException {
+        for (LogFile file : files.values()) {
+            if (!file.unforced) {
+                continue;
+            }
+            // cleared before forcing, an append after the force marks it again
+            file.unforced = false;
+            try {
+                file.channel.force(false);
+            } catch (IOException ex) {
+                throw new QueueException("Can't force the payload log file " + file.path, ex);
+            }
+        }
+    }
+
+    void close() throws QueueException {
+        for (LogFile file : files.values()) {
+            try {
+                file.channel.close();
+            } catch (IOException ex) {
+                throw new QueueException("Can't close the payload log file " + file.path, ex);
+            }
+        }
+    }
+
+    private static long reference(int fileId, long offset) {
+        return ((long) fileId << 32) | offset;
+    }
+
+    private static int fileId(long reference) {
+        return (int) (reference >>> 32);
+    }
+
+    private static long offset(long reference) {
+        return reference & 0xFFFFFFFFL;
+    }
+}
@@ -3,11 +3,9 @@ package io.moquette.broker.unsafequeues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Not thread safe disk persisted queue.
@@ -19,20 +17,25 @@ public class Queue {
     private final String name;
     /* Last wrote byte, point to head byte */
     private VirtualPointer currentHeadPtr;
+    /* Opened on first use, as the tail segment */
     private Segment headSegment;
 
-    /* First readable byte, point to the last occupied byte */
-    private VirtualPointer currentTailPtr;
+    /* First readable byte, point to the last occupied byte. Read by the checkpoints of the pool */
+    private volatile VirtualPointer currentTailPtr;
     private Segment tailSegment;
+    /* Tail segments consumed by the running dequeue */
+    private boolean tailSegmentsConsumed;
 
     private final QueuePool queuePool;
     private final SegmentAllocator allocator;
     private final PagedFilesAllocator.AllocationListener allocationListener;
+    private final SegmentsFlusher flusher;
 //    private final ReentrantLock lock = new ReentrantLock();
 
     Queue(String name, Segment headSegment, VirtualPointer currentHeadPtr,
           Segment tailSegment, VirtualPointer currentTailPtr,
-          SegmentAllocator allocator, PagedFilesAllocator.AllocationListener allocationListener, QueuePool queuePool) {
+          SegmentAllocator allocator, PagedFilesAllocator.AllocationListener allocationListener, QueuePool queuePool,
+          SegmentsFlusher flusher) {
         this.name = name;
         this.headSegment = headSegment;
         this.currentHeadPtr = currentHeadPtr;
@@ -41,18 +44,30 @@ public class Queue {
         this.allocator = allocator;
         this.allocationListener = allocationListener;
         this.queuePool = queuePool;
+        this.flusher = flusher;
     }
 
     /**
+     * The length header of a message is written after its payload, and the bytes after the message are zeroed,
+     * so that after a crash the recovery, scanning the headers from the tail, stops at the last complete message.
+     *
      * @throws QueueException if an error happens during access to file.
      * */
     public void enqueue(ByteBuffer payload) throws QueueException {
+        if (!payload.hasRemaining()) {
+            throw new IllegalArgumentException("Can't enqueue an empty payload");
+        }
+        if (headSegment == null) {
+            headSegment = queuePool.openHeadSegment(name);
+        }
         final int messageSize = LENGTH_HEADER_SIZE + payload.remaining();
         if (headSegment.hasSpace(currentHeadPtr, messageSize)) {
             LOG.debug("Head segment has sufficient space for message length {}", LENGTH_HEADER_SIZE + payload.remaining());
-            writeData(headSegment, currentHeadPtr.plus(1), payload);
+            final VirtualPointer newHeadPtr = currentHeadPtr.moveForward(messageSize);
+            writeData(headSegment, currentHeadPtr.plus(1), newHeadPtr, payload);
+            flusher.written(headSegment);
             // move head segment
-            currentHeadPtr = currentHeadPtr.moveForward(messageSize);
+            currentHeadPtr = newHeadPtr;
             return;
         }
 
@@ -62,10 +77,13 @@ public class Queue {
 
 
         final int dataSize = payload.remaining();
+        // the length header is left empty, it's written when all the payload is stored
         final ByteBuffer rawData = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE + dataSize)
-            .putInt(dataSize)
+            .putInt(0)
             .put(payload)
             .flip();
+        final Segment messageStartSegment = headSegment;
+        final VirtualPointer messageStartPtr = currentHeadPtr;
 
         // the bytes written from the payload input
         long bytesRemainingInHeaderSegment = Math.min(rawData.remaining(), headSegment.bytesAfter(currentHeadPtr));
@@ -84,25 +102,59 @@ public class Queue {
         }
 
         Segment newSegment = null;
+        Segment firstNewSegment = null;
+
+        // the message start segment and the new ones can't be relocated till the header is written
+        queuePool.headWriteStarted(name);
+        try {
+            // till the payload is not completely stored,
+            // save the remaining part into a new segment.
+            while (rawData.hasRemaining()) {
+                // To request the next segment, it's needed to be done in global lock.
+                newSegment = queuePool.nextFreeSegment();
+                //notify segment creation for queue in queue pool
+                allocationListener.segmentedCreated(name, newSegment);
+                if (firstNewSegment == null) {
+                    firstNewSegment = newSegment;
+                }
 
-        // till the payload is not completely stored,
-        // save the remaining part into a new segment.
-        while (rawData.hasRemaining()) {
-            // To request the next segment, it's needed to be done in global lock.
-            newSegment = queuePool.nextFreeSegment();
-            //notify segment creation for queue in queue pool
-            allocationListener.segmentedCreated(name, newSegment);
+                int copySize = (int) Math.min(rawData.remaining(), allocator.getSegmentSize());
+                ByteBuffer slice = rawData.slice();
+                slice.limit(copySize);
 
-            int copySize = (int) Math.min(rawData.remaining(), allocator.getSegmentSize());
-            ByteBuffer slice = rawData.slice();
-            slice.limit(copySize);
+                currentHeadPtr = currentHeadPtr.moveForward(copySize);
+                writeDataNoHeader(newSegment, newSegment.begin, slice);
+                flusher.written(newSegment);
+                moveHeadSegment(newSegment);
 
-            currentHeadPtr = currentHeadPtr.moveForward(copySize);
-            writeDataNoHeader(newSegment, newSegment.begin, slice);
-            headSegment = newSegment;
+                // shift forward the consumption point
+                rawData.position(rawData.position() + copySize);
+            }
 
-            // shift forward the consumption point
-            rawData.position(rawData.position() + copySize);
+            headSegment.clearAfter(currentHeadPtr, LENGTH_HEADER_SIZE);
+            writeSplitHeader(messageStartSegment, messageStartPtr, firstNewSegment, dataSize);
+            flusher.written(messageStartSegment);
+            flusher.written(firstNewSegment);
+            flusher.written(headSegment);
+        } finally {
+            queuePool.headWriteCompleted(name);
+        }
+    }
+
+    /**
+     * Writes the length header of a message, that could cross the first segment and the next one.
+     * */
+    private static void writeSplitHeader(Segment segment, VirtualPointer beforeHeader, Segment nextSegment, int size) {
+        final ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(size).flip();
+        final int inFirstSegment = (int) Math.min(LENGTH_HEADER_SIZE, segment.bytesAfter(beforeHeader));
+        if (inFirstSegment > 0) {
+            final ByteBuffer firstPart = length.slice();
+            firstPart.limit(inFirstSegment);
+            segment.write(beforeHeader.plus(1), firstPart);
+            length.position(inFirstSegment);
+        }
+        if (length.hasRemaining()) {
+            nextSegment.write(nextSegment.begin, length);
         }
     }
 
@@ -116,28 +168,42 @@ public class Queue {
 
     /**
      * Writes data and size to the current Head segment starting from start pointer.
-     * */
-    private void writeData(Segment segment, VirtualPointer start, ByteBuffer data) {
-        writeData(segment, start, data.remaining(), data);
-    }
-
-    /**
+     *
      * @param segment the target segment.
      * @param start where start writing.
-     * @param size the length of the data to write on the segment.
+     * @param end the last byte of the written data.
      * @param data the data to write.
      * */
-    private void writeData(Segment segment, VirtualPointer start, int size, ByteBuffer data) {
-        ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(size).flip();
-        segment.write(start, length); // write 4 bytes header
+    private void writeData(Segment segment, VirtualPointer start, VirtualPointer end, ByteBuffer data) {
+        ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(data.remaining()).flip();
         segment.write(start.plus(LENGTH_HEADER_SIZE), data); // write the payload
+        segment.clearAfter(end, LENGTH_HEADER_SIZE); // terminate the messages sequence
+        segment.write(start, length); // write 4 bytes header, publishing the message
     }
 
     /**
      * Used in test
      * */
     void force() {
-        headSegment.force();
+        if (headSegment != null) {
+            headSegment.force();
+        }
+    }
+
+    /**
+     * The segment left by the head is still used by the running enqueue after the release of its page, it's safe
+     * because a page isn't unmapped till a segment points to it.
+     * */
+    private void moveHeadSegment(Segment segment) {
+        queuePool.releaseSegment(headSegment);
+        headSegment = segment;
+    }
+
+    private void moveTailSegment(Segment segment) {
+        if (tailSegment != null) {
+            queuePool.releaseSegment(tailSegment);
+        }
+        tailSegment = segment;
     }
 
     VirtualPointer currentHead() {
@@ -158,8 +224,45 @@ public class Queue {
 
     /**
      * Read next message or return null if the queue has no data.
+     *
+     * A message contained in a single segment is returned as a read only view of the mapped page, without copying
+     * it, so the returned buffer is valid only till the next dequeue of the queue, that could recycle the segment.
+     * A message split across segments is copied into a heap buffer.
      * */
     public Optional<ByteBuffer> dequeue() throws QueueException {
+        final Optional<ByteBuffer> message = readNextMessage();
+        if (tailSegmentsConsumed) {
+            // the consumed segments are recycled only once the new tail is recorded
+            tailSegmentsConsumed = false;
+            queuePool.tailSegmentsConsumed(name, currentTailPtr);
+        }
+        return message;
+    }
+
+    /**
+     * Read up to max messages, passing each one to the consumer before reading the next one, so that the views of
+     * the mapped pages are still valid. The new tail is notified to the pool once for all the messages.
+     *
+     * @return the number of messages read.
+     * */
+    public int dequeue(int max, Consumer<ByteBuffer> consumer) throws QueueException {
+        int read = 0;
+        try {
+            Optional<ByteBuffer> message;
+            while (read < max && !isEmpty() && (message = readNextMessage()).isPresent()) {
+                consumer.accept(message.get());
+                read++;
+            }
+        } finally {
+            if (tailSegmentsConsumed) {
+                tailSegmentsConsumed = false;
+                queuePool.tailSegmentsConsumed(name, currentTailPtr);
+            }
+        }
+        return read;
+    }
+
+    private Optional<ByteBuffer> readNextMessage() throws QueueException {
         if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
             if (currentTailPtr.isGreaterThan(currentHeadPtr)) {
                 // sanity check
@@ -169,7 +272,7 @@ public class Queue {
             return Optional.empty();
         }
         if (tailSegment == null) {
-            tailSegment = queuePool.openNextTailSegment(name).get();
+            moveTailSegment(queuePool.openNextTailSegment(name).get());
         }
 
         LOG.debug("currentTail is {}", currentTailPtr);
@@ -199,11 +302,11 @@ public class Queue {
                 VirtualPointer dataStart = existingTail.moveForward(LENGTH_HEADER_SIZE);
 
                 if (remainingInSegment - LENGTH_HEADER_SIZE == 0) {
-                    queuePool.consumedTailSegment(name);
+                    consumeTailSegment();
                     if (QueuePool.queueDebug) {
                         tailSegment.fillWith((byte) 'D');
                     }
-                    tailSegment = queuePool.openNextTailSegment(name).get();
+                    moveTailSegment(queuePool.openNextTailSegment(name).get());
                 }
 
                 LOG.debug("Loading payload size {}", payloadLength);
@@ -221,6 +324,11 @@ public class Queue {
         }
     }
 
+    private void consumeTailSegment() {
+        queuePool.consumedTailSegment(name);
+        tailSegmentsConsumed = true;
+    }
+
     private static boolean containsHeader(Segment segment, VirtualPointer tail) {
         return segment.bytesAfter(tail) + 1 >= LENGTH_HEADER_SIZE;
     }
@@ -244,7 +352,7 @@ public class Queue {
         final ByteBuffer partialHeader = segment.readAllBytesAfter(pointer);
         final int consumedHeaderSize = partialHeader.remaining();
         lengthBuffer.put(partialHeader);
-        queuePool.consumedTailSegment(name);
+        consumeTailSegment();
 
         if (QueuePool.queueDebug) {
             segment.fillWith((byte) 'D');
@@ -253,6 +361,7 @@ public class Queue {
         // read second part
         final int remainingHeaderSize = LENGTH_HEADER_SIZE - consumedHeaderSize;
         Segment nextTailSegment = queuePool.openNextTailSegment(name).get();
+        moveTailSegment(nextTailSegment);
         lengthBuffer.put(nextTailSegment.read(nextTailSegment.begin, remainingHeaderSize));
         final VirtualPointer dataStart = pointer.moveForward(LENGTH_HEADER_SIZE);
         int payloadLength = ((ByteBuffer) lengthBuffer.flip()).getInt();
@@ -262,60 +371,42 @@ public class Queue {
 
     // TO BE called owning the lock on segments allocator
     private ByteBuffer loadPayloadFromSegments(int remaining, Segment segment, VirtualPointer tail) throws QueueException {
-        List<ByteBuffer> createdBuffers = new ArrayList<>(segmentCountFromSize(remaining));
+        // the consumed segments can be recycled, so the parts are copied in a single array
+        final byte[] payload = new byte[remaining];
+        int copied = 0;
         VirtualPointer scan = tail;
 
         do {
             LOG.debug("Looping remaining {}", remaining);
             final int availableDataLength = Math.min(remaining, (int) segment.bytesAfter(scan) + 1);
-            final ByteBuffer buffer = segment.read(scan, availableDataLength);
-            createdBuffers.add(buffer);
+            segment.readInto(scan, payload, copied, availableDataLength);
+            copied += availableDataLength;
             final boolean segmentCompletelyConsumed = (segment.bytesAfter(scan) + 1) == availableDataLength;
             scan = scan.moveForward(availableDataLength);
-            remaining -= buffer.remaining();
+            remaining -= availableDataLength;
 
             if (remaining > 0 || segmentCompletelyConsumed) {
-                queuePool.consumedTailSegment(name);
+                consumeTailSegment();
                 if (QueuePool.queueDebug) {
                     segment.fillWith((byte) 'D');
                 }
                 segment = queuePool.openNextTailSegment(name).orElse(null);
+                moveTailSegment(segment);
             }
         } while (remaining > 0);
 
-        // assign to tailSegment without CAS because we are in lock
-        tailSegment = segment;
         currentTailPtr = scan;
         LOG.debug("Moved currentTailPointer to {} from {}", scan, tail);
 
-        return joinBuffers(createdBuffers);
-    }
-
-    private int segmentCountFromSize(int remaining) {
-        return (int) Math.ceil((double) remaining / allocator.getSegmentSize());
+        return ByteBuffer.wrap(payload);
     }
 
     private boolean isTailFirstUsage(VirtualPointer tail) {
         return tail.isUntouched();
     }
 
-    /**
-     * @return a ByteBuffer that's a composition of all buffers
-     * */
-    private ByteBuffer joinBuffers(List<ByteBuffer> buffers) {
-        final int neededSpace = buffers.stream().mapToInt(Buffer::remaining).sum();
-        byte[] heapBuffer = new byte[neededSpace];
-        int offset = 0;
-        for (ByteBuffer buffer : buffers) {
-            final int readBytes = buffer.remaining();
-            buffer.get(heapBuffer, offset, readBytes);
-            offset += readBytes;
-        }
-
-        return ByteBuffer.wrap(heapBuffer);
-    }
-
     private ByteBuffer readData(Segment source, VirtualPointer start, int length) {
-        return source.read(start, length);
+        // the segment is still the tail one, it can't be recycled before the next dequeue
+        return source.view(start, length);
     }
 }
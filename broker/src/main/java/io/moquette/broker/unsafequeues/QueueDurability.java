@@ -0,0 +1,34 @@
+package io.moquette.broker.unsafequeues;
+
+/**
+ * When the messages written in the segmented queues are forced to disk.
+ * */
+public enum QueueDurability {
+    /**
+     * Never explicitly forced, the OS writes back the pages at its own pace.
+     * */
+    NONE,
+    /**
+     * The written pages are forced at fixed intervals.
+     * */
+    PERIODIC,
+    /**
+     * The written pages are forced on request, and all the requests pending during a force are grouped in the
+     * next one. Used to acknowledge a publish only when it's on disk.
+     * */
+    GROUP_COMMIT;
+
+    public static QueueDurability parse(String value) {
+        switch (value.trim().toLowerCase()) {
+            case "none":
+                return NONE;
+            case "periodic":
+                return PERIODIC;
+            case "group_commit":
+                return GROUP_COMMIT;
+            default:
+                throw new IllegalArgumentException("Invalid queue durability '" + value
+                    + "', admitted values are none, periodic and group_commit");
+        }
+    }
+}
@@ -3,16 +3,22 @@ package io.moquette.broker.unsafequeues;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -21,10 +27,12 @@ import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
 public class QueuePool {
@@ -56,6 +64,19 @@ public class QueuePool {
             return String.format("(%d, %d)", pageId, offset);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SegmentRef that = (SegmentRef) o;
+            return pageId == that.pageId && offset == that.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pageId, offset);
+        }
+
         @Override
         public int compareTo(SegmentRef o) {
             final int pageCompare = Integer.compare(pageId, o.pageId);
@@ -92,19 +113,154 @@ public class QueuePool {
         }
     }
 
+    /**
+     * The segments of a queue, with the state of its tail as recorded in the journal.
+     *
+     * The list of the segments is immutable and replaced on every change, so the head and the tail segments are
+     * read without locks. Every change happens holding the lock of this, so that a checkpoint or a compaction sees
+     * the segments and the consumed ones in a consistent state. Different queues never contend on it.
+     * */
+    private static final class QueueSegments {
+        // head in first position, tail in last
+        private volatile List<SegmentRef> segments;
+        // segments consumed by a dequeue still in progress, from the oldest,
+        // they are recycled when the dequeue records the new tail
+        final List<SegmentRef> consumed = new ArrayList<>();
+        // number of segments consumed since the load, it's the index of the tail segment in the logical space
+        long consumedCount;
+        // tail offset in the tail segment, as last recorded in the journal
+        long recordedTailOffset;
+        // an enqueue crossing segments is writing the segments at the head, that can't be relocated
+        boolean headWriting;
+
+        QueueSegments(List<SegmentRef> segments, long recordedTailOffset) {
+            this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+            this.recordedTailOffset = recordedTailOffset;
+        }
+
+        List<SegmentRef> segments() {
+            return segments;
+        }
+
+        SegmentRef head() {
+            final List<SegmentRef> current = segments;
+            return current.isEmpty() ? null : current.get(0);
+        }
+
+        SegmentRef tail() {
+            final List<SegmentRef> current = segments;
+            return current.isEmpty() ? null : current.get(current.size() - 1);
+        }
+
+        // to be called holding the lock of this
+        void addHead(SegmentRef segment) {
+            final List<SegmentRef> updated = new ArrayList<>(segments.size() + 1);
+            updated.add(segment);
+            updated.addAll(segments);
+            segments = Collections.unmodifiableList(updated);
+        }
+
+        // to be called holding the lock of this
+        SegmentRef pollTail() {
+            final List<SegmentRef> current = segments;
+            if (current.isEmpty()) {
+                return null;
+            }
+            segments = Collections.unmodifiableList(new ArrayList<>(current.subList(0, current.size() - 1)));
+            return current.get(current.size() - 1);
+        }
+
+        /**
+         * Replace a segment between the head and the tail, the ones that aren't opened by the queue.
+         * To be called holding the lock of this.
+         *
+         * @return false if the segment isn't between the head and the tail.
+         * */
+        boolean replaceMiddle(SegmentRef segment, SegmentRef replacement) {
+            final List<SegmentRef> updated = new ArrayList<>(segments);
+            final int index = updated.indexOf(segment);
+            if (index <= 0 || index == updated.size() - 1) {
+                return false;
+            }
+            updated.set(index, replacement);
+            segments = Collections.unmodifiableList(updated);
+            return true;
+        }
+    }
+
+    /**
+     * The segments of a queue as loaded from the checkpoint and the journals, before the queue is opened.
+     * */
+    private static final class QueueDefinition {
+        final LinkedList<SegmentRef> segments;
+        long tailOffset;
+        // present only if the pool was closed, else the head has to be searched scanning the messages
+        Long headOffset;
+
+        QueueDefinition(LinkedList<SegmentRef> segments, long tailOffset, Long headOffset) {
+            this.segments = segments;
+            this.tailOffset = tailOffset;
+            this.headOffset = headOffset;
+        }
+    }
+
+    /**
+     * Reads the reference to the payload log contained in a message, to count the references held by the queues
+     * recovered after a crash. Only the first bytes of every message are read.
+     * */
+    public static final class ReferenceReader {
+        private final int prefixSize;
+        private final ToLongFunction<ByteBuffer> reader;
+
+        /**
+         * @param prefixSize number of bytes, from the start of a message, that contain the reference.
+         * @param reader returns the reference contained in the start of a message, or -1 if it doesn't contain one.
+         * */
+        public ReferenceReader(int prefixSize, ToLongFunction<ByteBuffer> reader) {
+            this.prefixSize = prefixSize;
+            this.reader = reader;
+        }
+    }
+
+    private static final String CHECKPOINT_FILE = "checkpoint.properties";
+    private static final String JOURNAL_GENERATION = "journal.generation";
+    // present only if the pool was closed
+    private static final String PAYLOAD_REFERENCES = "payloads.references";
+
     private final SegmentAllocator allocator;
     private final Path dataPath;
     private final int segmentSize;
-    private final ConcurrentMap<QueueName, LinkedList<SegmentRef>> queueSegments = new ConcurrentHashMap<>();
+    private final ConcurrentMap<QueueName, QueueSegments> queueSegments = new ConcurrentHashMap<>();
     private final ConcurrentMap<QueueName, Queue> queues = new ConcurrentHashMap<>();
-    private final ConcurrentSkipListSet<SegmentRef> recycledSegments = new ConcurrentSkipListSet<>();
-    private final ReentrantLock segmentsAllocationLock = new ReentrantLock();
-
-    private QueuePool(SegmentAllocator allocator, Path dataPath, int segmentSize) {
+    private final RecycledSegments recycledSegments =
+        new RecycledSegments(Runtime.getRuntime().availableProcessors());
+    // guards the allocator, that creates the new segments
+    private final ReentrantLock allocatorLock = new ReentrantLock();
+    // read locked while a recycled segment is taken and opened, write locked by the compaction to check that
+    // no segment of the reclaimed page is in use
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    // read locked by the changes to the queues recorded in the journal, write locked by the checkpoint that switches
+    // the journal, so that every change is either in the checkpoint or in the new journal
+    private final ReentrantReadWriteLock journalLock = new ReentrantReadWriteLock();
+    // guarded by journalLock, null when the pool is closed
+    private SegmentsJournal journal;
+    private long journalGeneration;
+    private boolean closed;
+    private final SegmentsFlusher flusher;
+    private final PayloadLog payloadLog;
+    private final PageCache pageCache;
+
+    private QueuePool(SegmentAllocator allocator, PageCache pageCache, Path dataPath, int segmentSize,
+                      long journalGeneration, QueueDurability durability, int flushIntervalMillis,
+                      PayloadLog payloadLog) {
         this.allocator = allocator;
+        this.pageCache = pageCache;
         this.dataPath = dataPath;
         this.segmentSize = segmentSize;
+        this.journalGeneration = journalGeneration;
         this.callback = new SegmentAllocationCallback(this);
+        this.payloadLog = payloadLog;
+        this.flusher = new SegmentsFlusher(durability, flushIntervalMillis, this::forceMetadata);
     }
 
     private static class SegmentAllocationCallback implements PagedFilesAllocator.AllocationListener {
@@ -116,39 +272,176 @@ public class QueuePool {
         }
 
         @Override
-        public void segmentedCreated(String name, Segment segment) {
+        public void segmentedCreated(String name, Segment segment) throws QueueException {
             queuePool.segmentedCreated(name, segment);
         }
     }
 
-    private void segmentedCreated(String name, Segment segment) {
+    private void segmentedCreated(String name, Segment segment) throws QueueException {
         LOG.debug("Registering new segment {} for queue {}", segment, name);
         final QueueName queueName = new QueueName(name);
-        List<SegmentRef> segmentRefs = this.queueSegments.computeIfAbsent(queueName, k -> new LinkedList<>());
+        final SegmentRef segmentRef = new SegmentRef(segment);
+        final QueueSegments queue = queueSegments.computeIfAbsent(queueName,
+            k -> new QueueSegments(Collections.emptyList(), -1));
+        journalLock.readLock().lock();
+        try {
+            synchronized (queue) {
+                if (journal != null) {
+                    journal.segmentAdded(name, segmentRef);
+                }
+                // adds in head
+                queue.addHead(segmentRef);
+            }
+            LOG.debug("queueSegments for queue {} after insertion {}", queueName, queue.segments());
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
 
-        // adds in head
-        segmentRefs.add(0, new SegmentRef(segment));
+    /**
+     * Load the queues from the last checkpoint, replaying the changes to the segments recorded in the journals after
+     * it. If the pool wasn't closed, the head of every queue is recovered scanning the messages from its tail.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, QueueDurability.NONE, 0);
+    }
 
-        LOG.debug("queueSegments for queue {} after insertion {}", queueName, segmentRefs);
+    /**
+     * @param flushIntervalMillis interval between the forces of the written pages, used only with
+     *                            {@link QueueDurability#PERIODIC} durability.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, QueueDurability durability,
+                                       int flushIntervalMillis) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, durability, flushIntervalMillis, Long.MAX_VALUE);
     }
 
-    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
+    /**
+     * @param maxMappedBytes the mapped bytes over which the pages not used by any queue are unmapped, the least
+     *                       recently used first.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, QueueDurability durability,
+                                       int flushIntervalMillis, long maxMappedBytes) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, durability, flushIntervalMillis, maxMappedBytes, null);
+    }
+
+    /**
+     * @param referenceReader reads the references to the {@link #payloadLog()} stored in the messages. The
+     *                        references counted at the close are restored, after a crash they are counted in the
+     *                        queues while they are recovered. If null, the files of the payload log aren't deleted
+     *                        till {@link PayloadLog#referencesRecovered()} is called.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, QueueDurability durability,
+                                       int flushIntervalMillis, long maxMappedBytes,
+                                       ReferenceReader referenceReader) throws QueueException {
         // read in checkpoint.properties
         final Properties checkpointProps = createOrLoadCheckpointFile(dataPath);
+        final long journalGeneration = Long.parseLong(checkpointProps.getProperty(JOURNAL_GENERATION, "0"));
+
+        final Map<QueueName, QueueDefinition> definitions = loadQueueDefinitions(checkpointProps);
+        // load last references to segment
+        final JournalReplayer replayer = new JournalReplayer(definitions, segmentSize,
+            Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0")),
+            Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0")));
+        SegmentsJournal.replay(dataPath, journalGeneration, replayer);
+
+        // instantiate the allocator after the journal, that could have allocated new segments
+        final PageCache pageCache = new PageCache(dataPath, pageSize, maxMappedBytes);
+        final PagedFilesAllocator allocator = new PagedFilesAllocator(pageCache, pageSize, segmentSize,
+            replayer.lastPage, replayer.lastSegment);
+
+        final PayloadLog payloadLog = PayloadLog.open(dataPath, pageSize);
+        final boolean referencesRestored = referenceReader != null
+            && restoreReferences(checkpointProps, definitions, payloadLog);
+        final QueuePool queuePool = new QueuePool(allocator, pageCache, dataPath, segmentSize, journalGeneration,
+            durability, flushIntervalMillis, payloadLog);
+        final List<SegmentRef> trimmedSegments = queuePool.openQueues(definitions,
+            referencesRestored ? null : referenceReader);
+        LOG.debug("Loaded queues definitions: {}", queuePool.queueSegments.keySet());
+        if (referenceReader != null) {
+            payloadLog.referencesRecovered();
+        }
 
-        // load last references to segment and instantiate the allocator
-        final int lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
-        final int lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        queuePool.loadRecycledSegments(trimmedSegments);
+        LOG.debug("Recyclable segments are: {}", queuePool.recycledSegments);
+
+        // the recovered state becomes the new checkpoint, and starts a new journal
+        queuePool.checkpoint();
+        return queuePool;
+    }
 
-        final PagedFilesAllocator allocator = new PagedFilesAllocator(dataPath, pageSize, segmentSize, lastPage, lastSegment);
+    /**
+     * Apply the journal entries to the queue definitions loaded from the checkpoint.
+     * */
+    private static final class JournalReplayer implements SegmentsJournal.Replayer {
+
+        private final Map<QueueName, QueueDefinition> definitions;
+        private final int segmentSize;
+        int lastPage;
+        int lastSegment;
+
+        JournalReplayer(Map<QueueName, QueueDefinition> definitions, int segmentSize, int lastPage, int lastSegment) {
+            this.definitions = definitions;
+            this.segmentSize = segmentSize;
+            this.lastPage = lastPage;
+            this.lastSegment = lastSegment;
+        }
 
-        final QueuePool queuePool = new QueuePool(allocator, dataPath, segmentSize);
-        queuePool.loadQueueDefinitions(checkpointProps);
-        LOG.debug("Loaded queues definitions: {}", queuePool.queueSegments);
+        @Override
+        public void segmentAdded(String queueName, int pageId, int offset) {
+            final QueueDefinition definition = definitions.computeIfAbsent(new QueueName(queueName),
+                k -> new QueueDefinition(new LinkedList<>(), -1, null));
+            definition.segments.addFirst(new SegmentRef(pageId, offset));
+            definition.headOffset = null;
+
+            // the segment could be a new one allocated after the checkpoint
+            final int segmentIndex = offset / segmentSize;
+            if (pageId > lastPage || (pageId == lastPage && segmentIndex >= lastSegment)) {
+                lastPage = pageId;
+                lastSegment = segmentIndex + 1;
+            }
+        }
 
-        queuePool.loadRecycledSegments(checkpointProps);
-        LOG.debug("Recyclable segments are: {}", queuePool.recycledSegments);
-        return queuePool;
+        @Override
+        public void tailSegmentsConsumed(String queueName, int consumedSegments, long tailOffset) {
+            final QueueDefinition definition = definitions.get(new QueueName(queueName));
+            if (definition == null) {
+                LOG.warn("Journal references the unknown queue {}, skipping", queueName);
+                return;
+            }
+            for (int i = 0; i < consumedSegments && !definition.segments.isEmpty(); i++) {
+                definition.segments.removeLast();
+            }
+            definition.tailOffset = tailOffset;
+            definition.headOffset = null;
+        }
+    }
+
+    /**
+     * Restore the references to the payload log counted at the close, valid only if no queue changed after it.
+     *
+     * @return false if the references have to be counted in the queues.
+     * */
+    private static boolean restoreReferences(Properties checkpointProps, Map<QueueName, QueueDefinition> definitions,
+                                             PayloadLog payloadLog) {
+        final String savedReferences = checkpointProps.getProperty(PAYLOAD_REFERENCES);
+        if (savedReferences == null) {
+            return false;
+        }
+        for (QueueDefinition definition : definitions.values()) {
+            if (definition.headOffset == null) {
+                // changed after the close, by the journal of a later run
+                return false;
+            }
+        }
+        final Map<Integer, Integer> references = new LinkedHashMap<>();
+        for (String fileReferences : savedReferences.split(",")) {
+            if (fileReferences.trim().isEmpty()) {
+                continue;
+            }
+            final String[] split = fileReferences.split(":");
+            references.put(Integer.parseInt(split[0].trim()), Integer.parseInt(split[1].trim()));
+        }
+        return payloadLog.restoreReferences(references);
     }
 
     public Set<String> queueNames() {
@@ -156,7 +449,7 @@ public class QueuePool {
     }
 
     private static Properties createOrLoadCheckpointFile(Path dataPath) throws QueueException {
-        final Path checkpointPath = dataPath.resolve("checkpoint.properties");
+        final Path checkpointPath = dataPath.resolve(CHECKPOINT_FILE);
         if (!Files.exists(checkpointPath)) {
             LOG.info("Can't find any file named 'checkpoint.properties' in path: {}, creating new one", dataPath);
             final boolean notExisted;
@@ -171,97 +464,188 @@ public class QueuePool {
             }
         }
 
-        final FileReader fileReader;
-        try {
-            fileReader = new FileReader(checkpointPath.toFile());
-        } catch (FileNotFoundException e) {
-            throw new QueueException("Can't find any file named 'checkpoint.properties' in path: " + dataPath, e);
-        }
         final Properties checkpointProps = new Properties();
-        try {
+        try (FileReader fileReader = new FileReader(checkpointPath.toFile())) {
             checkpointProps.load(fileReader);
+        } catch (FileNotFoundException e) {
+            throw new QueueException("Can't find any file named 'checkpoint.properties' in path: " + dataPath, e);
         } catch (IOException e) {
             throw new QueueException("if an error occurred when reading from: " + checkpointPath, e);
         }
         return checkpointProps;
     }
 
-    private void loadQueueDefinitions(Properties checkpointProps) throws QueueException {
+    private static Map<QueueName, QueueDefinition> loadQueueDefinitions(Properties checkpointProps) {
         // structure of queues definitions in properties file:
         // queues.0.name = bla bla
         // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-        // queues.0.head_offset = bytes offset from the start of the page where last data was written
+        // queues.0.head_offset = bytes offset from the start of the page where last data was written,
+        //                        present only if the pool was closed
         // queues.0.tail_offset = bytes offset from the start of the page where first data could be read
-        boolean noMoreQueues = false;
+        final Map<QueueName, QueueDefinition> definitions = new LinkedHashMap<>();
         int queueId = 0;
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
+        while (checkpointProps.containsKey(String.format("queues.%d.name", queueId))) {
+            final QueueName queueName = new QueueName(checkpointProps.getProperty(String.format("queues.%d.name", queueId)));
+            final LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
+            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
+            final String headOffset = checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId));
+            definitions.put(queueName, new QueueDefinition(segmentRefs, tailOffset,
+                headOffset != null ? Long.valueOf(headOffset) : null));
+            queueId++;
+        }
+        return definitions;
+    }
+
+    /**
+     * The segments of a queue are opened on first use, only the queues not closed cleanly are scanned to find their
+     * head.
+     *
+     * @param referenceReader if not null, the references to the payload log are counted in the messages.
+     * @return the segments at the head of the queues that don't contain any complete message.
+     * */
+    private List<SegmentRef> openQueues(Map<QueueName, QueueDefinition> definitions,
+                                        ReferenceReader referenceReader) throws QueueException {
+        final List<SegmentRef> trimmedSegments = new ArrayList<>();
+        for (Map.Entry<QueueName, QueueDefinition> entry : definitions.entrySet()) {
+            final QueueName queueName = entry.getKey();
+            final QueueDefinition definition = entry.getValue();
+            final LinkedList<SegmentRef> segmentRefs = definition.segments;
+            if (segmentRefs.isEmpty()) {
                 continue;
             }
-            final QueueName queueName = new QueueName(checkpointProps.getProperty(queueKey));
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
             final int numSegments = segmentRefs.size();
-            queueSegments.put(queueName, segmentRefs);
-
-            final long headOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId)));
-            final SegmentRef headSegmentRef = segmentRefs.get(0);
-            final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, headOffset);
-            // TODO this reopen could be done in lazy way during getOrCreate method.
-            Segment headSegment = allocator.reopenSegment(headSegmentRef.pageId, headSegmentRef.offset);
-
-            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
-            final SegmentRef tailSegmentRef = segmentRefs.getLast();
-            final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, tailOffset);
-            Segment tailSegment = allocator.reopenSegment(tailSegmentRef.pageId, tailSegmentRef.offset);
 
             // Create relative positioned head and tail pointers
             // Tail is an offset relative to start of the first segment in the list
-            // Head is n-1 full segments plus the offset of the physical head
-            final VirtualPointer logicalTail = new VirtualPointer(currentTail.offset());
-            final VirtualPointer logicalHead = new VirtualPointer((long) (numSegments - 1) * segmentSize + currentHead.offset());
-            final Queue queue = new Queue(queueName.name, headSegment, logicalHead, tailSegment, logicalTail,
-                allocator, callback, this);
+            final VirtualPointer logicalTail = new VirtualPointer(definition.tailOffset);
+
+            final VirtualPointer logicalHead;
+            if (definition.headOffset != null) {
+                // Head is n-1 full segments plus the offset of the physical head, the bytes after it were
+                // cleared by the enqueue
+                logicalHead = new VirtualPointer((long) (numSegments - 1) * segmentSize + definition.headOffset);
+                if (referenceReader != null) {
+                    // the references of a closed queue are counted only if they weren't saved
+                    countReferences(segmentRefs, logicalTail, logicalHead, referenceReader);
+                }
+            } else {
+                // from tail to head
+                final List<Segment> segments = new ArrayList<>(numSegments);
+                final Iterator<SegmentRef> fromTail = segmentRefs.descendingIterator();
+                while (fromTail.hasNext()) {
+                    final SegmentRef segmentRef = fromTail.next();
+                    segments.add(allocator.reopenSegment(segmentRef.pageId, segmentRef.offset));
+                }
+                logicalHead = scanForHead(segments, logicalTail, referenceReader);
+                final int headSegmentIndex = (int) (Math.max(logicalHead.logicalOffset(), 0) / segmentSize);
+                // segments allocated by a message that wasn't completely written
+                while (segmentRefs.size() > headSegmentIndex + 1) {
+                    trimmedSegments.add(segmentRefs.removeFirst());
+                }
+                // so that a scan after another crash stops at the head
+                segments.get(headSegmentIndex).clearAfter(logicalHead, Queue.LENGTH_HEADER_SIZE);
+                segments.forEach(this::releaseSegment);
+                LOG.info("Recovered queue {} up to logical offset {}", queueName.name, logicalHead.logicalOffset());
+            }
+
+            queueSegments.put(queueName, new QueueSegments(segmentRefs, definition.tailOffset));
+            final Queue queue = new Queue(queueName.name, null, logicalHead, null, logicalTail,
+                allocator, callback, this, flusher);
             queues.put(queueName, queue);
+        }
+        return trimmedSegments;
+    }
 
-            queueId++;
+    /**
+     * Follow the length headers of the messages from the tail, up to an empty header or a message that exceeds
+     * the segments of the queue.
+     *
+     * @param segments the segments of the queue from the tail.
+     * @param referenceReader if not null, counts the references to the payload log of the complete messages.
+     * @return the last byte of the last complete message.
+     * */
+    private VirtualPointer scanForHead(List<Segment> segments, VirtualPointer tail, ReferenceReader referenceReader) {
+        final long capacity = (long) segments.size() * segmentSize;
+        long next = tail.isUntouched() ? 0 : tail.logicalOffset();
+        while (next + Queue.LENGTH_HEADER_SIZE <= capacity) {
+            final int payloadLength = readLengthHeader(segments, next);
+            if (payloadLength <= 0 || next + Queue.LENGTH_HEADER_SIZE + payloadLength > capacity) {
+                break;
+            }
+            if (referenceReader != null) {
+                countReference(segments, next, payloadLength, referenceReader);
+            }
+            next += Queue.LENGTH_HEADER_SIZE + payloadLength;
         }
+        return new VirtualPointer(next - 1);
     }
 
-    private void loadRecycledSegments(Properties checkpointProps) throws QueueException {
-        TreeSet<SegmentRef> usedSegments = new TreeSet<>();
+    /**
+     * Count the references to the payload log of the messages between the tail and the head of a queue.
+     *
+     * @param segmentRefs the segments of the queue, head in first position.
+     * */
+    private void countReferences(List<SegmentRef> segmentRefs, VirtualPointer tail, VirtualPointer head,
+                                 ReferenceReader referenceReader) throws QueueException {
+        final List<Segment> segments = new ArrayList<>(segmentRefs.size());
+        for (int i = segmentRefs.size() - 1; i >= 0; i--) {
+            final SegmentRef segmentRef = segmentRefs.get(i);
+            segments.add(allocator.reopenSegment(segmentRef.pageId, segmentRef.offset));
+        }
+        try {
+            long next = tail.isUntouched() ? 0 : tail.logicalOffset();
+            while (next < head.logicalOffset()) {
+                final int payloadLength = readLengthHeader(segments, next);
+                countReference(segments, next, payloadLength, referenceReader);
+                next += Queue.LENGTH_HEADER_SIZE + payloadLength;
+            }
+        } finally {
+            segments.forEach(this::releaseSegment);
+        }
+    }
 
-        boolean noMoreQueues = false;
-        int queueId = 0;
+    /**
+     * Read only the start of the message, that contains the reference to the payload log if any.
+     * */
+    private void countReference(List<Segment> segments, long position, int payloadLength,
+                                ReferenceReader referenceReader) {
+        final ByteBuffer messageStart = readBytes(segments, position + Queue.LENGTH_HEADER_SIZE,
+            Math.min(payloadLength, referenceReader.prefixSize));
+        final long reference = referenceReader.reader.applyAsLong(messageStart);
+        if (reference >= 0) {
+            payloadLog.referenced(reference);
+        }
+    }
 
-        // load all queues definitions from checkpoint file
-        // TODO second use of this, extract as an iterator
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
-                continue;
-            }
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            usedSegments.addAll(segmentRefs);
+    private int readLengthHeader(List<Segment> segments, long position) {
+        return readBytes(segments, position, Queue.LENGTH_HEADER_SIZE).getInt();
+    }
 
-            queueId++;
+    private ByteBuffer readBytes(List<Segment> segments, long position, int size) {
+        final ByteBuffer bytes = ByteBuffer.allocate(size);
+        long current = position;
+        while (bytes.hasRemaining()) {
+            final Segment segment = segments.get((int) (current / segmentSize));
+            final int length = (int) Math.min(bytes.remaining(), segmentSize - current % segmentSize);
+            bytes.put(segment.read(new VirtualPointer(current), length));
+            current += length;
         }
+        bytes.flip();
+        return bytes;
+    }
 
+    private void loadRecycledSegments(List<SegmentRef> trimmedSegments) throws QueueException {
+        TreeSet<SegmentRef> usedSegments = new TreeSet<>();
+        for (QueueSegments queue : queueSegments.values()) {
+            usedSegments.addAll(queue.segments());
+        }
+
+        recycledSegments.distribute(trimmedSegments);
         if (usedSegments.isEmpty()) {
             // no queue definitions were loaded
             return;
         }
-
-        final List<SegmentRef> recreatedSegments = recreateSegmentHoles(usedSegments);
-
-        segmentsAllocationLock.lock();
-        try {
-            recycledSegments.addAll(recreatedSegments);
-        } finally {
-            segmentsAllocationLock.unlock();
-        }
+        recycledSegments.distribute(recreateSegmentHoles(usedSegments));
     }
 
     /**
@@ -296,6 +680,7 @@ public class QueuePool {
                 // recreate recycled segments between 2 used segments
                 recreatedSegments.addAll(recreateRecycledSegmentsBetween(prev, current));
             }
+            prev = current;
         }
         return recreatedSegments;
     }
@@ -349,7 +734,7 @@ public class QueuePool {
         return recreatedSegments;
     }
 
-    private LinkedList<SegmentRef> decodeSegments(String s) {
+    private static LinkedList<SegmentRef> decodeSegments(String s) {
         final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
                 .split("\\), \\(");
 
@@ -376,82 +761,442 @@ public class QueuePool {
 
             // When a segment is freshly created the head must the last occupied byte,
             // so can't be the start of a segment, but one position before, or in case
-            // of a new page, -1
-            final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), segment, VirtualPointer.buildUntouched(),
-                this.allocator, callback, this);
+            // of a new page, -1. The tail segment is opened by the first dequeue
+            final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), null, VirtualPointer.buildUntouched(),
+                this.allocator, callback, this, flusher);
             queues.put(queueN, queue);
             return queue;
         }
     }
 
+    /**
+     * Write a new checkpoint of the segments of all the queues, and start a new journal. The messages enqueued
+     * after the checkpoint are recovered scanning from the tail of the queues, the messages dequeued after it,
+     * without consuming a segment, are delivered again.
+     *
+     * It's expected to be called periodically, to bound the size of the journal.
+     * */
+    public synchronized void checkpoint() throws QueueException {
+        // the references released before the checkpoint can't be delivered again after a crash
+        final Set<Integer> unreferencedPayloads = payloadLog.unreferencedFiles();
+        final Properties checkpoint = new Properties();
+        final SegmentsJournal oldJournal;
+        final long generation;
+        journalLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            dumpAllocator(checkpoint);
+            dumpQueues(checkpoint, false);
+            oldJournal = journal;
+            generation = journalGeneration + 1;
+            journal = SegmentsJournal.create(dataPath, generation);
+            journalGeneration = generation;
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+        if (oldJournal != null) {
+            oldJournal.close();
+        }
+        storeCheckpoint(checkpoint, generation);
+        payloadLog.delete(unreferencedPayloads);
+        pageCache.trim();
+    }
+
+    /**
+     * @return true if the enqueued messages are forced to disk only on {@link #commit()} request.
+     * */
+    public boolean isGroupCommit() {
+        return flusher.isGroupCommit();
+    }
+
+    /**
+     * Request the force of the enqueued messages, in group commit durability.
+     *
+     * @return a future completed when all the messages enqueued before this call are on disk, already completed
+     * if the durability is not group commit.
+     * */
+    public CompletableFuture<Void> commit() {
+        return flusher.commit();
+    }
+
+    /**
+     * The log of the payloads shared by the queues.
+     * */
+    public PayloadLog payloadLog() {
+        return payloadLog;
+    }
+
+    private void forceMetadata() throws QueueException {
+        payloadLog.force();
+        forceJournal();
+    }
+
+    private void forceJournal() throws QueueException {
+        // in lock, so that the journal isn't switched by a checkpoint before it's forced
+        journalLock.readLock().lock();
+        try {
+            if (journal != null) {
+                journal.force();
+            }
+        } finally {
+            journalLock.readLock().unlock();
+        }
+    }
+
     /**
      * Free mapped files
      * */
-    public void close() throws QueueException {
-        allocator.close();
+    public synchronized void close() throws QueueException {
+        flusher.close();
+        final Set<Integer> unreferencedPayloads = payloadLog.unreferencedFiles();
+        final Properties checkpoint = new Properties();
+        final long generation;
+        journalLock.writeLock().lock();
+        try {
+            allocatorLock.lock();
+            try {
+                allocator.close();
+            } finally {
+                allocatorLock.unlock();
+            }
+
+            //save all into the checkpoint file
+            dumpAllocator(checkpoint);
+            dumpQueues(checkpoint, true);
+            // exact now that the queues are still, so that the next load doesn't count them
+            final Map<Integer, Integer> payloadReferences = payloadLog.references();
+            if (payloadReferences != null) {
+                checkpoint.setProperty(PAYLOAD_REFERENCES, payloadReferences.entrySet().stream()
+                    .map(fileReferences -> fileReferences.getKey() + ":" + fileReferences.getValue())
+                    .collect(Collectors.joining(", ")));
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            closed = true;
+            // the checkpoint contains everything, no journal to replay
+            generation = journalGeneration + 1;
+            journalGeneration = generation;
+        } finally {
+            journalLock.writeLock().unlock();
+        }
+        storeCheckpoint(checkpoint, generation);
+        payloadLog.delete(unreferencedPayloads);
+        payloadLog.close();
+        pageCache.close();
+    }
 
-        //save all into the checkpoint file
-        Properties checkpoint = new Properties();
-        allocator.dumpState(checkpoint);
+    private void dumpAllocator(Properties checkpoint) {
+        allocatorLock.lock();
+        try {
+            allocator.dumpState(checkpoint);
+        } finally {
+            allocatorLock.unlock();
+        }
+    }
 
+    // to be called holding the write lock of journalLock
+    private void dumpQueues(Properties checkpoint, boolean includeHeads) {
         int queueCounter = 0;
-        for (Map.Entry<QueueName, LinkedList<SegmentRef>> entry : queueSegments.entrySet()) {
-            // queues.0.name = bla bla
+        for (Map.Entry<QueueName, QueueSegments> entry : queueSegments.entrySet()) {
             final QueueName queueName = entry.getKey();
+            final QueueSegments queueState = entry.getValue();
+            final Queue queue = queues.get(queueName);
+            final LinkedList<SegmentRef> segmentRefs;
+            final long tailOffset;
+            synchronized (queueState) {
+                segmentRefs = new LinkedList<>(queueState.segments());
+                // the segments consumed by a running dequeue are still part of the queue
+                for (int i = queueState.consumed.size() - 1; i >= 0; i--) {
+                    segmentRefs.addLast(queueState.consumed.get(i));
+                }
+                tailOffset = queue != null ? tailOffset(queueState, queue) : -1;
+            }
+            if (queue == null || segmentRefs.isEmpty()) {
+                continue;
+            }
+
+            // queues.0.name = bla bla
             checkpoint.setProperty("queues." + queueCounter + ".name", queueName.name);
 
             // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-            final LinkedList<SegmentRef> segmentRefs = entry.getValue();
             final String segmentsDef = segmentRefs.stream()
                 .map(SegmentRef::toString)
                 .collect(Collectors.joining(", "));
             checkpoint.setProperty("queues." + queueCounter + ".segments", segmentsDef);
 
             // queues.0.head_offset = bytes offset from the start of the page where last data was written
-            final Queue queue = queues.get(queueName);
-            checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(queue.currentHead().segmentOffset(segmentSize)));
-            checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(queue.currentTail().segmentOffset(segmentSize)));
+            if (includeHeads) {
+                checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(queue.currentHead().segmentOffset(segmentSize)));
+            }
+            checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(tailOffset));
+            queueCounter++;
         }
+    }
 
-        final File propertiesFile = dataPath.resolve("checkpoint.properties").toFile();
-        final FileWriter fileWriter;
-        try {
-            fileWriter = new FileWriter(propertiesFile);
+    /**
+     * The tail of the queue is read while the queue could be dequeuing, so it's used only if it's inside
+     * the tail segment of the checkpoint, else the tail recorded in the journal is used.
+     *
+     * To be called holding the lock of the queue state.
+     * */
+    private long tailOffset(QueueSegments queueState, Queue queue) {
+        final VirtualPointer currentTail = queue.currentTail();
+        final long tailSegmentIndex = Math.max(currentTail.logicalOffset(), 0) / segmentSize;
+        if (queueState.consumed.isEmpty() && tailSegmentIndex == queueState.consumedCount) {
+            return currentTail.segmentOffset(segmentSize);
+        }
+        return queueState.recordedTailOffset;
+    }
+
+    private void storeCheckpoint(Properties checkpoint, long generation) throws QueueException {
+        checkpoint.setProperty(JOURNAL_GENERATION, String.valueOf(generation));
+        final Path checkpointPath = dataPath.resolve(CHECKPOINT_FILE);
+        final Path tmpPath = dataPath.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpPath.toFile());
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.ISO_8859_1)) {
+            checkpoint.store(writer, "DON'T EDIT, AUTOGENERATED");
+            writer.flush();
+            out.getFD().sync();
         } catch (IOException ex) {
-            throw new QueueException("Problem opening checkpoint.properties file", ex);
+            throw new QueueException("Problem writing checkpoint.properties file", ex);
         }
         try {
-            checkpoint.store(fileWriter, "DON'T EDIT, AUTOGENERATED");
+            Files.move(tmpPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
-            throw new QueueException("Problem writing checkpoint.properties file", ex);
+            throw new QueueException("Problem replacing checkpoint.properties file", ex);
         }
+        SegmentsJournal.deleteBefore(dataPath, generation);
     }
 
+    /**
+     * Open the tail segment of the queue, the returned segment holds a reference to its page, to be released with
+     * {@link #releaseSegment(Segment)}.
+     * */
     Optional<Segment> openNextTailSegment(String name) throws QueueException {
-        // definition from QueuePool.queueSegments
-        final QueueName queueName = new QueueName(name);
-        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
-
-        final SegmentRef pollSegment = segmentRefs.peekLast();
+        final SegmentRef pollSegment = queueSegments.get(new QueueName(name)).tail();
         if (pollSegment == null) {
             return Optional.empty();
         }
 
-        final Path pageFile = dataPath.resolve(String.format("%d.page", pollSegment.pageId));
-        if (!Files.exists(pageFile)) {
-            throw new QueueException("Can't find file for page file" + pageFile);
+        final MappedByteBuffer tailPage = pageCache.acquireExisting(pollSegment.pageId);
+        final SegmentPointer begin = new SegmentPointer(pollSegment.pageId, pollSegment.offset);
+        final SegmentPointer end = new SegmentPointer(pollSegment.pageId, pollSegment.offset + segmentSize - 1);
+        return Optional.of(new Segment(tailPage, begin, end));
+    }
+
+    /**
+     * Open the head segment of the queue, the returned segment holds a reference to its page, to be released with
+     * {@link #releaseSegment(Segment)}.
+     * */
+    Segment openHeadSegment(String name) throws QueueException {
+        final SegmentRef headSegment = queueSegments.get(new QueueName(name)).head();
+        if (headSegment == null) {
+            throw new QueueException("Invalid state, queue " + name + " without segments");
         }
+        return allocator.reopenSegment(headSegment.pageId, headSegment.offset);
+    }
 
-        final MappedByteBuffer tailPage;
-        try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            tailPage = fileChannel.map(FileChannel.MapMode.READ_WRITE/*READ_ONLY*/, 0, allocator.getPageSize());
-        } catch (IOException ex) {
-            throw new QueueException("Can't open page file " + pageFile, ex);
+    /**
+     * Release the reference to its page held by a segment no more used.
+     * */
+    void releaseSegment(Segment segment) {
+        pageCache.release(segment.begin.pageId());
+    }
+
+    // visible for testing
+    int mappedPages() {
+        return pageCache.mappedPages();
+    }
+
+    /**
+     * Notify the start of an enqueue that crosses segments, the segments at the head of the queue can't be relocated
+     * till the end of the enqueue.
+     * */
+    void headWriteStarted(String name) {
+        final QueueSegments queue = queueSegments.get(new QueueName(name));
+        synchronized (queue) {
+            queue.headWriting = true;
         }
+    }
 
-        final SegmentPointer begin = new SegmentPointer(pollSegment.pageId, pollSegment.offset);
-        final SegmentPointer end = new SegmentPointer(pollSegment.pageId, pollSegment.offset + segmentSize - 1);
-        return Optional.of(new Segment(tailPage, begin, end));
+    void headWriteCompleted(String name) {
+        final QueueSegments queue = queueSegments.get(new QueueName(name));
+        synchronized (queue) {
+            queue.headWriting = false;
+        }
+    }
+
+    /**
+     * Try to reclaim the last page of the files, moving its segments in use into free segments of the previous
+     * pages. The page is reclaimed only if it contains at most maxRelocations segments in use, all between the
+     * head and the tail of their queues, that are the segments not opened by the queues.
+     *
+     * The relocations are recorded by a checkpoint, after which the page file is deleted: till then the moved
+     * segments are still valid at their old position, so a crash recovers them from there.
+     *
+     * @param maxRelocations maximum number of segments copied, it bounds the I/O of a single call.
+     * @return true if the last page was reclaimed.
+     * */
+    public synchronized boolean compact(int maxRelocations) throws QueueException {
+        if (closed) {
+            return false;
+        }
+        final int lastPage;
+        allocatorLock.lock();
+        try {
+            lastPage = allocator.lastPage();
+        } finally {
+            allocatorLock.unlock();
+        }
+        if (lastPage == 0) {
+            return false;
+        }
+        final Map<SegmentRef, QueueName> liveSegments = segmentsInUse(lastPage);
+        if (liveSegments.size() > maxRelocations) {
+            LOG.debug("Page {} has {} segments in use, not compacted", lastPage, liveSegments.size());
+            return false;
+        }
+
+        // the free segments of the page can't be reused anymore, nor be a destination of the relocations
+        final List<SegmentRef> freedSegments = recycledSegments.removePage(lastPage);
+        boolean relocated = false;
+        boolean reclaimed = false;
+        try {
+            for (Map.Entry<SegmentRef, QueueName> liveSegment : liveSegments.entrySet()) {
+                if (!relocate(liveSegment.getValue(), liveSegment.getKey(), lastPage)) {
+                    return false;
+                }
+                relocated = true;
+                freedSegments.add(liveSegment.getKey());
+            }
+            reclaimed = reclaimLastPage(lastPage, freedSegments);
+            return reclaimed;
+        } finally {
+            if (!reclaimed) {
+                if (relocated) {
+                    // the old positions of the moved segments can be reused only once no journal replay
+                    // can reference them
+                    checkpoint();
+                }
+                recycledSegments.addAll(freedSegments);
+            }
+        }
+    }
+
+    private Map<SegmentRef, QueueName> segmentsInUse(int pageId) {
+        final Map<SegmentRef, QueueName> segments = new LinkedHashMap<>();
+        for (Map.Entry<QueueName, QueueSegments> entry : queueSegments.entrySet()) {
+            for (SegmentRef segment : entry.getValue().segments()) {
+                if (segment.pageId == pageId) {
+                    segments.put(segment, entry.getKey());
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Copy the segment into a free one of the previous pages, and replace it in its queue.
+     *
+     * @return false if the segment can't be moved.
+     * */
+    private boolean relocate(QueueName queueName, SegmentRef segment, int reclaimedPage) throws QueueException {
+        final SegmentRef destination = recycledSegments.poll();
+        if (destination == null || destination.pageId >= reclaimedPage) {
+            LOG.debug("No free segment to move the segment {} of queue {}", segment, queueName);
+            if (destination != null) {
+                recycledSegments.add(destination);
+            }
+            return false;
+        }
+        final QueueSegments queue = queueSegments.get(queueName);
+        final Segment source = allocator.reopenSegment(segment.pageId, segment.offset);
+        final Segment target = allocator.reopenSegment(destination.pageId, destination.offset);
+        try {
+            synchronized (queue) {
+                if (!isMiddleSegment(queue, segment)) {
+                    LOG.debug("Segment {} of queue {} is in use by the queue, not moved", segment, queueName);
+                    recycledSegments.add(destination);
+                    return false;
+                }
+            }
+            // a middle segment is neither written nor read, so it's copied and synced without blocking the queue
+            target.copyFrom(source);
+            // on disk before a checkpoint can reference it
+            target.force();
+            synchronized (queue) {
+                // consumed or reached by the tail during the copy
+                if (!isMiddleSegment(queue, segment) || !queue.replaceMiddle(segment, destination)) {
+                    LOG.debug("Segment {} of queue {} was reached by the queue while moved, not moved", segment,
+                        queueName);
+                    recycledSegments.add(destination);
+                    return false;
+                }
+            }
+            LOG.debug("Moved segment {} of queue {} to {}", segment, queueName, destination);
+            return true;
+        } finally {
+            releaseSegment(source);
+            releaseSegment(target);
+        }
+    }
+
+    // guarded by the lock of the queue
+    private static boolean isMiddleSegment(QueueSegments queue, SegmentRef segment) {
+        return !queue.headWriting && queue.segments().contains(segment) &&
+            !segment.equals(queue.head()) && !segment.equals(queue.tail());
+    }
+
+    /**
+     * Delete the last page if none of its segments is in use, the allocator moves back to the previous page.
+     *
+     * @param freedSegments the free segments of the page, cleared once the page is released by the allocator.
+     * */
+    private boolean reclaimLastPage(int pageId, List<SegmentRef> freedSegments) throws QueueException {
+        allocatorLock.lock();
+        try {
+            compactionLock.writeLock().lock();
+            try {
+                // the only reference left must be the one of the allocator, else a segment has been taken by an
+                // enqueue that could still have to add it to its queue, so the references are checked first
+                if (allocator.lastPage() != pageId || pageCache.references(pageId) > 1) {
+                    return false;
+                }
+                if (!segmentsInUse(pageId).isEmpty() || isConsumedSegment(pageId)) {
+                    return false;
+                }
+                // recycled during the relocations
+                recycledSegments.removePage(pageId);
+                allocator.releaseLastPage();
+                freedSegments.clear();
+            } finally {
+                compactionLock.writeLock().unlock();
+            }
+            // in allocator lock, so that a new page isn't created till the file is deleted
+            checkpoint();
+            pageCache.delete(pageId);
+        } finally {
+            allocatorLock.unlock();
+        }
+        LOG.info("Reclaimed page {}", pageId);
+        return true;
+    }
+
+    private boolean isConsumedSegment(int pageId) {
+        for (QueueSegments queue : queueSegments.values()) {
+            synchronized (queue) {
+                for (SegmentRef segment : queue.consumed) {
+                    if (segment.pageId == pageId) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -459,32 +1204,69 @@ public class QueuePool {
      * */
     void consumedTailSegment(String name) {
         final QueueName queueName = new QueueName(name);
-        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
-        final SegmentRef segmentRef = segmentRefs.pollLast();
+        final QueueSegments queue = queueSegments.get(queueName);
+        final SegmentRef segmentRef;
+        synchronized (queue) {
+            segmentRef = queue.pollTail();
+            // not yet recycled, the journal still references it
+            queue.consumed.add(segmentRef);
+            queue.consumedCount++;
+        }
         LOG.debug("Consumed tail segment {} from queue {}", segmentRef, queueName);
-        segmentsAllocationLock.lock();
+    }
+
+    /**
+     * Notify the end of a dequeue that consumed tail segments, recording the new tail, so that the consumed
+     * segments can be reused.
+     * */
+    void tailSegmentsConsumed(String name, VirtualPointer tail) throws QueueException {
+        final QueueName queueName = new QueueName(name);
+        final long tailOffset = tail.segmentOffset(segmentSize);
+        final QueueSegments queue = queueSegments.get(queueName);
+        journalLock.readLock().lock();
         try {
-            recycledSegments.add(segmentRef);
+            synchronized (queue) {
+                if (journal != null) {
+                    journal.tailSegmentsConsumed(name, queue.consumed.size(), tailOffset);
+                }
+                queue.recordedTailOffset = tailOffset;
+                recycledSegments.addAll(queue.consumed);
+                queue.consumed.clear();
+            }
         } finally {
-            segmentsAllocationLock.unlock();
+            journalLock.readLock().unlock();
         }
     }
 
+    /**
+     * A recycled segment, if any, else a new one from the allocator. Only the creation of a new segment is done
+     * in lock.
+     * */
     Segment nextFreeSegment() throws QueueException {
-        segmentsAllocationLock.lock();
+        compactionLock.readLock().lock();
         try {
-            if (recycledSegments.isEmpty()) {
-                LOG.debug("no recycled segments available, request the creation of new one");
-                return allocator.nextFreeSegment();
-            }
-            final SegmentRef recycledSegment = recycledSegments.pollFirst();
-            if (recycledSegment == null) {
-                throw new QueueException("Invalid state, expected available recycled segment");
+            final SegmentRef recycledSegment = recycledSegments.poll();
+            if (recycledSegment != null) {
+                LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId, recycledSegment.offset);
+                return clearStart(allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset));
             }
-            LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId, recycledSegment.offset);
-            return allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset);
         } finally {
-            segmentsAllocationLock.unlock();
+            compactionLock.readLock().unlock();
+        }
+        LOG.debug("no recycled segments available, request the creation of new one");
+        allocatorLock.lock();
+        try {
+            return clearStart(allocator.nextFreeSegment());
+        } finally {
+            allocatorLock.unlock();
         }
     }
+
+    /**
+     * A segment could contain old messages, its start is zeroed so that a scan after a crash doesn't read them.
+     * */
+    private static Segment clearStart(Segment segment) {
+        segment.clearAfter(VirtualPointer.buildUntouched(), Queue.LENGTH_HEADER_SIZE);
+        return segment;
+    }
 }
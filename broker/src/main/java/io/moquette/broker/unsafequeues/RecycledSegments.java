@@ -0,0 +1,99 @@
+package io.moquette.broker.unsafequeues;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The segments free to be reused, split in stripes so that the threads enqueuing on different queues don't
+ * contend on the same free list.
+ *
+ * A thread recycles the segments in its own stripe and polls them from it, taking from the other stripes only when
+ * its own is empty. Every stripe is sorted, so that the segments of the first pages are reused first and the last
+ * pages tend to empty.
+ * */
+final class RecycledSegments {
+
+    private final ConcurrentSkipListSet<QueuePool.SegmentRef>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    RecycledSegments(int stripesCount) {
+        if (stripesCount <= 0) {
+            throw new IllegalArgumentException("At least one stripe is needed, found " + stripesCount);
+        }
+        stripes = new ConcurrentSkipListSet[stripesCount];
+        for (int i = 0; i < stripesCount; i++) {
+            stripes[i] = new ConcurrentSkipListSet<>();
+        }
+    }
+
+    void add(QueuePool.SegmentRef segment) {
+        stripes[ownStripe()].add(segment);
+    }
+
+    void addAll(Collection<QueuePool.SegmentRef> segments) {
+        stripes[ownStripe()].addAll(segments);
+    }
+
+    /**
+     * Spread the segments over all the stripes, used when they are loaded.
+     * */
+    void distribute(Collection<QueuePool.SegmentRef> segments) {
+        int i = 0;
+        for (QueuePool.SegmentRef segment : segments) {
+            stripes[i++ % stripes.length].add(segment);
+        }
+    }
+
+    /**
+     * @return the first free segment of the stripe of the current thread, or of the other stripes if it's empty,
+     * null if no segment is free.
+     * */
+    QueuePool.SegmentRef poll() {
+        final int own = ownStripe();
+        for (int i = 0; i < stripes.length; i++) {
+            final QueuePool.SegmentRef segment = stripes[(own + i) % stripes.length].pollFirst();
+            if (segment != null) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the free segments of the page.
+     *
+     * @return the removed segments.
+     * */
+    List<QueuePool.SegmentRef> removePage(int pageId) {
+        final List<QueuePool.SegmentRef> removed = new ArrayList<>();
+        final QueuePool.SegmentRef pageStart = new QueuePool.SegmentRef(pageId, 0);
+        final QueuePool.SegmentRef nextPageStart = new QueuePool.SegmentRef(pageId + 1, 0);
+        for (ConcurrentSkipListSet<QueuePool.SegmentRef> stripe : stripes) {
+            QueuePool.SegmentRef segment;
+            while ((segment = stripe.subSet(pageStart, nextPageStart).pollFirst()) != null) {
+                removed.add(segment);
+            }
+        }
+        return removed;
+    }
+
+    List<QueuePool.SegmentRef> toList() {
+        final List<QueuePool.SegmentRef> segments = new ArrayList<>();
+        for (ConcurrentSkipListSet<QueuePool.SegmentRef> stripe : stripes) {
+            segments.addAll(stripe);
+        }
+        return segments;
+    }
+
+    private int ownStripe() {
+        // the session loops are long living threads, each one keeps using the same stripe
+        return (int) (Thread.currentThread().getId() % stripes.length);
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
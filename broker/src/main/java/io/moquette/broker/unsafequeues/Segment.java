@@ -44,7 +44,6 @@ final class Segment {
     }
 
     void write(SegmentPointer offset, ByteBuffer content) {
-        checkContentStartWith(content);
         final int startPos = offset.offset();
         final int endPos = startPos + content.remaining();
         for (int i = startPos; i < endPos; i++) {
@@ -61,13 +60,6 @@ final class Segment {
         }
     }
 
-    // debug method
-    private void checkContentStartWith(ByteBuffer content) {
-        if (content.get(0) == 0 && content.get(1) == 0 && content.get(2) == 0 && content.get(3) == 0) {
-            System.out.println("DNADBG content starts with 4 zero");
-        }
-    }
-
     void write(VirtualPointer offset, ByteBuffer content) {
         final int startPos = rebasedOffset(offset);
         final int endPos = startPos + content.remaining();
@@ -76,6 +68,24 @@ final class Segment {
         }
     }
 
+    /**
+     * Copy all the bytes of the source segment, of the same size, into this.
+     * */
+    void copyFrom(Segment source) {
+        region(begin.offset(), segmentSize).put(source.region(source.begin.offset(), segmentSize));
+    }
+
+    /**
+     * Zero up to length bytes after the mark, without crossing the end of the segment.
+     * */
+    void clearAfter(VirtualPointer mark, int length) {
+        final int startPos = rebasedOffset(mark.plus(1));
+        final int clearSize = (int) Math.min(length, bytesAfter(mark));
+        for (int i = startPos; i < startPos + clearSize; i++) {
+            mappedBuffer.put(i, (byte) 0);
+        }
+    }
+
     /**
      * Force flush of memory mapper buffer to disk
      * */
@@ -105,31 +115,42 @@ final class Segment {
     }
 
     public ByteBuffer read(VirtualPointer start, int length) {
-        final int pageOffset = rebasedOffset(start);
-        byte[] dst = new byte[length];
-
-        int sourceIdx = pageOffset;
-        for (int dstIndex = 0; dstIndex < length; dstIndex++, sourceIdx++) {
-            dst[dstIndex] = mappedBuffer.get(sourceIdx);
-        }
-
+        final byte[] dst = new byte[length];
+        readInto(start, dst, 0, length);
         return ByteBuffer.wrap(dst);
     }
 
-    public ByteBuffer read(SegmentPointer start, int length) {
-        byte[] dst = new byte[length];
+    /**
+     * Copy length bytes starting from the pointer into the array.
+     * */
+    void readInto(VirtualPointer start, byte[] dst, int dstOffset, int length) {
+        region(rebasedOffset(start), length).get(dst, dstOffset, length);
+    }
 
+    public ByteBuffer read(SegmentPointer start, int length) {
         if (length > mappedBuffer.remaining() - start.offset())
             throw new BufferUnderflowException();
 
-        int sourceIdx = start.offset();
-        for (int dstIndex = 0; dstIndex < length; dstIndex++, sourceIdx++) {
-            dst[dstIndex] = mappedBuffer.get(sourceIdx);
-        }
-
+        final byte[] dst = new byte[length];
+        region(start.offset(), length).get(dst);
         return ByteBuffer.wrap(dst);
     }
 
+    /**
+     * @return a read only view of the mapped bytes starting from the pointer, without copying them. The view is
+     * valid only as long as the segment isn't recycled.
+     * */
+    ByteBuffer view(VirtualPointer start, int length) {
+        return region(rebasedOffset(start), length).slice().asReadOnlyBuffer();
+    }
+
+    private ByteBuffer region(int pageOffset, int length) {
+        // a duplicate, the position of the mapped buffer is shared by all the segments of the page
+        final ByteBuffer region = mappedBuffer.duplicate();
+        region.limit(pageOffset + length).position(pageOffset);
+        return region;
+    }
+
     private long size() {
         return end.distance(begin) + 1;
     }
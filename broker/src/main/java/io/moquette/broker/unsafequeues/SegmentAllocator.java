@@ -13,8 +13,23 @@ interface SegmentAllocator {
      * */
     Segment nextFreeSegment() throws QueueException;
 
+    /**
+     * Like the allocated ones, the reopened segment holds a reference to its page, to be released when it's no more
+     * used.
+     * */
     Segment reopenSegment(int pageId, int beginOffset) throws QueueException;
 
+    /**
+     * @return the page from which the new segments are allocated.
+     * */
+    int lastPage();
+
+    /**
+     * Give back the last page, that must not contain any segment in use, the allocation continues from a new page
+     * after the previous one.
+     * */
+    void releaseLastPage() throws QueueException;
+
     void close() throws QueueException;
 
     void dumpState(Properties checkpoint);
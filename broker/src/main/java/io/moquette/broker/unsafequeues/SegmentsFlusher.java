@@ -0,0 +1,173 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Forces to disk the pages written by the enqueues, accordingly to the {@link QueueDurability} of the pool.
+ *
+ * The enqueues only mark the written page as dirty, the pages are forced by a dedicated thread, so one msync
+ * covers all the messages written in the page since the previous one.
+ * */
+final class SegmentsFlusher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentsFlusher.class);
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    /**
+     * Forces the metadata of the segments, so that the forced pages are reachable after a crash.
+     * */
+    interface MetadataSync {
+
+        void force() throws QueueException;
+    }
+
+    private final QueueDurability durability;
+    private final MetadataSync metadataSync;
+    // page id to a segment of that page
+    private final ConcurrentMap<Integer, Segment> dirtyPages = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> waitingCommits = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+
+    static SegmentsFlusher noFlush() {
+        return new SegmentsFlusher(QueueDurability.NONE, 0, () -> {});
+    }
+
+    /**
+     * @param flushIntervalMillis the interval between the flushes in {@link QueueDurability#PERIODIC} mode.
+     * */
+    SegmentsFlusher(QueueDurability durability, int flushIntervalMillis, MetadataSync metadataSync) {
+        this.durability = durability;
+        this.metadataSync = metadataSync;
+        if (durability == QueueDurability.NONE) {
+            this.executor = null;
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread flusherThread = new Thread(r, "segmented-queues-flusher");
+            flusherThread.setDaemon(true);
+            return flusherThread;
+        });
+        if (durability == QueueDurability.PERIODIC) {
+            executor.scheduleWithFixedDelay(this::periodicFlush, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notify the segment has been written. To be called after the write.
+     * */
+    void written(Segment segment) {
+        if (durability == QueueDurability.NONE) {
+            return;
+        }
+        final Integer pageId = segment.begin.pageId();
+        // avoid the lock of the map when the page is already marked
+        if (!dirtyPages.containsKey(pageId)) {
+            dirtyPages.putIfAbsent(pageId, segment);
+        }
+    }
+
+    boolean isGroupCommit() {
+        return durability == QueueDurability.GROUP_COMMIT;
+    }
+
+    /**
+     * @return a future completed when all the segments written before this call are forced to disk, immediately
+     * completed if the durability mode is not group commit.
+     * */
+    CompletableFuture<Void> commit() {
+        if (durability != QueueDurability.GROUP_COMMIT) {
+            return DONE;
+        }
+        final CompletableFuture<Void> commit = new CompletableFuture<>();
+        waitingCommits.add(commit);
+        if (commitScheduled.compareAndSet(false, true)) {
+            // the commits requested while this one is forcing the pages are grouped in the next
+            try {
+                executor.execute(this::groupCommit);
+            } catch (RejectedExecutionException ex) {
+                commit.completeExceptionally(new QueueException("Queue pool closed", ex));
+            }
+        }
+        return commit;
+    }
+
+    private void groupCommit() {
+        commitScheduled.set(false);
+        final List<CompletableFuture<Void>> commits = new ArrayList<>();
+        CompletableFuture<Void> commit;
+        while ((commit = waitingCommits.poll()) != null) {
+            commits.add(commit);
+        }
+        if (commits.isEmpty()) {
+            return;
+        }
+        try {
+            flush();
+        } catch (QueueException | RuntimeException ex) {
+            LOG.error("Error forcing {} segmented queues pages, failing {} commits", dirtyPages.size(), commits.size(), ex);
+            commits.forEach(c -> c.completeExceptionally(ex));
+            return;
+        }
+        commits.forEach(c -> c.complete(null));
+    }
+
+    private void periodicFlush() {
+        try {
+            flush();
+        } catch (QueueException | RuntimeException ex) {
+            LOG.error("Error forcing segmented queues pages", ex);
+        }
+    }
+
+    private void flush() throws QueueException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        int forcedPages = 0;
+        for (Map.Entry<Integer, Segment> dirtyPage : dirtyPages.entrySet()) {
+            // removed before forcing, a write after the force marks it again
+            if (dirtyPages.remove(dirtyPage.getKey(), dirtyPage.getValue())) {
+                dirtyPage.getValue().force();
+                forcedPages++;
+            }
+        }
+        metadataSync.force();
+        LOG.trace("Forced {} pages", forcedPages);
+    }
+
+    /**
+     * Stop the flushes and force the pages not yet forced.
+     * */
+    void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOG.warn("Segmented queues flusher didn't terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        groupCommit();
+        periodicFlush();
+    }
+}
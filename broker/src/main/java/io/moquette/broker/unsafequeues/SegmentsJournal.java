@@ -0,0 +1,224 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes to the segments lists of the queues, done after the last checkpoint.
+ *
+ * An entry is appended when a segment is added to the head of a queue and when a dequeue completes the consumption of
+ * tail segments, so only a few times every segment size bytes and never for the single message.
+ * The entries are not forced to disk: after a crash of the process they are anyway in the OS cache.
+ * Every entry is protected by a CRC, the replay stops at the first truncated or corrupted one.
+ *
+ * Every checkpoint starts a new journal, identified by a generation number, and the checkpoint file records the
+ * generation from which the replay has to start.
+ *
+ * The appends of different queues can be concurrent, each entry is written in a single synchronized write.
+ * */
+final class SegmentsJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentsJournal.class);
+
+    private static final Pattern JOURNAL_FILE = Pattern.compile("segments-(\\d+)\\.journal");
+    private static final byte SEGMENT_ADDED = 1;
+    private static final byte TAIL_SEGMENTS_CONSUMED = 2;
+    // length of the entry and CRC
+    private static final int ENTRY_FRAME_SIZE = 8;
+
+    /**
+     * Receives the entries of the journals during the replay.
+     * */
+    interface Replayer {
+
+        void segmentAdded(String queueName, int pageId, int offset);
+
+        void tailSegmentsConsumed(String queueName, int consumedSegments, long tailOffset);
+    }
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    private SegmentsJournal(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static SegmentsJournal create(Path dataPath, long generation) throws QueueException {
+        final Path journalFile = journalPath(dataPath, generation);
+        try {
+            return new SegmentsJournal(FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        } catch (IOException ex) {
+            throw new QueueException("Can't open the segments journal " + journalFile, ex);
+        }
+    }
+
+    private static Path journalPath(Path dataPath, long generation) {
+        return dataPath.resolve(String.format("segments-%d.journal", generation));
+    }
+
+    void segmentAdded(String queueName, QueuePool.SegmentRef segment) throws QueueException {
+        final byte[] name = queueName.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer entry = newEntry(1 + 4 + name.length + 4 + 4)
+            .put(SEGMENT_ADDED)
+            .putInt(name.length)
+            .put(name)
+            .putInt(segment.pageId)
+            .putInt(segment.offset);
+        append(entry);
+    }
+
+    void tailSegmentsConsumed(String queueName, int consumedSegments, long tailOffset) throws QueueException {
+        final byte[] name = queueName.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer entry = newEntry(1 + 4 + name.length + 4 + 8)
+            .put(TAIL_SEGMENTS_CONSUMED)
+            .putInt(name.length)
+            .put(name)
+            .putInt(consumedSegments)
+            .putLong(tailOffset);
+        append(entry);
+    }
+
+    private static ByteBuffer newEntry(int bodySize) {
+        return ByteBuffer.allocate(bodySize + ENTRY_FRAME_SIZE).putInt(bodySize);
+    }
+
+    private synchronized void append(ByteBuffer entry) throws QueueException {
+        crc.reset();
+        crc.update(entry.array(), 4, entry.position() - 4);
+        entry.putInt((int) crc.getValue());
+        entry.flip();
+        try {
+            // a single write, a crash of the process can't leave a partial entry
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Can't append to the segments journal", ex);
+        }
+    }
+
+    void force() throws QueueException {
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            throw new QueueException("Can't force the segments journal", ex);
+        }
+    }
+
+    void close() throws QueueException {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new QueueException("Can't close the segments journal", ex);
+        }
+    }
+
+    /**
+     * Replay, in order, the entries of all the journals with generation equal or greater than the given one.
+     * */
+    static void replay(Path dataPath, long fromGeneration, Replayer replayer) throws QueueException {
+        final long lastGeneration = journalGenerations(dataPath).stream()
+            .mapToLong(Long::longValue)
+            .max()
+            .orElse(-1);
+        for (long generation = fromGeneration; generation <= lastGeneration; generation++) {
+            final Path journalFile = journalPath(dataPath, generation);
+            if (!Files.exists(journalFile)) {
+                continue;
+            }
+            try {
+                replay(ByteBuffer.wrap(Files.readAllBytes(journalFile)), replayer, journalFile);
+            } catch (IOException ex) {
+                throw new QueueException("Can't read the segments journal " + journalFile, ex);
+            }
+        }
+    }
+
+    private static void replay(ByteBuffer journal, Replayer replayer, Path journalFile) {
+        final CRC32 crc = new CRC32();
+        int entries = 0;
+        while (journal.hasRemaining()) {
+            try {
+                final int bodySize = journal.getInt();
+                final int bodyStart = journal.position();
+                if (bodySize <= 0 || bodySize > journal.remaining() - 4) {
+                    LOG.warn("Truncated entry at position {} in journal {}, ignoring the rest", bodyStart - 4, journalFile);
+                    return;
+                }
+                crc.reset();
+                crc.update(journal.array(), bodyStart, bodySize);
+                if (journal.getInt(bodyStart + bodySize) != (int) crc.getValue()) {
+                    LOG.warn("Corrupted entry at position {} in journal {}, ignoring the rest", bodyStart - 4, journalFile);
+                    return;
+                }
+                final byte type = journal.get();
+                final byte[] name = new byte[journal.getInt()];
+                journal.get(name);
+                final String queueName = new String(name, StandardCharsets.UTF_8);
+                if (type == SEGMENT_ADDED) {
+                    replayer.segmentAdded(queueName, journal.getInt(), journal.getInt());
+                } else if (type == TAIL_SEGMENTS_CONSUMED) {
+                    replayer.tailSegmentsConsumed(queueName, journal.getInt(), journal.getLong());
+                } else {
+                    LOG.warn("Unknown entry type {} in journal {}, ignoring the rest", type, journalFile);
+                    return;
+                }
+                // skip the CRC
+                journal.position(bodyStart + bodySize + 4);
+                entries++;
+            } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+                LOG.warn("Malformed entry in journal {}, ignoring the rest", journalFile);
+                return;
+            }
+        }
+        LOG.debug("Replayed {} entries from journal {}", entries, journalFile);
+    }
+
+    /**
+     * Delete the journals older than the given generation, they are all covered by a checkpoint.
+     * */
+    static void deleteBefore(Path dataPath, long generation) {
+        for (Long oldGeneration : journalGenerations(dataPath)) {
+            if (oldGeneration >= generation) {
+                continue;
+            }
+            final Path journalFile = journalPath(dataPath, oldGeneration);
+            try {
+                Files.deleteIfExists(journalFile);
+            } catch (IOException ex) {
+                LOG.warn("Can't delete the old segments journal {}", journalFile, ex);
+            }
+        }
+    }
+
+    private static List<Long> journalGenerations(Path dataPath) {
+        final List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dataPath, "segments-*.journal")) {
+            for (Path file : files) {
+                final Matcher matcher = JOURNAL_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Can't list the segments journals in {}", dataPath, ex);
+        }
+        return generations;
+    }
+}
@@ -20,10 +20,34 @@ public class H2Builder {
 
     private static final Logger LOG = LoggerFactory.getLogger(H2Builder.class);
 
+    /**
+     * Compression of the pages written by the MVStore.
+     * */
+    public enum Compression {
+        NONE, FAST, HIGH;
+
+        public static Compression parse(String value) {
+            switch (value.trim().toLowerCase()) {
+                case "none":
+                    return NONE;
+                case "fast":
+                    return FAST;
+                case "high":
+                    return HIGH;
+                default:
+                    throw new IllegalArgumentException("Invalid H2 compression '" + value
+                        + "', admitted values are none, fast and high");
+            }
+        }
+    }
+
     private final String storePath;
     private final int autosaveInterval; // in seconds
     private final ScheduledExecutorService scheduler;
     private final Clock clock;
+    private int cacheSize; // in MB, 0 for the H2 default
+    private Compression compression = Compression.NONE;
+    private int autoCommitBufferSize; // in KB, 0 for the H2 default
     private MVStore mvStore;
 
     public H2Builder(ScheduledExecutorService scheduler, Path storePath, int autosaveInterval, Clock clock) {
@@ -33,6 +57,28 @@ public class H2Builder {
         this.clock = clock;
     }
 
+    /**
+     * @param cacheSize size in MB of the cache of the read pages, 0 to use the H2 default.
+     * */
+    public H2Builder cacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public H2Builder compression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param autoCommitBufferSize size in KB of the changes not yet committed over which they are written without
+     *                             waiting the commit interval, 0 to use the H2 default.
+     * */
+    public H2Builder autoCommitBufferSize(int autoCommitBufferSize) {
+        this.autoCommitBufferSize = autoCommitBufferSize;
+        return this;
+    }
+
     @SuppressWarnings("FutureReturnValueIgnored")
     public H2Builder initStore() {
         LOG.info("Initializing H2 store to {}", storePath);
@@ -48,10 +94,21 @@ public class H2Builder {
             }
         }
 
-        mvStore = new MVStore.Builder()
+        final MVStore.Builder builder = new MVStore.Builder()
             .fileName(storePath)
-            .autoCommitDisabled()
-            .open();
+            .autoCommitDisabled();
+        if (cacheSize > 0) {
+            builder.cacheSize(cacheSize);
+        }
+        if (autoCommitBufferSize > 0) {
+            builder.autoCommitBufferSize(autoCommitBufferSize);
+        }
+        if (compression == Compression.FAST) {
+            builder.compress();
+        } else if (compression == Compression.HIGH) {
+            builder.compressHigh();
+        }
+        mvStore = builder.open();
 
         LOG.trace("Scheduling H2 commit task");
         scheduler.scheduleWithFixedDelay(() -> {
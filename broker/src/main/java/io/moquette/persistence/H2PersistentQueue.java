@@ -21,13 +21,17 @@ import io.moquette.broker.SessionRegistry;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
     private final MVMap<Long, SessionRegistry.EnqueuedMessage> queueMap;
-    private final MVMap<String, Long> metadataMap;
+    // index of the next message to enqueue
     private final AtomicLong head;
+    // index of the next message to dequeue
     private final AtomicLong tail;
     private final MVStore store;
     private final String queueName;
@@ -43,25 +47,15 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         this.store = store;
         this.queueName = queueName;
         this.queueMap = this.store.openMap("queue_" + this.queueName, messageTypeBuilder);
-        this.metadataMap = store.openMap("queue_" + queueName + "_meta");
 
-        //setup head index
-        long headIdx = 0L;
-        if (this.metadataMap.containsKey("head")) {
-            headIdx = this.metadataMap.get("head");
-        } else {
-            this.metadataMap.put("head", headIdx);
-        }
-        this.head = new AtomicLong(headIdx);
-
-        //setup tail index
-        long tailIdx = 0L;
-        if (this.metadataMap.containsKey("tail")) {
-            tailIdx = this.metadataMap.get("tail");
-        } else {
-            this.metadataMap.put("tail", tailIdx);
-        }
-        this.tail = new AtomicLong(tailIdx);
+        // the dequeued messages are removed, so head and tail are derived from the keys, and the enqueue
+        // and the dequeue write only the message map
+        final Long firstKey = this.queueMap.firstKey();
+        final Long lastKey = this.queueMap.lastKey();
+        this.tail = new AtomicLong(firstKey != null ? firstKey : 0L);
+        this.head = new AtomicLong(lastKey != null ? lastKey + 1 : 0L);
+        // the indexes were stored in a metadata map by the previous versions
+        removeMetadataMap(queueName);
     }
 
     @Override
@@ -69,20 +63,32 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         checkEnqueuePreconditions(t);
         final long nextHead = head.getAndIncrement();
         this.queueMap.put(nextHead, t);
-        this.metadataMap.put("head", nextHead + 1);
     }
 
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
-        if (head.equals(tail)) {
+        if (head.get() == tail.get()) {
             return null;
         }
         final long nextTail = tail.getAndIncrement();
-        final SessionRegistry.EnqueuedMessage tail = this.queueMap.get(nextTail);
-        queueMap.remove(nextTail);
-        this.metadataMap.put("tail", nextTail + 1);
-        return tail;
+        return this.queueMap.remove(nextTail);
+    }
+
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeue(int max) {
+        checkDequeuePreconditions();
+        final long firstTail = tail.get();
+        final int count = (int) Math.min(max, head.get() - firstTail);
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        final List<SessionRegistry.EnqueuedMessage> messages = new ArrayList<>(count);
+        for (long index = firstTail; index < firstTail + count; index++) {
+            messages.add(this.queueMap.remove(index));
+        }
+        tail.set(firstTail + count);
+        return messages;
     }
 
     @Override
@@ -99,7 +105,14 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
 
     private void dropQueue(String queueName) {
         store.removeMap(store.openMap("queue_" + queueName));
-        store.removeMap(store.openMap("queue_" + queueName + "_meta"));
+        removeMetadataMap(queueName);
+    }
+
+    private void removeMetadataMap(String queueName) {
+        final String metadataName = "queue_" + queueName + "_meta";
+        if (store.hasMap(metadataName)) {
+            store.removeMap(metadataName);
+        }
     }
 
 }
@@ -21,6 +21,7 @@ import io.moquette.broker.SessionRegistry.EnqueuedMessage;
 import org.h2.mvstore.MVStore;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class H2QueueRepository implements IQueueRepository {
@@ -49,6 +50,16 @@ public class H2QueueRepository implements IQueueRepository {
         return new H2PersistentQueue(mvStore, clientId);
     }
 
+    @Override
+    public boolean isGroupCommit() {
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     public void close() {
         // No-op
@@ -4,6 +4,7 @@ import io.moquette.broker.IRetainedRepository;
 import io.moquette.broker.RetainedMessage;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.TopicTrie;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -16,30 +17,50 @@ import org.h2.mvstore.type.StringDataType;
 
 import java.nio.ByteBuffer;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 
 public class H2RetainedRepository implements IRetainedRepository {
 
+    private static final String RETAINED_STORE = "retained_store";
+    // the messages with expiry of the older versions, moved into the retained store at the first start
+    private static final String LEGACY_EXPIRY_STORE = "retained_expiry_store";
+    private static final String EXPIRY_INDEX = "retained_expiry_index";
+
     private final MVMap<Topic, RetainedMessage> retainedMap;
-    private final MVMap<Topic, RetainedMessage> retainedExpireMap;
+    // topics of the messages with expiry, ordered by expiry time. An entry can be stale, when the message was
+    // replaced or cleaned, and is dropped by the scan of the expired ones
+    private final MVMap<ExpiryKey, Boolean> expiryIndex;
+    // in memory index of the topics of the retained messages, rebuilt at every start
+    private final TopicTrie topics = new TopicTrie();
 
     private final MVMap.Builder<Topic, RetainedMessage> retainedBuilder = new MVMap.Builder<Topic, RetainedMessage>()
         .valueType(new RetainedMessageValueType());
 
     public H2RetainedRepository(MVStore mvStore) {
-//        this.retainedMap = mvStore.openMap("retained_store");
-        this.retainedMap = mvStore.openMap("retained_store", retainedBuilder);
-//        this.retainedExpireMap = mvStore.openMap("retained_expiry_store");
-        this.retainedExpireMap = mvStore.openMap("retained_expiry_store", retainedBuilder);
+        this.retainedMap = mvStore.openMap(RETAINED_STORE, retainedBuilder);
+        this.expiryIndex = mvStore.openMap(EXPIRY_INDEX, new MVMap.Builder<ExpiryKey, Boolean>()
+            .keyType(new ExpiryKeyType()));
+        if (mvStore.hasMap(LEGACY_EXPIRY_STORE)) {
+            final MVMap<Topic, RetainedMessage> legacyExpireMap = mvStore.openMap(LEGACY_EXPIRY_STORE, retainedBuilder);
+            for (Map.Entry<Topic, RetainedMessage> entry : legacyExpireMap.entrySet()) {
+                final RetainedMessage message = entry.getValue();
+                retainedMap.put(entry.getKey(), message);
+                expiryIndex.put(new ExpiryKey(message.getExpiryTime().toEpochMilli(), entry.getKey()), Boolean.TRUE);
+            }
+            mvStore.removeMap(legacyExpireMap);
+        }
+        // the keys are iterated without loading the messages
+        for (Topic topic : retainedMap.keySet()) {
+            topics.add(topic);
+        }
     }
 
     @Override
     public void cleanRetained(Topic topic) {
+        // a topic is added to the index after the message and removed before it
+        topics.remove(topic);
         retainedMap.remove(topic);
-        retainedExpireMap.remove(topic);
     }
 
     @Override
@@ -47,6 +68,7 @@ public class H2RetainedRepository implements IRetainedRepository {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg));
         retainedMap.put(topic, toStore);
+        topics.add(topic);
     }
 
     private static MqttProperties.MqttProperty[] extractPropertiesArray(MqttPublishMessage msg) {
@@ -58,7 +80,10 @@ public class H2RetainedRepository implements IRetainedRepository {
     public void retain(Topic topic, MqttPublishMessage msg, Instant expiryTime) {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg), expiryTime);
-        retainedExpireMap.put(topic, toStore);
+        // indexed before the message is stored, so that the message is never left without its expiry
+        expiryIndex.put(new ExpiryKey(expiryTime.toEpochMilli(), topic), Boolean.TRUE);
+        retainedMap.put(topic, toStore);
+        topics.add(topic);
     }
 
     private static byte[] payloadToByteArray(MqttPublishMessage msg) {
@@ -70,33 +95,111 @@ public class H2RetainedRepository implements IRetainedRepository {
 
     @Override
     public boolean isEmpty() {
-        return retainedMap.isEmpty() && retainedExpireMap.isEmpty();
+        return retainedMap.isEmpty();
     }
 
     @Override
-    public Collection<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        matchingMessages.addAll(findMatching(searchTopic, retainedMap));
-        matchingMessages.addAll(findMatching(searchTopic, retainedExpireMap));
+    public Iterator<Topic> retainedTopicsMatching(String topicFilter) {
+        return topics.matching(new Topic(topicFilter));
+    }
 
-        return matchingMessages;
+    @Override
+    public RetainedMessage retainedOn(Topic topic) {
+        // the message could be cleaned after its topic is matched. The instance can be the one held by the map
+        // until it's written, so the reference released by the caller is added to it
+        final RetainedMessage message = retainedMap.get(topic);
+        return message != null ? message.retain() : null;
     }
 
-    private List<RetainedMessage> findMatching(Topic searchTopic, MVMap<Topic, RetainedMessage> mapToSearch) {
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : mapToSearch.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+    @Override
+    public int cleanExpired(Instant now, int max) {
+        final long nowMillis = now.toEpochMilli();
+        int processed = 0;
+        final Iterator<ExpiryKey> earliest = expiryIndex.keyIterator(null);
+        while (processed < max && earliest.hasNext()) {
+            final ExpiryKey expiry = earliest.next();
+            if (expiry.expiryMillis > nowMillis) {
+                break;
+            }
+            processed++;
+            if (expiresAt(retainedMap.get(expiry.topic), expiry.expiryMillis)) {
+                // removed only if not replaced in the meantime by a message with another expiry
+                topics.remove(expiry.topic);
+                final RetainedMessage removed = retainedMap.operate(expiry.topic, null,
+                    new RemoveIfExpiringAt(expiry.expiryMillis));
+                if (removed == null && retainedMap.containsKey(expiry.topic)) {
+                    topics.add(expiry.topic);
+                }
             }
+            expiryIndex.remove(expiry);
         }
-        return matchingMessages;
+        return processed;
     }
 
-    @Override
-    public Collection<RetainedMessage> listExpirable() {
-        return retainedExpireMap.values();
+    private static final class RemoveIfExpiringAt extends MVMap.DecisionMaker<RetainedMessage> {
+
+        private final long expiryMillis;
+
+        RemoveIfExpiringAt(long expiryMillis) {
+            this.expiryMillis = expiryMillis;
+        }
+
+        @Override
+        public MVMap.Decision decide(RetainedMessage existingValue, RetainedMessage providedValue) {
+            return expiresAt(existingValue, expiryMillis) ? MVMap.Decision.REMOVE : MVMap.Decision.ABORT;
+        }
+    }
+
+    private static boolean expiresAt(RetainedMessage message, long expiryMillis) {
+        return message != null && message.getExpiryTime() != null &&
+            message.getExpiryTime().toEpochMilli() == expiryMillis;
+    }
+
+    private static final class ExpiryKey {
+        private final long expiryMillis;
+        private final Topic topic;
+
+        ExpiryKey(long expiryMillis, Topic topic) {
+            this.expiryMillis = expiryMillis;
+            this.topic = topic;
+        }
+    }
+
+    private static final class ExpiryKeyType extends BasicDataType<ExpiryKey> {
+        // Layout for ExpiryKey:
+        // - expiry time in epoch millis long
+        // - topic String
+
+        @Override
+        public int compare(ExpiryKey a, ExpiryKey b) {
+            final int byExpiry = Long.compare(a.expiryMillis, b.expiryMillis);
+            if (byExpiry != 0) {
+                return byExpiry;
+            }
+            return a.topic.toString().compareTo(b.topic.toString());
+        }
+
+        @Override
+        public int getMemory(ExpiryKey key) {
+            return 8 + StringDataType.INSTANCE.getMemory(key.topic.toString());
+        }
+
+        @Override
+        public void write(WriteBuffer buff, ExpiryKey key) {
+            buff.putLong(key.expiryMillis);
+            StringDataType.INSTANCE.write(buff, key.topic.toString());
+        }
+
+        @Override
+        public ExpiryKey read(ByteBuffer buff) {
+            final long expiryMillis = buff.getLong();
+            return new ExpiryKey(expiryMillis, new Topic(StringDataType.INSTANCE.read(buff)));
+        }
+
+        @Override
+        public ExpiryKey[] createStorage(int size) {
+            return new ExpiryKey[size];
+        }
     }
 
     private static final class RetainedMessageValueType extends BasicDataType<RetainedMessage> {
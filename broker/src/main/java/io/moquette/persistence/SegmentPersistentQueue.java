@@ -8,6 +8,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
@@ -15,10 +17,11 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
     private static final Logger LOG = LoggerFactory.getLogger(SegmentPersistentQueue.class);
 
     private final Queue segmentedQueue;
-    private final SegmentedPersistentQueueSerDes serdes = new SegmentedPersistentQueueSerDes();
+    private final SharedPayloadStore payloads;
 
-    public SegmentPersistentQueue(Queue segmentedQueue) {
+    SegmentPersistentQueue(Queue segmentedQueue, SharedPayloadStore payloads) {
         this.segmentedQueue = segmentedQueue;
+        this.payloads = payloads;
     }
 
     @Override
@@ -26,9 +29,8 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
         LOG.debug("Adding message {}", message);
         checkEnqueuePreconditions(message);
 
-        final ByteBuffer payload = serdes.toBytes(message);
         try {
-            segmentedQueue.enqueue(payload);
+            segmentedQueue.enqueue(payloads.toRecord(message));
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
@@ -38,21 +40,49 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
 
-        final Optional<ByteBuffer> dequeue;
+        SessionRegistry.EnqueuedMessage message;
+        do {
+            final Optional<ByteBuffer> dequeue = dequeueRecord();
+            if (!dequeue.isPresent()) {
+                LOG.debug("No data pulled out from the queue");
+                return null;
+            }
+            message = payloads.fromRecord(dequeue.get());
+        } while (message == null);
+        LOG.debug("Retrieved message {}", message);
+        return message;
+    }
+
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeue(int max) {
+        checkDequeuePreconditions();
+
+        final List<SessionRegistry.EnqueuedMessage> messages = new ArrayList<>();
+        int read;
+        do {
+            try {
+                // a record is decoded before reading the next one, that could recycle its segment
+                read = segmentedQueue.dequeue(max - messages.size(), record -> {
+                    final SessionRegistry.EnqueuedMessage message = payloads.fromRecord(record);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                });
+            } catch (QueueException e) {
+                throw new RuntimeException(e);
+            }
+            // the messages whose shared payload is lost are skipped, so read again to fill the batch
+        } while (read > 0 && messages.size() < max);
+        LOG.debug("Retrieved {} messages", messages.size());
+        return messages;
+    }
+
+    private Optional<ByteBuffer> dequeueRecord() {
         try {
-            dequeue = segmentedQueue.dequeue();
+            return segmentedQueue.dequeue();
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
-        if (!dequeue.isPresent()) {
-            LOG.debug("No data pulled out from the queue");
-            return null;
-        }
-
-        final ByteBuffer content = dequeue.get();
-        SessionRegistry.EnqueuedMessage message = serdes.fromBytes(content);
-        LOG.debug("Retrieved message {}", message);
-        return message;
     }
 
     @Override
@@ -62,6 +92,11 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
 
     @Override
     public void closeAndPurge() {
+        // release the shared payloads referenced by the purged messages
+        Optional<ByteBuffer> record;
+        while (!segmentedQueue.isEmpty() && (record = dequeueRecord()).isPresent()) {
+            payloads.discardRecord(record.get());
+        }
         closed = true;
     }
 }
@@ -4,27 +4,90 @@ import io.moquette.broker.IQueueRepository;
 import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.broker.unsafequeues.QueuePool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class SegmentQueueRepository implements IQueueRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(SegmentQueueRepository.class);
 
     private final QueuePool queuePool;
+    private final TopicDictionary topicDictionary;
+    private final SharedPayloadStore payloads;
+    private final ScheduledFuture<?> checkpointTask;
+    private final ScheduledFuture<?> compactionTask;
 
     public SegmentQueueRepository(String path, int pageSize, int segmentSize) throws QueueException {
-        queuePool = QueuePool.loadQueues(Paths.get(path), pageSize, segmentSize);
+        this(Paths.get(path), pageSize, segmentSize);
     }
 
     public SegmentQueueRepository(Path path, int pageSize, int segmentSize) throws QueueException {
-        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize);
+        this(path, pageSize, segmentSize, QueueDurability.NONE, 0, null, 0, 0, Long.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * @param flushInterval milliseconds between two forces of the written pages, in periodic durability.
+     * @param checkpointInterval seconds between two checkpoints of the queues, 0 to save them only on close.
+     * @param topicDictionarySize maximum number of topics stored by id in the records, 0 to store them in full.
+     * @param maxMappedBytes mapped bytes over which the pages not used by the queues are unmapped.
+     * @param compactionInterval seconds between two attempts to reclaim the last page, 0 to never reclaim it.
+     * @param compactionMaxSegments maximum number of segments moved out of the last page by an attempt.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, QueueDurability durability,
+                                  int flushInterval, ScheduledExecutorService scheduler,
+                                  int checkpointInterval, int topicDictionarySize,
+                                  long maxMappedBytes, int compactionInterval,
+                                  int compactionMaxSegments) throws QueueException {
+        // the references to the shared payloads are restored from a clean close, else counted in the queues
+        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize, durability, flushInterval, maxMappedBytes,
+            new QueuePool.ReferenceReader(SegmentedPersistentQueueSerDes.REFERENCE_PREFIX_SIZE,
+                SharedPayloadStore::payloadReference));
+        try {
+            topicDictionary = TopicDictionary.open(path, topicDictionarySize);
+        } catch (IOException ex) {
+            throw new QueueException("Can't load the topic dictionary", ex);
+        }
+        payloads = new SharedPayloadStore(queuePool.payloadLog(), new SegmentedPersistentQueueSerDes(topicDictionary));
+        if (checkpointInterval > 0) {
+            checkpointTask = scheduler.scheduleWithFixedDelay(this::checkpoint, checkpointInterval,
+                checkpointInterval, TimeUnit.SECONDS);
+        } else {
+            checkpointTask = null;
+        }
+        if (compactionInterval > 0) {
+            compactionTask = scheduler.scheduleWithFixedDelay(() -> compact(compactionMaxSegments),
+                compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        } else {
+            compactionTask = null;
+        }
+    }
+
+    private void compact(int maxSegments) {
+        try {
+            queuePool.compact(maxSegments);
+        } catch (QueueException e) {
+            LOG.error("Error compacting the pages of the queue pool", e);
+        }
+    }
+
+    private void checkpoint() {
+        try {
+            queuePool.checkpoint();
+        } catch (QueueException e) {
+            LOG.error("Error writing the checkpoint of the queue pool", e);
+        }
     }
 
     @Override
@@ -45,15 +108,32 @@ public class SegmentQueueRepository implements IQueueRepository {
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
-        return new SegmentPersistentQueue(segmentedQueue);
+        return new SegmentPersistentQueue(segmentedQueue, payloads);
+    }
+
+    @Override
+    public boolean isGroupCommit() {
+        return queuePool.isGroupCommit();
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+        return queuePool.commit();
     }
 
     @Override
     public void close() {
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+        }
+        if (compactionTask != null) {
+            compactionTask.cancel(false);
+        }
         try {
             queuePool.close();
         } catch (QueueException e) {
             LOG.error("Error saving state of the queue pool", e);
         }
+        topicDictionary.close();
     }
 }
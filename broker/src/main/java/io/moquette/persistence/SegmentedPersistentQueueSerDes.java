@@ -10,216 +10,561 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
-
+import java.util.List;
+
+/**
+ * Records of the messages stored in the segmented queues.
+ *
+ * The first byte of a record contains the format version in the high nibble and the message type in the low one.
+ * The version 0 records, with fixed size integers and the expiry as ISO-8601 text, are only read.
+ * The version 1 records use variable length integers for sizes and ids, the expiry as epoch milliseconds, omitted
+ * for messages that never expire, and optionally the id of the topic in the {@link TopicDictionary}:
+ * <pre>
+ * published message:        header, flags, [expiry], topic id | topic, payload, [properties]
+ * shared payload reference: header, flags, payload reference, [expiry], subscription identifiers
+ * pub rel marker:           header
+ * </pre>
+ * The flags contain the QoS and mark the presence of the optional fields.
+ *
+ * The records are encoded in a single pass into a buffer reused by the thread, so the returned buffer is valid
+ * only till the next encode on the same thread.
+ * */
 class SegmentedPersistentQueueSerDes {
 
-    private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE}
-
-    public ByteBuffer toBytes(SessionRegistry.EnqueuedMessage message) {
-        final int memorySize = getMemory(message);
-        final ByteBuffer payload = ByteBuffer.allocate(memorySize);
-        payload.mark();
-        write(message, payload);
-        payload.reset();
-        return payload;
+    private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE, SHARED_PAYLOAD_REFERENCE}
+
+    private static final int VERSION_0 = 0;
+    private static final int VERSION_1 = 1;
+
+    private static final int QOS_MASK = 0x03;
+    private static final int HAS_EXPIRY = 0x04;
+    private static final int HAS_PROPERTIES = 0x08;
+    private static final int TOPIC_ID = 0x10;
+
+    private static final byte INTEGER_PROPERTY = 0;
+    private static final byte STRING_PROPERTY = 1;
+    private static final byte BINARY_PROPERTY = 2;
+    private static final byte USER_PROPERTIES = 3;
+
+    // header, flags and payload reference, the start of a shared payload reference record
+    static final int REFERENCE_PREFIX_SIZE = 2 + 10;
+
+    // the bigger records are encoded in buffers not kept by the thread
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
+    /**
+     * A message whose topic, payload and properties are stored once in the shared payload log.
+     * */
+    static final class SharedPayloadReference {
+        final int version;
+        final MqttQoS qos;
+        final long payloadReference;
+        final Instant messageExpiry;
+        final int[] subscriptionIdentifiers;
+
+        SharedPayloadReference(int version, MqttQoS qos, long payloadReference, Instant messageExpiry,
+                               int[] subscriptionIdentifiers) {
+            this.version = version;
+            this.qos = qos;
+            this.payloadReference = payloadReference;
+            this.messageExpiry = messageExpiry;
+            this.subscriptionIdentifiers = subscriptionIdentifiers;
+        }
     }
 
-    private void write(SessionRegistry.EnqueuedMessage obj, ByteBuffer buff) {
-        if (obj instanceof SessionRegistry.PublishedMessage) {
-            buff.put((byte) MessageType.PUBLISHED_MESSAGE.ordinal());
+    // null when the topics are always stored in the records
+    private final TopicDictionary topicDictionary;
 
-            final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-            buff.put((byte) casted.getPublishingQos().value());
+    SegmentedPersistentQueueSerDes() {
+        this(null);
+    }
 
-            final String topic = casted.getTopic().toString();
+    SegmentedPersistentQueueSerDes(TopicDictionary topicDictionary) {
+        this.topicDictionary = topicDictionary;
+    }
 
-            writeTopic(buff, topic);
-            writeMessageExpiry(buff, casted.getMessageExpiry());
-            writePayload(buff, casted.getPayload());
-            if (EnqueuedMessageValueType.hasProperties(casted)) {
-                buff.put((byte) 1); // there are properties
-                writeProperties(buff, casted.getMqttProperties());
-            } else {
-                buff.put((byte) 0); // there aren't properties
-            }
-        } else if (obj instanceof SessionRegistry.PubRelMarker) {
-            buff.put((byte) MessageType.PUB_REL_MARKER.ordinal());
+    /**
+     * Serialize the message, releasing its payload.
+     * */
+    public ByteBuffer toBytes(SessionRegistry.EnqueuedMessage message) {
+        if (message instanceof SessionRegistry.PubRelMarker) {
+            final ByteBuffer buff = encodeBuffer(1);
+            buff.put(header(MessageType.PUB_REL_MARKER));
+            buff.flip();
+            return buff;
+        }
+        if (!(message instanceof SessionRegistry.PublishedMessage)) {
+            throw new IllegalArgumentException("Unrecognized message class " + message.getClass());
+        }
+        final SessionRegistry.PublishedMessage published = (SessionRegistry.PublishedMessage) message;
+        final String topic = published.getTopic().toString();
+        final int topicId = topicDictionary != null ? topicDictionary.idOf(topic) : -1;
+        final MqttProperties.MqttProperty[] properties = serializable(published.getMqttProperties());
+        final ByteBuf payload = published.getPayload();
+        final ByteBuffer buff = encodeBuffer(2 + // header and flags
+            10 + // expiry
+            maxStringSize(topic) +
+            5 + payload.readableBytes() +
+            maxPropertiesSize(properties));
+
+        buff.put(header(MessageType.PUBLISHED_MESSAGE));
+        int flags = published.getPublishingQos().value();
+        if (published.getMessageExpiry() != Instant.MAX) {
+            flags |= HAS_EXPIRY;
+        }
+        if (properties.length > 0) {
+            flags |= HAS_PROPERTIES;
+        }
+        if (topicId >= 0) {
+            flags |= TOPIC_ID;
+        }
+        buff.put((byte) flags);
+        writeExpiry(buff, published.getMessageExpiry());
+        if (topicId >= 0) {
+            writeVarInt(buff, topicId);
         } else {
-            throw new IllegalArgumentException("Unrecognized message class " + obj.getClass());
+            writeString(buff, topic);
+        }
+        writePayload(buff, payload);
+        payload.release();
+        if (properties.length > 0) {
+            writeProperties(buff, properties);
         }
+        buff.flip();
+        return buff;
     }
 
-    private void writeMessageExpiry(ByteBuffer buff, Instant messageExpiry) {
-        writeString(buff, messageExpiry.toString());
+    /**
+     * Serialize the part of the message shared by all the subscribers: topic, payload and properties, except the
+     * subscription identifiers. The payload of the message isn't released.
+     * */
+    ByteBuffer sharedPayloadToBytes(SessionRegistry.PublishedMessage message) {
+        final MqttProperties.MqttProperty[] sharedProperties = Arrays.stream(serializable(message.getMqttProperties()))
+            .filter(property -> !isSubscriptionIdentifier(property))
+            .toArray(MqttProperties.MqttProperty[]::new);
+        final String topic = message.getTopic().toString();
+        final ByteBuf payload = message.getPayload();
+        final ByteBuffer buff = encodeBuffer(1 + // version
+            maxStringSize(topic) +
+            5 + payload.readableBytes() +
+            maxPropertiesSize(sharedProperties));
+        buff.put((byte) VERSION_1);
+        writeString(buff, topic);
+        writePayload(buff, payload);
+        writeProperties(buff, sharedProperties);
+        buff.flip();
+        return buff;
     }
 
-    private void writePayload(ByteBuffer target, ByteBuf source) {
-        final int payloadSize = source.readableBytes();
-        byte[] rawBytes = new byte[payloadSize];
-        source.getBytes(source.readerIndex(), rawBytes).release();
-        target.putInt(payloadSize);
-        target.put(rawBytes);
+    ByteBuffer referenceToBytes(SessionRegistry.PublishedMessage message, long payloadReference) {
+        final int[] subscriptionIdentifiers = Arrays.stream(message.getMqttProperties())
+            .filter(SegmentedPersistentQueueSerDes::isSubscriptionIdentifier)
+            .mapToInt(property -> ((MqttProperties.IntegerProperty) property).value())
+            .toArray();
+        final ByteBuffer buff = encodeBuffer(2 + // header and flags
+            10 + // payload reference
+            10 + // expiry
+            5 + 5 * subscriptionIdentifiers.length);
+        buff.put(header(MessageType.SHARED_PAYLOAD_REFERENCE));
+        int flags = message.getPublishingQos().value();
+        if (message.getMessageExpiry() != Instant.MAX) {
+            flags |= HAS_EXPIRY;
+        }
+        buff.put((byte) flags);
+        writeVarLong(buff, payloadReference);
+        writeExpiry(buff, message.getMessageExpiry());
+        writeVarInt(buff, subscriptionIdentifiers.length);
+        for (int subscriptionIdentifier : subscriptionIdentifiers) {
+            writeVarInt(buff, subscriptionIdentifier);
+        }
+        buff.flip();
+        return buff;
     }
 
-    private void writeTopic(ByteBuffer buff, String topic) {
-        writeString(buff, topic);
+    private static byte header(MessageType type) {
+        return (byte) (VERSION_1 << 4 | type.ordinal());
     }
 
-    private void writeString(ByteBuffer buff, String value) {
-        final byte[] topicBytes = value.getBytes(StandardCharsets.UTF_8);
-        buff.putInt(topicBytes.length).put(topicBytes);
+    private static ByteBuffer encodeBuffer(int maxSize) {
+        if (maxSize > MAX_POOLED_BUFFER_SIZE) {
+            return ByteBuffer.allocate(maxSize);
+        }
+        ByteBuffer buff = ENCODE_BUFFER.get();
+        if (buff.capacity() < maxSize) {
+            buff = ByteBuffer.allocate(Math.max(maxSize, buff.capacity() * 2));
+            ENCODE_BUFFER.set(buff);
+        }
+        buff.clear();
+        return buff;
     }
 
-    private void writeProperties(ByteBuffer dest, MqttProperties.MqttProperty[] properties) {
-        dest.putInt(properties.length); // store property list size
+    private static int maxStringSize(String value) {
+        return 5 + value.length() * 3;
+    }
+
+    private static int maxPropertiesSize(MqttProperties.MqttProperty[] properties) {
+        int size = 5; // number of properties
         for (MqttProperties.MqttProperty property : properties) {
-            writeProperty(dest, property);
+            size += 1 + 5; // property type and id
+            if (property instanceof MqttProperties.IntegerProperty) {
+                size += 5;
+            } else if (property instanceof MqttProperties.StringProperty) {
+                size += maxStringSize(((MqttProperties.StringProperty) property).value());
+            } else if (property instanceof MqttProperties.BinaryProperty) {
+                size += 5 + ((MqttProperties.BinaryProperty) property).value().length;
+            } else {
+                size += 5;
+                for (MqttProperties.StringPair pair : userProperties(property)) {
+                    size += maxStringSize(pair.key) + maxStringSize(pair.value);
+                }
+            }
         }
+        return size;
     }
 
-    private void writeProperty(ByteBuffer dest, MqttProperties.MqttProperty property) {
-        if (property instanceof MqttProperties.StringProperty) {
-            MqttProperties.StringProperty stringProp = (MqttProperties.StringProperty) property;
-            writePropertyType(dest, PropertyDataType.MqttPropertyEnum.STRING);
-            dest.putInt(stringProp.propertyId());
-            writeString(dest, stringProp.value());
-        } else if (property instanceof MqttProperties.IntegerProperty) {
-            MqttProperties.IntegerProperty intProp = (MqttProperties.IntegerProperty) property;
-            writePropertyType(dest, PropertyDataType.MqttPropertyEnum.INTEGER);
-            dest.putInt(intProp.propertyId());
-            dest.putInt(intProp.value());
-        } else if (property instanceof MqttProperties.BinaryProperty) {
-            MqttProperties.BinaryProperty byteArrayProp = (MqttProperties.BinaryProperty) property;
-            writePropertyType(dest, PropertyDataType.MqttPropertyEnum.BINARY);
-            writeByteArray(dest, byteArrayProp.value());
+    /**
+     * @return the properties that can be stored, properties of unknown types are skipped.
+     * */
+    private static MqttProperties.MqttProperty[] serializable(MqttProperties.MqttProperty[] properties) {
+        for (MqttProperties.MqttProperty property : properties) {
+            if (!isSerializable(property)) {
+                return Arrays.stream(properties)
+                    .filter(SegmentedPersistentQueueSerDes::isSerializable)
+                    .toArray(MqttProperties.MqttProperty[]::new);
+            }
         }
-        // TODO UserProperties and UserProperty?
+        return properties;
     }
 
-    private void writeByteArray(ByteBuffer dest, byte[] payload) {
-        dest.putInt(payload.length);
-        dest.put(payload);
+    private static boolean isSerializable(MqttProperties.MqttProperty property) {
+        return property instanceof MqttProperties.IntegerProperty ||
+            property instanceof MqttProperties.StringProperty ||
+            property instanceof MqttProperties.BinaryProperty ||
+            property instanceof MqttProperties.UserProperties ||
+            property instanceof MqttProperties.UserProperty;
     }
 
-    private static void writePropertyType(ByteBuffer dest, PropertyDataType.MqttPropertyEnum mqttPropertyEnum) {
-        dest.put((byte) mqttPropertyEnum.ordinal());
+    private static List<MqttProperties.StringPair> userProperties(MqttProperties.MqttProperty property) {
+        if (property instanceof MqttProperties.UserProperty) {
+            return ((MqttProperties.UserProperty) property).value() != null ?
+                Arrays.asList(((MqttProperties.UserProperty) property).value()) :
+                new ArrayList<>();
+        }
+        return ((MqttProperties.UserProperties) property).value();
     }
 
-    private int getMemory(SessionRegistry.EnqueuedMessage obj) {
-        if (obj instanceof SessionRegistry.PubRelMarker) {
-            return 1;
+    private static void writeExpiry(ByteBuffer buff, Instant messageExpiry) {
+        if (messageExpiry != Instant.MAX) {
+            writeVarLong(buff, messageExpiry.toEpochMilli());
         }
-        final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-        int propertiesSize = EnqueuedMessageValueType.hasProperties(casted) ?
-            propertiesMemorySize(casted.getMqttProperties()) :
-            0;
-        return 1 + // message type
-            1 + // qos
-            topicMemorySize(casted.getTopic()) +
-            messageExpirySize(casted.getMessageExpiry()) +
-            payloadMemorySize(casted.getPayload()) +
-            1 +  // flag to indicate if there are MQttProperties or not
-            propertiesSize;
     }
 
-    private int payloadMemorySize(ByteBuf payload) {
-        return 4 + // size
-            payload.readableBytes();
+    private static void writePayload(ByteBuffer buff, ByteBuf payload) {
+        writeVarInt(buff, payload.readableBytes());
+        // copy straight in the record, without an intermediate array
+        final int limit = buff.limit();
+        buff.limit(buff.position() + payload.readableBytes());
+        payload.getBytes(payload.readerIndex(), buff);
+        buff.limit(limit);
     }
 
-    private int topicMemorySize(Topic topic) {
-        return 4 + // size
-            topic.toString().getBytes(StandardCharsets.UTF_8).length;
+    private static void writeString(ByteBuffer buff, String value) {
+        writeBytes(buff, value.getBytes(StandardCharsets.UTF_8));
     }
 
-    private int messageExpirySize(Instant messageExpiry) {
-        return 4 + // size
-            messageExpiry.toString().getBytes(StandardCharsets.UTF_8).length;
+    private static void writeBytes(ByteBuffer buff, byte[] value) {
+        writeVarInt(buff, value.length);
+        buff.put(value);
     }
 
-    private int propertiesMemorySize(MqttProperties.MqttProperty[] properties) {
-        return 4 + // integer containing the number of properties
-            Arrays.stream(properties).mapToInt(SegmentedPersistentQueueSerDes::propertyMemorySize).sum();
+    private static void writeProperties(ByteBuffer buff, MqttProperties.MqttProperty[] properties) {
+        writeVarInt(buff, properties.length);
+        for (MqttProperties.MqttProperty property : properties) {
+            if (property instanceof MqttProperties.IntegerProperty) {
+                buff.put(INTEGER_PROPERTY);
+                writeVarInt(buff, property.propertyId());
+                writeVarInt(buff, ((MqttProperties.IntegerProperty) property).value());
+            } else if (property instanceof MqttProperties.StringProperty) {
+                buff.put(STRING_PROPERTY);
+                writeVarInt(buff, property.propertyId());
+                writeString(buff, ((MqttProperties.StringProperty) property).value());
+            } else if (property instanceof MqttProperties.BinaryProperty) {
+                buff.put(BINARY_PROPERTY);
+                writeVarInt(buff, property.propertyId());
+                writeBytes(buff, ((MqttProperties.BinaryProperty) property).value());
+            } else {
+                buff.put(USER_PROPERTIES);
+                writeVarInt(buff, property.propertyId());
+                final List<MqttProperties.StringPair> pairs = userProperties(property);
+                writeVarInt(buff, pairs.size());
+                for (MqttProperties.StringPair pair : pairs) {
+                    writeString(buff, pair.key);
+                    writeString(buff, pair.value);
+                }
+            }
+        }
     }
 
-    private static int propertyMemorySize(MqttProperties.MqttProperty property) {
-        int propSize = 4; // propertyId
-        if (property instanceof MqttProperties.StringProperty) {
-            MqttProperties.StringProperty stringProp = (MqttProperties.StringProperty) property;
-            propSize += stringMemorySize(stringProp.value());
-        } else if (property instanceof MqttProperties.IntegerProperty) {
-            propSize += 4; // integer is 4 bytes
-        } else if (property instanceof MqttProperties.BinaryProperty) {
-            MqttProperties.BinaryProperty byteArrayProp = (MqttProperties.BinaryProperty) property;
-            propSize += byteArrayMemorySize(byteArrayProp.value());
+    /**
+     * Unsigned LEB128, an int is handled as an unsigned value, so the negative ones take 5 bytes.
+     * */
+    private static void writeVarInt(ByteBuffer buff, int value) {
+        writeVarLong(buff, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(ByteBuffer buff, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buff.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
         }
-        return 1 + // property type
-            propSize;
+        buff.put((byte) value);
+    }
+
+    private static int readVarInt(ByteBuffer buff) {
+        return (int) readVarLong(buff);
+    }
+
+    private static long readVarLong(ByteBuffer buff) {
+        long value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if (shift >= 64) {
+                throw new IllegalArgumentException("Malformed variable length integer");
+            }
+            current = buff.get();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
     }
 
-    private static int stringMemorySize(String value) {
-        return 4 + // size
-            value.getBytes(StandardCharsets.UTF_8).length;
+    private static boolean isSubscriptionIdentifier(MqttProperties.MqttProperty property) {
+        return property instanceof MqttProperties.IntegerProperty &&
+            property.propertyId() == MqttProperties.MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value();
     }
 
-    private static int byteArrayMemorySize(byte[] payload) {
-        return 4 + // size
-            payload.length;
+    static boolean isSharedPayloadReference(ByteBuffer buff) {
+        return (buff.get(buff.position()) & 0x0F) == MessageType.SHARED_PAYLOAD_REFERENCE.ordinal();
+    }
+
+    /**
+     * Read only the payload log reference of a shared payload reference record, that is contained in its first
+     * {@link #REFERENCE_PREFIX_SIZE} bytes.
+     * */
+    static long readPayloadReference(ByteBuffer buff) {
+        final int version = (buff.get() & 0xF0) >> 4;
+        // the QoS in version 0, the flags after it
+        buff.get();
+        if (version == VERSION_0) {
+            return buff.getLong();
+        }
+        return readVarLong(buff);
+    }
+
+    SharedPayloadReference readReference(ByteBuffer buff) {
+        final int version = (buff.get() & 0xF0) >> 4;
+        if (version == VERSION_0) {
+            final MqttQoS qos = MqttQoS.valueOf(buff.get());
+            final long payloadReference = buff.getLong();
+            final Instant messageExpiry = readV0Expiry(buff);
+            final int[] subscriptionIdentifiers = new int[buff.getInt()];
+            for (int i = 0; i < subscriptionIdentifiers.length; i++) {
+                subscriptionIdentifiers[i] = buff.getInt();
+            }
+            return new SharedPayloadReference(version, qos, payloadReference, messageExpiry, subscriptionIdentifiers);
+        }
+        checkVersion(version);
+        final int flags = buff.get();
+        final long payloadReference = readVarLong(buff);
+        final Instant messageExpiry = readExpiry(buff, flags);
+        final int[] subscriptionIdentifiers = new int[readVarInt(buff)];
+        for (int i = 0; i < subscriptionIdentifiers.length; i++) {
+            subscriptionIdentifiers[i] = readVarInt(buff);
+        }
+        return new SharedPayloadReference(version, MqttQoS.valueOf(flags & QOS_MASK), payloadReference,
+            messageExpiry, subscriptionIdentifiers);
+    }
+
+    SessionRegistry.PublishedMessage fromSharedPayload(SharedPayloadReference reference, ByteBuffer sharedPayload) {
+        final String topic;
+        final ByteBuf payload;
+        final MqttProperties.MqttProperty[] sharedProperties;
+        if (reference.version == VERSION_0) {
+            topic = readV0String(sharedPayload);
+            payload = Unpooled.wrappedBuffer(readV0ByteArray(sharedPayload));
+            sharedProperties = SerdesUtils.containsProperties(sharedPayload) ?
+                readV0Properties(sharedPayload) :
+                new MqttProperties.MqttProperty[0];
+        } else {
+            checkVersion(sharedPayload.get());
+            topic = readString(sharedPayload);
+            payload = readPayload(sharedPayload);
+            sharedProperties = readProperties(sharedPayload);
+        }
+        final MqttProperties.MqttProperty[] properties = Arrays.copyOf(sharedProperties,
+            sharedProperties.length + reference.subscriptionIdentifiers.length);
+        for (int i = 0; i < reference.subscriptionIdentifiers.length; i++) {
+            properties[sharedProperties.length + i] = new MqttProperties.IntegerProperty(
+                MqttProperties.MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), reference.subscriptionIdentifiers[i]);
+        }
+        return new SessionRegistry.PublishedMessage(Topic.asTopic(topic), reference.qos, payload, false,
+            reference.messageExpiry, properties);
     }
 
     public SessionRegistry.EnqueuedMessage fromBytes(ByteBuffer buff) {
-        final byte messageType = buff.get();
+        final byte header = buff.get();
+        final int version = (header & 0xF0) >> 4;
+        final int messageType = header & 0x0F;
         if (messageType == MessageType.PUB_REL_MARKER.ordinal()) {
             return new SessionRegistry.PubRelMarker();
-        } else if (messageType == MessageType.PUBLISHED_MESSAGE.ordinal()) {
-            final MqttQoS qos = MqttQoS.valueOf(buff.get());
-            final String topicStr = readTopic(buff);
-            final Instant messageExpiry = readExpiry(buff);
-            final ByteBuf payload = readPayload(buff);
-            if (SerdesUtils.containsProperties(buff)) {
-                MqttProperties.MqttProperty[] mqttProperties = readProperties(buff);
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry, mqttProperties);
-            } else {
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry);
+        } else if (messageType != MessageType.PUBLISHED_MESSAGE.ordinal()) {
+            throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
+        }
+        if (version == VERSION_0) {
+            return readV0PublishedMessage(buff);
+        }
+        checkVersion(version);
+        final int flags = buff.get();
+        final Instant messageExpiry = readExpiry(buff, flags);
+        final String topic;
+        if ((flags & TOPIC_ID) != 0) {
+            if (topicDictionary == null) {
+                throw new IllegalStateException("Record references a topic id without a topic dictionary");
             }
+            topic = topicDictionary.topic(readVarInt(buff));
         } else {
-            throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
+            topic = readString(buff);
+        }
+        final ByteBuf payload = readPayload(buff);
+        final MqttProperties.MqttProperty[] properties = (flags & HAS_PROPERTIES) != 0 ?
+            readProperties(buff) :
+            new MqttProperties.MqttProperty[0];
+        return new SessionRegistry.PublishedMessage(Topic.asTopic(topic), MqttQoS.valueOf(flags & QOS_MASK),
+            payload, false, messageExpiry, properties);
+    }
+
+    private static void checkVersion(int version) {
+        if (version != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported record version: " + version);
+        }
+    }
+
+    private static Instant readExpiry(ByteBuffer buff, int flags) {
+        if ((flags & HAS_EXPIRY) == 0) {
+            return Instant.MAX;
         }
+        return Instant.ofEpochMilli(readVarLong(buff));
     }
 
-    private MqttProperties.MqttProperty[] readProperties(ByteBuffer buff) {
-        return SerdesUtils.readProperties(buff, buffer -> readProperty(buff));
+    private static String readString(ByteBuffer buff) {
+        if (!buff.hasArray()) {
+            return new String(readBytes(buff), StandardCharsets.UTF_8);
+        }
+        final int length = readVarInt(buff);
+        final String value = new String(buff.array(), buff.arrayOffset() + buff.position(), length,
+            StandardCharsets.UTF_8);
+        buff.position(buff.position() + length);
+        return value;
     }
 
-    private MqttProperties.MqttProperty readProperty(ByteBuffer buff) {
-        return SerdesUtils.readSingleProperty(buff, this::readByteArray);
+    private static byte[] readBytes(ByteBuffer buff) {
+        final byte[] value = new byte[readVarInt(buff)];
+        buff.get(value);
+        return value;
     }
 
-    private String readTopic(ByteBuffer buff) {
-        return readString(buff);
+    private static ByteBuf readPayload(ByteBuffer buff) {
+        return Unpooled.wrappedBuffer(readBytes(buff));
     }
 
-    private static String readString(ByteBuffer buff) {
-        final int stringLen = buff.getInt();
-        final byte[] rawString = new byte[stringLen];
-        buff.get(rawString);
-        return new String(rawString, StandardCharsets.UTF_8);
+    private static MqttProperties.MqttProperty[] readProperties(ByteBuffer buff) {
+        final MqttProperties.MqttProperty[] properties = new MqttProperties.MqttProperty[readVarInt(buff)];
+        for (int i = 0; i < properties.length; i++) {
+            final byte type = buff.get();
+            final int propertyId = readVarInt(buff);
+            switch (type) {
+                case INTEGER_PROPERTY:
+                    properties[i] = new MqttProperties.IntegerProperty(propertyId, readVarInt(buff));
+                    break;
+                case STRING_PROPERTY:
+                    properties[i] = new MqttProperties.StringProperty(propertyId, readString(buff));
+                    break;
+                case BINARY_PROPERTY:
+                    properties[i] = new MqttProperties.BinaryProperty(propertyId, readBytes(buff));
+                    break;
+                case USER_PROPERTIES:
+                    final int pairs = readVarInt(buff);
+                    final List<MqttProperties.StringPair> userProperties = new ArrayList<>(pairs);
+                    for (int pair = 0; pair < pairs; pair++) {
+                        userProperties.add(new MqttProperties.StringPair(readString(buff), readString(buff)));
+                    }
+                    properties[i] = new MqttProperties.UserProperties(userProperties);
+                    break;
+                default:
+                    throw new IllegalStateException("Unrecognized property type value: " + type);
+            }
+        }
+        return properties;
     }
 
-    private Instant readExpiry(ByteBuffer buff) {
-        final String expiryText = readString(buff);
+    private SessionRegistry.PublishedMessage readV0PublishedMessage(ByteBuffer buff) {
+        final MqttQoS qos = MqttQoS.valueOf(buff.get());
+        final String topicStr = readV0String(buff);
+        final Instant messageExpiry = readV0Expiry(buff);
+        final ByteBuf payload = Unpooled.wrappedBuffer(readV0ByteArray(buff));
+        if (SerdesUtils.containsProperties(buff)) {
+            MqttProperties.MqttProperty[] mqttProperties = readV0Properties(buff);
+            return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry, mqttProperties);
+        } else {
+            return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry);
+        }
+    }
+
+    /**
+     * Reads the properties as the version 0 wrote them: the string values prefixed by an int length, the binary
+     * ones without the property id, and the user properties counted but not written.
+     * */
+    private static MqttProperties.MqttProperty[] readV0Properties(ByteBuffer buff) {
+        final int numProperties = buff.getInt();
+        final List<MqttProperties.MqttProperty> properties = new ArrayList<>(numProperties);
+        // the properties are the last field of the record, the missing ones are user properties
+        for (int i = 0; i < numProperties && buff.hasRemaining(); i++) {
+            final byte propTypeValue = buff.get();
+            if (propTypeValue == PropertyDataType.MqttPropertyEnum.STRING.ordinal()) {
+                final int propertyId = buff.getInt();
+                properties.add(new MqttProperties.StringProperty(propertyId, readV0String(buff)));
+            } else if (propTypeValue == PropertyDataType.MqttPropertyEnum.INTEGER.ordinal()) {
+                final int propertyId = buff.getInt();
+                properties.add(new MqttProperties.IntegerProperty(propertyId, buff.getInt()));
+            } else if (propTypeValue == PropertyDataType.MqttPropertyEnum.BINARY.ordinal()) {
+                // correlation data is the only binary property of a PUBLISH
+                properties.add(new MqttProperties.BinaryProperty(
+                    MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), readV0ByteArray(buff)));
+            } else {
+                throw new IllegalStateException("Unrecognized property type value: " + propTypeValue);
+            }
+        }
+        return properties.toArray(new MqttProperties.MqttProperty[0]);
+    }
+
+    private static String readV0String(ByteBuffer buff) {
+        return new String(readV0ByteArray(buff), StandardCharsets.UTF_8);
+    }
+
+    private static Instant readV0Expiry(ByteBuffer buff) {
+        final String expiryText = readV0String(buff);
         if (Instant.MAX.toString().equals(expiryText)) {
             return Instant.MAX;
         }
         return Instant.parse(expiryText);
     }
 
-    private ByteBuf readPayload(ByteBuffer buff) {
-        return Unpooled.wrappedBuffer(readByteArray(buff));
-    }
-
-    private byte[] readByteArray(ByteBuffer buff) {
+    private static byte[] readV0ByteArray(ByteBuffer buff) {
         final int payloadSize = buff.getInt();
         byte[] payload = new byte[payloadSize];
         buff.get(payload);
@@ -0,0 +1,116 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.unsafequeues.PayloadLog;
+import io.moquette.broker.unsafequeues.QueueException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stores once, in the {@link PayloadLog} of the queue pool, the payload of a message fanned-out to many sessions,
+ * and the session queues store only a reference to it, with the QoS, the expiry and the subscription identifiers
+ * of the session.
+ *
+ * The copies of a fanned-out message are enqueued one after the other by the session loop that routes them, so
+ * every loop remembers the last shared message and references it again if the next enqueue is a copy of it.
+ * */
+final class SharedPayloadStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedPayloadStore.class);
+
+    // smaller payloads are cheaper to copy in every queue than to reference
+    static final int MIN_SHARED_PAYLOAD_SIZE = 128;
+
+    private static final class LastShared {
+        SessionRegistry.PublishedMessage message;
+        long payloadReference;
+    }
+
+    private final PayloadLog payloadLog;
+    private final SegmentedPersistentQueueSerDes serdes;
+    private final ThreadLocal<LastShared> lastShared = ThreadLocal.withInitial(LastShared::new);
+
+    SharedPayloadStore(PayloadLog payloadLog, SegmentedPersistentQueueSerDes serdes) {
+        this.payloadLog = payloadLog;
+        this.serdes = serdes;
+    }
+
+    /**
+     * Read the reference to the payload log from the start of a record, when a queue is recovered after a crash.
+     *
+     * @return -1 if the record doesn't reference a shared payload.
+     * */
+    static long payloadReference(ByteBuffer recordStart) {
+        if (!SegmentedPersistentQueueSerDes.isSharedPayloadReference(recordStart)) {
+            return -1;
+        }
+        return SegmentedPersistentQueueSerDes.readPayloadReference(recordStart);
+    }
+
+    /**
+     * Serialize the message to be stored in a queue, storing the payload in the shared log if the message is
+     * fanned-out. The payload of the message is released.
+     * */
+    ByteBuffer toRecord(SessionRegistry.EnqueuedMessage message) throws QueueException {
+        if (!isShared(message)) {
+            return serdes.toBytes(message);
+        }
+        final SessionRegistry.PublishedMessage published = (SessionRegistry.PublishedMessage) message;
+        try {
+            return serdes.referenceToBytes(published, storePayload(published));
+        } finally {
+            published.release();
+        }
+    }
+
+    private static boolean isShared(SessionRegistry.EnqueuedMessage message) {
+        if (!(message instanceof SessionRegistry.PublishedMessage)) {
+            return false;
+        }
+        final SessionRegistry.PublishedMessage published = (SessionRegistry.PublishedMessage) message;
+        return published.isFannedOut() && published.getPayload().readableBytes() >= MIN_SHARED_PAYLOAD_SIZE;
+    }
+
+    private long storePayload(SessionRegistry.PublishedMessage message) throws QueueException {
+        final LastShared last = lastShared.get();
+        if (last.message != null && last.message.sameFanOut(message) && payloadLog.retain(last.payloadReference)) {
+            return last.payloadReference;
+        }
+        final long payloadReference = payloadLog.append(serdes.sharedPayloadToBytes(message));
+        last.message = message;
+        last.payloadReference = payloadReference;
+        return payloadReference;
+    }
+
+    /**
+     * Deserialize a record read from a queue, releasing its reference to the shared payload.
+     *
+     * @return null if the shared payload is lost, which happens only to a message delivered again after a crash.
+     * */
+    SessionRegistry.EnqueuedMessage fromRecord(ByteBuffer record) {
+        if (!SegmentedPersistentQueueSerDes.isSharedPayloadReference(record)) {
+            return serdes.fromBytes(record);
+        }
+        final SegmentedPersistentQueueSerDes.SharedPayloadReference reference = serdes.readReference(record);
+        final ByteBuffer sharedPayload;
+        try {
+            sharedPayload = payloadLog.read(reference.payloadReference);
+        } catch (QueueException ex) {
+            LOG.warn("Dropping a message whose shared payload can't be read", ex);
+            return null;
+        }
+        payloadLog.release(reference.payloadReference);
+        return serdes.fromSharedPayload(reference, sharedPayload);
+    }
+
+    /**
+     * Release the reference to the shared payload contained in a record, without deserializing it.
+     * */
+    void discardRecord(ByteBuffer record) {
+        if (SegmentedPersistentQueueSerDes.isSharedPayloadReference(record)) {
+            payloadLog.release(serdes.readReference(record).payloadReference);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io.moquette.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns a small integer id to the topics of the messages stored in the segmented queues, so that a record
+ * contains the id instead of the full topic.
+ *
+ * The dictionary is shared by all the queues and is append only: every new topic is appended to the
+ * dictionary file, and forced, before any record can reference it. Once the maximum size is reached the new topics
+ * are stored in full in the records. The file is always loaded, also when the dictionary is disabled, because
+ * the queues could contain records written when it was enabled.
+ * */
+final class TopicDictionary {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicDictionary.class);
+
+    static final String DICTIONARY_FILE = "topics.dictionary";
+
+    private final Path dictionaryPath;
+    private final int maxSize;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> topics = new ConcurrentHashMap<>();
+    // written holding the lock of this
+    private volatile int size;
+    private FileChannel channel;
+    // after a write error the file could end with a partial entry, no other entry can be appended
+    private volatile boolean failed;
+
+    private TopicDictionary(Path dictionaryPath, int maxSize) {
+        this.dictionaryPath = dictionaryPath;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxSize maximum number of topics in the dictionary, 0 to not add new topics.
+     * */
+    static TopicDictionary open(Path dataPath, int maxSize) throws IOException {
+        final TopicDictionary dictionary = new TopicDictionary(dataPath.resolve(DICTIONARY_FILE), maxSize);
+        dictionary.load();
+        return dictionary;
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(dictionaryPath)) {
+            return;
+        }
+        final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(dictionaryPath));
+        int validSize = 0;
+        while (content.remaining() >= 4) {
+            final int length = content.getInt();
+            if (length <= 0 || length > content.remaining()) {
+                break;
+            }
+            final byte[] topic = new byte[length];
+            content.get(topic);
+            add(new String(topic, StandardCharsets.UTF_8));
+            validSize = content.position();
+        }
+        if (validSize < content.capacity()) {
+            LOG.warn("Truncated topic dictionary {}, ignoring the last {} bytes", dictionaryPath,
+                content.capacity() - validSize);
+            try (FileChannel truncated = FileChannel.open(dictionaryPath, StandardOpenOption.WRITE)) {
+                truncated.truncate(validSize);
+            }
+        }
+        LOG.debug("Loaded {} topics from the dictionary", size);
+    }
+
+    private void add(String topic) {
+        // the topic is visible by id before the id is published
+        topics.put(size, topic);
+        ids.put(topic, size);
+        size++;
+    }
+
+    /**
+     * @return the id of the topic, adding it to the dictionary if there is room, or -1.
+     * */
+    int idOf(String topic) {
+        final Integer id = ids.get(topic);
+        if (id != null) {
+            return id;
+        }
+        if (size >= maxSize || failed) {
+            return -1;
+        }
+        return append(topic);
+    }
+
+    private synchronized int append(String topic) {
+        final Integer id = ids.get(topic);
+        if (id != null) {
+            return id;
+        }
+        if (size >= maxSize || failed) {
+            return -1;
+        }
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer entry = (ByteBuffer) ByteBuffer.allocate(4 + topicBytes.length)
+            .putInt(topicBytes.length)
+            .put(topicBytes)
+            .flip();
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(dictionaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            }
+            while (entry.hasRemaining()) {
+                channel.write(entry);
+            }
+            // the records referencing the id could be forced before the dictionary
+            channel.force(false);
+        } catch (IOException ex) {
+            LOG.error("Can't append to the topic dictionary {}, the new topics are stored in the records",
+                dictionaryPath, ex);
+            failed = true;
+            return -1;
+        }
+        add(topic);
+        return size - 1;
+    }
+
+    /**
+     * @throws IllegalStateException if the id is unknown.
+     * */
+    String topic(int id) {
+        final String topic = topics.get(id);
+        if (topic == null) {
+            throw new IllegalStateException("Unknown topic id " + id + " in the topic dictionary");
+        }
+        return topic;
+    }
+
+    synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            LOG.warn("Can't close the topic dictionary {}", dictionaryPath, ex);
+        }
+        channel = null;
+    }
+}
@@ -17,15 +17,20 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.MatcherAssert.assertThat;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -121,4 +126,86 @@ public class MemoryRetainedRepositoryTest {
         assertEquals(1, retainedMessages.size());
         assertEquals("foo/bar/baz", retainedMessages.iterator().next().getTopic().toString());
     }
+
+    @Test
+    public void testPayloadsOverTheDirectBudgetStayInTheHeap() {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository(10);
+        repository.retain(new Topic("foo/direct"), retainedPublish("foo/direct", "12345678"));
+        repository.retain(new Topic("foo/heap"), retainedPublish("foo/heap", "12345678"));
+        assertEquals(8, repository.directBytes(), "Only the first payload fits the direct budget");
+
+        Collection<RetainedMessage> retainedMessages = repository.retainedOnTopic("foo/direct");
+        final RetainedMessage directMessage = retainedMessages.iterator().next();
+        assertTrue(directMessage.isPayloadDirect());
+        final ByteBuf view = directMessage.payloadView();
+        directMessage.release();
+
+        // the replaced payload stays valid for the view still in use
+        repository.retain(new Topic("foo/direct"), retainedPublish("foo/direct", "12"));
+        assertEquals(2, repository.directBytes());
+        assertEquals("12345678", view.toString(StandardCharsets.UTF_8));
+        view.release();
+
+        repository.cleanRetained(new Topic("foo/direct"));
+        assertEquals(0, repository.directBytes(), "Cleaned payload must free the direct budget");
+        final RetainedMessage heapMessage = repository.retainedOnTopic("foo/heap").iterator().next();
+        assertFalse(heapMessage.isPayloadDirect());
+        assertArrayEquals("12345678".getBytes(StandardCharsets.UTF_8), heapMessage.getPayload());
+        heapMessage.release();
+    }
+
+    @Test
+    public void testCleanExpiredRemovesOnlyTheMessagesStillExpiring() {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository(100);
+        final Instant now = Instant.now();
+        repository.retain(new Topic("foo/expired"), retainedPublish("foo/expired", "1234"), now.minusSeconds(10));
+        repository.retain(new Topic("foo/replaced"), retainedPublish("foo/replaced", "1234"), now.minusSeconds(10));
+        repository.retain(new Topic("foo/replaced"), retainedPublish("foo/replaced", "1234"));
+        repository.retain(new Topic("foo/later"), retainedPublish("foo/later", "1234"), now.plusSeconds(10));
+
+        assertEquals(2, repository.cleanExpired(now, 10));
+        assertEquals(8, repository.directBytes(), "Expired payload must free the direct budget");
+        final Collection<RetainedMessage> retainedMessages = repository.retainedOnTopic("foo/#");
+        final Set<String> topics = retainedMessages.stream()
+            .map(msg -> msg.getTopic().toString())
+            .collect(Collectors.toSet());
+        retainedMessages.forEach(RetainedMessage::release);
+        assertThat(topics, containsInAnyOrder("foo/replaced", "foo/later"));
+    }
+
+    @Test
+    public void testCursorReadsOnlyTheMessagesItReaches() {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository();
+        for (int i = 0; i < 10; i++) {
+            repository.retain(new Topic("foo/" + i), retainedPublish("foo/" + i, "1234"));
+        }
+        final AtomicInteger lookups = new AtomicInteger();
+        final RetainedCursor cursor = new RetainedCursor(repository.retainedTopicsMatching("foo/#"), topic -> {
+            lookups.incrementAndGet();
+            return repository.retainedOn(topic);
+        }, 3, retainedMsg -> new SessionRegistry.PublishedMessage(retainedMsg.getTopic(), retainedMsg.qosLevel(),
+            retainedMsg.payloadView(), true, Instant.MAX, retainedMsg.getMqttProperties()));
+
+        assertNotNull(cursor.peek());
+        assertEquals(1, lookups.get(), "Only the message reached must be read");
+
+        int sent = 0;
+        SessionRegistry.PublishedMessage publish;
+        while ((publish = cursor.poll()) != null) {
+            publish.release();
+            sent++;
+        }
+        assertEquals(3, sent);
+        assertEquals(3, lookups.get(), "Messages over the max must not be read");
+    }
+
+    private static MqttPublishMessage retainedPublish(String topic, String payload) {
+        return MqttMessageBuilders
+            .publish()
+            .qos(MqttQoS.AT_LEAST_ONCE)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8))
+            .build();
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.config.MemoryConfig;
+import io.netty.channel.WriteBufferWaterMark;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NewNettyAcceptorTest {
+
+    @Test
+    public void testWaterMarkNotConfiguredUsesTheChannelDefault() {
+        assertNull(NewNettyAcceptor.createWriteBufferWaterMark(waterMarkConfig(null, null)));
+    }
+
+    @Test
+    public void testOnlyLowWaterMarkOverTheDefaultHighRaisesTheHigh() {
+        final WriteBufferWaterMark waterMark = NewNettyAcceptor.createWriteBufferWaterMark(
+            waterMarkConfig("131072", null));
+
+        assertEquals(131072, waterMark.low());
+        assertEquals(131072, waterMark.high());
+    }
+
+    @Test
+    public void testOnlyHighWaterMarkUnderTheDefaultLowLowersTheLow() {
+        final WriteBufferWaterMark waterMark = NewNettyAcceptor.createWriteBufferWaterMark(
+            waterMarkConfig(null, "16384"));
+
+        assertEquals(16384, waterMark.low());
+        assertEquals(16384, waterMark.high());
+    }
+
+    @Test
+    public void testLowWaterMarkGreaterThanHighIsRejected() {
+        final IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+            () -> NewNettyAcceptor.createWriteBufferWaterMark(waterMarkConfig("65536", "32768")));
+        assertTrue(ex.getMessage().contains(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATERMARK_PROPERTY_NAME));
+    }
+
+    private static MemoryConfig waterMarkConfig(String low, String high) {
+        final Properties properties = new Properties();
+        if (low != null) {
+            properties.put(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATERMARK_PROPERTY_NAME, low);
+        }
+        if (high != null) {
+            properties.put(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATERMARK_PROPERTY_NAME, high);
+        }
+        return new MemoryConfig(properties);
+    }
+}
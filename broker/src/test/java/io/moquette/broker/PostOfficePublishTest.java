@@ -15,12 +15,18 @@
  */
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.interception.messages.InterceptPublishMessage;
 import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.SegmentQueueRepository;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
@@ -31,8 +37,11 @@ import io.netty.handler.codec.mqtt.*;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
@@ -69,8 +78,9 @@ public class PostOfficePublishTest {
     static final BrokerConfiguration ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID =
         new BrokerConfiguration(true, true, false, NO_BUFFER_FLUSH);
     private MemoryRetainedRepository retainedRepository;
-    private MemoryQueueRepository queueRepository;
+    private IQueueRepository queueRepository;
     private ScheduledExecutorService scheduler;
+    private final List<ByteBuf> burstPayloads = new ArrayList<>();
 
     @BeforeEach
     public void setUp() {
@@ -98,20 +108,29 @@ public class PostOfficePublishTest {
     }
 
     private void initPostOfficeAndSubsystems() {
+        initPostOfficeAndSubsystems(new MemoryQueueRepository());
+    }
+
+    private void initPostOfficeAndSubsystems(IQueueRepository queueRepository) {
+        initPostOfficeAndSubsystems(queueRepository, new PermitAllAuthorizatorPolicy(),
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR);
+    }
+
+    private void initPostOfficeAndSubsystems(IQueueRepository queueRepository, IAuthorizatorPolicy authorizatorPolicy,
+                                             BrokerInterceptor interceptor) {
         scheduler = Executors.newScheduledThreadPool(1);
         subscriptions = new CTrieSubscriptionDirectory();
         ISubscriptionsRepository subscriptionsRepository = new MemorySubscriptionsRepository();
         subscriptions.init(subscriptionsRepository);
         retainedRepository = new MemoryRetainedRepository();
-        queueRepository = new MemoryQueueRepository();
+        this.queueRepository = queueRepository;
 
-        final PermitAllAuthorizatorPolicy authorizatorPolicy = new PermitAllAuthorizatorPolicy();
         final Authorizator permitAll = new Authorizator(authorizatorPolicy);
         final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024);
         ISessionsRepository fakeSessionRepo = memorySessionsRepository();
         sessionRegistry = new SessionRegistry(subscriptions, fakeSessionRepo, queueRepository, permitAll, scheduler, loopsGroup);
         sut = new PostOffice(subscriptions, retainedRepository, sessionRegistry, fakeSessionRepo,
-                             ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, loopsGroup);
+                             interceptor, permitAll, loopsGroup);
     }
 
     @Test
@@ -238,6 +257,198 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Hello world!");
     }
 
+    @Test
+    public void testPublishesOfAReadBurstAreFannedOutInOrder() throws ExecutionException, InterruptedException, TimeoutException {
+        final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2));
+        mockAuthenticator = new MockAuthenticator(clientIds, singletonMap(TEST_USER, TEST_PWD));
+        final BrokerConfiguration batchingConfig = new BrokerConfiguration(true, false, true, false,
+            NO_BUFFER_FLUSH, BrokerConstants.INFLIGHT_WINDOW_SIZE, true);
+        EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+        MQTTConnection subscriber = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+        subscriber.processConnect(ConnectionTestUtils.buildConnect(FAKE_CLIENT_ID)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+        subscribe(subscriber, NEWS_TOPIC, AT_MOST_ONCE);
+
+        EmbeddedChannel publisherChannel = new EmbeddedChannel();
+        MQTTConnection publisher = createMQTTConnection(batchingConfig, publisherChannel);
+        publisher.processConnect(ConnectionTestUtils.buildConnect(FAKE_CLIENT_ID2)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(publisherChannel);
+
+        // Exercise
+        final List<CompletableFuture> burstResults = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final ByteBuf payload = Unpooled.copiedBuffer("Hello " + i, Charset.defaultCharset());
+            burstResults.add(publisher.processPublish(MqttMessageBuilders.publish()
+                .payload(payload)
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build()).completableFuture());
+            payload.release();
+        }
+        assertNull(subscriberChannel.flushOutbound().readOutbound(), "Nothing is delivered before the burst completes");
+        publisher.readCompleted();
+        for (CompletableFuture result : burstResults) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        // Verify
+        ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello 0");
+        ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello 1");
+        ConnectionTestUtils.verifyReceivePublish(subscriberChannel, NEWS_TOPIC, "Hello 2");
+    }
+
+    @Test
+    public void testReadBurstToATopicWithoutSubscribersIsCompleted() throws Exception {
+        final BlockingQueue<String> notifiedTopics = reinitWithForbiddenTopic(null);
+        retainOn(NEWS_TOPIC);
+
+        // Exercise
+        sut.receivedPublishesQos0(connection, TEST_USER, FAKE_CLIENT_ID,
+            Collections.singletonList(burstPublish(NEWS_TOPIC, "Hello", true))).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        assertTrue(retainedRepository.isEmpty(), "QoS0 retained publish MUST clean the retained message");
+        assertEquals(NEWS_TOPIC, notifiedTopics.poll(5, TimeUnit.SECONDS));
+        assertBurstReleased();
+    }
+
+    @Test
+    public void testReadBurstMixingTopicsWithAndWithoutSubscribers() throws Exception {
+        final BlockingQueue<String> notifiedTopics = reinitWithForbiddenTopic(null);
+        final EmbeddedChannel subscriberChannel = connectAndSubscribeToNews();
+
+        // Exercise
+        final List<PostOffice.BurstPublish> burst = Arrays.asList(burstPublish(NEWS_TOPIC, "Hello 0", false),
+            burstPublish("/nobody", "Hello 1", false), burstPublish(NEWS_TOPIC, "Hello 2", false));
+        sut.receivedPublishesQos0(connection, TEST_USER, FAKE_CLIENT_ID, burst).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        verifyReceivePublishAndRelease(subscriberChannel, NEWS_TOPIC, "Hello 0");
+        verifyReceivePublishAndRelease(subscriberChannel, NEWS_TOPIC, "Hello 2");
+        assertEquals(Arrays.asList(NEWS_TOPIC, "/nobody", NEWS_TOPIC), pollTopics(notifiedTopics, 3));
+        assertBurstReleased();
+    }
+
+    @Test
+    public void testReadBurstSkipsTheUnauthorizedTopics() throws Exception {
+        final BlockingQueue<String> notifiedTopics = reinitWithForbiddenTopic("/forbidden");
+        final EmbeddedChannel subscriberChannel = connectAndSubscribeToNews();
+
+        // Exercise
+        final List<PostOffice.BurstPublish> burst = Arrays.asList(burstPublish(NEWS_TOPIC, "Hello 0", false),
+            burstPublish("/forbidden", "Hello 1", false), burstPublish(NEWS_TOPIC, "Hello 2", false));
+        sut.receivedPublishesQos0(connection, TEST_USER, FAKE_CLIENT_ID, burst).get(5, TimeUnit.SECONDS);
+
+        // Verify
+        verifyReceivePublishAndRelease(subscriberChannel, NEWS_TOPIC, "Hello 0");
+        verifyReceivePublishAndRelease(subscriberChannel, NEWS_TOPIC, "Hello 2");
+        assertEquals(Arrays.asList(NEWS_TOPIC, NEWS_TOPIC), pollTopics(notifiedTopics, 2));
+        assertNull(notifiedTopics.poll(100, TimeUnit.MILLISECONDS), "Unauthorized publish must not be notified");
+        assertBurstReleased();
+    }
+
+    /**
+     * Recreate the post office with an interceptor collecting the published topics, and an authorizator that
+     * denies the writes on the forbidden topic, if not null.
+     * */
+    private BlockingQueue<String> reinitWithForbiddenTopic(String forbiddenTopic) {
+        sut.terminate();
+        scheduler.shutdown();
+        final BlockingQueue<String> notifiedTopics = new LinkedBlockingQueue<>();
+        final BrokerInterceptor interceptor = new BrokerInterceptor(Collections.singletonList(new AbstractInterceptHandler() {
+            @Override
+            public String getID() {
+                return "publishedTopicsCollector";
+            }
+
+            @Override
+            public void onSessionLoopError(Throwable error) {
+            }
+
+            @Override
+            public void onPublish(InterceptPublishMessage msg) {
+                notifiedTopics.add(msg.getTopicName());
+                super.onPublish(msg);
+            }
+        }));
+        final IAuthorizatorPolicy policy = new IAuthorizatorPolicy() {
+            @Override
+            public boolean canWrite(Topic topic, String user, String client) {
+                return !topic.toString().equals(forbiddenTopic);
+            }
+
+            @Override
+            public boolean canRead(Topic topic, String user, String client) {
+                return true;
+            }
+        };
+        initPostOfficeAndSubsystems(new MemoryQueueRepository(), policy, interceptor);
+        connection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+        channel = (EmbeddedChannel) connection.channel;
+        return notifiedTopics;
+    }
+
+    private EmbeddedChannel connectAndSubscribeToNews() throws ExecutionException, InterruptedException {
+        mockAuthenticator = new MockAuthenticator(new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2)),
+            singletonMap(TEST_USER, TEST_PWD));
+        final EmbeddedChannel subscriberChannel = new EmbeddedChannel();
+        final MQTTConnection subscriber = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subscriberChannel);
+        subscriber.processConnect(ConnectionTestUtils.buildConnect(FAKE_CLIENT_ID2)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(subscriberChannel);
+        subscribe(subscriber, NEWS_TOPIC, AT_MOST_ONCE);
+        return subscriberChannel;
+    }
+
+    private void retainOn(String topic) {
+        final ByteBuf payload = Unpooled.copiedBuffer("Retained", Charset.defaultCharset());
+        retainedRepository.retain(new Topic(topic), MqttMessageBuilders.publish()
+            .payload(payload)
+            .qos(AT_LEAST_ONCE)
+            .build());
+        payload.release();
+    }
+
+    private PostOffice.BurstPublish burstPublish(String topic, String payload, boolean retained) {
+        final ByteBuf payloadBuf = Unpooled.copiedBuffer(payload, Charset.defaultCharset());
+        final MqttPublishMessage msg = MqttMessageBuilders.publish()
+            .payload(payloadBuf)
+            .qos(AT_MOST_ONCE)
+            .retained(retained)
+            .topicName(topic).build();
+        // the builder copies the payload
+        payloadBuf.release();
+        burstPayloads.add(msg.content());
+        return new PostOffice.BurstPublish(new Topic(topic), msg, Instant.MAX);
+    }
+
+    private static List<String> pollTopics(BlockingQueue<String> notifiedTopics, int count) throws InterruptedException {
+        final List<String> topics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            topics.add(notifiedTopics.poll(5, TimeUnit.SECONDS));
+        }
+        return topics;
+    }
+
+    private static void verifyReceivePublishAndRelease(EmbeddedChannel channel, String expectedTopic,
+                                                       String expectedContent) {
+        final MqttPublishMessage receivedPublish = channel.flushOutbound().readOutbound();
+        assertNotNull(receivedPublish, "Expecting a PUBLISH message");
+        assertEquals(expectedTopic, receivedPublish.variableHeader().topicName());
+        assertEquals(expectedContent, receivedPublish.payload().toString(Charset.defaultCharset()));
+        receivedPublish.release();
+    }
+
+    private void assertBurstReleased() throws InterruptedException {
+        for (ByteBuf payload : burstPayloads) {
+            // the interceptor releases its reference asynchronously
+            final long deadline = System.currentTimeMillis() + 5_000;
+            while (payload.refCnt() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, payload.refCnt(), "All the references of the burst publishes must be released");
+        }
+    }
+
     @Test
     public void testPublishWithEmptyPayloadClearRetainedStore() throws ExecutionException, InterruptedException {
         connection.processConnect(connectMessage).completableFuture().get();
@@ -289,6 +500,45 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyPublishIsReceived(channel, AT_LEAST_ONCE, "Any payload");
     }
 
+    @Test
+    public void testPubAckOfQoS1IsSentAfterTheCommitOfTheQueues() throws ExecutionException, InterruptedException, TimeoutException {
+        final CompletableFuture<Void> queuesCommit = new CompletableFuture<>();
+        tearDown();
+        initPostOfficeAndSubsystems(new MemoryQueueRepository() {
+            @Override
+            public boolean isGroupCommit() {
+                return true;
+            }
+
+            @Override
+            public CompletableFuture<Void> commit() {
+                return queuesCommit;
+            }
+        });
+        MQTTConnection senderConnection = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+        senderConnection.processConnect(ConnectionTestUtils.buildConnect("Publisher")).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(senderConnection);
+
+        // Exercise
+        final ByteBuf anyPayload = Unpooled.copiedBuffer("Any payload", Charset.defaultCharset());
+        sut.receivedPublishQos1(senderConnection, TEST_USER, 1,
+            MqttMessageBuilders.publish()
+                .payload(anyPayload)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .messageId(1)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).completableFuture().get(5, TimeUnit.SECONDS);
+
+        // Verify
+        final EmbeddedChannel senderChannel = (EmbeddedChannel) senderConnection.channel;
+        senderChannel.flush();
+        assertNull(senderChannel.readOutbound(), "PUBACK must wait the commit of the queues");
+        queuesCommit.complete(null);
+        senderChannel.flush();
+        final MqttPubAckMessage pubAck = senderChannel.readOutbound();
+        assertNotNull(pubAck, "PUBACK must be sent after the commit of the queues");
+        assertEquals(1, pubAck.variableHeader().messageId());
+    }
+
     @Test
     public void testPublishWithQoS2() throws ExecutionException, InterruptedException, TimeoutException {
         connection.processConnect(connectMessage).completableFuture().get();
@@ -344,6 +594,49 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyPublishIsReceived(channel, AT_LEAST_ONCE, "Any payload");
     }
 
+    @Test
+    public void offlineFanOutOnSegmentedQueuesStoresThePayloadOnce(@TempDir Path queuesFolder) throws Exception {
+        tearDown();
+        initPostOfficeAndSubsystems(new SegmentQueueRepository(queuesFolder, 64 * 1024, 4 * 1024));
+        final Set<String> clientIds = new HashSet<>(Arrays.asList(FAKE_CLIENT_ID, FAKE_CLIENT_ID2));
+        mockAuthenticator = new MockAuthenticator(clientIds, singletonMap(TEST_USER, TEST_PWD));
+        for (String clientId : clientIds) {
+            final MQTTConnection subscriber = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+            subscriber.processConnect(ConnectionTestUtils.buildConnectNotClean(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted((EmbeddedChannel) subscriber.channel);
+            sut.subscribeClientToTopics(MqttMessageBuilders.subscribe()
+                .addSubscription(AT_LEAST_ONCE, NEWS_TOPIC)
+                .messageId(1)
+                .build(), clientId, null, subscriber);
+            subscriber.processDisconnect(null).completableFuture().get(5, TimeUnit.SECONDS);
+        }
+
+        final MQTTConnection pubConn = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+        pubConn.processConnect(ConnectionTestUtils.buildConnect(PUBLISHER_ID)).completableFuture().get();
+        final char[] content = new char[2048];
+        Arrays.fill(content, 'a');
+        final String largePayload = new String(content);
+        final ByteBuf payload = Unpooled.copiedBuffer(largePayload, Charset.defaultCharset());
+        sut.receivedPublishQos1(pubConn, TEST_USER, 1,
+            MqttMessageBuilders.publish()
+                .payload(payload.retainedDuplicate())
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .topicName(NEWS_TOPIC).build(), Instant.MAX).completableFuture().get(5, TimeUnit.SECONDS);
+
+        final long payloadLogSize = Files.size(queuesFolder.resolve("payloads-0.log"));
+        assertTrue(payloadLogSize > content.length && payloadLogSize < 2 * content.length,
+            "The payload is stored once for both the offline sessions");
+
+        for (String clientId : clientIds) {
+            final MQTTConnection subscriber = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID);
+            subscriber.processConnect(ConnectionTestUtils.buildConnectNotClean(clientId)).completableFuture().get();
+            ConnectionTestUtils.assertConnectAccepted((EmbeddedChannel) subscriber.channel);
+            ConnectionTestUtils.verifyPublishIsReceived(subscriber, AT_LEAST_ONCE, largePayload);
+        }
+        payload.release();
+        queueRepository.close();
+    }
+
     @Test
     public void checkReceivePublishedMessage_after_a_reconnect_with_notCleanSession() throws ExecutionException, InterruptedException, TimeoutException {
         // first connect - subscribe -disconnect
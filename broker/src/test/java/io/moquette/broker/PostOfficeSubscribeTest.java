@@ -15,6 +15,7 @@
  */
 package io.moquette.broker;
 
+import io.moquette.BrokerConstants;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
@@ -36,6 +37,7 @@ import org.junit.jupiter.api.Test;
 
 import java.nio.charset.Charset;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 
@@ -336,6 +338,105 @@ public class PostOfficeSubscribeTest {
         ConnectionTestUtils.verifyReceiveRetainedPublish(subChannel, NEWS_TOPIC, "Hello world!", MqttQoS.AT_MOST_ONCE);
     }
 
+    @Test
+    public void testRetainedPublishesAreSentAsTheInflightWindowAllows() throws ExecutionException, InterruptedException {
+        connection.processConnect(connectMessage).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(channel);
+        final int retainedCount = BrokerConstants.INFLIGHT_WINDOW_SIZE + 5;
+        for (int i = 0; i < retainedCount; i++) {
+            final MqttPublishMessage retainedPubQoS1Msg = MqttMessageBuilders.publish()
+                .payload(Unpooled.copiedBuffer("Hello " + i, Charset.defaultCharset()))
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(true)
+                .topicName(NEWS_TOPIC + "/" + i).build();
+            sut.receivedPublishQos1(connection, TEST_USER, i + 1, retainedPubQoS1Msg, Instant.MAX);
+        }
+
+        EmbeddedChannel subChannel = new EmbeddedChannel();
+        MQTTConnection subConn = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subChannel);
+        subConn.processConnect(ConnectionTestUtils.buildConnect(SUBSCRIBER_ID)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(subChannel);
+        MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+            .addSubscription(MqttQoS.AT_LEAST_ONCE, NEWS_TOPIC + "/#")
+            .messageId(1)
+            .build();
+        sut.subscribeClientToTopics(subscribe, SUBSCRIBER_ID, null, subConn);
+        MqttSubAckMessage subAck = subChannel.readOutbound();
+        assertEquals(MqttQoS.AT_LEAST_ONCE.value(), (int) subAck.payload().grantedQoSLevels().get(0));
+
+        // only the inflight window is sent, the others wait for the acknowledgments
+        final List<MqttPublishMessage> received = readPublishes(subChannel);
+        assertEquals(BrokerConstants.INFLIGHT_WINDOW_SIZE, received.size());
+        assertTrue(received.get(0).fixedHeader().isRetain(), "MUST be retained publish");
+
+        sessionRegistry.retrieve(SUBSCRIBER_ID).pubAckReceived(received.get(0).variableHeader().packetId());
+        assertEquals(1, readPublishes(subChannel).size(), "An acknowledgment frees the slot for one retained");
+    }
+
+    @Test
+    public void testLiveQos0PublishDoesNotOvertakeThePendingRetained() throws Exception {
+        connection.processConnect(connectMessage).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(channel);
+        final int retainedCount = Session.RETAINED_CHUNK_SIZE + 50;
+        for (int i = 0; i < retainedCount; i++) {
+            final MqttPublishMessage retainedPubQoS1Msg = MqttMessageBuilders.publish()
+                .payload(Unpooled.copiedBuffer("Retained " + i, Charset.defaultCharset()))
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(true)
+                .topicName(NEWS_TOPIC + "/" + i).build();
+            sut.receivedPublishQos1(connection, TEST_USER, i + 1, retainedPubQoS1Msg, Instant.MAX);
+        }
+
+        EmbeddedChannel subChannel = new EmbeddedChannel();
+        MQTTConnection subConn = createMQTTConnection(ALLOW_ANONYMOUS_AND_ZERO_BYTES_CLID, subChannel);
+        subConn.processConnect(ConnectionTestUtils.buildConnect(SUBSCRIBER_ID)).completableFuture().get();
+        ConnectionTestUtils.assertConnectAccepted(subChannel);
+
+        // Exercise: the subscription sends the first chunk of retained and yields the loop, the publish is
+        // received on the subscriber's loop before the rest of the retained is sent
+        final String liveTopic = NEWS_TOPIC + "/" + (retainedCount - 1);
+        sut.routeCommand(SUBSCRIBER_ID, "subscribe and publish", () -> {
+            MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+                .addSubscription(AT_MOST_ONCE, NEWS_TOPIC + "/#")
+                .messageId(1)
+                .build();
+            sut.subscribeClientToTopics(subscribe, SUBSCRIBER_ID, null, subConn);
+            final MqttPublishMessage livePublish = MqttMessageBuilders.publish()
+                .payload(Unpooled.copiedBuffer("Live", Charset.defaultCharset()))
+                .qos(AT_MOST_ONCE)
+                .retained(false)
+                .topicName(liveTopic).build();
+            sut.receivedPublishQos0(connection, TEST_USER, FAKE_CLIENT_ID, livePublish, Instant.MAX);
+            return null;
+        }).completableFuture().get(5, TimeUnit.SECONDS);
+        // the resume of the retained is queued before this
+        sut.routeCommand(SUBSCRIBER_ID, "wait resume", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+
+        // Verify
+        MqttSubAckMessage subAck = subChannel.readOutbound();
+        assertEquals(AT_MOST_ONCE.value(), (int) subAck.payload().grantedQoSLevels().get(0));
+        final List<MqttPublishMessage> received = readPublishes(subChannel);
+        assertEquals(retainedCount + 1, received.size());
+        final MqttPublishMessage last = received.get(retainedCount);
+        assertEquals(liveTopic, last.variableHeader().topicName());
+        assertEquals("Live", last.payload().toString(Charset.defaultCharset()), "Live publish MUST follow the retained");
+        for (int i = 0; i < retainedCount; i++) {
+            assertTrue(received.get(i).fixedHeader().isRetain(), "MUST be retained publish");
+        }
+        received.forEach(MqttPublishMessage::release);
+    }
+
+    @NotNull
+    private static List<MqttPublishMessage> readPublishes(EmbeddedChannel channel) {
+        final List<MqttPublishMessage> publishes = new ArrayList<>();
+        channel.flushOutbound();
+        MqttPublishMessage publish;
+        while ((publish = channel.readOutbound()) != null) {
+            publishes.add(publish);
+        }
+        return publishes;
+    }
+
     @Test
     public void testLowerTheQosToTheRequestedBySubscription() {
         Subscription subQos1 = new Subscription("Sub A", new Topic("a/b"), MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE));
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionCommandQueueTest {
+
+    private static SessionCommand command(String sessionId) {
+        return new SessionCommand(sessionId, () -> null);
+    }
+
+    @Test
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        assertEquals(1, new SessionCommandQueue(1).capacity());
+        assertEquals(16, new SessionCommandQueue(10).capacity());
+        assertEquals(1024, new SessionCommandQueue(1024).capacity());
+    }
+
+    @Test
+    public void testOfferUntilFullThenPollInOrder() {
+        final SessionCommandQueue sut = new SessionCommandQueue(4);
+        final List<SessionCommand> offered = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final SessionCommand cmd = command("client" + i);
+            offered.add(cmd);
+            assertTrue(sut.offer(cmd));
+        }
+        assertFalse(sut.offer(command("overflow")), "Full queue must reject the command");
+        assertEquals(4, sut.size());
+
+        for (SessionCommand cmd : offered) {
+            assertSame(cmd, sut.poll());
+        }
+        assertNull(sut.poll());
+        assertTrue(sut.isEmpty());
+        assertTrue(sut.offer(command("again")), "Slots are reused once consumed");
+    }
+
+    @Test
+    public void testOverloadedBetweenHighAndLowWatermarks() {
+        final AtomicInteger drainedNotifications = new AtomicInteger();
+        final SessionCommandQueue sut = new SessionCommandQueue(16, 8, 2, drainedNotifications::incrementAndGet);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(sut.offer(command("client" + i)));
+        }
+        assertFalse(sut.isOverloaded());
+        assertTrue(sut.offer(command("client7")));
+        assertTrue(sut.isOverloaded(), "Reached the high watermark");
+
+        // drain to 3 pending commands
+        for (int i = 0; i < 5; i++) {
+            sut.poll();
+        }
+        assertTrue(sut.isOverloaded(), "Still over the low watermark");
+        assertEquals(0, drainedNotifications.get());
+
+        sut.poll();
+        assertFalse(sut.isOverloaded());
+        assertEquals(1, drainedNotifications.get());
+    }
+
+    @Test
+    public void testManyProducersWithParkingConsumer() throws InterruptedException {
+        final SessionCommandQueue sut = new SessionCommandQueue(64);
+        final int producers = 4;
+        final int commandsPerProducer = 10_000;
+        final AtomicInteger executed = new AtomicInteger();
+
+        final Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < producers * commandsPerProducer; i++) {
+                    sut.take().execute();
+                }
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        consumer.start();
+
+        final List<Thread> producerThreads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final Thread producer = new Thread(() -> {
+                for (int i = 0; i < commandsPerProducer; i++) {
+                    final SessionCommand cmd = new SessionCommand("client", () -> {
+                        executed.incrementAndGet();
+                        return null;
+                    });
+                    while (!sut.offer(cmd)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            producerThreads.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producerThreads) {
+            producer.join();
+        }
+        consumer.join(10_000);
+
+        assertFalse(consumer.isAlive(), "Consumer must have drained all the commands");
+        assertEquals(producers * commandsPerProducer, executed.get());
+    }
+}
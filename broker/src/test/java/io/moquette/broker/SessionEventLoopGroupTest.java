@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionEventLoopGroupTest {
+
+    private static final int QUEUE_SIZE = 16;
+    private static final int HIGH_WATERMARK = 4;
+    private static final int LOW_WATERMARK = 1;
+
+    private SessionEventLoopGroup sut;
+    private final CountDownLatch loopBlocked = new CountDownLatch(1);
+    private final CountDownLatch unblockLoop = new CountDownLatch(1);
+    private final CountDownLatch unblockSecondLoop = new CountDownLatch(1);
+
+    @AfterEach
+    public void tearDown() {
+        unblockLoop.countDown();
+        unblockSecondLoop.countDown();
+        if (sut != null) {
+            sut.terminate();
+        }
+    }
+
+    @Test
+    public void testPublisherStopsReadingUntilTheLoopIsDrained() throws InterruptedException {
+        sut = createOverloadedLoop();
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+
+        sut.throttleIfOverloaded(0, publisher);
+        assertFalse(publisher.config().isAutoRead(), "Publisher to an overloaded loop must stop reading");
+
+        unblockLoop.countDown();
+        Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> publisher.config().isAutoRead());
+        assertEquals(0, sut.queueDepth(0));
+    }
+
+    @Test
+    public void testPublisherIsNotThrottledByALoopNotOverloaded() {
+        sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, QUEUE_SIZE, 1,
+            HIGH_WATERMARK, LOW_WATERMARK);
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+
+        sut.throttleIfOverloaded(0, publisher);
+
+        assertTrue(publisher.config().isAutoRead());
+    }
+
+    @Test
+    public void testPublisherResumedWhenTheLoopDrainsWhileThrottling() throws InterruptedException {
+        sut = createOverloadedLoop();
+        // the loop drains after the publisher is seen overloaded but before it's tracked as throttled, so the
+        // drain notification doesn't find it
+        final EmbeddedChannel publisher = new AutoReadHookChannel(() -> {
+            unblockLoop.countDown();
+            Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> sut.queueDepth(0) == 0);
+        });
+
+        sut.throttleIfOverloaded(0, publisher);
+
+        assertTrue(publisher.config().isAutoRead(), "Publisher must resume reading when the loop drained meanwhile");
+    }
+
+    @Test
+    public void testPublisherResumesOnlyOnceAllTheOverloadedLoopsAreDrained() throws Exception {
+        sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, QUEUE_SIZE, 2,
+            HIGH_WATERMARK, LOW_WATERMARK);
+        overload(sut, 0, loopBlocked, unblockLoop);
+        overload(sut, 1, new CountDownLatch(1), unblockSecondLoop);
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+
+        sut.throttleIfOverloaded(0, publisher);
+        // the publisher already stopped reading, but has to be held also by the second loop
+        sut.throttleIfOverloaded(1, publisher);
+
+        unblockLoop.countDown();
+        // executed after the drain of the first loop notified the throttled channels
+        sut.routeCommand(clientOfLoop(sut, 0, 0), "after drain", () -> null)
+            .completableFuture().get(2, TimeUnit.SECONDS);
+        assertFalse(publisher.config().isAutoRead(), "Publisher must not resume while the second loop is overloaded");
+
+        unblockSecondLoop.countDown();
+        Awaitility.await().atMost(2, TimeUnit.SECONDS).until(() -> publisher.config().isAutoRead());
+    }
+
+    @Test
+    public void testWatermarksAreValidated() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionEventLoopGroup(
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, QUEUE_SIZE, 1, QUEUE_SIZE + 1, LOW_WATERMARK),
+            "High watermark can't exceed the queue size");
+        assertThrows(IllegalArgumentException.class, () -> new SessionEventLoopGroup(
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, QUEUE_SIZE, 1, HIGH_WATERMARK, HIGH_WATERMARK),
+            "Low watermark must be lower than the high one");
+        assertThrows(IllegalArgumentException.class, () -> new SessionEventLoopGroup(
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, QUEUE_SIZE, 1, HIGH_WATERMARK, -1));
+    }
+
+    /**
+     * Single session loop busy executing a command, with the high watermark of commands queued behind it.
+     * */
+    private SessionEventLoopGroup createOverloadedLoop() throws InterruptedException {
+        final SessionEventLoopGroup group = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            QUEUE_SIZE, 1, HIGH_WATERMARK, LOW_WATERMARK);
+        overload(group, 0, loopBlocked, unblockLoop);
+        return group;
+    }
+
+    private static void overload(SessionEventLoopGroup group, int loopId, CountDownLatch loopBlocked,
+                                 CountDownLatch unblockLoop) throws InterruptedException {
+        group.routeCommand(clientOfLoop(group, loopId, 0), "block the loop", () -> {
+            loopBlocked.countDown();
+            unblockLoop.await();
+            return null;
+        });
+        assertTrue(loopBlocked.await(2, TimeUnit.SECONDS), "Session loop must execute the blocking command");
+        for (int i = 0; i < HIGH_WATERMARK; i++) {
+            assertTrue(group.routeCommand(clientOfLoop(group, loopId, i), "queued", () -> null).isSuccess());
+        }
+        assertEquals(HIGH_WATERMARK, group.queueDepth(loopId));
+    }
+
+    /**
+     * @return the nth client id whose commands are executed by the session loop.
+     * */
+    private static String clientOfLoop(SessionEventLoopGroup group, int loopId, int nth) {
+        int found = 0;
+        for (int i = 0; ; i++) {
+            final String clientId = "client" + i;
+            if (group.targetQueueOrdinal(clientId) == loopId && found++ == nth) {
+                return clientId;
+            }
+        }
+    }
+
+    /**
+     * Channel that runs a hook when it's requested to stop reading.
+     * */
+    private static final class AutoReadHookChannel extends EmbeddedChannel {
+        private final Runnable onStopReading;
+        private ChannelConfig hookedConfig;
+
+        AutoReadHookChannel(Runnable onStopReading) {
+            this.onStopReading = onStopReading;
+        }
+
+        @Override
+        public ChannelConfig config() {
+            if (hookedConfig == null) {
+                hookedConfig = new DefaultChannelConfig(this) {
+                    @Override
+                    public ChannelConfig setAutoRead(boolean autoRead) {
+                        super.setAutoRead(autoRead);
+                        if (!autoRead) {
+                            onStopReading.run();
+                        }
+                        return this;
+                    }
+                };
+            }
+            return hookedConfig;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.AttributeKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedPublishEncodingTest {
+
+    private static final String TOPIC = "/dashboard/temperature";
+    // attribute used by the MqttEncoder to select the protocol level
+    private static final AttributeKey<MqttVersion> MQTT_VERSION_KEY = AttributeKey.valueOf("NETTY_CODEC_MQTT_VERSION");
+
+    private ByteBuf payload;
+    private SharedPublishEncoding sut;
+
+    @BeforeEach
+    public void setUp() {
+        payload = Unpooled.copiedBuffer("22.5 °C", UTF_8);
+        sut = new SharedPublishEncoding(new Topic(TOPIC), payload.duplicate());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sut.release();
+        assertEquals(1, payload.refCnt(), "Shared encoding must not leak payload references");
+        payload.release();
+    }
+
+    @Test
+    public void testQos0EncodingIsSameOfMqttEncoder() {
+        final MqttProperties.MqttProperty[] noProperties = new MqttProperties.MqttProperty[0];
+
+        final ByteBuf shared = sut.encode(MqttQoS.AT_MOST_ONCE, false, noProperties, 0, false, ByteBufAllocator.DEFAULT);
+
+        assertSameBytes(encodeWithMqttEncoder(MqttVersion.MQTT_3_1_1, MqttQoS.AT_MOST_ONCE, false, 0, noProperties), shared);
+    }
+
+    @Test
+    public void testEveryQos1SubscriberGetsItsOwnPacketId() {
+        final MqttProperties.MqttProperty[] noProperties = new MqttProperties.MqttProperty[0];
+
+        for (int packetId = 1; packetId <= 3; packetId++) {
+            final ByteBuf shared = sut.encode(MqttQoS.AT_LEAST_ONCE, true, noProperties, packetId, false,
+                ByteBufAllocator.DEFAULT);
+            assertSameBytes(encodeWithMqttEncoder(MqttVersion.MQTT_3_1_1, MqttQoS.AT_LEAST_ONCE, true, packetId,
+                noProperties), shared);
+        }
+    }
+
+    @Test
+    public void testMqtt5PropertiesEncodingIsSameOfMqttEncoder() {
+        final MqttProperties.UserProperties userProperties = new MqttProperties.UserProperties();
+        userProperties.add("unit", "celsius");
+        final MqttProperties publishProperties = new MqttProperties();
+        publishProperties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PAYLOAD_FORMAT_INDICATOR.value(), 1));
+        publishProperties.add(new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain"));
+        publishProperties.add(new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), new byte[] {1, 2}));
+        publishProperties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), 300));
+        publishProperties.add(userProperties);
+        // same order of the properties of a received message
+        final MqttProperties.MqttProperty[] properties = publishProperties.listAll().toArray(new MqttProperties.MqttProperty[0]);
+
+        final ByteBuf shared = sut.encode(MqttQoS.AT_LEAST_ONCE, false, properties, 42, true, ByteBufAllocator.DEFAULT);
+
+        assertSameBytes(encodeWithMqttEncoder(MqttVersion.MQTT_5, MqttQoS.AT_LEAST_ONCE, false, 42, properties), shared);
+    }
+
+    @Test
+    public void testSharedPartsAreAllocatedFromTheChannelAllocator() {
+        final UnpooledByteBufAllocator alloc = new UnpooledByteBufAllocator(true);
+        final MqttProperties.MqttProperty[] properties = new MqttProperties.MqttProperty[] {
+            new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PAYLOAD_FORMAT_INDICATOR.value(), 1)
+        };
+
+        final ByteBuf shared = sut.encode(MqttQoS.AT_MOST_ONCE, false, properties, 0, true, alloc);
+        shared.release();
+        assertTrue(alloc.metric().usedDirectMemory() > 0, "Shared header must come from the channel allocator");
+
+        sut.release();
+        assertEquals(0, alloc.metric().usedDirectMemory(), "Shared header must be released with the encoding");
+        assertEquals(0, alloc.metric().usedHeapMemory());
+    }
+
+    @Test
+    public void testExpiryRewriteDoesNotTouchTheSharedProperties() {
+        final MqttProperties.IntegerProperty publishedExpiry = new MqttProperties.IntegerProperty(
+            MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), 60);
+        final MqttProperties.MqttProperty[] properties = new MqttProperties.MqttProperty[] {publishedExpiry};
+        final Instant expiry = Instant.now().plusSeconds(30);
+        final SessionRegistry.PublishedMessage first = new SessionRegistry.PublishedMessage(new Topic(TOPIC),
+            MqttQoS.AT_LEAST_ONCE, payload.duplicate(), false, expiry, sut, properties);
+        final SessionRegistry.PublishedMessage second = new SessionRegistry.PublishedMessage(new Topic(TOPIC),
+            MqttQoS.AT_LEAST_ONCE, payload.duplicate(), false, expiry, sut, properties);
+
+        final MqttProperties.MqttProperty[] updated = first.updatePublicationExpiryIfPresentOrAdd();
+
+        assertNotSame(properties, updated, "Rewritten expiry must not be sent with the shared encoding");
+        assertSame(publishedExpiry, second.getMqttProperties()[0], "Other subscribers must keep their properties");
+        assertTrue((Integer) updated[0].value() <= 30);
+    }
+
+    private ByteBuf encodeWithMqttEncoder(MqttVersion version, MqttQoS qos, boolean retained, int packetId,
+                                          MqttProperties.MqttProperty[] properties) {
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        channel.attr(MQTT_VERSION_KEY).set(version);
+        final MqttPublishMessage publish = MQTTConnection.createPublishMessage(TOPIC, qos, payload.retainedDuplicate(),
+            packetId, retained, false, properties);
+        channel.writeOutbound(publish);
+        final ByteBuf encoded = channel.readOutbound();
+        channel.finishAndReleaseAll();
+        return encoded;
+    }
+
+    private static void assertSameBytes(ByteBuf expected, ByteBuf actual) {
+        assertNotNull(actual);
+        try {
+            assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(actual));
+        } finally {
+            expected.release();
+            actual.release();
+        }
+    }
+}
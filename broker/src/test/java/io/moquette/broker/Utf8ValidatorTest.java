@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class Utf8ValidatorTest {
+
+    private static boolean isValid(byte... content) {
+        final ByteBuf buffer = Unpooled.wrappedBuffer(content);
+        try {
+            return Utf8Validator.isValid(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static boolean isValidForJdkDecoder(byte[] content) {
+        try {
+            UTF_8.newDecoder().decode(ByteBuffer.wrap(content));
+            return true;
+        } catch (CharacterCodingException ex) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testWellFormedContentIsValid() {
+        assertTrue(isValid());
+        assertTrue(isValid("{\"temperature\": 22.5, \"unit\": \"celsius\"}".getBytes(UTF_8)));
+        assertTrue(isValid("22.5 °C, città, 温度, 🌡".getBytes(UTF_8)));
+    }
+
+    @Test
+    public void testMalformedSequencesAreNotValid() {
+        // lone continuation byte
+        assertFalse(isValid((byte) 0x80));
+        // overlong encoding of '/'
+        assertFalse(isValid((byte) 0xC0, (byte) 0xAF));
+        assertFalse(isValid((byte) 0xE0, (byte) 0x80, (byte) 0xAF));
+        // encoded UTF-16 surrogate
+        assertFalse(isValid((byte) 0xED, (byte) 0xA0, (byte) 0x80));
+        // over U+10FFFF
+        assertFalse(isValid((byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80));
+        // truncated sequence after an ASCII run
+        assertFalse(isValid((byte) 'a', (byte) 'b', (byte) 'c', (byte) 'd', (byte) 'e', (byte) 'f', (byte) 'g',
+            (byte) 'h', (byte) 0xE2, (byte) 0x82));
+    }
+
+    @Test
+    public void testOnlyReadableBytesAreValidated() {
+        final ByteBuf buffer = Unpooled.buffer(16);
+        buffer.writeByte(0xFF);
+        buffer.writeBytes("valid".getBytes(UTF_8));
+        buffer.readerIndex(1);
+
+        assertTrue(Utf8Validator.isValid(buffer));
+        assertEquals(1, buffer.readerIndex(), "Reader index must not be moved");
+        buffer.release();
+    }
+
+    @Test
+    public void testAgreesWithJdkDecoderOnRandomContent() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            final byte[] content = new byte[random.nextInt(24)];
+            random.nextBytes(content);
+            // favour ASCII and multi bytes lead bytes, to not reject almost all the samples on the first byte
+            for (int j = 0; j < content.length; j++) {
+                if (random.nextInt(3) == 0) {
+                    content[j] &= 0x7F;
+                }
+            }
+            assertEquals(isValidForJdkDecoder(content), isValid(content), "Disagreement on sample " + i);
+        }
+    }
+
+    @Test
+    public void testStringWithUnpairedSurrogateIsNotValid() {
+        assertTrue(Utf8Validator.isValid("application/json"));
+        assertTrue(Utf8Validator.isValid("text/🌡"));
+        assertFalse(Utf8Validator.isValid("text/\uD83C"));
+        assertFalse(Utf8Validator.isValid("\uDF21text"));
+    }
+}
@@ -48,6 +48,13 @@ public class CTrieSpeedTest {
         createSubscriptions(subscriptionList);
     }
 
+    @Test
+    @Timeout(value = MAX_DURATION_S)
+    public void testManyClientsSameTopicFilter() {
+        List<SubscriptionRequest> subscriptionList = prepareSubscriptionsManyClientsSameTopicFilter();
+        createSubscriptions(subscriptionList);
+    }
+
     @Test
     @Timeout(value = MAX_DURATION_S)
     public void testFlat() {
@@ -95,6 +102,14 @@ public class CTrieSpeedTest {
         return subscriptionList;
     }
 
+    public List<SubscriptionRequest> prepareSubscriptionsManyClientsSameTopicFilter() {
+        List<SubscriptionRequest> subscriptionList = new ArrayList<>(TOTAL_SUBSCRIPTIONS);
+        for (int i = 0; i < TOTAL_SUBSCRIPTIONS; i++) {
+            subscriptionList.add(clientSubOnTopic("TestClient-" + i, "fleet/+/status"));
+        }
+        return subscriptionList;
+    }
+
     public List<SubscriptionRequest> prepareSubscriptionsFlat() {
         List<SubscriptionRequest> results = new ArrayList<>(TOTAL_SUBSCRIPTIONS);
         int count = 0;
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CTrieSubscriptionDirectoryMatchCacheTest {
+
+    private static final int CACHE_SIZE = 32;
+
+    private CTrieSubscriptionDirectory sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory(CACHE_SIZE);
+        sut.init(new MemorySubscriptionsRepository());
+    }
+
+    private static MqttSubscriptionOption asOption(MqttQoS qos) {
+        return MqttSubscriptionOption.onlyFromQos(qos);
+    }
+
+    @Test
+    public void givenRepeatedMatchOfSameTopicThenIsServedByTheCache() {
+        sut.add("TempSensor1", asTopic("/livingroom/+"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.add("TempSensor1", asTopic("/livingroom/temp"), asOption(MqttQoS.AT_LEAST_ONCE));
+
+        final List<Subscription> first = sut.matchQosSharpening(asTopic("/livingroom/temp"));
+        final List<Subscription> second = sut.matchQosSharpening(asTopic("/livingroom/temp"));
+
+        assertEquals(1, sut.matchCacheMisses());
+        assertEquals(1, sut.matchCacheHits());
+        assertThat(second).hasSize(1).containsExactlyElementsOf(first);
+        assertEquals(MqttQoS.AT_LEAST_ONCE, second.get(0).option().qos(), "Higher QoS must be selected");
+    }
+
+    @Test
+    public void givenCachedMatchWhenWildcardSubscriptionIsAddedThenTheNewSubscriberIsMatched() {
+        sut.add("TempSensor1", asTopic("/livingroom/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        assertThat(sut.matchQosSharpening(asTopic("/livingroom/temp"))).hasSize(1);
+
+        sut.add("Dashboard", asTopic("/livingroom/#"), asOption(MqttQoS.AT_MOST_ONCE));
+
+        assertThat(sut.matchQosSharpening(asTopic("/livingroom/temp")))
+            .extracting(Subscription::getClientId)
+            .containsOnly("TempSensor1", "Dashboard");
+        assertEquals(1, sut.matchCache().invalidations());
+    }
+
+    @Test
+    public void givenCachedMatchesWhenUnsubscribeThenOnlyTheMatchedTopicsAreInvalidated() {
+        sut.add("TempSensor1", asTopic("/livingroom/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.add("TempSensor1", asTopic("/kitchen/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.matchQosSharpening(asTopic("/livingroom/temp"));
+        sut.matchQosSharpening(asTopic("/kitchen/temp"));
+
+        sut.removeSubscription(asTopic("/livingroom/temp"), "TempSensor1");
+
+        assertThat(sut.matchQosSharpening(asTopic("/livingroom/temp"))).isEmpty();
+        assertThat(sut.matchQosSharpening(asTopic("/kitchen/temp"))).hasSize(1);
+        assertEquals(1, sut.matchCache().invalidations());
+        assertEquals(1, sut.matchCacheHits(), "Kitchen match must still be cached");
+    }
+
+    @Test
+    public void givenCachedSharedSubscriptionsThenEveryMatchSelectsASubscriberRandomly() {
+        sut.add("Dashboard", asTopic("/livingroom/temp"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.addShared("TempSensor1", new ShareName("temp_sensors"), asTopic("/livingroom/+"), asOption(MqttQoS.AT_MOST_ONCE));
+        sut.addShared("TempSensor2", new ShareName("temp_sensors"), asTopic("/livingroom/+"), asOption(MqttQoS.AT_MOST_ONCE));
+
+        final Set<String> selectedSharedClients = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            final List<Subscription> matching = sut.matchQosSharpening(asTopic("/livingroom/temp"));
+            assertThat(matching).hasSize(2);
+            for (Subscription sub : matching) {
+                if (!"Dashboard".equals(sub.getClientId())) {
+                    selectedSharedClients.add(sub.getClientId());
+                }
+            }
+        }
+
+        assertEquals(1, sut.matchCacheMisses());
+        assertThat(selectedSharedClients).containsOnly("TempSensor1", "TempSensor2");
+    }
+
+    @Test
+    public void givenMoreTopicsThanCacheSizeThenLeastRecentlyUsedAreEvicted() {
+        sut.add("Dashboard", asTopic("sensors/#"), asOption(MqttQoS.AT_MOST_ONCE));
+
+        for (int i = 0; i < CACHE_SIZE * 4; i++) {
+            assertThat(sut.matchQosSharpening(asTopic("sensors/" + i))).hasSize(1);
+        }
+
+        assertThat(sut.matchCache().evictions()).isGreaterThanOrEqualTo(CACHE_SIZE * 3);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ChildrenIndexTest {
+
+    private static INode nodeFor(String name) {
+        return new INode(new CNode(new Token(name)));
+    }
+
+    @Test
+    public void testInlineLookupAndRemove() {
+        final ChildrenIndex sut = new ChildrenIndex();
+        final INode first = nodeFor("first");
+        final INode second = nodeFor("second");
+        sut.put(new Token("first"), first);
+        sut.put(new Token("second"), second);
+
+        assertSame(first, sut.get(new Token("first")));
+        assertSame(second, sut.get(new Token("second")));
+        assertNull(sut.get(Token.MULTI));
+
+        assertSame(first, sut.remove(new Token("first")));
+        assertNull(sut.get(new Token("first")));
+        assertSame(second, sut.get(new Token("second")));
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void testGrowBeyondInlineCapacityAndRemoveAll() {
+        final ChildrenIndex sut = new ChildrenIndex();
+        final int count = ChildrenIndex.INLINE_CAPACITY * 100;
+        for (int i = 0; i < count; i++) {
+            sut.put(new Token("device-" + i), nodeFor("device-" + i));
+        }
+        assertEquals(count, sut.size());
+        assertThat(sut.toList()).hasSize(count);
+
+        for (int i = 0; i < count; i += 2) {
+            assertSame(sut.get(new Token("device-" + i)), sut.remove(new Token("device-" + i)));
+        }
+        assertEquals(count / 2, sut.size());
+        for (int i = 0; i < count; i++) {
+            final INode child = sut.get(new Token("device-" + i));
+            if (i % 2 == 0) {
+                assertNull(child);
+            } else {
+                assertEquals(new Token("device-" + i), child.mainNode().getToken());
+            }
+        }
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        final ChildrenIndex original = new ChildrenIndex();
+        original.put(new Token("a"), nodeFor("a"));
+
+        final ChildrenIndex copy = original.copy();
+        copy.put(new Token("b"), nodeFor("b"));
+        copy.remove(new Token("a"));
+
+        assertEquals(1, original.size());
+        assertNull(original.get(new Token("b")));
+        assertEquals(new Token("a"), original.get(new Token("a")).mainNode().getToken());
+    }
+}
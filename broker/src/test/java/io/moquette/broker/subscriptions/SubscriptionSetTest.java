@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.junit.jupiter.api.Test;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SubscriptionSetTest {
+
+    private static Subscription subscription(String clientId, MqttQoS qos) {
+        return new Subscription(clientId, asTopic("fleet/+/status"), MqttSubscriptionOption.onlyFromQos(qos));
+    }
+
+    @Test
+    public void testPutDoesntModifyThePreviousVersion() {
+        final SubscriptionSet empty = SubscriptionSet.EMPTY;
+        final SubscriptionSet withOne = empty.put(subscription("client1", MqttQoS.AT_MOST_ONCE));
+
+        assertTrue(empty.isEmpty());
+        assertEquals(1, withOne.size());
+        assertTrue(withOne.contains("client1"));
+        assertFalse(empty.contains("client1"));
+    }
+
+    @Test
+    public void testPutReplacesTheSubscriptionOfSameClient() {
+        final SubscriptionSet set = SubscriptionSet.EMPTY
+            .put(subscription("client1", MqttQoS.AT_MOST_ONCE))
+            .put(subscription("client1", MqttQoS.EXACTLY_ONCE));
+
+        assertEquals(1, set.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, set.get("client1").option().qos());
+    }
+
+    @Test
+    public void testManyClientsAddAndRemove() {
+        SubscriptionSet set = SubscriptionSet.EMPTY;
+        for (int i = 0; i < 10_000; i++) {
+            set = set.put(subscription("client-" + i, MqttQoS.AT_LEAST_ONCE));
+        }
+        assertEquals(10_000, set.size());
+        assertThat(set.toList()).hasSize(10_000);
+
+        final SubscriptionSet full = set;
+        for (int i = 0; i < 10_000; i += 2) {
+            set = set.remove("client-" + i);
+        }
+        assertEquals(5_000, set.size());
+        assertFalse(set.contains("client-0"));
+        assertTrue(set.contains("client-1"));
+        assertTrue(full.contains("client-0"), "Previous versions must remain untouched");
+
+        assertSame(set, set.remove("not-existing"));
+    }
+
+    @Test
+    public void testClientIdsWithSameHashCode() {
+        // "Aa" and "BB" have the same String.hashCode
+        SubscriptionSet set = SubscriptionSet.EMPTY
+            .put(subscription("Aa", MqttQoS.AT_MOST_ONCE))
+            .put(subscription("BB", MqttQoS.AT_LEAST_ONCE));
+
+        assertEquals(2, set.size());
+        assertEquals(MqttQoS.AT_MOST_ONCE, set.get("Aa").option().qos());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, set.get("BB").option().qos());
+
+        set = set.remove("Aa");
+        assertEquals(1, set.size());
+        assertFalse(set.contains("Aa"));
+        assertTrue(set.contains("BB"));
+    }
+}
@@ -20,6 +20,7 @@ import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TopicTest {
 
@@ -120,6 +121,24 @@ public class TopicTest {
     public void exceptHeadToken() {
         assertEquals(Topic.asTopic("token"), Topic.asTopic("/token").exceptHeadToken());
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
+        assertEquals(Topic.asTopic("b"), Topic.asTopic("/a/b").exceptHeadToken().exceptHeadToken());
+        assertTrue(Topic.asTopic("a").exceptHeadToken().isEmpty());
+    }
+
+    @Test
+    public void testParseTopicWithTrailingSeparators() {
+        assertThat(new Topic("a//")).containsToken("a", Token.EMPTY, Token.EMPTY);
+        assertThat(new Topic("//")).containsToken(Token.EMPTY, Token.EMPTY, Token.EMPTY);
+    }
+
+    @Test
+    public void testTrailingEmptyLevelsAreMatchedOneByOne() {
+        // every separator starts a level, also when it's empty and the last one
+        assertThat(new Topic("a//")).matches("a/+/+");
+        assertThat(new Topic("a//")).doesNotMatch("a/");
+        assertThat(new Topic("a/")).doesNotMatch("a//");
+        assertThat(new Topic("//")).matches("+/+/+");
+        assertThat(new Topic("//")).doesNotMatch("/");
     }
 
     public static TopicAssert assertThat(Topic topic) {
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopicTrieTest {
+
+    private static final List<String> TOPICS = Arrays.asList("a", "a/b", "a/b/c", "a/c", "b/c", "/a", "/", "a/b/c/d");
+
+    private static final List<String> FILTERS = Arrays.asList("#", "a/#", "a/b", "a/+", "+/c", "+/+/c", "/+",
+        "+", "+/#", "a/b/#", "a/b/c/#", "x/#", "a/+/c/d");
+
+    @Test
+    public void testMatchesAsTopicMatch() {
+        final TopicTrie trie = new TopicTrie();
+        for (String topic : TOPICS) {
+            trie.add(new Topic(topic));
+        }
+
+        for (String filter : FILTERS) {
+            final Topic filterTopic = new Topic(filter);
+            final List<String> expected = TOPICS.stream()
+                .filter(topic -> new Topic(topic).match(filterTopic))
+                .collect(Collectors.toList());
+            final List<String> matched = trie.match(filterTopic).stream()
+                .map(Topic::toString)
+                .collect(Collectors.toList());
+            assertThat(matched).as("matching filter %s", filter).hasSameSizeAs(expected).containsAll(expected);
+        }
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        final TopicTrie trie = new TopicTrie();
+        assertTrue(trie.add(new Topic("a/b/c")));
+        assertFalse(trie.add(new Topic("a/b/c")), "The topic is already present");
+        assertTrue(trie.add(new Topic("a")));
+        assertEquals(2, trie.size());
+
+        assertFalse(trie.remove(new Topic("a/b")), "Intermediate levels aren't topics");
+        assertTrue(trie.remove(new Topic("a/b/c")));
+        assertFalse(trie.contains(new Topic("a/b/c")));
+        assertTrue(trie.contains(new Topic("a")));
+        assertThat(trie.match(new Topic("a/#"))).containsExactly(new Topic("a"));
+
+        assertTrue(trie.remove(new Topic("a")));
+        assertTrue(trie.isEmpty());
+        assertThat(trie.match(new Topic("#"))).isEmpty();
+
+        // the pruned levels are recreated
+        assertTrue(trie.add(new Topic("a/b/c")));
+        assertThat(trie.match(new Topic("a/+/c"))).containsExactly(new Topic("a/b/c"));
+    }
+}
@@ -34,6 +34,15 @@ public class DummySegmentAllocator implements SegmentAllocator {
         return pageBuffer;
     }
 
+    @Override
+    public int lastPage() {
+        return 0;
+    }
+
+    @Override
+    public void releaseLastPage() {
+    }
+
     @Override
     public void close() throws QueueException {
         // TODO, maybe
@@ -0,0 +1,74 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PageCacheTest {
+
+    private static final int PAGE_SIZE = 4 * 1024;
+
+    @TempDir
+    Path tempQueueFolder;
+
+    @Test
+    public void pageIsMappedOnce() throws QueueException {
+        final PageCache sut = new PageCache(tempQueueFolder, PAGE_SIZE, Long.MAX_VALUE);
+
+        final MappedByteBuffer first = sut.acquire(0);
+        assertSame(first, sut.acquire(0), "The page must be shared");
+        assertEquals(1, sut.mappedPages());
+    }
+
+    @Test
+    public void leastRecentlyUsedPagesAreDroppedOverTheLimit() throws QueueException {
+        final PageCache sut = new PageCache(tempQueueFolder, PAGE_SIZE, 2 * PAGE_SIZE);
+        final MappedByteBuffer page0 = sut.acquire(0);
+        sut.acquire(1);
+        sut.release(0);
+        sut.release(1);
+
+        // over the limit, the page 0 is the least recently used
+        sut.acquire(2);
+        assertEquals(2, sut.mappedPages());
+        assertNotSame(page0, sut.acquire(0), "Page 0 must be mapped again");
+    }
+
+    @Test
+    public void referencedPagesAreNeverDropped() throws QueueException {
+        final PageCache sut = new PageCache(tempQueueFolder, PAGE_SIZE, PAGE_SIZE);
+        final MappedByteBuffer page0 = sut.acquire(0);
+        sut.acquire(1);
+        sut.trim();
+        sut.trim();
+
+        assertEquals(2, sut.mappedPages(), "The limit is exceeded by the referenced pages");
+        assertSame(page0, sut.acquire(0));
+    }
+
+    @Test
+    public void idlePagesAreDroppedByTheTrim() throws QueueException {
+        final PageCache sut = new PageCache(tempQueueFolder, PAGE_SIZE, Long.MAX_VALUE);
+        sut.acquire(0);
+        sut.release(0);
+
+        sut.trim();
+        assertEquals(1, sut.mappedPages(), "A page used since the previous trim must be kept");
+        sut.trim();
+        assertEquals(0, sut.mappedPages(), "A page not used since the previous trim must be dropped");
+    }
+
+    @Test
+    public void missingPageIsNotCreatedWhenItMustExist() {
+        final PageCache sut = new PageCache(tempQueueFolder, PAGE_SIZE, Long.MAX_VALUE);
+
+        assertThrows(QueueException.class, () -> sut.acquireExisting(3));
+    }
+}
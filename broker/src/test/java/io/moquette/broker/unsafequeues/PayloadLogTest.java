@@ -0,0 +1,155 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadLogTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    @TempDir
+    Path tempQueueFolder;
+
+    @Test
+    public void appendedRecordsAreReadBack() throws QueueException {
+        final PayloadLog log = PayloadLog.open(tempQueueFolder, 100);
+        final long first = log.append(asBuffer("first"));
+        final long second = log.append(asBuffer("second record"));
+
+        assertEquals("first", asString(log.read(first)));
+        assertEquals("second record", asString(log.read(second)));
+        log.close();
+    }
+
+    @Test
+    public void onlyRecordsOfTheLastFileCanBeReferencedAgain() throws QueueException {
+        final PayloadLog log = PayloadLog.open(tempQueueFolder, 100);
+        final long first = log.append(ByteBuffer.allocate(80));
+        assertTrue(log.retain(first));
+
+        // doesn't fit the first file
+        log.append(ByteBuffer.allocate(80));
+        assertFalse(log.retain(first), "A file no more appended can't gain references");
+        log.close();
+    }
+
+    @Test
+    public void fileIsDeletedAtCheckpointWhenAllItsReferencesAreReleased() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final PayloadLog log = queuePool.payloadLog();
+        log.referencesRecovered();
+        final List<Long> references = new ArrayList<>();
+        // fill more than a file, that is as big as a page
+        for (int i = 0; i < 4; i++) {
+            references.add(log.append(ByteBuffer.allocate(PAGE_SIZE / 4)));
+        }
+        final Path firstFile = tempQueueFolder.resolve("payloads-0.log");
+
+        log.release(references.get(0));
+        queuePool.checkpoint();
+        assertTrue(Files.exists(firstFile), "File with referenced records must be kept");
+
+        log.release(references.get(1));
+        log.release(references.get(2));
+        queuePool.checkpoint();
+        assertFalse(Files.exists(firstFile), "File without references must be deleted");
+        assertThrows(QueueException.class, () -> log.read(references.get(0)));
+        queuePool.close();
+    }
+
+    @Test
+    public void filesAreKeptTillTheReferencesAreRecovered() throws QueueException {
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final long reference = queuePool.payloadLog().append(asBuffer("shared"));
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(referenceMessage(reference));
+        queuePool.close();
+
+        // reload without a reader of the references, the queue references the payload
+        queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queuePool.checkpoint();
+
+        assertEquals("shared", asString(queuePool.payloadLog().read(reference)));
+        queuePool.close();
+    }
+
+    @Test
+    public void referencesCountedAtTheCloseAreRestoredWithoutReadingTheQueues() throws QueueException {
+        QueuePool queuePool = loadWithReferences(new AtomicInteger());
+        final long reference = queuePool.payloadLog().append(asBuffer("shared"));
+        queuePool.getOrCreate("test").enqueue(referenceMessage(reference));
+        queuePool.close();
+
+        final AtomicInteger readMessages = new AtomicInteger();
+        queuePool = loadWithReferences(readMessages);
+
+        assertEquals(0, readMessages.get(), "Queues closed cleanly must not be read");
+        assertEquals("shared", asString(queuePool.payloadLog().read(reference)), "Referenced file must be kept");
+        final ByteBuffer dequeued = queuePool.getOrCreate("test").dequeue().get();
+        queuePool.payloadLog().release(dequeued.getLong());
+        queuePool.checkpoint();
+        assertFalse(Files.exists(tempQueueFolder.resolve("payloads-0.log")),
+            "File must be deleted once the restored reference is released");
+        queuePool.close();
+    }
+
+    @Test
+    public void referencesAreCountedInTheQueuesRecoveredAfterACrash() throws QueueException {
+        QueuePool queuePool = loadWithReferences(new AtomicInteger());
+        final long first = queuePool.payloadLog().append(asBuffer("first"));
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(referenceMessage(first));
+        queue.enqueue(referenceMessage(first));
+        queue.enqueue(ByteBuffer.wrap(new byte[SEGMENT_SIZE]));
+
+        // reload without closing, as after a crash
+        final AtomicInteger readMessages = new AtomicInteger();
+        queuePool = loadWithReferences(readMessages);
+
+        assertEquals(3, readMessages.get(), "Every recovered message is read once");
+        final Queue recovered = queuePool.getOrCreate("test");
+        queuePool.payloadLog().release(recovered.dequeue().get().getLong());
+        queuePool.checkpoint();
+        assertEquals("first", asString(queuePool.payloadLog().read(first)), "File still referenced must be kept");
+        queuePool.close();
+    }
+
+    /**
+     * Load the pool reading, as reference, the first long of the messages that are 8 bytes long.
+     * */
+    private QueuePool loadWithReferences(AtomicInteger readMessages) throws QueueException {
+        return QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE, QueueDurability.NONE, 0,
+            Long.MAX_VALUE, new QueuePool.ReferenceReader(Long.BYTES + 1, messageStart -> {
+                readMessages.incrementAndGet();
+                return messageStart.remaining() == Long.BYTES ? messageStart.getLong() : -1;
+            }));
+    }
+
+    private static ByteBuffer referenceMessage(long reference) {
+        return (ByteBuffer) ByteBuffer.allocate(Long.BYTES).putLong(reference).flip();
+    }
+
+    private static ByteBuffer asBuffer(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String asString(ByteBuffer buffer) {
+        final byte[] content = new byte[buffer.remaining()];
+        buffer.get(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
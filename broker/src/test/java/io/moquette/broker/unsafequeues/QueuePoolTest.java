@@ -14,12 +14,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -30,6 +32,7 @@ import java.util.concurrent.TimeoutException;
 import static io.moquette.broker.unsafequeues.Queue.LENGTH_HEADER_SIZE;
 import static io.moquette.broker.unsafequeues.QueueTest.generatePayload;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class QueuePoolTest {
@@ -42,6 +45,26 @@ class QueuePoolTest {
     @TempDir
     Path tempQueueFolder;
 
+    @Test
+    public void segmentsOfTheReloadedQueuesAreOpenedOnFirstUse() throws QueueException {
+        final int pageSize = 16 * 1024;
+        final int segmentSize = 1024;
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        // a segment for every queue, so the queues span 4 pages
+        for (int i = 0; i < 64; i++) {
+            queuePool.getOrCreate("queue" + i).enqueue(ByteBuffer.wrap(("message" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        queuePool.close();
+
+        queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize, QueueDurability.NONE, 0, pageSize);
+        assertEquals(1, queuePool.mappedPages(), "Only the page of the allocator must be mapped");
+
+        assertEquals("message0", Utils.bufferToString(queuePool.getOrCreate("queue0").dequeue().get()));
+        assertEquals("message63", Utils.bufferToString(queuePool.getOrCreate("queue63").dequeue().get()));
+        assertEquals(2, queuePool.mappedPages(), "Only the pages of the queues in use must be mapped");
+        queuePool.close();
+    }
+
     @Test
     public void checkpointFileContainsCorrectReferences() throws QueueException, IOException {
         final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
@@ -238,6 +261,214 @@ class QueuePoolTest {
         assertEquals((PAGE_SIZE - SEGMENT_SIZE) / SEGMENT_SIZE, holes.size());
     }
 
+    @Test
+    public void checkRecreateHolesBetweenManyUsedSegmentsOnSamePage() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final QueuePool.SegmentRef firstSegment = new QueuePool.SegmentRef(0, 0);
+        final QueuePool.SegmentRef secondSegment = new QueuePool.SegmentRef(0, 2 * SEGMENT_SIZE);
+        final QueuePool.SegmentRef thirdSegment = new QueuePool.SegmentRef(0, 4 * SEGMENT_SIZE);
+
+        // Exercise
+        final List<QueuePool.SegmentRef> holes = queuePool.recreateSegmentHoles(asTreeSet(firstSegment, secondSegment, thirdSegment));
+
+        // Verify
+        assertEquals(2, holes.size(), "Only the segments between the used ones are holes");
+        assertEquals(SEGMENT_SIZE, holes.get(0).offset);
+        assertEquals(3 * SEGMENT_SIZE, holes.get(1).offset);
+    }
+
+    @Test
+    public void allQueuesAreReloadedAfterClose() throws QueueException {
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queuePool.getOrCreate("first").enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queuePool.getOrCreate("second").enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        queuePool.close();
+
+        // reload
+        queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+
+        // verify
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), queuePool.queueNames());
+        assertEquals("AAAA", Utils.bufferToString(queuePool.getOrCreate("first").dequeue().get()));
+        assertEquals("BBBB", Utils.bufferToString(queuePool.getOrCreate("second").dequeue().get()));
+    }
+
+    @Test
+    public void recoverMessagesWhenThePoolIsNotClosed() throws QueueException {
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        Queue queue = queuePool.getOrCreate("test");
+        // messages crossing the segments, also in the header
+        final int payloadSize = SEGMENT_SIZE / 3 - 1;
+        for (byte i = 0; i < 10; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) ('A' + i))));
+        }
+
+        // reload without closing, as after a crash
+        queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queue = queuePool.getOrCreate("test");
+
+        // verify
+        for (byte i = 0; i < 10; i++) {
+            final ByteBuffer message = queue.dequeue().get();
+            assertEquals(payloadSize, message.remaining());
+            assertEquals('A' + i, message.get(payloadSize - 1), "Messages must be recovered in order");
+        }
+        assertTrue(queue.isEmpty(), "Only the enqueued messages are recovered");
+    }
+
+    @Test
+    public void recoverFromCheckpointAndJournalWhenThePoolIsNotClosed() throws QueueException {
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        Queue queue = queuePool.getOrCreate("test");
+        // every message fills half segment
+        final int payloadSize = SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE;
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'A')));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'B')));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'C')));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'D')));
+        queuePool.checkpoint();
+        // consume the first segment and add a new one after the checkpoint
+        assertEquals('A', queue.dequeue().get().get(0));
+        assertEquals('B', queue.dequeue().get().get(0));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'E')));
+
+        // reload without closing, as after a crash
+        queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        queue = queuePool.getOrCreate("test");
+
+        // verify
+        assertEquals('C', queue.dequeue().get().get(0), "The consumed segment must not be delivered again");
+        assertEquals('D', queue.dequeue().get().get(0));
+        assertEquals('E', queue.dequeue().get().get(0), "The message in the segment added after the checkpoint must be recovered");
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void queuesOnDifferentThreadsShareTheSegmentsConcurrently() throws Exception {
+        final int pageSize = 64 * 1024;
+        final int segmentSize = 1024;
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        final int threads = 4;
+        final int messages = 2_000;
+        // crosses the segments often, so that they are continuously allocated and recycled
+        final int payloadSize = segmentSize / 3;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Queue queue = queuePool.getOrCreate("queue" + t);
+            final byte marker = (byte) ('A' + t);
+            workers.add(pool.submit(() -> {
+                for (int i = 0; i < messages; i++) {
+                    queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, marker)));
+                    // keeps one message in the queue, to be found after the reload
+                    if (i > 0) {
+                        final ByteBuffer message = queue.dequeue().get();
+                        assertEquals(payloadSize, message.remaining());
+                        assertEquals(marker, message.get(payloadSize - 1));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (int i = 0; i < 10; i++) {
+            queuePool.checkpoint();
+        }
+        for (Future<?> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        queuePool.close();
+
+        queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        for (int t = 0; t < threads; t++) {
+            final Queue queue = queuePool.getOrCreate("queue" + t);
+            assertEquals('A' + t, queue.dequeue().get().get(payloadSize - 1));
+            assertTrue(queue.isEmpty(), "Only the last message must be left in the queue");
+        }
+        queuePool.close();
+    }
+
+    @Test
+    public void lastPageIsReclaimedMovingItsSegmentsInUse() throws QueueException {
+        final int pageSize = 4 * 1024;
+        final int segmentSize = 1024;
+        // every message fills half segment
+        final int payloadSize = segmentSize / 2 - LENGTH_HEADER_SIZE;
+        QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        Queue queue = queuePool.getOrCreate("test");
+        // 6 segments, the first page and 2 segments of the second
+        for (byte i = 0; i < 12; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) ('A' + i))));
+        }
+        // frees the first 3 segments of the first page
+        for (byte i = 0; i < 7; i++) {
+            assertEquals('A' + i, queue.dequeue().get().get(payloadSize - 1));
+        }
+        // the new head reuses a free segment, the segments of the second page are in the middle of the queue
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'M')));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) 'N')));
+        assertTrue(Files.exists(tempQueueFolder.resolve("1.page")));
+
+        // Exercise
+        assertTrue(queuePool.compact(2), "The 2 segments in use of the last page must be moved");
+
+        // Verify
+        assertFalse(Files.exists(tempQueueFolder.resolve("1.page")), "The last page file must be deleted");
+        // reload without closing, as after a crash
+        queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        queue = queuePool.getOrCreate("test");
+        for (byte i = 7; i < 14; i++) {
+            assertEquals('A' + i, queue.dequeue().get().get(payloadSize - 1), "Messages must be read in order");
+        }
+        assertTrue(queue.isEmpty());
+        queuePool.close();
+    }
+
+    @Test
+    public void lastPageWithTooManySegmentsInUseIsNotReclaimed() throws QueueException {
+        final int pageSize = 4 * 1024;
+        final int segmentSize = 1024;
+        final int payloadSize = segmentSize / 2 - LENGTH_HEADER_SIZE;
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, pageSize, segmentSize);
+        final Queue queue = queuePool.getOrCreate("test");
+        for (byte i = 0; i < 12; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(payloadSize, (byte) ('A' + i))));
+        }
+
+        assertFalse(queuePool.compact(1));
+
+        assertTrue(Files.exists(tempQueueFolder.resolve("1.page")));
+        assertEquals('A', queue.dequeue().get().get(payloadSize - 1));
+        queuePool.close();
+    }
+
+    @Test
+    public void groupCommitCompletesWhenTheEnqueuedMessagesAreForced() throws Exception {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE,
+            QueueDurability.GROUP_COMMIT, 0);
+        assertTrue(queuePool.isGroupCommit());
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+
+        // Exercise
+        final CompletableFuture<Void> commit = queuePool.commit();
+
+        // Verify
+        commit.get(5, TimeUnit.SECONDS);
+        queuePool.close();
+    }
+
+    @Test
+    public void commitIsImmediateWhenNotInGroupCommit() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE,
+            QueueDurability.PERIODIC, 10);
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(queuePool.commit().isDone(), "Without group commit the enqueues don't wait the force");
+        queuePool.close();
+    }
+
     @Test
     @Disabled
     public void verifySingleReaderSingleWriterOnSingleQueuePool_with_955157_size_packet() throws QueueException, ExecutionException, InterruptedException, TimeoutException {
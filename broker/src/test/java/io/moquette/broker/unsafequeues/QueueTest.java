@@ -94,7 +94,7 @@ class QueueTest {
         final VirtualPointer currentHead = VirtualPointer.buildUntouched();
         final Queue queue = new Queue("test", head, currentHead, head, currentHead, new DummySegmentAllocator(), (name, segment) -> {
             // NOOP
-        }, null);
+        }, null, SegmentsFlusher.noFlush());
 
         // generate byte array to insert.
         ByteBuffer payload = randomPayload(128);
@@ -138,8 +138,9 @@ class QueueTest {
 
         // verify
         final HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
-        assertEquals(2, fileset.size());
+        assertEquals(3, fileset.size());
         assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
+        assertTrue(fileset.contains("segments-1.journal"), "Segments journal must be created");
         assertTrue(fileset.contains("0.page"), "One page file must be created");
 
         final Path pageFile = tempQueueFolder.resolve("0.page");
@@ -177,8 +178,9 @@ class QueueTest {
 
         // check the 2 files are created
         HashSet<String> fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
-        assertEquals(2, fileset.size());
+        assertEquals(3, fileset.size());
         assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
+        assertTrue(fileset.contains("segments-1.journal"), "Segments journal must be created");
         assertTrue(fileset.contains("0.page"),
             "One page file must be created");
 
@@ -189,7 +191,7 @@ class QueueTest {
 
         // Verify
         fileset = new HashSet<>(Arrays.asList(tempQueueFolder.toFile().list()));
-        assertEquals(3, fileset.size());
+        assertEquals(4, fileset.size());
         assertTrue(fileset.contains("checkpoint.properties"), "Checkpoint file must be created");
         assertTrue(fileset.contains("0.page"), "First page file must be created");
         assertTrue(fileset.contains("1.page"), "Second page file must be created");
@@ -310,6 +312,19 @@ class QueueTest {
         assertEquals("Hello World!", readMessage, "Read the same message tha was enqueued");
     }
 
+    @Test
+    public void readInSameSegmentIsAViewOfTheMappedPage() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap("Hello World!".getBytes(StandardCharsets.UTF_8)));
+
+        //Exercise
+        final ByteBuffer result = queue.dequeue().get();
+        assertTrue(result.isDirect(), "Message must not be copied out of the mapped page");
+        assertTrue(result.isReadOnly(), "Mapped page must not be writable through the message");
+        assertEquals("Hello World!", Utils.bufferToString(result));
+    }
+
     @Test
     public void readCrossingSegment() throws QueueException {
         final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.integration;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.netty.channel.epoll.Epoll;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class ServerIntegrationEpollTest {
+
+    private static final int ACCEPTORS = 3;
+    // state of a listening socket in the kernel TCP tables
+    private static final String TCP_LISTEN = "0A";
+
+    Server m_server;
+    final List<MqttClient> m_clients = new ArrayList<>();
+
+    @TempDir
+    Path tempFolder;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        assumeTrue(Epoll.isAvailable(), "Epoll transport is not available on this platform");
+
+        final Properties configProps = IntegrationUtils.prepareTestProperties(IntegrationUtils.tempH2Path(tempFolder));
+        configProps.setProperty(BrokerConstants.NETTY_NATIVE_PROPERTY_NAME, "true");
+        configProps.setProperty(BrokerConstants.NETTY_BOSS_THREADS_PROPERTY_NAME, String.valueOf(ACCEPTORS));
+        configProps.setProperty(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, "2");
+        configProps.setProperty(BrokerConstants.NETTY_EPOLL_REUSEPORT_ACCEPTORS_PROPERTY_NAME, String.valueOf(ACCEPTORS));
+        configProps.setProperty(BrokerConstants.NETTY_EPOLL_TCP_FASTOPEN_PROPERTY_NAME, "16");
+        configProps.setProperty(BrokerConstants.NETTY_EPOLL_EDGE_TRIGGERED_PROPERTY_NAME, "false");
+        configProps.setProperty(BrokerConstants.NETTY_SO_SNDBUF_PROPERTY_NAME, "65536");
+        configProps.setProperty(BrokerConstants.NETTY_SO_RCVBUF_PROPERTY_NAME, "65536");
+        configProps.setProperty(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATERMARK_PROPERTY_NAME, "131072");
+        m_server = new Server();
+        m_server.startServer(new MemoryConfig(configProps));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (MqttClient client : m_clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        }
+        if (m_server != null) {
+            m_server.stopServer();
+        }
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void testClientsConnectedToAllTheListenersExchangeMessages() throws Exception {
+        final MqttClient subscriber = connectClient("Subscriber");
+        final MessageCollector collector = new MessageCollector();
+        subscriber.setCallback(collector);
+        subscriber.subscribe("/epoll/#", 1);
+
+        // more connections than listeners, so that every listener accepts some of them
+        for (int i = 0; i < 4 * ACCEPTORS; i++) {
+            final MqttClient publisher = connectClient("Publisher" + i);
+            publisher.publish("/epoll/" + i, ("Hello " + i).getBytes(UTF_8), 1, false);
+        }
+
+        final Set<String> expectedTopics = new HashSet<>();
+        final Set<String> receivedTopics = new HashSet<>();
+        for (int i = 0; i < 4 * ACCEPTORS; i++) {
+            expectedTopics.add("/epoll/" + i);
+            receivedTopics.add(collector.retrieveTopic());
+        }
+        assertEquals(expectedTopics, receivedTopics, "Message published by every connection must be received");
+    }
+
+    @Test
+    public void testEveryReusePortListenerIsBound() throws Exception {
+        assertEquals(ACCEPTORS, countListeningSockets(m_server.getPort()),
+            "Every listener must be bound on the same port");
+    }
+
+    /**
+     * Count the TCP sockets listening on the port, as reported by the Linux kernel.
+     * */
+    private static int countListeningSockets(int port) throws IOException {
+        final String localPortSuffix = String.format(":%04X", port);
+        int listening = 0;
+        for (String table : new String[] {"/proc/net/tcp", "/proc/net/tcp6"}) {
+            final Path tablePath = Paths.get(table);
+            if (!Files.exists(tablePath)) {
+                continue;
+            }
+            for (String line : Files.readAllLines(tablePath, UTF_8)) {
+                // columns: sl local_address rem_address st ...
+                final String[] columns = line.trim().split("\\s+");
+                if (columns.length > 3 && columns[1].endsWith(localPortSuffix) && TCP_LISTEN.equals(columns[3])) {
+                    listening++;
+                }
+            }
+        }
+        return listening;
+    }
+
+    private MqttClient connectClient(String clientId) throws Exception {
+        final MqttClient client = new MqttClient("tcp://localhost:1883", clientId, new MemoryPersistence());
+        m_clients.add(client);
+        client.connect();
+        return client;
+    }
+}
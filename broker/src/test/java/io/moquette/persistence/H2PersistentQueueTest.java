@@ -27,6 +27,7 @@ import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -60,6 +61,40 @@ public class H2PersistentQueueTest extends H2BaseTest {
         assertTrue(sut.isEmpty(), "after poll 2 elements inserted before, should be empty");
     }
 
+    @Test
+    public void testBatchedDequeue() {
+        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        sut.enqueue(createMessage("Hello"));
+        sut.enqueue(createMessage("crazy"));
+        sut.enqueue(createMessage("world"));
+
+        final List<SessionRegistry.EnqueuedMessage> batch = sut.dequeue(2);
+        assertEquals(2, batch.size());
+        assertEquals("Hello", ((SessionRegistry.PublishedMessage) batch.get(0)).getTopic().toString());
+        assertEquals("crazy", ((SessionRegistry.PublishedMessage) batch.get(1)).getTopic().toString());
+
+        assertEquals(1, sut.dequeue(2).size(), "The batch is limited to the messages in the queue");
+        assertTrue(sut.isEmpty(), "after dequeueing all the elements, should be empty");
+        assertTrue(sut.dequeue(2).isEmpty());
+        assertNull(sut.dequeue(), "Dequeue from an empty queue returns null");
+    }
+
+    @Test
+    public void testHeadAndTailAreDerivedFromTheStoredMessages() {
+        H2PersistentQueue before = new H2PersistentQueue(this.mvStore, "test");
+        before.enqueue(createMessage("Hello"));
+        before.enqueue(createMessage("crazy"));
+        assertEquals("Hello", ((SessionRegistry.PublishedMessage) before.dequeue()).getTopic().toString());
+        assertFalse(this.mvStore.hasMap("queue_test_meta"), "Head and tail must not be stored");
+
+        H2PersistentQueue after = new H2PersistentQueue(this.mvStore, "test");
+        after.enqueue(createMessage("world"));
+
+        assertEquals("crazy", ((SessionRegistry.PublishedMessage) after.dequeue()).getTopic().toString());
+        assertEquals("world", ((SessionRegistry.PublishedMessage) after.dequeue()).getTopic().toString());
+        assertTrue(after.isEmpty(), "should be empty");
+    }
+
     @Disabled
     @Test
     public void testPerformance() {
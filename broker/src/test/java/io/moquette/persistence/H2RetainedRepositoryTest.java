@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.RetainedMessage;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVMap;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class H2RetainedRepositoryTest extends H2BaseTest {
+
+    private static final Instant NOW = Instant.ofEpochSecond(1_000_000);
+
+    @Test
+    public void testCleanExpiredScansOnlyTheExpiredInExpiryOrder() {
+        H2RetainedRepository sut = new H2RetainedRepository(this.mvStore);
+        sut.retain(new Topic("a/later"), retainedPublish("a/later"), NOW.plusSeconds(10));
+        sut.retain(new Topic("a/first"), retainedPublish("a/first"), NOW.minusSeconds(20));
+        sut.retain(new Topic("a/second"), retainedPublish("a/second"), NOW.minusSeconds(10));
+        sut.retain(new Topic("a/never"), retainedPublish("a/never"));
+
+        assertEquals(1, sut.cleanExpired(NOW, 1), "Scan is limited to the requested expirations");
+        assertThat(retainedTopics(sut)).hasSize(3).containsAll(Arrays.asList("a/later", "a/second", "a/never"));
+
+        assertEquals(1, sut.cleanExpired(NOW, 10), "Only the expired entries are scanned");
+        assertThat(retainedTopics(sut)).hasSize(2).containsAll(Arrays.asList("a/later", "a/never"));
+        assertEquals(0, sut.cleanExpired(NOW, 10));
+    }
+
+    @Test
+    public void testReplacedMessageIsNotCleanedByTheOldExpiry() {
+        H2RetainedRepository sut = new H2RetainedRepository(this.mvStore);
+        sut.retain(new Topic("a/b"), retainedPublish("a/b"), NOW.minusSeconds(10));
+        sut.retain(new Topic("a/c"), retainedPublish("a/c"), NOW.minusSeconds(10));
+        sut.retain(new Topic("a/b"), retainedPublish("a/b"), NOW.plusSeconds(10));
+        sut.retain(new Topic("a/c"), retainedPublish("a/c"));
+
+        assertEquals(2, sut.cleanExpired(NOW, 10), "Stale expirations are scanned and dropped");
+        assertThat(retainedTopics(sut)).hasSize(2).containsAll(Arrays.asList("a/b", "a/c"));
+        assertEquals(0, sut.cleanExpired(NOW, 10));
+
+        assertEquals(1, sut.cleanExpired(NOW.plusSeconds(10), 10));
+        assertThat(retainedTopics(sut)).containsExactly("a/c");
+    }
+
+    @Test
+    public void testExpiringMessagesOfTheLegacyStoreAreMovedAtOpen() {
+        H2RetainedRepository previous = new H2RetainedRepository(this.mvStore);
+        previous.retain(new Topic("a/b"), retainedPublish("a/b"), NOW.minusSeconds(10));
+        final RetainedMessage legacy = previous.retainedOnTopic("a/b").iterator().next();
+        previous.cleanRetained(new Topic("a/b"));
+        final MVMap<Topic, RetainedMessage> legacyMap = this.mvStore.openMap("retained_expiry_store",
+            new MVMap.Builder<Topic, RetainedMessage>().valueType(this.mvStore.<Topic, RetainedMessage>openMap(
+                "retained_store").getValueType()));
+        legacyMap.put(new Topic("a/b"), legacy);
+        legacy.release();
+
+        H2RetainedRepository sut = new H2RetainedRepository(this.mvStore);
+
+        assertFalse(this.mvStore.hasMap("retained_expiry_store"));
+        assertThat(retainedTopics(sut)).containsExactly("a/b");
+        assertEquals(1, sut.cleanExpired(NOW, 10), "Moved message must be indexed by expiry");
+        assertTrue(sut.isEmpty());
+    }
+
+    private static List<String> retainedTopics(H2RetainedRepository sut) {
+        final Collection<RetainedMessage> retained = sut.retainedOnTopic("#");
+        final List<String> topics = retained.stream()
+            .map(msg -> msg.getTopic().toString())
+            .collect(Collectors.toList());
+        retained.forEach(RetainedMessage::release);
+        return topics;
+    }
+
+    private static MqttPublishMessage retainedPublish(String topic) {
+        return MqttMessageBuilders
+            .publish()
+            .qos(MqttQoS.AT_LEAST_ONCE)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.copiedBuffer(topic, StandardCharsets.UTF_8))
+            .build();
+    }
+}
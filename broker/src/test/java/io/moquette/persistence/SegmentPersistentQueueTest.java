@@ -138,6 +138,25 @@ public class SegmentPersistentQueueTest {
         assertAllEmpty("After dequeueing all, queue must be empty");
     }
 
+    @Test
+    public void testBatchedDequeueCrossingSegments() {
+        SessionMessageQueue<EnqueuedMessage> queue = createQueue();
+        for (int i = 0; i < 10; i++) {
+            // some messages cross the boundary of the segments
+            createAndAddToQueue(queue, "topic" + i, SEGMENT_SIZE / 3);
+        }
+
+        final List<EnqueuedMessage> batch = queue.dequeue(8);
+        assertEquals(8, batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals("topic" + i, ((PublishedMessage) batch.get(i)).getTopic().toString());
+        }
+        final List<EnqueuedMessage> rest = queue.dequeue(8);
+        assertEquals(2, rest.size(), "The batch is limited to the messages in the queue");
+        assertEquals("topic9", ((PublishedMessage) rest.get(1)).getTopic().toString());
+        assertAllEmpty("After dequeueing all, queue must be empty");
+    }
+
     @Test
     public void testAdd2() {
         LOGGER.info("testAdd2");
@@ -7,13 +7,19 @@ import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -69,6 +75,101 @@ class SegmentedPersistentQueueSerDesTest {
         assertEquals(subscriptionId, propValue);
     }
 
+    @Test
+    public void givenEnqueuedMessageWithAllPropertyTypesThenItCanBeProperlySerialized() {
+        SegmentedPersistentQueueSerDes sut = new SegmentedPersistentQueueSerDes();
+
+        final byte[] correlationData = {1, 2, 3};
+        SessionRegistry.EnqueuedMessage messageToSerialize = new SessionRegistry.PublishedMessage(
+            Topic.asTopic("/metering/temperature"), MqttQoS.EXACTLY_ONCE, payload(), false, Instant.MAX,
+            new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "text/plain"),
+            new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), correlationData),
+            new MqttProperties.UserProperties(Collections.singletonList(new MqttProperties.StringPair("unit", "°C"))));
+
+        final SessionRegistry.PublishedMessage decoded =
+            (SessionRegistry.PublishedMessage) sut.fromBytes(sut.toBytes(messageToSerialize));
+
+        assertEquals(MqttQoS.EXACTLY_ONCE, decoded.getPublishingQos());
+        final MqttProperties.MqttProperty[] properties = decoded.getMqttProperties();
+        assertEquals(3, properties.length);
+        assertEquals(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), properties[0].propertyId());
+        assertEquals("text/plain", properties[0].value());
+        assertEquals(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), properties[1].propertyId());
+        assertArrayEquals(correlationData, (byte[]) properties[1].value());
+        final MqttProperties.UserProperties userProperties = (MqttProperties.UserProperties) properties[2];
+        assertEquals("unit", userProperties.value().get(0).key);
+        assertEquals("°C", userProperties.value().get(0).value);
+    }
+
+    @Test
+    public void givenEnqueuedMessageWithExpiryThenItIsStoredWithMillisecondsPrecision() {
+        SegmentedPersistentQueueSerDes sut = new SegmentedPersistentQueueSerDes();
+
+        final Instant expiry = Instant.now().plus(1, ChronoUnit.HOURS).truncatedTo(ChronoUnit.MILLIS);
+        SessionRegistry.EnqueuedMessage expiring = new SessionRegistry.PublishedMessage(
+            Topic.asTopic("/metering/temperature"), MqttQoS.AT_LEAST_ONCE, payload(), false, expiry);
+        SessionRegistry.EnqueuedMessage notExpiring = new SessionRegistry.PublishedMessage(
+            Topic.asTopic("/metering/temperature"), MqttQoS.AT_LEAST_ONCE, payload(), false, Instant.MAX);
+
+        assertEquals(expiry, ((SessionRegistry.PublishedMessage) sut.fromBytes(sut.toBytes(expiring))).getMessageExpiry());
+        assertEquals(Instant.MAX, ((SessionRegistry.PublishedMessage) sut.fromBytes(sut.toBytes(notExpiring))).getMessageExpiry());
+    }
+
+    @Test
+    public void givenRecordInTheFirstFormatThenItCanBeDeserialized() {
+        final byte[] topic = "/metering/temperature".getBytes(StandardCharsets.UTF_8);
+        final byte[] expiry = Instant.MAX.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = TEST_STRING.getBytes(StandardCharsets.UTF_8);
+        final byte[] contentType = "text/plain".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(256)
+            .put((byte) 1) // published message
+            .put((byte) MqttQoS.AT_LEAST_ONCE.value())
+            .putInt(topic.length).put(topic)
+            .putInt(expiry.length).put(expiry)
+            .putInt(payload.length).put(payload)
+            .put((byte) 1) // contains properties
+            .putInt(1)
+            .put((byte) PropertyDataType.MqttPropertyEnum.STRING.ordinal())
+            .putInt(MqttProperties.MqttPropertyType.CONTENT_TYPE.value())
+            .putInt(contentType.length).put(contentType);
+        record.flip();
+
+        final SessionRegistry.PublishedMessage decoded =
+            (SessionRegistry.PublishedMessage) new SegmentedPersistentQueueSerDes().fromBytes(record);
+
+        assertEquals(Topic.asTopic("/metering/temperature"), decoded.getTopic());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, decoded.getPublishingQos());
+        assertEquals(Instant.MAX, decoded.getMessageExpiry());
+        assertEquals(TEST_STRING, decoded.getPayload().toString(StandardCharsets.UTF_8));
+        assertEquals("text/plain", decoded.getMqttProperties()[0].value());
+    }
+
+    @Test
+    public void givenTopicDictionaryThenTopicIsReadBackAfterReload(@TempDir Path dataPath) throws IOException {
+        final Topic topic = Topic.asTopic("/metering/temperature");
+        TopicDictionary dictionary = TopicDictionary.open(dataPath, 10);
+        final ByteBuffer withDictionary = new SegmentedPersistentQueueSerDes(dictionary).toBytes(
+            new SessionRegistry.PublishedMessage(topic, MqttQoS.AT_MOST_ONCE, payload(), false, Instant.MAX));
+        final ByteBuffer record = ByteBuffer.allocate(withDictionary.remaining()).put(withDictionary);
+        record.flip();
+        dictionary.close();
+
+        final ByteBuffer withoutDictionary = new SegmentedPersistentQueueSerDes().toBytes(
+            new SessionRegistry.PublishedMessage(topic, MqttQoS.AT_MOST_ONCE, payload(), false, Instant.MAX));
+        assertTrue(record.remaining() < withoutDictionary.remaining(), "The record must contain only the topic id");
+
+        // also a disabled dictionary reads the records already written
+        dictionary = TopicDictionary.open(dataPath, 0);
+        final SessionRegistry.PublishedMessage decoded =
+            (SessionRegistry.PublishedMessage) new SegmentedPersistentQueueSerDes(dictionary).fromBytes(record);
+        assertEquals(topic, decoded.getTopic());
+        dictionary.close();
+    }
+
+    private static ByteBuf payload() {
+        return Unpooled.wrappedBuffer(TEST_STRING.getBytes(StandardCharsets.UTF_8));
+    }
+
     private boolean isSubscriptionIdentifier(MqttProperties.MqttProperty mqttProperty) {
         return mqttProperty.propertyId() == MqttProperties.MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value();
     }